@@ -72,6 +72,22 @@
 
   This is an experimental API, subject to change.")
 
+  (open-live-query ^java.lang.AutoCloseable [node query f]
+    "Keeps the results of `query` up to date as transactions are indexed.
+
+  Calls `f` with `{:added <results>, :removed #{}}` for the latest completed transaction,
+  then with the results each later transaction adds and removes, along with its `:crux.tx/tx-id` and `:crux.tx/tx-time`.
+  `f` isn't called for transactions that don't change the results.
+  Results are as of the valid time each transaction is indexed at.
+
+  Simple queries are maintained incrementally, from the entities each transaction writes to;
+  queries with aggregates, pulls, rules, `or`/`not` clauses or limits are re-run in full.
+  Live queries don't take arguments.
+
+  `(.close ...)` the return value to stop the updates.
+
+  This is an experimental API, subject to change.")
+
   (latest-completed-tx [node]
     "Returns the latest transaction to have been indexed by this node.")
 
@@ -125,13 +141,13 @@
 
   (q* [db query args]
     "q[uery] a Crux db.
-  query param is a datalog query in map, vector or string form.
+  query param is a datalog query in map, vector or string form, or a prepared query (see `prepare-q`).
   This function will return a set of result tuples if you do not specify `:order-by`, `:limit` or `:offset`;
   otherwise, it will return a vector of result tuples.")
 
   (open-q* ^crux.api.ICursor [db query args]
     "lazily q[uery] a Crux db.
-  query param is a datalog query in map, vector or string form.
+  query param is a datalog query in map, vector or string form, or a prepared query (see `prepare-q`).
 
   This function returns a Cursor of result tuples - once you've consumed
   as much of the sequence as you need to, you'll need to `.close` the sequence.
@@ -144,6 +160,18 @@
 
   Once the sequence is closed, attempting to iterate it is undefined.")
 
+  (prepare-q ^crux.api.IPreparedQuery [db query]
+    "Conforms and compiles a query once, so that it can be run many times.
+  query param is a datalog query in map, vector or string form.
+
+  The returned prepared query can be passed to `q`/`open-q` in place of
+  the query - on this or any other db from the same node - with
+  different in-args:
+
+  (let [pq (crux/prepare-q db '{:find [?n] :in [?e] :where [[?e :name ?n]]})]
+    (crux/q db pq :ivan)
+    (crux/q (crux/db node) pq :petr))")
+
   (pull [db query eid]
     "Returns the requested data for the given entity ID, based on the projection spec
 
@@ -343,7 +371,7 @@
 
 (defn q
   "q[uery] a Crux db.
-  query param is a datalog query in map, vector or string form.
+  query param is a datalog query in map, vector or string form, or a prepared query (see `prepare-q`).
   This function will return a set of result tuples if you do not specify `:order-by`, `:limit` or `:offset`;
   otherwise, it will return a vector of result tuples."
   [db q & args]
@@ -354,7 +382,7 @@
 
 (defn open-q
   "lazily q[uery] a Crux db.
-  query param is a datalog query in map, vector or string form.
+  query param is a datalog query in map, vector or string form, or a prepared query (see `prepare-q`).
 
   This function returns a Cursor of result tuples - once you've consumed
   as much of the sequence as you need to, you'll need to `.close` the sequence.
@@ -216,6 +216,25 @@ public interface ICruxAPI extends ICruxIngestAPI, Closeable {
      */
     AutoCloseable listen(Map<Keyword, ?> eventOpts, Consumer<Map<Keyword, ?>> listener);
 
+    /**
+     * Keeps the results of a query up to date as transactions are indexed.
+     *
+     * The listener is first called with the results as of the latest completed
+     * transaction, under `:added`, then with the results each later transaction
+     * adds and removes (`:added`/`:removed`), along with its `:crux.tx/tx-id`
+     * and `:crux.tx/tx-time`.
+     *
+     * Simple queries are maintained incrementally; queries with aggregates,
+     * pulls, rules, `or`/`not` clauses or limits are re-run in full.
+     * Live queries don't take arguments.
+     *
+     * This is an experimental API, subject to change.
+     *
+     * @param query the query in map, vector or string form
+     * @return an AutoCloseable - closing the return value stops the updates.
+     */
+    AutoCloseable openLiveQuery(Object query, Consumer<Map<Keyword, ?>> listener);
+
     /**
      * @return the latest transaction to have been indexed by this node.
      */
@@ -37,7 +37,7 @@ public interface ICruxDatasource extends Closeable {
      * This function will return a set of result tuples if you do not specify `:order-by`, `:limit` or `:offset`;
      * otherwise, it will return a vector of result tuples.
      *
-     * @param query the query in map, vector or string form.
+     * @param query the query in map, vector or string form, or a prepared query.
      * @param args  bindings for in.
      * @return      a set or vector of result tuples.
      */
@@ -46,12 +46,24 @@ public interface ICruxDatasource extends Closeable {
     /**
      * Queries the db lazily.
      *
-     * @param query the query in map, vector or string form.
+     * @param query the query in map, vector or string form, or a prepared query.
      * @param args  bindings for in.
      * @return      a cursor of result tuples.
      */
     ICursor<List<?>> openQuery(Object query, Object... args);
 
+    /**
+     * Conforms and compiles a query once, so that it can be run many times.
+     *
+     * The prepared query can be passed to `query` or `openQuery` in place of
+     * the query, on this or any other db from the same node, with different
+     * bindings for in.
+     *
+     * @param query the query in map, vector or string form.
+     * @return      the prepared query.
+     */
+    IPreparedQuery prepareQuery(Object query);
+
     /**
      * Returns the requested data for the given entity ID, based on the projection spec
      *
@@ -0,0 +1,13 @@
+package crux.api;
+
+/**
+ * A query that has been conformed and compiled once, by
+ * {@link ICruxDatasource#prepareQuery(Object)}.
+ *
+ * Pass it to {@link ICruxDatasource#query(Object, Object...)} or
+ * {@link ICruxDatasource#openQuery(Object, Object...)} in place of the
+ * query, on any db from the same node, to run it with different
+ * bindings for in.
+ */
+public interface IPreparedQuery {
+}
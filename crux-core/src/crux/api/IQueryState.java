@@ -23,4 +23,9 @@ public interface IQueryState extends ILookup {
     IQueryState.QueryStatus getStatus();
     Map<Keyword, ?> getQuery();
     IQueryState.IQueryError getError();
+
+    /**
+     * Run-time counters for queries submitted with {@code :profile? true}, otherwise null.
+     */
+    Map<Keyword, ?> getProfile();
 }
\ No newline at end of file
@@ -15,6 +15,7 @@
   (entityTx [_ eid] (api/entity-tx datasource eid))
   (query [_ query args] (api/q* datasource query args))
   (openQuery [_ query args] (api/open-q* datasource query args))
+  (prepareQuery [_ query] (api/prepare-q datasource query))
   (pull [_ projection eid] (api/pull datasource projection eid))
   (^java.util.List pullMany [_ projection ^Iterable eids] (api/pull-many datasource projection eids))
   (^java.util.List pullMany [_ projection ^"[Ljava.lang.Object;" eids] (api/pull-many datasource projection (seq eids)))
@@ -60,6 +61,7 @@
   (^Map awaitTx [_ ^Map submitted-tx ^Duration timeout] (api/await-tx node submitted-tx timeout))
 
   (listen [_ event-opts consumer] (api/listen node event-opts #(.accept consumer %)))
+  (openLiveQuery [_ query consumer] (api/open-live-query node query #(.accept consumer %)))
   (latestCompletedTx [_] (TransactionInstant/factory ^Map (api/latest-completed-tx node)))
   (latestSubmittedTx [_] (TransactionInstant/factory ^Map (api/latest-submitted-tx node)))
   (activeQueries [_] (api/active-queries node))
@@ -0,0 +1,65 @@
+(ns ^:no-doc crux.cache.entity-resolution
+  "Node-level cache of entity resolutions - eid -> content hash, for a
+  given valid time and tx-id basis - shared by all queries.
+
+  The entity as of a committed basis only changes if the entity is
+  evicted, so the transaction indexer invalidates the evicted eids
+  before and after the eviction is committed. The cache is only
+  written to while no eviction is in progress, and only by resolvers
+  created since the last one completed, so that queries running
+  against a snapshot from before an eviction don't re-populate it."
+  (:require [crux.cache :as cache]
+            [crux.codec :as c]
+            [crux.memory :as mem]
+            [crux.system :as sys])
+  (:import crux.cache.ICache
+           java.util.concurrent.atomic.AtomicLong))
+
+(set! *unchecked-math* :warn-on-boxed)
+
+(def ^:private ^:const max-bases-per-entity 8)
+
+;; `eviction-epoch` is odd while an eviction is in progress.
+(defrecord EntityResolutionCache [^ICache cache ^AtomicLong eviction-epoch])
+
+(defn ->entity-resolution-cache {::sys/deps {:cache 'crux.cache/->cache}}
+  [{:keys [cache]}]
+  (->EntityResolutionCache cache (AtomicLong.)))
+
+(defn- evict-eids [^ICache cache eids]
+  ;; resolvers are called with either form of the eid.
+  (doseq [eid eids]
+    (cache/evict cache (c/->value-buffer eid))
+    (cache/evict cache (c/->id-buffer eid))))
+
+(defn begin-eviction! [{:keys [cache ^AtomicLong eviction-epoch]} eids]
+  (when (even? (.get eviction-epoch))
+    (.incrementAndGet eviction-epoch))
+  (evict-eids cache eids))
+
+(defn end-eviction! [{:keys [cache ^AtomicLong eviction-epoch]} eids]
+  (evict-eids cache eids)
+  (when (odd? (.get eviction-epoch))
+    (.incrementAndGet eviction-epoch)))
+
+(defn with-entity-resolution-cache
+  "Wraps `entity-resolver-fn`, which resolves eids as of `valid-time`
+  and `tx-id`, to look up and store its results in the shared cache.
+  Only worth it for dbs with an explicit valid time - those that
+  default to the current time never share a basis."
+  [entity-resolver-fn {:keys [^ICache cache ^AtomicLong eviction-epoch]} {:keys [valid-time tx-id]}]
+  (let [basis [valid-time tx-id]
+        epoch (.get eviction-epoch)]
+    (fn [eid]
+      (let [!bases (cache/compute-if-absent cache eid mem/copy-to-unpooled-buffer (fn [_] (atom {})))
+            content-hash (get @!bases basis ::not-found)]
+        (if (= ::not-found content-hash)
+          ;; the resolver's buffer points into the snapshot, which may
+          ;; be freed before the cache entry is.
+          (let [content-hash (some-> (entity-resolver-fn eid) mem/copy-to-unpooled-buffer)]
+            (when (and (even? epoch) (= epoch (.get eviction-epoch)))
+              (swap! !bases (fn [bases]
+                              (-> (if (< (count bases) max-bases-per-entity) bases {})
+                                  (assoc basis content-hash)))))
+            content-hash)
+          content-hash)))))
@@ -0,0 +1,158 @@
+(ns ^:no-doc crux.cache.query-result
+  "Node-level cache of query results, keyed by query, args and valid
+  time. Dbs without an explicit valid time each have one of their own -
+  the current time - so they're keyed by the bucket it falls in
+  instead: within a bucket, they share the result computed first.
+
+  A result computed at one tx-id is still valid at another as long as
+  no transaction in between touched any of the attributes the query
+  reads. The transaction indexer records the attributes each committed
+  transaction touched - those of its documents, and of every earlier
+  version of the entities it wrote to. Transactions before the cache
+  was created aren't known, so results are only shared across tx-ids
+  from then on. Evictions clear the cache."
+  (:require [juxt.clojars-mirrors.nippy.v3v1v1.taoensso.nippy :as nippy])
+  (:import [java.util Date Iterator LinkedHashMap Map$Entry]
+           java.util.concurrent.atomic.LongAdder))
+
+(set! *unchecked-math* :warn-on-boxed)
+
+;; sizes are estimated from a sample of the rows, rather than freezing
+;; every row of every result.
+(def ^:private ^:const size-sample-rate 32)
+
+(defn- estimate-bytes ^long [result]
+  (binding [nippy/*freeze-fallback* :write-unfreezable]
+    (loop [rows (seq result)
+           sampled-bytes 0
+           sampled-count 0]
+      (if rows
+        (recur (nthnext rows size-sample-rate)
+               (+ sampled-bytes (alength ^bytes (nippy/fast-freeze (first rows))))
+               (inc sampled-count))
+        (if (zero? sampled-count)
+          0
+          (quot (* (count result) sampled-bytes) sampled-count))))))
+
+;; `!state`: `:floor-tx-id` is the latest tx-id when the cache was
+;; created, `:processed-tx-id` the latest one recorded since. The others
+;; map attributes to the last tx-id that touched them.
+(defrecord QueryResultCache [^LinkedHashMap entries ^long max-bytes ^long valid-time-bucket-ms !bytes !state ^LongAdder hits ^LongAdder misses])
+
+(defn ->query-result-cache [{:keys [max-bytes valid-time-bucket-ms floor-tx-id]}]
+  (->QueryResultCache (LinkedHashMap. 16 0.75 true)
+                      max-bytes
+                      (or valid-time-bucket-ms 1000)
+                      (atom 0)
+                      (atom {:floor-tx-id (or floor-tx-id -1)
+                             :processed-tx-id (or floor-tx-id -1)
+                             :last-tx-id -1
+                             :attr->last-tx-id {}
+                             :generation 0})
+                      (LongAdder.)
+                      (LongAdder.)))
+
+(defn- last-touched-tx-id ^long [{:keys [last-tx-id attr->last-tx-id]} attrs]
+  (if (= :all attrs)
+    last-tx-id
+    (reduce (fn [^long acc a]
+              (max acc (long (get attr->last-tx-id a -1))))
+            -1
+            attrs)))
+
+(defn- valid-at? [{:keys [^long floor-tx-id ^long processed-tx-id] :as state} {:keys [^long tx-id attrs]} ^long at-tx-id]
+  (or (= tx-id at-tx-id)
+      (let [lo (min tx-id at-tx-id)
+            hi (max tx-id at-tx-id)]
+        (and (>= lo floor-tx-id)
+             (<= hi processed-tx-id)
+             (<= (last-touched-tx-id state attrs) lo)))))
+
+(defn valid-time-key
+  "The part of the key for `valid-time` - its bucket, unless the valid
+  time was given explicitly."
+  [{:keys [^long valid-time-bucket-ms]} ^Date valid-time explicit-valid-time?]
+  (if explicit-valid-time?
+    valid-time
+    [::valid-time-bucket (quot (.getTime valid-time) valid-time-bucket-ms)]))
+
+(defn lookup
+  "Returns `[result generation]` - `result` is ::miss if there's no
+  result for `k` valid at `tx-id`. `generation` is passed to `store!`."
+  [{:keys [^LinkedHashMap entries !state ^LongAdder hits ^LongAdder misses]} k tx-id]
+  (let [{:keys [generation] :as state} @!state
+        entry (locking entries
+                (.get entries k))]
+    (if (and entry (valid-at? state entry tx-id))
+      (do (.increment hits)
+          [(:result entry) generation])
+      (do (.increment misses)
+          [::miss generation]))))
+
+(defn store!
+  "Stores `result`, computed at `tx-id` and reading `attrs` (a set of
+  attributes, or :all), unless the cache was cleared since the
+  `generation` returned by `lookup`."
+  [{:keys [^LinkedHashMap entries ^long max-bytes !bytes !state]} k tx-id attrs generation result]
+  (let [size (estimate-bytes result)]
+    (when (<= size max-bytes)
+      (locking entries
+        (when (= generation (:generation @!state))
+          (when-let [prev (.put entries k {:result result, :tx-id tx-id, :attrs attrs, :bytes size})]
+            (swap! !bytes - (long (:bytes prev))))
+          (swap! !bytes + size)
+          (let [^Iterator it (.iterator (.entrySet entries))]
+            (while (> (long @!bytes) max-bytes)
+              (let [^Map$Entry e (.next it)]
+                (swap! !bytes - (long (:bytes (.getValue e))))
+                (.remove it)))))))))
+
+(defn record-tx!
+  "Records the attributes touched by the transaction `tx-id` - :all if
+  it evicted any entities, which also clears the cache."
+  [{:keys [^LinkedHashMap entries !bytes !state]} tx-id attrs]
+  (if (= :all attrs)
+    (locking entries
+      (.clear entries)
+      (reset! !bytes 0)
+      (swap! !state (fn [state]
+                      (-> state
+                          (update :generation inc)
+                          (assoc :floor-tx-id tx-id :processed-tx-id tx-id :last-tx-id tx-id)))))
+    (swap! !state (fn [state]
+                    (-> state
+                        (assoc :processed-tx-id tx-id)
+                        (cond-> (seq attrs) (assoc :last-tx-id tx-id))
+                        (update :attr->last-tx-id (fn [attr->last-tx-id]
+                                                    (reduce #(assoc %1 %2 tx-id) attr->last-tx-id attrs))))))))
+
+(defn query-attrs
+  "Returns the attributes read by the normalized query `q`, or :all if
+  these can't be determined - if it pulls, or passes the db to a
+  predicate or sub-query."
+  [{:keys [find where rules]}]
+  (if (some #(and (seq? %) (= 'pull (first %))) find)
+    :all
+    (reduce (fn [acc form]
+              (cond
+                (= '$ form) (reduced :all)
+
+                (and (seq? form) (= 'q (first form))) (reduced :all)
+
+                (and (seq? form) (= 'get-attr (first form)) (keyword? (nth form 2 nil)))
+                (conj acc (nth form 2))
+
+                (and (vector? form) (<= 2 (count form) 3)
+                     (not (seq? (first form)))
+                     (keyword? (second form)))
+                (conj acc (second form))
+
+                :else acc))
+            #{}
+            (tree-seq coll? seq (concat where rules)))))
+
+(defn stats [{:keys [^LinkedHashMap entries !bytes ^LongAdder hits ^LongAdder misses]}]
+  {:hits (.sum hits)
+   :misses (.sum misses)
+   :entries (locking entries (.size entries))
+   :bytes @!bytes})
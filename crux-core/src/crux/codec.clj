@@ -25,7 +25,7 @@
 ;; Indexes
 
 ;; NOTE: Must be updated when existing indexes change structure.
-(def index-version 18)
+(def index-version 20)
 (def ^:const index-version-size Long/BYTES)
 
 (def ^:const index-id-size Byte/BYTES)
@@ -57,6 +57,7 @@
 (def ^:const tx-time-mapping-id 12)
 
 (def ^:const stats-index-id 13)
+(def ^:const stats-delta-index-id 14)
 
 (def ^:const value-type-id-size Byte/BYTES)
 
@@ -475,6 +476,13 @@
       (0 1 2) false
       true)))
 
+(defn nippy-value-buffer?
+  "Whether `buffer` holds a value that's thawed with nippy to decode it -
+  keywords, symbols, and small collections, among others."
+  [^DirectBuffer buffer]
+  (and (pos? (.capacity buffer))
+       (= nippy-value-type-id (.getByte buffer 0))))
+
 (defn decode-value-buffer [^DirectBuffer buffer]
   (let [type-id (.getByte buffer 0)]
     (case type-id
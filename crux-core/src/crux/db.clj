@@ -40,13 +40,20 @@
   (all-attrs [this])
   (doc-count [this attr])
   (^double value-cardinality [this attr])
-  (^double eid-cardinality [this attr]))
+  (^double eid-cardinality [this attr])
+  (value-histogram [this attr]
+    "Equi-depth histogram of `attr`'s values, as a vector of value
+    buffers - the lowest value followed by each bucket's upper bound.
+    nil if there are no stats for `attr`."))
 
+;; `max-v`, if given, is an exclusive upper bound on the values returned
+;; by `av` and `aev`, so that range constraints can stop the underlying
+;; iterators rather than filtering their results.
 (defprotocol IndexSnapshot
-  (av [this a min-v])
+  (av [this a min-v max-v])
   (ave [this a v min-e entity-resolver-fn])
   (ae [this a min-e])
-  (aev [this a e min-v entity-resolver-fn])
+  (aev [this a e min-v max-v entity-resolver-fn])
   (entity [this e c])
   (entity-as-of-resolver [this eid valid-time tx-id])
   (entity-as-of ^crux.codec.EntityTx [this eid valid-time tx-id])
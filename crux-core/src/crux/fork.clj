@@ -41,10 +41,10 @@
 
 (defrecord CappedIndexSnapshot [index-snapshot capped-valid-time capped-tx-id]
   db/IndexSnapshot
-  (av [_ a min-v] (db/av index-snapshot a min-v))
+  (av [_ a min-v max-v] (db/av index-snapshot a min-v max-v))
   (ave [_ a v min-e entity-resolver-fn] (db/ave index-snapshot a v min-e entity-resolver-fn))
   (ae [_ a min-e] (db/ae index-snapshot a min-e))
-  (aev [_ a e min-v entity-resolver-fn] (db/aev index-snapshot a e min-v entity-resolver-fn))
+  (aev [_ a e min-v max-v entity-resolver-fn] (db/aev index-snapshot a e min-v max-v entity-resolver-fn))
   (entity [_ e c] (db/entity index-snapshot e c))
 
   (entity-as-of-resolver [this eid valid-time tx-id]
@@ -83,6 +83,7 @@
   (doc-count [_ attr] (db/doc-count index-snapshot attr))
   (value-cardinality [_ attr] (db/value-cardinality index-snapshot attr))
   (eid-cardinality [_ attr] (db/eid-cardinality index-snapshot attr))
+  (value-histogram [_ attr] (db/value-histogram index-snapshot attr))
 
   db/IndexMeta
   (-read-index-meta [_ k not-found]
@@ -93,9 +94,9 @@
 
 (defrecord MergedIndexSnapshot [persistent-index-snapshot transient-index-snapshot evicted-eids]
   db/IndexSnapshot
-  (av [_ a min-v]
-    (merge-seqs (db/av persistent-index-snapshot a min-v)
-                (db/av transient-index-snapshot a min-v)))
+  (av [_ a min-v max-v]
+    (merge-seqs (db/av persistent-index-snapshot a min-v max-v)
+                (db/av transient-index-snapshot a min-v max-v)))
 
   (ave [_ a v min-e entity-resolver-fn]
     (merge-seqs (db/ave persistent-index-snapshot a v min-e entity-resolver-fn)
@@ -105,9 +106,9 @@
     (merge-seqs (db/ae persistent-index-snapshot a min-e)
                 (db/ae transient-index-snapshot a min-e)))
 
-  (aev [_ a e min-v entity-resolver-fn]
-    (merge-seqs (db/aev persistent-index-snapshot a e min-v entity-resolver-fn)
-                (db/aev transient-index-snapshot a e min-v entity-resolver-fn)))
+  (aev [_ a e min-v max-v entity-resolver-fn]
+    (merge-seqs (db/aev persistent-index-snapshot a e min-v max-v entity-resolver-fn)
+                (db/aev transient-index-snapshot a e min-v max-v entity-resolver-fn)))
 
   (entity [_ e c]
     (or (db/entity transient-index-snapshot e c)
@@ -166,17 +167,24 @@
     (set/union (db/all-attrs persistent-index-snapshot)
                (db/all-attrs transient-index-snapshot)))
 
+  ;; the transient snapshot only holds the stats of the in-flight
+  ;; transaction - doc counts add up, but without the HLLs the best we
+  ;; can do for the cardinalities is the larger of the two.
   (doc-count [_ attr]
-    (or (db/doc-count transient-index-snapshot attr)
-        (db/doc-count persistent-index-snapshot attr)))
+    (+ (long (db/doc-count transient-index-snapshot attr))
+       (long (db/doc-count persistent-index-snapshot attr))))
 
   (value-cardinality [_ attr]
-    (or (db/value-cardinality transient-index-snapshot attr)
-        (db/value-cardinality persistent-index-snapshot attr)))
+    (max (db/value-cardinality transient-index-snapshot attr)
+         (db/value-cardinality persistent-index-snapshot attr)))
 
   (eid-cardinality [_ attr]
-    (or (db/eid-cardinality transient-index-snapshot attr)
-        (db/eid-cardinality persistent-index-snapshot attr)))
+    (max (db/eid-cardinality transient-index-snapshot attr)
+         (db/eid-cardinality persistent-index-snapshot attr)))
+
+  (value-histogram [_ attr]
+    (or (db/value-histogram persistent-index-snapshot attr)
+        (db/value-histogram transient-index-snapshot attr)))
 
   db/IndexMeta
   (-read-index-meta [_ k not-found]
@@ -1,64 +1,348 @@
 (ns crux.hyper-log-log
-  (:require [crux.memory :as mem])
+  (:require [crux.codec :as c]
+            [crux.memory :as mem])
   (:import [org.agrona DirectBuffer MutableDirectBuffer]
            java.nio.ByteOrder))
 
 ;; http://dimacs.rutgers.edu/~graham/pubs/papers/cacm-sketch.pdf
 ;; http://algo.inria.fr/flajolet/Publications/FlFuGaMe07.pdf
+;; https://research.google/pubs/pub40671/ - HLL++, for the sparse encoding
+;; https://github.com/aappleby/smhasher - MurmurHash64A
 
-(def ^{:tag 'int} default-buffer-size (* Integer/BYTES 1024))
+(set! *unchecked-math* :warn-on-boxed)
 
-(defn add ^org.agrona.MutableDirectBuffer [^MutableDirectBuffer hll v]
-  (let [m (/ (.capacity hll) Integer/BYTES)
-        b (Integer/numberOfTrailingZeros m)
-        x (mix-collection-hash (hash v) 0)
-        j (bit-and (bit-shift-right x (- Integer/SIZE b)) (dec m))
-        w (bit-and x (dec (bit-shift-left 1 (- Integer/SIZE b))))]
-    (doto hll
-      (.putInt (* j Integer/BYTES)
-               (max (.getInt hll (* j Integer/BYTES) ByteOrder/BIG_ENDIAN)
-                    (- (inc (Integer/numberOfLeadingZeros w)) b))
-               ByteOrder/BIG_ENDIAN))))
+;; [encoding byte][precision byte][sparse entries | dense registers]
+;;
+;; Sketches start out sparse - a sorted array of the non-zero registers
+;; at `sparse-precision`, as big-endian ints of [index 25 bits][rank 6
+;; bits]. Once the sparse array would be bigger than the dense
+;; registers, they're converted to 2^precision dense 6-bit registers,
+;; packed big-endian.
 
-(defn estimate ^double [^DirectBuffer hll]
-  (let [m (/ (.capacity hll) Integer/BYTES)
-        z (/ 1.0 (double (loop [n 0
-                                acc 0.0]
-                           (if (< n (.capacity hll))
-                             (recur (+ n Integer/BYTES)
-                                    (+ acc (Math/pow 2.0 (- (.getInt hll n ByteOrder/BIG_ENDIAN)))))
-                             acc))))
-        am (/ 0.7213 (inc (/ 1.079 m)))
-        e (* am (Math/pow m 2.0) z)]
+(def ^:private ^:const sparse-encoding 0)
+(def ^:private ^:const dense-encoding 1)
+(def ^:private ^:const header-size 2)
+
+(def ^:private ^:const sparse-precision 25)
+(def ^:private ^:const register-bits 6)
+(def ^:private ^:const register-mask 0x3f)
+
+(def ^:const min-precision 4)
+(def ^:const max-precision 16)
+(def ^:const default-precision 10)
+
+(defn- precision ^long [^DirectBuffer hll]
+  (long (.getByte hll 1)))
+
+(defn- sparse? [^DirectBuffer hll]
+  (= sparse-encoding (.getByte hll 0)))
+
+(def ^:private ^:const murmur-m -4132994306676758123) ; 0xc6a4a7935bd1e995
+(def ^:private ^:const murmur-r 47)
+
+(defn buffer-hash64
+  "MurmurHash64A of the bytes of `b`."
+  (^long [^DirectBuffer b]
+   (buffer-hash64 b 0))
+  (^long [^DirectBuffer b ^long seed]
+   (let [len (.capacity b)
+         blocks-end (bit-and-not len 7)
+         h (long (loop [idx 0
+                        h (bit-xor seed (* len murmur-m))]
+                   (if (< idx blocks-end)
+                     (let [k (* (.getLong b idx ByteOrder/LITTLE_ENDIAN) murmur-m)
+                           k (* (bit-xor k (unsigned-bit-shift-right k murmur-r)) murmur-m)]
+                       (recur (+ idx Long/BYTES) (* (bit-xor h k) murmur-m)))
+                     h)))
+         h (long (if (< blocks-end len)
+                   (loop [idx blocks-end
+                          h h]
+                     (if (< idx len)
+                       (recur (inc idx)
+                              (bit-xor h (bit-shift-left (bit-and (.getByte b idx) 0xff)
+                                                         (* 8 (- idx blocks-end)))))
+                       (* h murmur-m)))
+                   h))
+         h (* (bit-xor h (unsigned-bit-shift-right h murmur-r)) murmur-m)]
+     (bit-xor h (unsigned-bit-shift-right h murmur-r)))))
+
+(defn hash64
+  "The 64-bit hash the sketches use for `v` - that of its value buffer,
+  so that distinct values only collide with a 64-bit hash's
+  probability. Hashes never saturate 64 bits at the cardinalities we
+  estimate, so there's no large-range correction."
+  ^long [v]
+  (buffer-hash64 (c/->value-buffer v)))
+
+(defn- rank
+  "The position of the first 1 bit of `x` after the top `p` bits, capped at 64 - `p` + 1."
+  ^long [^long x ^long p]
+  (inc (Long/numberOfLeadingZeros (bit-or (bit-shift-left x p)
+                                          (bit-shift-left 1 (dec p))))))
+
+;;;; dense
+
+(defn- dense-size ^long [^long p]
+  ;; the extra byte means every register can be read as a short.
+  (+ header-size (quot (* register-bits (bit-shift-left 1 p)) 8) 1))
+
+(defn- new-dense ^org.agrona.MutableDirectBuffer [^long p]
+  (doto ^MutableDirectBuffer (mem/allocate-buffer (dense-size p))
+    (.setMemory 0 (dense-size p) 0)
+    (.putByte 0 dense-encoding)
+    (.putByte 1 (unchecked-byte p))))
+
+(defn- register ^long [^DirectBuffer hll ^long j]
+  (let [bit (* j register-bits)]
+    (-> (bit-and (.getShort hll (+ header-size (bit-shift-right bit 3)) ByteOrder/BIG_ENDIAN) 0xffff)
+        (bit-shift-right (- 10 (bit-and bit 7)))
+        (bit-and register-mask))))
+
+(defn- max-register! [^MutableDirectBuffer hll ^long j ^long r]
+  (when (> r (register hll j))
+    (let [bit (* j register-bits)
+          idx (+ header-size (bit-shift-right bit 3))
+          shift (- 10 (bit-and bit 7))
+          s (bit-and (.getShort hll idx ByteOrder/BIG_ENDIAN) 0xffff)]
+      (.putShort hll idx
+                 (unchecked-short (bit-or (bit-and-not s (bit-shift-left register-mask shift))
+                                          (bit-shift-left r shift)))
+                 ByteOrder/BIG_ENDIAN))))
+
+(defn- max-reduced-register!
+  "Maxes the register for index `idx` and rank `r` at precision
+  `idx-precision` into `hll`, which may have a lower precision."
+  [^MutableDirectBuffer hll ^long idx ^long idx-precision ^long r]
+  (let [extra (- idx-precision (precision hll))
+        lower-bits (bit-and idx (dec (bit-shift-left 1 extra)))]
+    (max-register! hll
+                   (unsigned-bit-shift-right idx extra)
+                   (if (zero? lower-bits)
+                     (+ extra r)
+                     (inc (- (Long/numberOfLeadingZeros lower-bits) (- 64 extra)))))))
+
+;; 3 bytes hold 4 registers - `m` is always a multiple of 4.
+
+(defn- get-register-group ^long [^DirectBuffer hll ^long idx]
+  (bit-or (bit-shift-left (bit-and (.getByte hll idx) 0xff) 16)
+          (bit-shift-left (bit-and (.getByte hll (inc idx)) 0xff) 8)
+          (bit-and (.getByte hll (+ idx 2)) 0xff)))
+
+(defn- put-register-group! [^MutableDirectBuffer hll ^long idx ^long group]
+  (doto hll
+    (.putByte idx (unchecked-byte (bit-shift-right group 16)))
+    (.putByte (inc idx) (unchecked-byte (bit-shift-right group 8)))
+    (.putByte (+ idx 2) (unchecked-byte group))))
+
+(defn- max-register-group ^long [^long a ^long b]
+  (loop [shift 0
+         acc 0]
+    (if (= shift 24)
+      acc
+      (recur (+ shift register-bits)
+             (bit-or acc (bit-shift-left (max (bit-and (bit-shift-right a shift) register-mask)
+                                              (bit-and (bit-shift-right b shift) register-mask))
+                                         shift))))))
+
+(defn- register-groups-end ^long [^long p]
+  (- (dense-size p) 1))
+
+;;;; sparse
+
+(defn- sparse-entry-count ^long [^DirectBuffer hll]
+  (quot (- (.capacity hll) header-size) Integer/BYTES))
+
+(defn- sparse-entry ^long [^DirectBuffer hll ^long n]
+  (.getInt hll (+ header-size (* n Integer/BYTES)) ByteOrder/BIG_ENDIAN))
+
+(defn- sparse-entry-idx ^long [^long entry]
+  (unsigned-bit-shift-right entry register-bits))
+
+(defn- max-sparse-entries ^long [^long p]
+  (quot (- (dense-size p) header-size) Integer/BYTES))
+
+(defn- hash->sparse-entry ^long [^long x]
+  (bit-or (bit-shift-left (unsigned-bit-shift-right x (- 64 sparse-precision)) register-bits)
+          (rank x sparse-precision)))
+
+(defn- merge-into-dense! ^org.agrona.MutableDirectBuffer [^MutableDirectBuffer dense ^DirectBuffer hll]
+  (let [p (precision dense)]
+    (cond
+      (sparse? hll)
+      (dotimes [n (sparse-entry-count hll)]
+        (let [entry (sparse-entry hll n)]
+          (max-reduced-register! dense (sparse-entry-idx entry) sparse-precision (bit-and entry register-mask))))
+
+      (= p (precision hll))
+      (let [end (register-groups-end p)]
+        (loop [idx header-size]
+          (when (< idx end)
+            (put-register-group! dense idx (max-register-group (get-register-group dense idx)
+                                                               (get-register-group hll idx)))
+            (recur (+ idx 3)))))
+
+      :else
+      (let [hll-p (precision hll)]
+        (dotimes [j (bit-shift-left 1 hll-p)]
+          (let [r (register hll j)]
+            (when (pos? r)
+              (max-reduced-register! dense j hll-p r)))))))
+  dense)
+
+(defn- ->dense ^org.agrona.MutableDirectBuffer [^DirectBuffer hll ^long p]
+  (merge-into-dense! (new-dense p) hll))
+
+(defn- sparse-entry-position
+  "Binary searches for the first entry with an index >= `entry-idx`."
+  ^long [^DirectBuffer hll ^long entry-idx]
+  (loop [lo 0
+         hi (sparse-entry-count hll)]
+    (if (< lo hi)
+      (let [mid (unsigned-bit-shift-right (+ lo hi) 1)]
+        (if (< (sparse-entry-idx (sparse-entry hll mid)) entry-idx)
+          (recur (inc mid) hi)
+          (recur lo mid)))
+      lo)))
+
+(defn- insert-sparse-entry ^org.agrona.MutableDirectBuffer [^MutableDirectBuffer hll ^long entry]
+  (let [n (sparse-entry-count hll)
+        entry-idx (sparse-entry-idx entry)
+        pos (sparse-entry-position hll entry-idx)]
     (cond
-      (<= e (* (double (/ 5 2)) m))
-      (let [v (long (loop [n 0
-                           acc 0]
-                           (if (< n (.capacity hll))
-                             (recur (+ n Integer/BYTES)
-                                    (+ acc (if (zero? (.getInt hll n ByteOrder/BIG_ENDIAN))
-                                             1
-                                             0)))
-                             acc)))]
-        (if (zero? v)
-          e
-          (* m (Math/log (/ m v)))))
-      (> e (* (double (/ 1 30)) (Integer/toUnsignedLong -1)))
-      (* (Math/pow -2.0 32)
-         (Math/log (- 1 (/ e (Integer/toUnsignedLong -1)))))
+      (and (< pos n) (= entry-idx (sparse-entry-idx (sparse-entry hll pos))))
+      (cond-> hll
+        (> entry (sparse-entry hll pos)) (doto (.putInt (+ header-size (* pos Integer/BYTES)) (unchecked-int entry) ByteOrder/BIG_ENDIAN)))
+
+      (>= n (max-sparse-entries (precision hll)))
+      (doto (->dense hll (precision hll))
+        (max-reduced-register! entry-idx sparse-precision (bit-and entry register-mask)))
+
       :else
-      e)))
+      (let [offset (+ header-size (* pos Integer/BYTES))]
+        (doto ^MutableDirectBuffer (mem/allocate-buffer (+ (.capacity hll) Integer/BYTES))
+          (.putBytes 0 hll 0 offset)
+          (.putInt offset (unchecked-int entry) ByteOrder/BIG_ENDIAN)
+          (.putBytes (+ offset Integer/BYTES) hll offset (- (.capacity hll) offset)))))))
+
+(defn- merge-sparse-entries!
+  "Merges the sorted entries of `hll-a` and `hll-b` into `merged`,
+  returning the number of entries."
+  ^long [^MutableDirectBuffer merged ^DirectBuffer hll-a ^DirectBuffer hll-b]
+  (let [na (sparse-entry-count hll-a)
+        nb (sparse-entry-count hll-b)]
+    (loop [a 0
+           b 0
+           n 0]
+      (if (or (< a na) (< b nb))
+        (let [ea (if (< a na) (sparse-entry hll-a a) Long/MAX_VALUE)
+              eb (if (< b nb) (sparse-entry hll-b b) Long/MAX_VALUE)
+              cmp (Long/compare (sparse-entry-idx ea) (sparse-entry-idx eb))]
+          (.putInt merged (+ header-size (* n Integer/BYTES))
+                   (unchecked-int (if (neg? cmp) ea (if (pos? cmp) eb (max ea eb))))
+                   ByteOrder/BIG_ENDIAN)
+          (recur (if (pos? cmp) a (inc a))
+                 (if (neg? cmp) b (inc b))
+                 (inc n)))
+        n))))
+
+(defn- merge-sparse ^org.agrona.MutableDirectBuffer [^DirectBuffer hll-a ^DirectBuffer hll-b ^long p]
+  (let [merged (doto ^MutableDirectBuffer (mem/allocate-buffer (+ (.capacity hll-a) (.capacity hll-b) (- header-size)))
+                 (.putByte 0 sparse-encoding)
+                 (.putByte 1 (unchecked-byte p)))
+        n (merge-sparse-entries! merged hll-a hll-b)
+        merged (mem/limit-buffer merged (+ header-size (* n Integer/BYTES)))]
+    (if (> n (max-sparse-entries p))
+      (->dense merged p)
+      merged)))
+
+;;;; public API
+
+(defn ->hll
+  "Returns a new, empty, sketch with 2^`precision` registers."
+  (^org.agrona.MutableDirectBuffer []
+   (->hll default-precision))
+  (^org.agrona.MutableDirectBuffer [^long precision]
+   (assert (<= min-precision precision max-precision))
+   (doto ^MutableDirectBuffer (mem/allocate-buffer header-size)
+     (.putByte 0 sparse-encoding)
+     (.putByte 1 (unchecked-byte precision)))))
+
+(defn add-hash
+  "Adds a value to `hll` by its `hash64`. Dense sketches are updated in
+  place, sparse ones may be copied - callers should carry on with the
+  returned sketch."
+  ^org.agrona.MutableDirectBuffer [^MutableDirectBuffer hll ^long x]
+  (if (sparse? hll)
+    (insert-sparse-entry hll (hash->sparse-entry x))
+    (let [p (precision hll)]
+      (doto hll
+        (max-register! (unsigned-bit-shift-right x (- 64 p)) (rank x p))))))
+
+(defn add
+  "Adds `v` to `hll` - see `add-hash`."
+  ^org.agrona.MutableDirectBuffer [^MutableDirectBuffer hll v]
+  (add-hash hll (hash64 v)))
+
+(def ^:private ^"[D" inverse-powers-of-2
+  (double-array (for [r (range 64)]
+                  (Math/pow 2.0 (- (long r))))))
+
+(defn- alpha ^double [^long m]
+  (case m
+    16 0.673
+    32 0.697
+    64 0.709
+    (/ 0.7213 (+ 1.0 (/ 1.079 m)))))
+
+(defn- linear-count ^double [^long m ^long zeros]
+  (* m (Math/log (/ (double m) zeros))))
+
+(defn estimate ^double [^DirectBuffer hll]
+  (if (sparse? hll)
+    (linear-count (bit-shift-left 1 sparse-precision)
+                  (- (bit-shift-left 1 sparse-precision) (sparse-entry-count hll)))
+    (let [p (precision hll)
+          m (bit-shift-left 1 p)
+          end (register-groups-end p)]
+      (loop [idx header-size
+             sum 0.0
+             zeros 0]
+        (if (< idx end)
+          (let [group (get-register-group hll idx)
+                r0 (bit-and (bit-shift-right group 18) register-mask)
+                r1 (bit-and (bit-shift-right group 12) register-mask)
+                r2 (bit-and (bit-shift-right group 6) register-mask)
+                r3 (bit-and group register-mask)]
+            (recur (+ idx 3)
+                   (+ sum
+                      (aget inverse-powers-of-2 (int r0))
+                      (aget inverse-powers-of-2 (int r1))
+                      (aget inverse-powers-of-2 (int r2))
+                      (aget inverse-powers-of-2 (int r3)))
+                   (+ zeros
+                      (if (zero? r0) 1 0)
+                      (if (zero? r1) 1 0)
+                      (if (zero? r2) 1 0)
+                      (if (zero? r3) 1 0))))
+          (let [e (/ (* (alpha m) m m) sum)]
+            (if (and (<= e (* 2.5 m)) (pos? zeros))
+              (linear-count m zeros)
+              e)))))))
+
+(defn merge!
+  "Merges `hll-b` into `hll-a`, taking the max of each register. Sketches
+  of different precisions are merged at the lower of the two. Dense
+  sketches are updated in place - callers should carry on with the
+  returned sketch."
+  ^org.agrona.MutableDirectBuffer [^MutableDirectBuffer hll-a ^DirectBuffer hll-b]
+  (let [p (min (precision hll-a) (precision hll-b))]
+    (cond
+      (and (sparse? hll-a) (sparse? hll-b)) (merge-sparse hll-a hll-b p)
+      (and (not (sparse? hll-a)) (= p (precision hll-a))) (merge-into-dense! hll-a hll-b)
+      :else (merge-into-dense! (->dense hll-a p) hll-b))))
 
 (defn combine ^DirectBuffer [^DirectBuffer hll-a ^DirectBuffer hll-b]
-  (assert (= (.capacity hll-a) (.capacity hll-b)))
-  (loop [n 0
-         result ^MutableDirectBuffer (mem/allocate-unpooled-buffer (.capacity hll-a))]
-    (if (= n (.capacity result))
-      result
-      (recur (+ n Integer/BYTES)
-             (doto result
-               (.putInt n (max (.getInt hll-a n ByteOrder/BIG_ENDIAN)
-                               (.getInt hll-b n ByteOrder/BIG_ENDIAN)) ByteOrder/BIG_ENDIAN))))))
+  (merge! (mem/copy-to-unpooled-buffer hll-a) hll-b))
 
 (defn estimate-union ^double [^DirectBuffer hll-a ^DirectBuffer hll-b]
   (estimate (combine hll-a hll-b)))
@@ -8,6 +8,25 @@
 
 (set! *unchecked-math* :warn-on-boxed)
 
+;; Blocks
+
+;; Indexes which can yield blocks of sorted keys, so joins can
+;; intersect them without going through the Index protocol per key.
+(definterface IBlockIndex
+  (^boolean batchable [])
+  (^boolean seekBlock [k])
+  (^boolean nextBlock [])
+  (^"[Ljava.lang.Object;" block [])
+  (^long blockSize [])
+  (^void positionAt [^long position]))
+
+(def ^:private ^:const initial-block-size 4)
+(def ^:private ^:const max-block-size 128)
+
+(defn- batchable? [idx]
+  (and (instance? IBlockIndex idx)
+       (.batchable ^IBlockIndex idx)))
+
 (deftype DerefIndex [idx ^:unsynchronized-mutable x]
   db/Index
   (seek-values [this k]
@@ -30,6 +49,26 @@
   (max-depth [_]
     (db/max-depth idx))
 
+  IBlockIndex
+  (batchable [_]
+    (batchable? idx))
+
+  (seekBlock [_ k]
+    (.seekBlock ^IBlockIndex idx k))
+
+  (nextBlock [_]
+    (.nextBlock ^IBlockIndex idx))
+
+  (block [_]
+    (.block ^IBlockIndex idx))
+
+  (blockSize [_]
+    (.blockSize ^IBlockIndex idx))
+
+  (positionAt [_ position]
+    (.positionAt ^IBlockIndex idx position)
+    (set! x (aget (.block ^IBlockIndex idx) position)))
+
   IDeref
   (deref [_]
     x))
@@ -39,20 +78,56 @@
     idx
     (->DerefIndex idx nil)))
 
-(deftype SeekFnIndex [seek-fn ^:unsynchronized-mutable xs]
+(deftype SeekFnIndex [seek-fn
+                      ^objects block
+                      ^:unsynchronized-mutable xs
+                      ^:unsynchronized-mutable ^long size
+                      ^:unsynchronized-mutable ^long position
+                      ^:unsynchronized-mutable ^long next-block-size]
   db/Index
   (seek-values [this k]
-    (let [[v & vs] (seq (seek-fn k))]
-      (set! xs vs)
-      v))
+    (when (.seekBlock this k)
+      (aget block 0)))
 
   (next-values [this]
-    (when-let [[v & vs] xs]
-      (set! xs vs)
-      v)))
+    (let [next-position (inc position)]
+      (if (< next-position size)
+        (do (set! position next-position)
+            (aget block next-position))
+        (when (.nextBlock this)
+          (aget block 0)))))
+
+  IBlockIndex
+  (batchable [_] true)
+
+  (seekBlock [this k]
+    (set! xs (seek-fn k))
+    (set! next-block-size initial-block-size)
+    (.nextBlock this))
+
+  ;; blocks start small after a seek, and grow while the index is
+  ;; scanned, as the keys are realised from a (possibly lazy) seq.
+  (nextBlock [_]
+    (loop [n 0
+           s xs]
+      (if (and (< n next-block-size) (seq s))
+        (do (aset block n (first s))
+            (recur (inc n) (rest s)))
+        (do (set! xs s)
+            (set! size n)
+            (set! position 0)
+            (set! next-block-size (min max-block-size (* 2 next-block-size)))
+            (pos? n)))))
+
+  (block [_] block)
+
+  (blockSize [_] size)
+
+  (positionAt [_ new-position]
+    (set! position new-position)))
 
 (defn new-seek-fn-index ^crux.index.SeekFnIndex [seek-fn]
-  (->SeekFnIndex seek-fn nil))
+  (->SeekFnIndex seek-fn (object-array max-block-size) nil 0 0 initial-block-size))
 
 ;; Range Constraints
 
@@ -110,32 +185,13 @@
                                           k
                                           (.val min-v))))))
 
-(deftype GreaterThanVirtualIndex [idx]
-  db/Index
-  (seek-values [this k]
-    (or (db/seek-values idx k)
-        (db/next-values idx)))
-
-  (next-values [this]
-    (db/next-values idx))
-
-  db/LayeredIndex
-  (open-level [_]
-    (db/open-level idx))
-
-  (close-level [_]
-    (db/close-level idx))
-
-  (max-depth [_]
-    (db/max-depth idx)))
-
 (defn new-greater-than-virtual-index [idx ^Box min-v]
-  (let [pred (value-comparsion-predicate pos? min-v)
-        idx (->PredicateVirtualIndex idx pred (fn [k]
-                                                (if (pred k)
-                                                  k
-                                                  (.val min-v))))]
-    (->GreaterThanVirtualIndex idx)))
+  (let [pred (value-comparsion-predicate pos? min-v)]
+    ;; seeks straight past `min-v`, rather than to it and then on.
+    (->PredicateVirtualIndex idx pred (fn [k]
+                                        (if (pred k)
+                                          k
+                                          (mem/successor-buffer (.val min-v)))))))
 
 (defn new-equals-virtual-index [idx ^Box v]
   (let [pred (value-comparsion-predicate zero? v)]
@@ -184,51 +240,147 @@
 
 (def ^:private init-state ::init)
 (def ^:private next-state ::next)
+(def ^:private block-state ::block)
+
+(defn- binary-search-block
+  "Returns the first position in [lo, hi) of the block with a key >= k,
+  or hi."
+  ^long [^objects block ^long lo ^long hi k]
+  (loop [lo lo
+         hi hi]
+    (if (< lo hi)
+      (let [mid (unsigned-bit-shift-right (+ lo hi) 1)]
+        (if (neg? (mem/compare-buffers ^DirectBuffer (aget block mid) k))
+          (recur (inc mid) hi)
+          (recur lo mid)))
+      lo)))
+
+(defn- search-block
+  "Returns the first position in [lo, hi) of the block with a key >= k,
+  or hi. Gallops from lo, as the key is usually close by."
+  ^long [^objects block ^long lo ^long hi k]
+  (loop [step 1]
+    (let [probe (+ lo step -1)]
+      (cond
+        (>= probe hi) (binary-search-block block (+ lo (quot step 2)) hi k)
+        (neg? (mem/compare-buffers ^DirectBuffer (aget block probe) k)) (recur (* 2 step))
+        :else (binary-search-block block (+ lo (quot step 2)) probe k)))))
+
+(defn- block-key [^IBlockIndex idx ^longs positions ^long n]
+  (aget (.block idx) (aget positions n)))
+
+(defn- all-batchable? [^objects indexes]
+  (loop [n 0]
+    (or (= n (alength indexes))
+        (and (batchable? (aget indexes n))
+             (recur (inc n))))))
+
+(defn- seek-blocks [^objects indexes ^longs positions k]
+  (loop [n 0]
+    (if (= n (alength indexes))
+      true
+      (when (.seekBlock ^IBlockIndex (aget indexes n) k)
+        (aset positions n 0)
+        (recur (inc n))))))
+
+(defn- next-block-key
+  "Steps the first index past its current key."
+  [^objects indexes ^longs positions]
+  (let [^IBlockIndex idx (aget indexes 0)
+        position (inc (aget positions 0))]
+    (if (< position (.blockSize idx))
+      (aset positions 0 position)
+      (when (.nextBlock idx)
+        (aset positions 0 0)))))
+
+(defn- leapfrog-blocks
+  "Leapfrogs the block indexes forward from their current positions
+  until they all agree on a key, which is returned - nil if any of
+  them run out."
+  [^objects indexes ^longs positions]
+  (let [n-indexes (alength indexes)]
+    (loop [n 1
+           matches 1
+           max-k (block-key (aget indexes 0) positions 0)]
+      (if (= matches n-indexes)
+        (do (dotimes [n n-indexes]
+              (.positionAt ^IBlockIndex (aget indexes n) (aget positions n)))
+            max-k)
+        (let [^IBlockIndex idx (aget indexes n)
+              position (aget positions n)
+              ^objects block (.block idx)
+              size (.blockSize idx)
+              k (if (neg? (mem/compare-buffers ^DirectBuffer (aget block position) max-k))
+                  (let [position (search-block block (inc position) size max-k)]
+                    (if (< position size)
+                      (do (aset positions n position)
+                          (aget block position))
+                      (when (.seekBlock idx max-k)
+                        (aset positions n 0)
+                        (aget (.block idx) 0))))
+                  (aget block position))
+              next-n (rem (inc n) n-indexes)]
+          (cond
+            (nil? k) nil
+            (mem/buffers=? k max-k) (recur next-n (inc matches) max-k)
+            :else (recur next-n 1 k)))))))
 
 (deftype UnaryJoinVirtualIndex [^objects indexes
+                                ^longs positions
                                 ^:unsynchronized-mutable ^long index
                                 ^:unsynchronized-mutable state]
   db/Index
   (seek-values [this k]
-    (if-let [indexes (loop [n 0
-                            acc indexes]
-                       (if (= n (alength acc))
-                         acc
-                         (let [idx ^DerefIndex (aget indexes n)]
-                           (when-let [v (db/seek-values idx k)]
-                             (recur (inc n) acc)))))]
-      (do (doto indexes
-            (Arrays/sort unary-join-iterator-state-comparator))
-          (set! index 0)
-          (set! state init-state)
-          (db/next-values this))
-      (set! state nil)))
+    (if (all-batchable? indexes)
+      (let [v (when (seek-blocks indexes positions k)
+                (leapfrog-blocks indexes positions))]
+        (set! state (when v block-state))
+        v)
+      (if-let [indexes (loop [n 0
+                              acc indexes]
+                         (if (= n (alength acc))
+                           acc
+                           (let [idx ^DerefIndex (aget indexes n)]
+                             (when-let [v (db/seek-values idx k)]
+                               (recur (inc n) acc)))))]
+        (do (doto indexes
+              (Arrays/sort unary-join-iterator-state-comparator))
+            (set! index 0)
+            (set! state init-state)
+            (db/next-values this))
+        (set! state nil))))
 
   (next-values [this]
-    (when (and state (not (identical? init-state state)))
-      (let [idx (aget indexes index)]
-        (if (if (identical? next-state state)
-              (db/next-values idx)
-              (db/seek-values idx state))
-          (let [index (inc index)
-                index (if (= index (alength indexes))
-                        0
-                        index)]
-            (set! (.index this) index))
-          (set! state nil))))
-    (when state
-      (let [idx ^DerefIndex (aget indexes index)
-            max-index (if (zero? index)
-                        (dec (alength indexes))
-                        (dec index))
-            max-k (.deref ^DerefIndex (aget indexes max-index))
-            match? (mem/buffers=? (.deref idx) max-k)]
-        (set! state (if match?
-                      next-state
-                      max-k))
-        (if match?
-          max-k
-          (recur)))))
+    (if (identical? block-state state)
+      (let [v (when (next-block-key indexes positions)
+                (leapfrog-blocks indexes positions))]
+        (set! state (when v block-state))
+        v)
+      (do
+        (when (and state (not (identical? init-state state)))
+          (let [idx (aget indexes index)]
+            (if (if (identical? next-state state)
+                  (db/next-values idx)
+                  (db/seek-values idx state))
+              (let [index (inc index)
+                    index (if (= index (alength indexes))
+                            0
+                            index)]
+                (set! (.index this) index))
+              (set! state nil))))
+        (when state
+          (let [idx ^DerefIndex (aget indexes index)
+                max-index (if (zero? index)
+                            (dec (alength indexes))
+                            (dec index))
+                max-k (.deref ^DerefIndex (aget indexes max-index))
+                match? (mem/buffers=? (.deref idx) max-k)]
+            (set! state (if match?
+                          next-state
+                          max-k))
+            (if match?
+              max-k
+              (recur)))))))
 
   db/LayeredIndex
   (open-level [this]
@@ -248,6 +400,7 @@
     (->UnaryJoinVirtualIndex
      (object-array (for [idx indexes]
                      (new-deref-index idx)))
+     (long-array (count indexes))
      0
      nil)))
 
@@ -258,18 +411,42 @@
   db/Index
   (seek-values [this k]
     (when-let [v (db/seek-values (aget indexes depth) k)]
-      (if (constrain-result-fn (doto join-keys
-                                 (.set depth v)) (inc depth))
+      (if (or (nil? constrain-result-fn)
+              (constrain-result-fn (doto join-keys
+                                     (.set depth v)) (inc depth)))
         v
         (db/next-values this))))
 
   (next-values [this]
     (when-let [v (db/next-values (aget indexes depth))]
-      (if (constrain-result-fn (doto join-keys
-                                 (.set depth v)) (inc depth))
+      (if (or (nil? constrain-result-fn)
+              (constrain-result-fn (doto join-keys
+                                     (.set depth v)) (inc depth)))
         v
         (recur))))
 
+  ;; only unconstrained levels can be joined block-at-a-time, the
+  ;; constraints need each key.
+  IBlockIndex
+  (batchable [_]
+    (and (nil? constrain-result-fn)
+         (batchable? (aget indexes depth))))
+
+  (seekBlock [_ k]
+    (.seekBlock ^IBlockIndex (aget indexes depth) k))
+
+  (nextBlock [_]
+    (.nextBlock ^IBlockIndex (aget indexes depth)))
+
+  (block [_]
+    (.block ^IBlockIndex (aget indexes depth)))
+
+  (blockSize [_]
+    (.blockSize ^IBlockIndex (aget indexes depth)))
+
+  (positionAt [_ position]
+    (.positionAt ^IBlockIndex (aget indexes depth) position))
+
   db/LayeredIndex
   (open-level [this]
     (db/open-level (aget indexes depth))
@@ -286,7 +463,7 @@
 
 (defn new-n-ary-join-layered-virtual-index
   ([indexes]
-   (new-n-ary-join-layered-virtual-index indexes (constantly true)))
+   (new-n-ary-join-layered-virtual-index indexes nil))
   ([indexes constrain-result-fn]
    (->NAryJoinLayeredVirtualIndex (object-array indexes)
                                   0
@@ -319,18 +496,9 @@
       (when (pos? max-depth)
         (step (vec (repeat max-depth nil)) 0 true)))))
 
-(deftype SortedVirtualIndex [^NavigableSet s ^:unsynchronized-mutable ^Iterator iterator]
-  db/Index
-  (seek-values [this k]
-    (set! iterator (.iterator (.tailSet s (or k mem/empty-buffer))))
-    (db/next-values this))
-
-  (next-values [this]
-    (when (and iterator (.hasNext iterator))
-      (.next iterator))))
-
-(defn- new-sorted-virtual-index [s]
-  (->SortedVirtualIndex s nil))
+(defn- new-sorted-virtual-index [^NavigableSet s]
+  (new-seek-fn-index (fn [k]
+                       (.tailSet s (or k mem/empty-buffer)))))
 
 (definterface IRelationVirtualIndexUpdate
   (^void updateIndex [tree rootIndex]))
@@ -374,6 +542,27 @@
   (max-depth [_]
     max-depth)
 
+  IBlockIndex
+  (batchable [_]
+    (batchable? (aget indexes depth)))
+
+  (seekBlock [_ k]
+    (.seekBlock ^IBlockIndex (aget indexes depth) (or k mem/empty-buffer)))
+
+  (nextBlock [_]
+    (.nextBlock ^IBlockIndex (aget indexes depth)))
+
+  (block [_]
+    (.block ^IBlockIndex (aget indexes depth)))
+
+  (blockSize [_]
+    (.blockSize ^IBlockIndex (aget indexes depth)))
+
+  (positionAt [_ position]
+    (let [^IBlockIndex idx (aget indexes depth)]
+      (.positionAt idx position)
+      (aset path depth (aget (.block idx) position))))
+
   IRelationVirtualIndexUpdate
   (updateIndex [_ new-tree root-index]
     (set! tree new-tree)
@@ -419,13 +608,28 @@
                                                           (object-array (long max-depth)))
                                   tuples))
 
-(deftype SingletonVirtualIndex [v]
+(deftype SingletonVirtualIndex [v ^objects block]
   db/Index
   (seek-values [_ k]
     (when-not (pos? (mem/compare-buffers (or k mem/empty-buffer) v))
       v))
 
-  (next-values [_]))
+  (next-values [_])
+
+  IBlockIndex
+  (batchable [_] true)
+
+  (seekBlock [this k]
+    (boolean (db/seek-values this k)))
+
+  (nextBlock [_] false)
+
+  (block [_] block)
+
+  (blockSize [_] 1)
+
+  (positionAt [_ _]))
 
 (defn new-singleton-virtual-index [v encode-value-fn]
-  (->SingletonVirtualIndex (encode-value-fn v)))
+  (let [v (encode-value-fn v)]
+    (->SingletonVirtualIndex v (object-array [v]))))
@@ -6,17 +6,21 @@
             [clojure.string :as str]
             [clojure.tools.logging :as log]
             [juxt.clojars-mirrors.nippy.v3v1v1.taoensso.nippy :as nippy])
-  (:import crux.api.ICursor
-           [java.io DataInputStream DataOutputStream File IOException Reader]
+  (:import clojure.lang.RT
+           crux.api.ICursor
+           [java.io BufferedOutputStream DataOutputStream File FileOutputStream Reader]
            java.lang.AutoCloseable
            [java.lang.management BufferPoolMXBean ManagementFactory]
            [java.lang.ref PhantomReference ReferenceQueue]
            java.net.ServerSocket
-           [java.nio.file Files FileVisitResult SimpleFileVisitor]
+           java.nio.ByteBuffer
+           [java.nio.channels FileChannel FileChannel$MapMode]
+           [java.nio.file Files FileVisitResult OpenOption SimpleFileVisitor StandardOpenOption]
            java.nio.file.attribute.FileAttribute
            java.text.SimpleDateFormat
            java.time.Duration
-           [java.util Collections Comparator Date IdentityHashMap Iterator Map PriorityQueue Properties]
+           [java.util ArrayList Collections Comparator Date IdentityHashMap Iterator List Map PriorityQueue Properties]
+           [java.util.concurrent Callable CompletableFuture ExecutionException Executors ExecutorService Future]
            java.util.concurrent.locks.StampedLock
            java.util.concurrent.ThreadFactory))
 
@@ -122,6 +126,8 @@
 
 ;; External Merge Sort
 
+(declare thread-factory)
+
 (defn- new-merge-sort-priority-queue ^PriorityQueue [comp sorted-seqs]
   (let [sorted-seqs (remove empty? sorted-seqs)
         pq-comp (reify Comparator
@@ -146,7 +152,11 @@
    (->> (new-merge-sort-priority-queue comp sorted-seqs)
         (merge-sort-priority-queue->seq))))
 
-(def ^:const default-external-sort-part-size (* 1024 1024))
+(def ^:const default-external-sort-budget-bytes (* 64 1024 1024))
+
+;; sizes are estimated from a sample of the elements, rather than
+;; freezing every element of sorts that fit in memory.
+(def ^:private ^:const external-sort-size-sample-rate 32)
 
 (defn with-nippy-thaw-all* [f]
   (binding [nippy/*thaw-serializable-allowlist* #{"*"}]
@@ -155,48 +165,152 @@
 (defmacro with-nippy-thaw-all [& body]
   `(with-nippy-thaw-all* (fn [] ~@body)))
 
+(defn- write-sort-run
+  "Sorts `xs`, writing them to a temp file as length-prefixed nippy."
+  ^java.io.File [^Comparator comp ^List xs]
+  (.sort xs comp)
+  (let [file (doto (File/createTempFile "crux-external-sort" ".run")
+               (.deleteOnExit))]
+    (with-open [out (DataOutputStream. (BufferedOutputStream. (FileOutputStream. file)))]
+      (doseq [x xs]
+        (let [^bytes bs (nippy/fast-freeze x)]
+          (.writeInt out (alength bs))
+          (.write out bs))))
+    file))
+
+(defn- map-sort-run
+  "Memory-maps the run, deleting the file - the mapping stays valid
+  until it's garbage collected."
+  ^java.nio.ByteBuffer [^File file]
+  (try
+    (with-open [ch (FileChannel/open (.toPath file) (into-array OpenOption [StandardOpenOption/READ]))]
+      (.map ch FileChannel$MapMode/READ_ONLY 0 (.size ch)))
+    (finally
+      (.delete file))))
+
+(definterface ISortRunCursor
+  (head [])
+  (^long runIdx [])
+  (^boolean advance []))
+
+(deftype SortRunCursor [^long run-idx ^ByteBuffer buf ^:unsynchronized-mutable head]
+  ISortRunCursor
+  (head [_] head)
+  (runIdx [_] run-idx)
+
+  (advance [_]
+    (if (.hasRemaining buf)
+      (let [bs (byte-array (.getInt buf))]
+        (.get buf bs)
+        (set! head (with-nippy-thaw-all (nippy/fast-thaw bs)))
+        true)
+      (do (set! head nil)
+          false))))
+
+(defn- merge-sort-runs
+  "Merges the sorted runs - ties are taken from the earlier run, so the
+  merge is stable."
+  [^Comparator comp bufs]
+  (let [pq (PriorityQueue. (max 1 (count bufs))
+                           (reify Comparator
+                             (compare [_ a b]
+                               (let [^ISortRunCursor a a
+                                     ^ISortRunCursor b b
+                                     diff (.compare comp (.head a) (.head b))]
+                                 (if (zero? diff)
+                                   (Long/compare (.runIdx a) (.runIdx b))
+                                   diff)))))]
+    (doseq [[run-idx buf] (map-indexed vector bufs)
+            :let [cursor (SortRunCursor. run-idx buf nil)]
+            :when (.advance cursor)]
+      (.add pq cursor))
+    ((fn step []
+       (lazy-seq
+        (when-let [^ISortRunCursor cursor (.poll pq)]
+          (let [x (.head cursor)]
+            (when (.advance cursor)
+              (.add pq cursor))
+            (cons x (step)))))))))
+
+(defn- await-sort-run ^java.io.File [^Future run]
+  (try
+    (.get run)
+    (catch ExecutionException e
+      (throw (.getCause e)))))
+
 (defn external-sort
-  ([seq]
-   (external-sort compare seq))
-  ([comp seq]
-   (external-sort comp seq default-external-sort-part-size))
-  ([comp seq external-sort-part-size]
-   (with-nippy-thaw-all
-     (let [parts (partition-all external-sort-part-size seq)]
-       (if (nil? (second parts))
-         (sort comp (first parts))
-         (let [files (->> parts
-                          (reduce
-                           (fn [acc part]
-                             (let [file (doto (File/createTempFile "crux-external-sort" ".nippy")
-                                          (.deleteOnExit))]
-                               (with-open [out (DataOutputStream. (io/output-stream file))]
-                                 (doseq [x (sort comp part)]
-                                   (nippy/freeze-to-out! out x)))
-                               (conj acc file)))
-                           []))
-               seq+cleaner-actions (for [^File file files]
-                                     (let [in (DataInputStream. (io/input-stream file))
-                                           cleaner-action (fn []
-                                                            (.close in)
-                                                            (.delete file))
-                                           seq ((fn step []
-                                                  (lazy-seq
-                                                   (try
-                                                     (when-let [x (nippy/thaw-from-in! in)]
-                                                       (cons x (step)))
-                                                     (catch Exception e
-                                                       (cleaner-action)
-                                                       (if (or (instance? IOException e)
-                                                               (instance? IOException (.getCause e)))
-                                                         nil
-                                                         (throw e)))))))]
-                                       [seq cleaner-action]))
-               pq (->> (map first seq+cleaner-actions)
-                       (new-merge-sort-priority-queue comp))]
-           (doseq [[_ cleaner-action] seq+cleaner-actions]
-             (register-cleaner pq cleaner-action))
-           (merge-sort-priority-queue->seq pq)))))))
+  "Sorts `seq` by `comp`. Once the elements held in memory are
+  estimated to take more than half of `budget-bytes`, they're sorted
+  and written to disk as a run on a background thread, while the next
+  run is read. The runs are then memory-mapped and merged."
+  ([coll]
+   (external-sort compare coll))
+  ([comp coll]
+   (external-sort comp coll default-external-sort-budget-bytes))
+  ([^Comparator comp coll ^long budget-bytes]
+   (let [run-budget-bytes (max 1 (quot budget-bytes 2))
+         ^Iterator it (RT/iter coll)
+         runs (ArrayList.)
+         !executor (delay (Executors/newSingleThreadExecutor (thread-factory "crux-external-sort")))]
+     (try
+       (loop [xs (ArrayList.)
+              sampled-bytes 0
+              sampled-count 0]
+         (if (.hasNext it)
+           (let [x (.next it)
+                 sample? (zero? (rem (.size xs) external-sort-size-sample-rate))
+                 sampled-bytes (cond-> sampled-bytes
+                                 sample? (+ (alength ^bytes (nippy/fast-freeze x))))
+                 sampled-count (cond-> sampled-count sample? inc)]
+             (.add xs x)
+             (if (> (quot (* (.size xs) sampled-bytes) sampled-count) run-budget-bytes)
+               (do
+                 ;; at most one run is written while the next is read.
+                 (when-let [prev-run (last runs)]
+                   (await-sort-run prev-run))
+                 (.add runs (.submit ^ExecutorService @!executor ^Callable #(write-sort-run comp xs)))
+                 (recur (ArrayList.) 0 0))
+               (recur xs sampled-bytes sampled-count)))
+
+           (if (.isEmpty runs)
+             (do (.sort xs comp)
+                 (seq xs))
+             (do (.add runs (CompletableFuture/completedFuture (write-sort-run comp xs)))
+                 (->> (mapv #(map-sort-run (await-sort-run %)) runs)
+                      (merge-sort-runs comp))))))
+       (finally
+         (when (realized? !executor)
+           (.shutdown ^ExecutorService @!executor)))))))
+
+(defn top-n
+  "Returns the first `n` elements of `seq`, as sorted by `comp` -
+  the same as `(take n (sort comp seq))`, but only ever holding `n`
+  elements in memory."
+  ([^long n seq]
+   (top-n compare n seq))
+  ([^Comparator comp ^long n seq]
+   (if (pos? n)
+     (let [entry-comp (reify Comparator
+                        (compare [_ [a ^long a-idx] [b ^long b-idx]]
+                          (let [diff (.compare comp a b)]
+                            (if (zero? diff)
+                              (Long/compare a-idx b-idx)
+                              diff))))
+           ;; a max-heap, so that the head is the entry to evict.
+           pq (PriorityQueue. (int (min n 1024)) (.reversed ^Comparator entry-comp))]
+       (reduce (fn [^long idx x]
+                 (let [entry [x idx]]
+                   (cond
+                     (< (.size pq) n) (.add pq entry)
+                     (neg? (.compare entry-comp entry (.peek pq))) (doto pq
+                                                                     (.poll)
+                                                                     (.add entry))))
+                 (inc idx))
+               0
+               seq)
+       (->> (sort entry-comp (vec pq))
+            (mapv first)))
+     [])))
 
 (defmacro with-read-lock [lock & body]
   `(let [^StampedLock lock# ~lock
@@ -2,23 +2,59 @@
   "Protocols for KV backend implementations."
   (:refer-clojure :exclude [next])
   (:require [crux.io :as cio]
+            [crux.memory :as mem]
             [crux.status :as status]
-            [crux.system :as sys]))
+            [crux.system :as sys])
+  (:import java.io.Closeable
+           org.agrona.DirectBuffer))
 
+;; The key and value buffers an iterator returns are only valid until
+;; it next moves - stores may re-point them - so callers copy the ones
+;; they keep.
 (defprotocol KvIterator
   (seek [this k])
   (next [this])
   (prev [this])
   (value [this]))
 
+(defprotocol KvIteratorBounds
+  (set-upper-bound! [this upper-bound]
+    "Bounds the scans of an iterator opened with `:rebound?`, from its
+    next `seek` - nil for unbounded. Stores push the bound down as far
+    as they can, but may still return keys at or past it, so callers
+    check the keys they get back."))
+
+(extend-protocol KvIteratorBounds
+  Object
+  (set-upper-bound! [_ _]))
+
 (defprotocol KvSnapshot
-  (new-iterator ^java.io.Closeable [this])
+  (new-iterator
+    ^java.io.Closeable [this]
+    ^java.io.Closeable [this opts]
+    "`opts`:
+    * `:lower-bound` (inclusive), `:upper-bound` (exclusive) - the
+      iterator returns nil rather than keys outside these bounds.
+    * `:prefix` - hint that the iterator's only used to scan keys with
+      this prefix. Implies the corresponding bounds.
+    * `:rebound?` - the iterator's shared between scans, each of which
+      sets its own upper bound with `set-upper-bound!`.
+
+    Stores that can should push the bounds down, so that scans stop at
+    the boundary rather than reading past it.")
   (get-value [this k]))
 
 ;; tag::KvStore[]
 (defprotocol KvStore
   (new-snapshot ^java.io.Closeable [this])
   (store [this kvs])
+  (delete-ranges [this ranges kvs]
+    "Deletes every key within each `[start-k end-k)` of `ranges`, then
+    stores `kvs` as per `store` - in the same write, where the store
+    supports it.
+
+    Stores should delete ranges without visiting every key where they
+    can - i.e. range tombstones, or a single cursor pass.")
   (fsync [this])
   (compact [this])
   (count-keys [this])
@@ -26,6 +62,53 @@
   (kv-name [this]))
 ;; end::KvStore[]
 
+(defn iterator-bounds
+  "Normalises the `new-iterator` opts to `{:keys [lower-bound upper-bound]}`."
+  [{:keys [prefix lower-bound upper-bound]}]
+  {:lower-bound (some-> (or lower-bound prefix) mem/as-buffer)
+   :upper-bound (or (some-> upper-bound mem/as-buffer)
+                    ;; nil if the prefix is all 0xff - i.e. unbounded
+                    (some-> prefix mem/as-buffer mem/copy-to-unpooled-buffer mem/inc-unsigned-buffer!))})
+
+(defn within-bounds
+  "Returns `k` if it's within the (nilable) bounds, otherwise nil."
+  [^DirectBuffer lower-bound ^DirectBuffer upper-bound k]
+  (when (and k
+             (or (nil? lower-bound) (not (neg? (mem/compare-buffers k lower-bound))))
+             (or (nil? upper-bound) (neg? (mem/compare-buffers k upper-bound))))
+    k))
+
+(defrecord BoundedKvIterator [i ^DirectBuffer lower-bound ^DirectBuffer upper-bound]
+  KvIterator
+  (seek [_ k]
+    (let [k (mem/as-buffer k)]
+      (within-bounds lower-bound upper-bound
+                     (seek i (if (and lower-bound (neg? (mem/compare-buffers k lower-bound)))
+                               lower-bound
+                               k)))))
+
+  (next [_]
+    (within-bounds lower-bound upper-bound (next i)))
+
+  (prev [_]
+    (within-bounds lower-bound upper-bound (prev i)))
+
+  (value [_]
+    (value i))
+
+  Closeable
+  (close [_]
+    (.close ^Closeable i)))
+
+(defn ->bounded-iterator
+  "Bounds `i` by checking each key it returns, for stores that can't
+  push the `new-iterator` opts down any further."
+  ^java.io.Closeable [i opts]
+  (let [{:keys [lower-bound upper-bound]} (iterator-bounds opts)]
+    (if (or lower-bound upper-bound)
+      (->BoundedKvIterator i lower-bound upper-bound)
+      i)))
+
 (def args
   {:db-dir {:doc "Directory to store K/V files"
             :required? false
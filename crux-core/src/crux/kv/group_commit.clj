@@ -0,0 +1,249 @@
+(ns ^:no-doc crux.kv.group-commit
+  "Group commit for the KV index store.
+
+  Committed transactions are merged into a pending batch, which is
+  written to the underlying KV store as a single write once it either
+  reaches a maximum number of transactions or has waited for a maximum
+  latency. Until then, the pending batch is overlaid on top of the KV
+  store, so that subsequent transactions see the writes of earlier ones."
+  (:require [clojure.tools.logging :as log]
+            [crux.io :as cio]
+            [crux.kv :as kv]
+            [crux.memory :as mem])
+  (:import java.io.Closeable
+           java.time.Duration
+           [java.util.concurrent CompletableFuture Executors ScheduledExecutorService TimeUnit]
+           [org.agrona DirectBuffer ExpandableDirectByteBuffer MutableDirectBuffer]))
+
+(set! *unchecked-math* :warn-on-boxed)
+
+(defn- compare-keys ^long [^DirectBuffer a ^DirectBuffer b]
+  (.compare mem/buffer-comparator a b))
+
+(defn- step-overlay [overlay forward? k]
+  (first (if forward?
+           (subseq overlay > k)
+           (rsubseq overlay < k))))
+
+(defn- resolve-entry
+  "Returns the next live entry as `[k overlay-v pk]`, given the
+  candidate overlay entry `oe` and the current key `pk` of the
+  underlying iterator `i`, skipping overlay tombstones (nil values) and
+  the underlying keys they shadow. `overlay-v` is nil if the entry comes
+  from `i`."
+  [overlay i forward? pk oe]
+  (loop [pk pk, oe oe]
+    (cond
+      (and (nil? pk) (nil? oe)) nil
+      (nil? oe) [pk nil pk]
+      :else (let [cmp (if pk
+                        (let [cmp (compare-keys (key oe) pk)]
+                          (if forward? cmp (- cmp)))
+                        -1)]
+              (cond
+                (pos? cmp) [pk nil pk]
+                (val oe) [(key oe) (val oe) pk]
+                :else (recur (if (zero? cmp)
+                               (if forward? (kv/next i) (kv/prev i))
+                               pk)
+                             (step-overlay overlay forward? (key oe))))))))
+
+(defn- seek-last
+  "Positions `i` on its last key. KvIterators can't seek from the end,
+  so we find the highest leading byte present and scan to its end. Only
+  needed when reversing off the end of the underlying iterator."
+  [i]
+  (let [^MutableDirectBuffer prefix (mem/allocate-unpooled-buffer 1)
+        last-k (ExpandableDirectByteBuffer.)]
+    (loop [b 255]
+      (when-not (neg? b)
+        (.putByte prefix 0 (unchecked-byte b))
+        (if-let [k (kv/seek i prefix)]
+          (loop [^DirectBuffer k k
+                 len 0]
+            (if k
+              (do (.putBytes last-k 0 k 0 (.capacity k))
+                  (recur (kv/next i) (.capacity k)))
+              (kv/seek i (mem/limit-buffer last-k len))))
+          (recur (dec b)))))))
+
+(deftype OverlayKvIterator [overlay i
+                            ^:unsynchronized-mutable k
+                            ^:unsynchronized-mutable overlay-v
+                            ^:unsynchronized-mutable pk
+                            ^:unsynchronized-mutable forward?]
+  kv/KvIteratorBounds
+  (set-upper-bound! [_ upper-bound]
+    ;; the overlay's keys are in memory - we only bound the store's.
+    (kv/set-upper-bound! i upper-bound))
+
+  kv/KvIterator
+  (seek [this seek-k]
+    (let [seek-k (mem/as-buffer seek-k)
+          oe (first (subseq overlay >= seek-k))]
+      (set! pk (kv/seek i seek-k))
+      (set! forward? true)
+      (let [[new-k new-overlay-v new-pk] (resolve-entry overlay i true pk oe)]
+        (set! k new-k)
+        (set! overlay-v new-overlay-v)
+        (set! pk new-pk)
+        new-k)))
+
+  (next [this]
+    (when k
+      ;; NOTE: k may be owned by i, so we step the overlay before moving i.
+      (let [oe (step-overlay overlay true k)]
+        (cond
+          (and pk (zero? (compare-keys pk k))) (set! pk (kv/next i))
+          forward? nil
+          pk (set! pk (kv/next i))
+          :else (set! pk (kv/seek i k)))
+        (set! forward? true)
+        (let [[new-k new-overlay-v new-pk] (resolve-entry overlay i true pk oe)]
+          (set! k new-k)
+          (set! overlay-v new-overlay-v)
+          (set! pk new-pk)
+          new-k))))
+
+  (prev [this]
+    (when k
+      (let [oe (step-overlay overlay false k)]
+        (cond
+          (not forward?) (when (and pk (zero? (compare-keys pk k)))
+                           (set! pk (kv/prev i)))
+          pk (set! pk (kv/prev i))
+          ;; k came from the overlay, and i is past the end - so every
+          ;; key in i is before k.
+          :else (set! pk (seek-last i)))
+        (set! forward? false)
+        (let [[new-k new-overlay-v new-pk] (resolve-entry overlay i false pk oe)]
+          (set! k new-k)
+          (set! overlay-v new-overlay-v)
+          (set! pk new-pk)
+          new-k))))
+
+  (value [this]
+    (or overlay-v (kv/value i)))
+
+  Closeable
+  (close [_]
+    (.close ^Closeable i)))
+
+(deftype OverlayKvSnapshot [overlay snapshot]
+  kv/KvSnapshot
+  (new-iterator [_]
+    (->OverlayKvIterator overlay (kv/new-iterator snapshot) nil nil nil true))
+
+  (new-iterator [_ opts]
+    ;; the underlying iterator is bounded by the store, the overlay here.
+    (-> (->OverlayKvIterator overlay (kv/new-iterator snapshot opts) nil nil nil true)
+        (kv/->bounded-iterator opts)))
+
+  (get-value [_ k]
+    (let [k (mem/as-buffer k)]
+      (if-let [e (find overlay k)]
+        (val e)
+        (kv/get-value snapshot k))))
+
+  Closeable
+  (close [_]
+    (.close ^Closeable snapshot)))
+
+(def ^:private empty-batch
+  {:kvs (sorted-map-by mem/buffer-comparator)
+   :tx-count 0
+   :durable []})
+
+(defn- flush-batch! [{:keys [kv-store !batch]}]
+  (locking !batch
+    (let [{:keys [kvs durable error]} @!batch]
+      (when (and (seq durable) (nil? error))
+        (try
+          (when (seq kvs)
+            (kv/store kv-store (seq kvs)))
+          (reset! !batch empty-batch)
+          (doseq [^CompletableFuture fut durable]
+            (.complete fut nil))
+          (catch Throwable t
+            (log/error t "Error writing group commit batch")
+            (swap! !batch assoc :error t)
+            (doseq [^CompletableFuture fut durable]
+              (.completeExceptionally fut t))))))))
+
+(defrecord GroupCommitKvStore [kv-store ^long max-txs ^Duration max-latency !batch ^ScheduledExecutorService scheduler]
+  kv/KvStore
+  (new-snapshot [_]
+    ;; the batch has to be read before the snapshot is opened, in case
+    ;; it's flushed in between.
+    (let [{:keys [kvs]} @!batch]
+      (->OverlayKvSnapshot kvs (kv/new-snapshot kv-store))))
+
+  (store [this kvs]
+    (locking !batch
+      (flush-batch! this)
+      (kv/store kv-store kvs)))
+
+  (delete-ranges [this ranges kvs]
+    ;; the overlay can't shadow ranges, so these are written directly.
+    (locking !batch
+      (flush-batch! this)
+      (kv/delete-ranges kv-store ranges kvs)))
+
+  (fsync [this]
+    (flush-batch! this)
+    (kv/fsync kv-store))
+
+  (compact [_]
+    (kv/compact kv-store))
+
+  (count-keys [_]
+    (kv/count-keys kv-store))
+
+  (db-dir [_]
+    (kv/db-dir kv-store))
+
+  (kv-name [_]
+    (kv/kv-name kv-store))
+
+  Closeable
+  (close [this]
+    (flush-batch! this)
+    (doto scheduler
+      (.shutdownNow)
+      (.awaitTermination 5 TimeUnit/SECONDS))))
+
+(defn group-commit!
+  "Adds the KVs of a committed transaction to the pending batch.
+  Returns a CompletableFuture, completed once the batch has been
+  written."
+  ^java.util.concurrent.CompletableFuture [{:keys [^long max-txs ^Duration max-latency !batch ^ScheduledExecutorService scheduler] :as group-commit-kv-store} kvs]
+  (let [fut (CompletableFuture.)]
+    (locking !batch
+      (when-let [error (:error @!batch)]
+        (throw (IllegalStateException. "Group commit failed" error)))
+
+      (let [{:keys [^long tx-count]} (swap! !batch
+                                            (fn [batch]
+                                              (-> batch
+                                                  (update :kvs (fn [acc]
+                                                                 ;; copied, as the KVs may be owned by the transaction's transient KV store
+                                                                 (reduce (fn [acc [k v]]
+                                                                           (assoc acc
+                                                                                  (mem/copy-to-unpooled-buffer (mem/as-buffer k))
+                                                                                  (some-> v mem/as-buffer mem/copy-to-unpooled-buffer)))
+                                                                         acc
+                                                                         kvs)))
+                                                  (update :tx-count inc)
+                                                  (update :durable conj fut))))]
+        (cond
+          (>= tx-count max-txs) (flush-batch! group-commit-kv-store)
+          (= 1 tx-count) (.schedule scheduler
+                                    ^Runnable #(flush-batch! group-commit-kv-store)
+                                    (.toNanos max-latency)
+                                    TimeUnit/NANOSECONDS))))
+    fut))
+
+(defn ->group-commit-kv-store [kv-store {:keys [^long max-txs ^Duration max-latency]}]
+  (->GroupCommitKvStore kv-store max-txs max-latency
+                        (atom empty-batch)
+                        (Executors/newSingleThreadScheduledExecutor (cio/thread-factory "crux-index-group-commit"))))
@@ -10,20 +10,24 @@
             [crux.hyper-log-log :as hll]
             [crux.io :as cio]
             [crux.kv :as kv]
+            [crux.kv.group-commit :as gc]
             [crux.kv.mutable-kv :as mut-kv]
             [crux.memory :as mem]
             [crux.morton :as morton]
             [crux.status :as status]
             [crux.system :as sys])
-  (:import clojure.lang.MapEntry
+  (:import [clojure.lang BigInt IPersistentCollection IPersistentMap MapEntry]
            crux.api.IndexVersionOutOfSyncException
+           crux.cache.ICache
            [crux.codec EntityTx Id]
            java.io.Closeable
            java.nio.ByteOrder
-           [java.util ArrayList Date HashMap List Map NavigableSet TreeSet]
-           [java.util.concurrent Semaphore TimeUnit]
+           [java.time Duration Instant LocalDate LocalDateTime LocalTime OffsetDateTime Period ZonedDateTime]
+           [java.util ArrayList Collections Date HashMap List Map NavigableSet TreeSet]
+           [java.util.concurrent CompletableFuture ConcurrentHashMap ForkJoinPool ForkJoinTask Semaphore TimeUnit]
            java.util.concurrent.atomic.AtomicBoolean
-           [java.util.function BiFunction Supplier]
+           [java.util.function BiFunction Function Supplier]
+           crux.kv.group_commit.GroupCommitKvStore
            [org.agrona DirectBuffer ExpandableDirectByteBuffer MutableDirectBuffer]))
 
 (set! *unchecked-math* :warn-on-boxed)
@@ -39,9 +43,11 @@
 ;; this limitation is only for RocksJNRKv.
 ;; TODO: It would be nice to make this explicit somehow.
 
-(defrecord PrefixKvIterator [i ^DirectBuffer prefix]
+(defrecord PrefixKvIterator [i ^DirectBuffer prefix ^DirectBuffer upper-bound]
   kv/KvIterator
   (seek [_ k]
+    ;; `i` may be shared with other scans, so we bound it on every seek.
+    (kv/set-upper-bound! i upper-bound)
     (when-let [k (kv/seek i k)]
       (when (mem/buffers=? k prefix (.capacity prefix))
         k)))
@@ -63,14 +69,45 @@
   (close [_]
     (.close ^Closeable i)))
 
-(defn- new-prefix-kv-iterator ^java.io.Closeable [i prefix]
-  (->PrefixKvIterator i prefix))
+(defn- prefix-upper-bound ^org.agrona.DirectBuffer [^DirectBuffer prefix]
+  (-> (mem/copy-buffer prefix) (mem/inc-unsigned-buffer!)))
+
+(def ^:private ^ThreadLocal entity-upper-bound-tl
+  (ThreadLocal/withInitial
+   (reify Supplier
+     (get [_]
+       (mem/allocate-unpooled-buffer (+ c/index-id-size c/id-size))))))
+
+(defn- entity-upper-bound
+  "The upper bound of the entity prefix of `seek-k`, in a buffer re-used
+  per thread - iterators re-bounded with it are re-bounded before their
+  next seek anyway."
+  ^org.agrona.DirectBuffer [^DirectBuffer seek-k]
+  (let [^MutableDirectBuffer upper-bound (.get entity-upper-bound-tl)]
+    (.putBytes upper-bound 0 seek-k 0 (.capacity upper-bound))
+    (mem/inc-unsigned-buffer! upper-bound)))
+
+(defn- new-prefix-kv-iterator
+  "`upper-bound` (exclusive) defaults to the end of `prefix`."
+  (^java.io.Closeable [i prefix]
+   (new-prefix-kv-iterator i prefix (prefix-upper-bound prefix)))
+  (^java.io.Closeable [i prefix upper-bound]
+   (->PrefixKvIterator i prefix upper-bound)))
+
+(defn- open-prefix-kv-iterator
+  "Opens an iterator over `snapshot` for the sole purpose of scanning
+  `prefix`, so the store can stop at the end of the prefix."
+  ^java.io.Closeable [snapshot prefix]
+  (-> (kv/new-iterator snapshot {:prefix prefix})
+      (new-prefix-kv-iterator prefix)))
 
 (defn- all-keys-in-prefix
   ([i ^DirectBuffer prefix] (all-keys-in-prefix i prefix (.capacity prefix) {}))
   ([i seek-k prefix-length] (all-keys-in-prefix i seek-k prefix-length {}))
   ([i ^DirectBuffer seek-k, prefix-length {:keys [entries? reverse?]}]
    (lazy-seq
+    (kv/set-upper-bound! i (when-not reverse?
+                             (prefix-upper-bound (mem/limit-buffer seek-k prefix-length))))
     (letfn [(step [k]
               (lazy-seq
                (when (and k (mem/buffers=? seek-k k prefix-length))
@@ -430,54 +467,292 @@
   (assert (= c/stats-index-id (.getByte k 0)))
   (mem/slice-buffer k c/index-id-size))
 
-(defn- new-stats-value ^org.agrona.MutableDirectBuffer []
-  (doto ^MutableDirectBuffer (mem/allocate-buffer (+ Long/BYTES hll/default-buffer-size hll/default-buffer-size))
-    (.putByte 0 c/stats-index-id)
-    (.putLong c/index-id-size 0)))
+;; Transactions write the stats of the docs they index as deltas, keyed
+;; by tx-id, rather than read-modify-writing the stats values. Reads
+;; merge an attribute's deltas onto its stats value, and every
+;; `stats-merge-txs` transactions the pending deltas are merged into
+;; the stats values and deleted.
 
-(defn- decode-stats-value->doc-count-from ^long [^DirectBuffer b]
-  (.getLong b c/index-id-size))
+(defn- encode-stats-delta-key-to
+  (^org.agrona.MutableDirectBuffer [b]
+   (encode-stats-delta-key-to b mem/empty-buffer))
+  (^org.agrona.MutableDirectBuffer [b ^DirectBuffer attr]
+   (let [^MutableDirectBuffer b (or b (mem/allocate-buffer (+ c/index-id-size (.capacity attr))))]
+     (-> (doto b
+           (.putByte 0 c/stats-delta-index-id)
+           (.putBytes c/index-id-size attr 0 (.capacity attr)))
+         (mem/limit-buffer (+ c/index-id-size (.capacity attr))))))
+  (^org.agrona.MutableDirectBuffer [b ^DirectBuffer attr ^long tx-id]
+   (let [^MutableDirectBuffer b (or b (mem/allocate-buffer (+ c/index-id-size (.capacity attr) Long/BYTES)))]
+     (-> (doto b
+           (.putByte 0 c/stats-delta-index-id)
+           (.putBytes c/index-id-size attr 0 (.capacity attr))
+           (.putLong (+ c/index-id-size (.capacity attr)) tx-id ByteOrder/BIG_ENDIAN))
+         (mem/limit-buffer (+ c/index-id-size (.capacity attr) Long/BYTES))))))
+
+(defn- decode-stats-delta-key->attr-from ^org.agrona.DirectBuffer [^DirectBuffer k]
+  (assert (= c/stats-delta-index-id (.getByte k 0)))
+  (mem/slice-buffer k c/index-id-size (- (.capacity k) c/index-id-size Long/BYTES)))
+
+(defn- stats-delta-kv? [[^DirectBuffer k _]]
+  (= c/stats-delta-index-id (.getByte k 0)))
+
+;; Alongside the HLLs, the stats keep a bottom-k sample of the
+;; attribute's values - the values of the `stats-value-sample-size`
+;; entity/value pairs with the smallest hashes. Samples merge by
+;; keeping the smallest hashes of both, so they can be written as
+;; deltas like the rest of the stats, and the value histograms are
+;; derived from them when read.
 
-(defn- inc-stats-value-doc-count ^org.agrona.MutableDirectBuffer [^MutableDirectBuffer b]
-  (doto b
-    (.putLong c/index-id-size (inc (decode-stats-value->doc-count-from b)))))
+(def ^:private ^:const stats-value-sample-size 256)
+(def ^:private ^:const stats-histogram-buckets 64)
 
-(defn decode-stats-value->eid-hll-buffer-from ^org.agrona.MutableDirectBuffer [^MutableDirectBuffer b]
-  (let [hll-size (/ (- (.capacity b) Long/BYTES) 2)]
-    (mem/slice-buffer b Long/BYTES hll-size)))
+(def ^:private empty-value-sample (sorted-map))
 
-(defn decode-stats-value->value-hll-buffer-from ^org.agrona.MutableDirectBuffer [^MutableDirectBuffer b]
-  (let [^long hll-size (/ (- (.capacity b) Long/BYTES) 2)]
-    (mem/slice-buffer b (+ Long/BYTES hll-size) hll-size)))
+(defn- add-value-sample
+  "Samples the value buffer `v-buf`, hashed together with the `e-hash` of its entity."
+  [value-sample ^long e-hash ^DirectBuffer v-buf]
+  (let [h (hll/buffer-hash64 v-buf e-hash)]
+    (cond
+      (contains? value-sample h) value-sample
+
+      (< (count value-sample) stats-value-sample-size)
+      (assoc value-sample h v-buf)
+
+      (< h ^long (key (first (rseq value-sample))))
+      (-> (dissoc value-sample (key (first (rseq value-sample))))
+          (assoc h v-buf))
+
+      :else value-sample)))
+
+(defn- merge-value-samples [value-sample other]
+  (into empty-value-sample (take stats-value-sample-size) (merge value-sample other)))
+
+(defn- value-sample->histogram
+  "Equi-depth histogram bounds - the lowest sampled value followed by
+  the upper bound of each bucket, each bucket holding the same number
+  of sampled values."
+  [value-sample]
+  (let [^objects values (->> (vals value-sample)
+                             (sort mem/buffer-comparator)
+                             (into-array Object))
+        n (alength values)
+        buckets (min n stats-histogram-buckets)]
+    (when (pos? n)
+      (mapv (fn [bucket]
+              (let [idx (max 0 (dec (quot (+ (* (long bucket) n) (dec buckets)) buckets)))]
+                (mem/copy-to-unpooled-buffer (aget values idx))))
+            (range (inc buckets))))))
+
+(defn- new-stats [^long hll-precision]
+  {:doc-count 0
+   :eid-hll (hll/->hll hll-precision)
+   :value-hll (hll/->hll hll-precision)
+   :value-sample empty-value-sample})
+
+;; [doc-count long][eid HLL size int][eid HLL][value HLL size int][value HLL]
+;; [sample size int]([hash long][value size int][value])*
+
+(defn- encode-stats-value ^org.agrona.MutableDirectBuffer [{:keys [^long doc-count ^DirectBuffer eid-hll ^DirectBuffer value-hll value-sample]}]
+  (let [eid-hll-offset (+ Long/BYTES Integer/BYTES)
+        value-hll-offset (+ eid-hll-offset (.capacity eid-hll) Integer/BYTES)
+        value-sample-offset (+ value-hll-offset (.capacity value-hll))
+        size (reduce (fn [^long acc ^DirectBuffer v]
+                       (+ acc Long/BYTES Integer/BYTES (.capacity v)))
+                     (+ value-sample-offset Integer/BYTES)
+                     (vals value-sample))
+        b (doto ^MutableDirectBuffer (mem/allocate-buffer size)
+            (.putLong 0 doc-count)
+            (.putInt Long/BYTES (.capacity eid-hll))
+            (.putBytes eid-hll-offset eid-hll 0 (.capacity eid-hll))
+            (.putInt (- value-hll-offset Integer/BYTES) (.capacity value-hll))
+            (.putBytes value-hll-offset value-hll 0 (.capacity value-hll))
+            (.putInt value-sample-offset (count value-sample)))]
+    (reduce (fn [^long offset [^long h ^DirectBuffer v]]
+              (.putLong b offset h)
+              (.putInt b (+ offset Long/BYTES) (.capacity v))
+              (.putBytes b (+ offset Long/BYTES Integer/BYTES) v 0 (.capacity v))
+              (+ offset Long/BYTES Integer/BYTES (.capacity v)))
+            (+ value-sample-offset Integer/BYTES)
+            value-sample)
+    b))
 
-(defn stats-kvs [transient-kv-snapshot persistent-kv-snapshot docs]
+(defn- decode-stats-value->doc-count-from ^long [^DirectBuffer b]
+  (.getLong b 0))
+
+(defn decode-stats-value->eid-hll-buffer-from ^org.agrona.DirectBuffer [^DirectBuffer b]
+  (mem/slice-buffer b (+ Long/BYTES Integer/BYTES) (.getInt b Long/BYTES)))
+
+(defn- stats-value->value-hll-offset ^long [^DirectBuffer b]
+  (+ Long/BYTES Integer/BYTES (.getInt b Long/BYTES) Integer/BYTES))
+
+(defn decode-stats-value->value-hll-buffer-from ^org.agrona.DirectBuffer [^DirectBuffer b]
+  (let [offset (stats-value->value-hll-offset b)]
+    (mem/slice-buffer b offset (.getInt b (- offset Integer/BYTES)))))
+
+(defn- decode-stats-value->value-sample-from [^DirectBuffer b]
+  (let [value-hll-offset (stats-value->value-hll-offset b)
+        value-sample-offset (+ value-hll-offset (.getInt b (- value-hll-offset Integer/BYTES)))]
+    (loop [n (.getInt b value-sample-offset)
+           offset (+ value-sample-offset Integer/BYTES)
+           acc (transient {})]
+      (if (pos? n)
+        (let [size (.getInt b (+ offset Long/BYTES))]
+          (recur (dec n)
+                 (+ offset Long/BYTES Integer/BYTES size)
+                 (assoc! acc (.getLong b offset) (mem/slice-buffer b (+ offset Long/BYTES Integer/BYTES) size))))
+        (into empty-value-sample (persistent! acc))))))
+
+(defn- decode-stats-value-counts [^DirectBuffer b]
+  {:doc-count (decode-stats-value->doc-count-from b)
+   :eid-hll (decode-stats-value->eid-hll-buffer-from b)
+   :value-hll (decode-stats-value->value-hll-buffer-from b)})
+
+(defn- decode-stats-value [^DirectBuffer b]
+  (-> (decode-stats-value-counts b)
+      (assoc :value-sample (decode-stats-value->value-sample-from b))))
+
+(defn- merge-stats
+  "Doc counts are summed, the HLL registers are max'ed and the value
+  samples, if decoded, keep the smallest hashes of both. `stats`' HLLs
+  may be updated in place, `other`'s aren't."
+  [stats other]
+  (if stats
+    (cond-> {:doc-count (+ ^long (:doc-count stats) ^long (:doc-count other))
+             :eid-hll (hll/merge! (:eid-hll stats) (:eid-hll other))
+             :value-hll (hll/merge! (:value-hll stats) (:value-hll other))}
+      (contains? other :value-sample)
+      (assoc :value-sample (merge-value-samples (:value-sample stats) (:value-sample other))))
+    (-> other
+        (update :eid-hll mem/copy-buffer)
+        (update :value-hll mem/copy-buffer))))
+
+(defn- encode-stats-kvs [stats]
+  (for [[k-buf stats] stats]
+    (MapEntry/create k-buf (encode-stats-value stats))))
+
+(defn- existing-stats-fn [kv-snapshot]
+  (fn [k-buf]
+    (some-> (kv/get-value kv-snapshot k-buf) mem/copy-buffer decode-stats-value)))
+
+(defn- docs->stats-deltas [docs ^long tx-id ->initial-stats]
   (let [attr-key-bufs (->> docs
                            (into {} (comp (mapcat keys)
                                           (distinct)
-                                          (map (juxt identity #(encode-stats-key-to nil (c/->value-buffer %)))))))]
+                                          (map (juxt identity #(encode-stats-delta-key-to nil (c/->value-buffer %) tx-id))))))]
     (->> docs
          (reduce (fn [acc doc]
-                   (let [e (:crux.db/id doc)]
+                   (let [e-hash (hll/hash64 (:crux.db/id doc))]
                      (->> (for [[k v] doc
                                 v (c/vectorize-value v)]
                             (MapEntry/create k v))
                           (reduce (fn [acc [k v]]
-                                    (let [k-buf (get attr-key-bufs k)]
-                                      (assoc! acc k-buf (doto (or (get acc k-buf)
-                                                                  (kv/get-value transient-kv-snapshot k-buf)
-                                                                  (some-> (kv/get-value persistent-kv-snapshot k-buf) mem/copy-buffer)
-                                                                  (new-stats-value))
-                                                          (inc-stats-value-doc-count)
-                                                          (-> decode-stats-value->eid-hll-buffer-from (hll/add e))
-                                                          (-> decode-stats-value->value-hll-buffer-from (hll/add v))))))
+                                    (let [k-buf (get attr-key-bufs k)
+                                          v-buf (c/->value-buffer v)
+                                          {:keys [^long doc-count eid-hll value-hll value-sample]} (or (get acc k-buf)
+                                                                                                       (->initial-stats k-buf))]
+                                      (assoc! acc k-buf {:doc-count (inc doc-count)
+                                                         :eid-hll (hll/add-hash eid-hll e-hash)
+                                                         :value-hll (hll/add-hash value-hll (hll/buffer-hash64 v-buf))
+                                                         :value-sample (add-value-sample value-sample e-hash v-buf)})))
                                   acc))))
                  (transient {}))
          persistent!)))
 
+(defn- stats-delta-kvs
+  "Returns the transaction's stats deltas, merged with those of the docs
+  it has already indexed."
+  [transient-kv-snapshot tx-id ^long hll-precision docs]
+  (let [->existing-stats (existing-stats-fn transient-kv-snapshot)]
+    (->> (docs->stats-deltas docs tx-id (fn [k-buf]
+                                          (or (->existing-stats k-buf)
+                                              (new-stats hll-precision))))
+         (encode-stats-kvs))))
+
+(defn- merge-partial-stats-delta-kvs
+  "Merges stats deltas computed independently for disjoint partitions
+  of a transaction's docs onto the transaction's existing deltas. Doc
+  counts are summed and the HLL registers are max'ed, so the result is
+  the same as calling `stats-delta-kvs` over all of the docs."
+  [transient-kv-snapshot partial-stats]
+  (let [->existing-stats (existing-stats-fn transient-kv-snapshot)]
+    (->> (apply concat partial-stats)
+         (reduce (fn [acc [k-buf stats]]
+                   (assoc! acc k-buf (merge-stats (if (contains? acc k-buf)
+                                                    (get acc k-buf)
+                                                    (->existing-stats k-buf))
+                                                  stats)))
+                 (transient {}))
+         persistent!
+         (encode-stats-kvs))))
+
+(defn- merge-stats-delta-kvs
+  "Merges the pending stats deltas in the persistent store, and those in
+  the transaction's `kvs`, onto the stats values. Returns the rest of
+  `kvs`, the merged stats values, and deletes for the persistent deltas."
+  [persistent-kv-snapshot kvs]
+  (let [delta-prefix (encode-stats-delta-key-to nil)
+        persistent-delta-kvs (with-open [i (kv/new-iterator persistent-kv-snapshot {:prefix delta-prefix})]
+                               (vec (all-keys-in-prefix i delta-prefix (.capacity delta-prefix) {:entries? true})))
+        ->existing-stats (existing-stats-fn persistent-kv-snapshot)
+        stats-kvs (->> (concat persistent-delta-kvs (filter stats-delta-kv? kvs))
+                       (reduce (fn [acc [delta-k delta-v]]
+                                 (let [k-buf (encode-stats-key-to nil (decode-stats-delta-key->attr-from delta-k))]
+                                   (assoc! acc k-buf (merge-stats (if (contains? acc k-buf)
+                                                                    (get acc k-buf)
+                                                                    (->existing-stats k-buf))
+                                                                  (decode-stats-value delta-v)))))
+                               (transient {}))
+                       persistent!
+                       (encode-stats-kvs))]
+    (concat (remove stats-delta-kv? kvs)
+            stats-kvs
+            (for [[delta-k] persistent-delta-kvs]
+              (MapEntry/create delta-k nil)))))
+
+(defn- merge-stats-deltas?
+  "Counts the committed transaction, returning true once every `stats-merge-txs`."
+  [!stats-delta-txs ^long stats-merge-txs]
+  (zero? ^long (swap! !stats-delta-txs (fn [^long n]
+                                         (rem (inc n) stats-merge-txs)))))
+
+(defn- read-stats
+  "Returns `attr`'s stats, with any pending deltas merged in. Only the
+  histogram needs the value samples, so `:value-histogram` is a delay -
+  the samples are decoded and merged when it's first deref'd."
+  [snapshot attr]
+  (let [attr-buf (c/->value-buffer attr)
+        delta-prefix (encode-stats-delta-key-to nil attr-buf)
+        stats-v (kv/get-value snapshot (encode-stats-key-to nil attr-buf))
+        stats-vs (cond->> (with-open [i (kv/new-iterator snapshot {:prefix delta-prefix})]
+                            (mapv val (all-keys-in-prefix i delta-prefix (.capacity delta-prefix) {:entries? true})))
+                   stats-v (cons stats-v))]
+    (when (seq stats-vs)
+      (-> (reduce (fn [acc stats-v]
+                    (merge-stats acc (decode-stats-value-counts stats-v)))
+                  nil
+                  stats-vs)
+          (assoc :value-histogram (delay
+                                    (->> stats-vs
+                                         (map decode-stats-value->value-sample-from)
+                                         (reduce merge-value-samples)
+                                         (value-sample->histogram))))))))
+
+(defn- cached-stats
+  "Returns `attr`'s stats from the snapshot's `stats-cache`, so that its
+  deltas are merged at most once per snapshot."
+  [^Map stats-cache snapshot attr]
+  (let [stats (.computeIfAbsent stats-cache attr (reify Function
+                                                   (apply [_ attr]
+                                                     (or (read-stats snapshot attr) ::no-stats))))]
+    (when-not (= ::no-stats stats)
+      stats)))
+
 ;;;; Entity as-of
 
 (defn- find-first-entity-tx-within-range [i min max eid]
   (let [prefix-size (+ c/index-id-size c/id-size)
+        i (new-prefix-kv-iterator i (encode-bitemp-z-key-to nil eid))
         seek-k (encode-bitemp-z-key-to (.get seek-buffer-tl)
                                        eid
                                        min)]
@@ -563,6 +838,51 @@
     (and found-k
          (mem/buffers=? found-k hash-cache-prefix-key (.capacity hash-cache-prefix-key)))))
 
+(def ^:private ^:const max-cached-value-bytes 1024)
+
+;; the decoded-value cache holds the values that are expensive to decode -
+;; those thawed with nippy, and those looked up in the hash cache. A value
+;; buffer always decodes to the same value, so cached values don't go
+;; stale. Every query is handed the same cached instance, though, so
+;; only immutable values are cached - byte arrays, dates and the like are
+;; decoded afresh each time. Evictions evict the evicted entities' values
+;; on commit (see `unindex-eids`). Only smaller hashed values are cached, to bound
+;; the cache's size.
+(def ^:private immutable-classes
+  [BigDecimal BigInteger BigInt Instant LocalDate LocalDateTime LocalTime OffsetDateTime ZonedDateTime Duration Period])
+
+(defn- immutable-value? [v]
+  (cond
+    (or (nil? v) (string? v) (keyword? v) (symbol? v) (boolean? v) (char? v) (uuid? v)
+        (int? v) (double? v) (ratio? v) (instance? Float v))
+    true
+
+    (instance? IPersistentMap v)
+    (every? (fn [[k v]]
+              (and (immutable-value? k) (immutable-value? v)))
+            v)
+
+    (instance? IPersistentCollection v)
+    (every? immutable-value? v)
+
+    :else
+    (boolean (some #(instance? % v) immutable-classes))))
+
+(defn- cache-decoded-value [decoded-value-cache value-buffer v]
+  (if (immutable-value? v)
+    (cache/compute-if-absent decoded-value-cache value-buffer mem/copy-to-unpooled-buffer (fn [_] v))
+    v))
+
+(defn- decode-hash-cache-value [i decoded-value-cache ^DirectBuffer value-buffer]
+  (when (advance-iterator-to-hash-cache-value i value-buffer)
+    (when-let [^DirectBuffer nippy-buffer (kv/value i)]
+      (let [cache? (<= (.capacity nippy-buffer) max-cached-value-bytes)
+            v (cio/with-nippy-thaw-all
+                (mem/<-nippy-buffer nippy-buffer))]
+        (if cache?
+          (cache-decoded-value decoded-value-cache value-buffer v)
+          v)))))
+
 (defn- canonical-buffer-lookup ^org.agrona.DirectBuffer [canonical-buffer-cache ^DirectBuffer buffer]
   (cache/compute-if-absent canonical-buffer-cache
                            buffer
@@ -591,13 +911,15 @@
                                      (recur (kv/next i)))))
                                vs))))
 
-(defn- step-fn [i k-fn seek-k]
-  ((fn step [^DirectBuffer k]
-     (when k
-       (if-let [k (k-fn k)]
-         (cons k (lazy-seq (step (kv/next i))))
-         (recur (kv/next i)))))
-   (kv/seek i seek-k)))
+(defn- step-fn
+  ([i k-fn seek-k] (step-fn i k-fn seek-k nil))
+  ([i k-fn seek-k ^DirectBuffer end-k]
+   ((fn step [^DirectBuffer k]
+      (when (and k (or (nil? end-k) (neg? (mem/compare-buffers k end-k))))
+        (if-let [k (k-fn k)]
+          (cons k (lazy-seq (step (kv/next i))))
+          (recur (kv/next i)))))
+    (kv/seek i seek-k))))
 
 (defn- latest-completed-tx-i [i]
   (some-> (kv/seek i tx-time-mapping-prefix)
@@ -605,8 +927,7 @@
 
 (defn latest-completed-tx [kv-store]
   (with-open [snapshot (kv/new-snapshot kv-store)
-              i (-> (kv/new-iterator snapshot)
-                    (new-prefix-kv-iterator tx-time-mapping-prefix))]
+              i (open-prefix-kv-iterator snapshot tx-time-mapping-prefix)]
     (latest-completed-tx-i i)))
 
 (defprotocol PThreadManager
@@ -655,7 +976,9 @@
                             thread-mgr
                             cav-cache
                             canonical-buffer-cache
+                            decoded-value-cache
                             ^Map temp-hash-cache
+                            stats-cache
                             ^AtomicBoolean closed?]
   Closeable
   (close [_]
@@ -670,14 +993,17 @@
         (snapshot-closed thread-mgr snapshot))))
 
   db/IndexSnapshot
-  (av [_ a min-v]
+  (av [_ a min-v max-v]
     (let [attr-buffer (c/->id-buffer a)
           prefix (encode-av-key-to nil attr-buffer)
-          i (new-prefix-kv-iterator @level-1-iterator-delay prefix)]
-      (some->> (encode-av-key-to (.get seek-buffer-tl)
+          end-k (some->> max-v (encode-av-key-to nil attr-buffer))
+          i (new-prefix-kv-iterator @level-1-iterator-delay prefix (or end-k (prefix-upper-bound prefix)))]
+      (step-fn i
+               #(key-suffix % (.capacity prefix))
+               (encode-av-key-to (.get seek-buffer-tl)
                                  attr-buffer
                                  (buffer-or-value-buffer min-v))
-               (step-fn i #(key-suffix % (.capacity prefix))))))
+               end-k)))
 
   (ave [_ a v min-e entity-resolver-fn]
     (let [attr-buffer (c/->id-buffer a)
@@ -704,13 +1030,17 @@
                                  (buffer-or-value-buffer min-e))
                (step-fn i #(key-suffix % (.capacity prefix))))))
 
-  (aev [_ a e min-v entity-resolver-fn]
+  (aev [_ a e min-v max-v entity-resolver-fn]
     (let [attr-buffer (c/->id-buffer a)
           eid-value-buffer (buffer-or-value-buffer e)]
       (when-let [content-hash-buffer (entity-resolver-fn eid-value-buffer)]
-        (when-let [vs (cav-cache-lookup cav-cache canonical-buffer-cache @cache-iterator-delay
-                                        eid-value-buffer content-hash-buffer attr-buffer)]
-          (.tailSet vs (buffer-or-value-buffer min-v))))))
+        (when-let [^NavigableSet vs (cav-cache-lookup cav-cache canonical-buffer-cache @cache-iterator-delay
+                                                      eid-value-buffer content-hash-buffer attr-buffer)]
+          (let [min-v (buffer-or-value-buffer min-v)]
+            (cond
+              (nil? max-v) (.tailSet vs min-v)
+              (neg? (mem/compare-buffers min-v max-v)) (.subSet vs min-v true max-v false)
+              :else (Collections/emptyNavigableSet)))))))
 
   (entity [this eid content-hash]
     (let [eid-value-buffer (if (instance? Id eid)
@@ -745,7 +1075,7 @@
 
   (entity-as-of-resolver [this eid valid-time tx-id]
     (assert tx-id)
-    (let [i @entity-as-of-iterator-delay
+    (let [shared-i @entity-as-of-iterator-delay
           prefix-size (+ c/index-id-size c/id-size)
           eid (if (instance? DirectBuffer eid)
                 (if (c/id-buffer? eid)
@@ -758,22 +1088,23 @@
                                        valid-time
                                        tx-id
                                        nil)]
-      (loop [k (kv/seek i seek-k)]
+      (kv/set-upper-bound! shared-i (entity-upper-bound seek-k))
+      (loop [k (kv/seek shared-i seek-k)]
         (when (and k (mem/buffers=? seek-k k prefix-size))
           (if (<= (compare (decode-bitemp-key-as-tx-id-from k) tx-id) 0)
-            (let [v (kv/value i)]
+            (let [v (kv/value shared-i)]
               (when-not (mem/buffers=? c/nil-id-buffer v)
                 v))
             (if morton/*use-space-filling-curve-index?*
               (let [seek-z (encode-entity-tx-z-number valid-time tx-id)]
-                (when-let [[k v] (find-entity-tx-within-range-with-highest-valid-time i seek-z morton/z-max-mask eid-buffer nil)]
+                (when-let [[k v] (find-entity-tx-within-range-with-highest-valid-time shared-i seek-z morton/z-max-mask eid-buffer nil)]
                   (when-not (= ::deleted-entity k)
                     (c/->id-buffer (.content-hash ^EntityTx v)))))
-              (recur (kv/next i))))))))
+              (recur (kv/next shared-i))))))))
 
   (entity-as-of [_ eid valid-time tx-id]
     (assert tx-id)
-    (let [i @entity-as-of-iterator-delay
+    (let [shared-i @entity-as-of-iterator-delay
           prefix-size (+ c/index-id-size c/id-size)
           eid-buffer (c/->id-buffer eid)
           seek-k (encode-bitemp-key-to (.get seek-buffer-tl)
@@ -781,18 +1112,19 @@
                                        valid-time
                                        tx-id
                                        nil)]
-      (loop [k (kv/seek i seek-k)]
+      (kv/set-upper-bound! shared-i (entity-upper-bound seek-k))
+      (loop [k (kv/seek shared-i seek-k)]
         (when (and k (mem/buffers=? seek-k k prefix-size))
           (let [entity-tx (safe-entity-tx (decode-bitemp-key-from k))
-                v (kv/value i)]
+                v (kv/value shared-i)]
             (if (<= (compare (.tx-id entity-tx) tx-id) 0)
               (cond-> entity-tx
                 (not (mem/buffers=? c/nil-id-buffer v)) (enrich-entity-tx v))
               (if morton/*use-space-filling-curve-index?*
                 (let [seek-z (encode-entity-tx-z-number valid-time tx-id)]
-                  (when-let [[_ v] (find-entity-tx-within-range-with-highest-valid-time i seek-z morton/z-max-mask eid-buffer nil)]
+                  (when-let [[_ v] (find-entity-tx-within-range-with-highest-valid-time shared-i seek-z morton/z-max-mask eid-buffer nil)]
                     v))
-                (recur (kv/next i)))))))))
+                (recur (kv/next shared-i)))))))))
 
   (entity-history [_ eid sort-order opts]
     (let [i @entity-as-of-iterator-delay
@@ -803,13 +1135,22 @@
 
   (decode-value [_ value-buffer]
     (assert (some? value-buffer))
-    (if (c/can-decode-value-buffer? value-buffer)
+    (cond
+      (c/nippy-value-buffer? value-buffer)
+      (let [v (.valAt ^ICache decoded-value-cache value-buffer ::not-found)]
+        (if (= ::not-found v)
+          (cache-decoded-value decoded-value-cache value-buffer (c/decode-value-buffer value-buffer))
+          v))
+
+      (c/can-decode-value-buffer? value-buffer)
       (c/decode-value-buffer value-buffer)
+
+      :else
       (or (.get temp-hash-cache value-buffer)
-          (let [i @decode-value-iterator-delay]
-            (when (advance-iterator-to-hash-cache-value i value-buffer)
-              (cio/with-nippy-thaw-all
-                (some-> (kv/value i) (mem/<-nippy-buffer))))))))
+          (let [v (.valAt ^ICache decoded-value-cache value-buffer ::not-found)]
+            (if (= ::not-found v)
+              (decode-hash-cache-value @decode-value-iterator-delay decoded-value-cache value-buffer)
+              v)))))
 
   (encode-value [_ value]
     (let [value-buffer (c/->value-buffer value)]
@@ -819,8 +1160,7 @@
       value-buffer))
 
   (resolve-tx [_ {:crux.tx/keys [tx-time tx-id] :as tx}]
-    (with-open [i (-> (kv/new-iterator snapshot)
-                      (new-prefix-kv-iterator tx-time-mapping-prefix))]
+    (with-open [i (open-prefix-kv-iterator snapshot tx-time-mapping-prefix)]
       (let [latest-tx (latest-completed-tx-i i)]
         (cond
           (= tx latest-tx) tx
@@ -857,54 +1197,57 @@
           :else latest-tx))))
 
   (open-nested-index-snapshot [_]
-    (let [nested-index-snapshot (new-kv-index-snapshot snapshot false nil cav-cache canonical-buffer-cache temp-hash-cache)]
+    (let [nested-index-snapshot (new-kv-index-snapshot snapshot false nil cav-cache canonical-buffer-cache decoded-value-cache temp-hash-cache stats-cache)]
       (swap! nested-index-snapshot-state conj nested-index-snapshot)
       nested-index-snapshot))
 
   db/AttributeStats
   (all-attrs [_]
-    (with-open [i (kv/new-iterator snapshot)]
-      (->> (for [stats-k (all-keys-in-prefix i (encode-stats-key-to nil))]
-             (c/decode-value-buffer (decode-stats-key->attr-from stats-k)))
-           (into #{}))))
+    (letfn [(all-attrs-in-prefix [^DirectBuffer prefix decode-attr]
+              (with-open [i (kv/new-iterator snapshot {:prefix prefix})]
+                (->> (for [k (all-keys-in-prefix i prefix)]
+                       (c/decode-value-buffer (decode-attr k)))
+                     (into #{}))))]
+      (into (all-attrs-in-prefix (encode-stats-key-to nil) decode-stats-key->attr-from)
+            (all-attrs-in-prefix (encode-stats-delta-key-to nil) decode-stats-delta-key->attr-from))))
 
   (doc-count [_ attr]
-    (or (some-> (kv/get-value snapshot (encode-stats-key-to nil (c/->value-buffer attr)))
-                decode-stats-value->doc-count-from)
+    (or (some-> (cached-stats stats-cache snapshot attr) :doc-count)
         0))
 
   (value-cardinality [_ attr]
-    (or (some-> (kv/get-value snapshot (encode-stats-key-to nil (c/->value-buffer attr)))
-                decode-stats-value->value-hll-buffer-from
-                hll/estimate)
+    (or (some-> (cached-stats stats-cache snapshot attr) :value-hll hll/estimate)
         0.0))
 
   (eid-cardinality [_ attr]
-    (or (some-> (kv/get-value snapshot (encode-stats-key-to nil (c/->value-buffer attr)))
-                decode-stats-value->eid-hll-buffer-from
-                hll/estimate)
+    (or (some-> (cached-stats stats-cache snapshot attr) :eid-hll hll/estimate)
         0.0))
 
+  (value-histogram [_ attr]
+    (some-> (cached-stats stats-cache snapshot attr) :value-histogram deref))
+
   db/IndexMeta
   (-read-index-meta [_ k not-found]
     (read-meta-snapshot snapshot k not-found)))
 
-(defn- new-kv-index-snapshot [snapshot close-snapshot? thread-mgr cav-cache canonical-buffer-cache temp-hash-cache]
+(defn- new-kv-index-snapshot [snapshot close-snapshot? thread-mgr cav-cache canonical-buffer-cache decoded-value-cache temp-hash-cache stats-cache]
   (when close-snapshot?
     (snapshot-opened thread-mgr snapshot))
 
   (->KvIndexSnapshot snapshot
                      close-snapshot?
+                     (delay (kv/new-iterator snapshot {:rebound? true}))
+                     (delay (kv/new-iterator snapshot {:rebound? true}))
+                     (delay (kv/new-iterator snapshot {:rebound? true}))
                      (delay (kv/new-iterator snapshot))
-                     (delay (kv/new-iterator snapshot))
-                     (delay (kv/new-iterator snapshot))
-                     (delay (kv/new-iterator snapshot))
-                     (delay (kv/new-iterator snapshot))
+                     (delay (kv/new-iterator snapshot {:rebound? true}))
                      (atom [])
                      thread-mgr
                      cav-cache
                      canonical-buffer-cache
+                     decoded-value-cache
                      temp-hash-cache
+                     stats-cache
                      (AtomicBoolean.)))
 
 ;;;; IndexStore
@@ -933,36 +1276,121 @@
       buf)
     mem/empty-buffer))
 
+(defn- ->attr-bufs [docs]
+  (->> (into #{} (mapcat keys) (vals docs))
+       (into {} (map (juxt identity c/->id-buffer)))))
+
+(defn- ->attr-content-idx-kvs [attr-bufs]
+  (vec (for [[a a-buf] attr-bufs]
+         (MapEntry/create (encode-hash-cache-key-to nil a-buf) (mem/->nippy-buffer a)))))
+
+(defn- ->doc-content-idx-kvs [attr-bufs docs]
+  (into []
+        (mapcat seq)
+        (for [[content-hash doc] docs
+              :let [id (:crux.db/id doc)
+                    eid-value-buffer (c/->value-buffer id)
+                    content-hash (c/->id-buffer content-hash)]]
+          (into [(MapEntry/create (encode-hash-cache-key-to nil (c/->id-buffer id) eid-value-buffer)
+                                  (mem/->nippy-buffer id))]
+                (mapcat seq)
+                (for [[a v] doc
+                      :let [a (get attr-bufs a)]
+                      [v idxs] (val-idxs v)
+                      :let [value-buffer (c/->value-buffer v)]
+                      :when (pos? (.capacity value-buffer))]
+                  (cond-> [(MapEntry/create (encode-av-key-to nil a value-buffer) mem/empty-buffer)
+                           (MapEntry/create (encode-ave-key-to nil a value-buffer eid-value-buffer) mem/empty-buffer)
+                           (MapEntry/create (encode-ae-key-to nil a eid-value-buffer) mem/empty-buffer)
+                           (MapEntry/create (encode-ecav-key-to nil eid-value-buffer content-hash a value-buffer)
+                                            (encode-ecav-value idxs))]
+                    (not (c/can-decode-value-buffer? value-buffer))
+                    (conj (MapEntry/create (encode-hash-cache-key-to nil value-buffer eid-value-buffer)
+                                           (mem/->nippy-buffer v)))))))))
+
 (defn- ->content-idx-kvs [docs]
-  (let [attr-bufs (->> (into #{} (mapcat keys) (vals docs))
-                       (into {} (map (juxt identity c/->id-buffer))))]
-    (into (vec (for [[a a-buf] attr-bufs]
-                 (MapEntry/create (encode-hash-cache-key-to nil a-buf) (mem/->nippy-buffer a))))
-
-          (mapcat seq)
-
-          (for [[content-hash doc] docs
-                :let [id (:crux.db/id doc)
-                      eid-value-buffer (c/->value-buffer id)
-                      content-hash (c/->id-buffer content-hash)]]
-            (into [(MapEntry/create (encode-hash-cache-key-to nil (c/->id-buffer id) eid-value-buffer)
-                                    (mem/->nippy-buffer id))]
-                  (mapcat seq)
-                  (for [[a v] doc
-                        :let [a (get attr-bufs a)]
-                        [v idxs] (val-idxs v)
-                        :let [value-buffer (c/->value-buffer v)]
-                        :when (pos? (.capacity value-buffer))]
-                    (cond-> [(MapEntry/create (encode-av-key-to nil a value-buffer) mem/empty-buffer)
-                             (MapEntry/create (encode-ave-key-to nil a value-buffer eid-value-buffer) mem/empty-buffer)
-                             (MapEntry/create (encode-ae-key-to nil a eid-value-buffer) mem/empty-buffer)
-                             (MapEntry/create (encode-ecav-key-to nil eid-value-buffer content-hash a value-buffer)
-                                              (encode-ecav-value idxs))]
-                      (not (c/can-decode-value-buffer? value-buffer))
-                      (conj (MapEntry/create (encode-hash-cache-key-to nil value-buffer eid-value-buffer)
-                                             (mem/->nippy-buffer v))))))))))
-
-(defrecord KvIndexStoreTx [persistent-kv-store transient-kv-store tx fork-at !evicted-eids thread-mgr cav-cache canonical-buffer-cache temp-hash-cache]
+  (let [attr-bufs (->attr-bufs docs)]
+    (into (->attr-content-idx-kvs attr-bufs)
+          (->doc-content-idx-kvs attr-bufs docs))))
+
+(defn- kvs-bytes ^long [kvs]
+  (transduce (comp (mapcat seq) (map mem/capacity)) + kvs))
+
+;;;; Parallel doc indexing
+
+(def ^:private ^:const min-docs-per-partition 128)
+
+(defn- fork-join-mapv [^ForkJoinPool pool f xs]
+  (->> (mapv (fn [x]
+               (.submit pool ^Callable (fn [] (f x))))
+             xs)
+       (mapv #(.join ^ForkJoinTask %))))
+
+(defn- parallel-index-docs-kvs
+  "Builds the content index and stats KVs for each partition of `docs`
+  on the fork-join pool, sorting each partition's KVs by key. The
+  sorted runs are then merged into a single sorted seq, so they can be
+  written to the transient store in one pass.
+
+  The resulting KVs (and `:bytes-indexed`) are the same as the serial
+  path - keys repeated across partitions have identical values, and
+  the stats deltas are merged as per `merge-partial-stats-delta-kvs`."
+  [^ForkJoinPool pool transient-kv-snapshot tx-id hll-precision docs]
+  (let [attr-bufs (->attr-bufs docs)
+        attr-content-idx-kvs (->attr-content-idx-kvs attr-bufs)
+        parallelism (.getParallelism pool)
+        partition-size (quot (+ (count docs) (dec parallelism)) parallelism)
+        partitions (fork-join-mapv pool
+                                   (fn [docs]
+                                     (let [content-idx-kvs (->doc-content-idx-kvs attr-bufs docs)]
+                                       {:bytes-indexed (kvs-bytes content-idx-kvs)
+                                        :content-idx-kvs (sort-by key mem/buffer-comparator content-idx-kvs)
+                                        :stats (docs->stats-deltas (vals docs) tx-id (fn [_] (new-stats hll-precision)))}))
+                                   (->> (partition-all partition-size docs)
+                                        (map #(into {} %))))
+        stats-kvs (merge-partial-stats-delta-kvs transient-kv-snapshot (map :stats partitions))]
+    {:bytes-indexed (+ (kvs-bytes attr-content-idx-kvs)
+                       ^long (transduce (map :bytes-indexed) + partitions))
+     :kvs (->> (cons (sort-by key mem/buffer-comparator (concat attr-content-idx-kvs stats-kvs))
+                     (map :content-idx-kvs partitions))
+               (cio/merge-sort (fn [a b]
+                                 (.compare mem/buffer-comparator (key a) (key b)))))}))
+
+(defn- parallel-index-docs? [^ForkJoinPool index-docs-pool docs]
+  (and index-docs-pool
+       (>= (count docs) (* min-docs-per-partition (.getParallelism index-docs-pool)))))
+
+(defn- evicted-eid-ranges
+  "Returns the per-eid bitemp and ECAV prefixes of the evicted eids, as
+  `[start-k end-k)` ranges for `kv/delete-ranges`."
+  [eids]
+  (for [eid eids
+        :let [eid-buf (c/->id-buffer eid)]
+        ^DirectBuffer prefix [(encode-bitemp-key-to nil eid-buf)
+                              (encode-bitemp-z-key-to nil eid-buf)
+                              (encode-ecav-key-to nil (c/->value-buffer eid))]]
+    [prefix (-> prefix mem/copy-to-unpooled-buffer mem/inc-unsigned-buffer!)]))
+
+(defn- store-tx-kvs
+  "Returns a CompletableFuture if the KVs are group committed, completed
+  once they've been written. Transactions with range deletes aren't
+  group committed."
+  ([persistent-kv-store kvs]
+   (store-tx-kvs persistent-kv-store nil kvs))
+
+  ([persistent-kv-store ranges kvs]
+   (let [group-commit? (instance? GroupCommitKvStore persistent-kv-store)]
+     (cond
+       (seq ranges) (do (kv/delete-ranges persistent-kv-store ranges kvs)
+                        ;; written directly, after the pending batch.
+                        (when group-commit?
+                          (CompletableFuture/completedFuture nil)))
+       group-commit? (gc/group-commit! persistent-kv-store kvs)
+       :else (kv/store persistent-kv-store kvs)))))
+
+(defrecord KvIndexStoreTx [persistent-kv-store transient-kv-store tx fork-at !evicted-eids thread-mgr cav-cache canonical-buffer-cache decoded-value-cache temp-hash-cache
+                           ^ForkJoinPool index-docs-pool !stats-delta-txs stats-merge-txs stats-hll-precision
+                           node-decoded-value-cache !evicted-value-buffers]
   db/IndexStoreTx
   (index-docs [_ docs]
     (with-open [persistent-kv-snapshot (kv/new-snapshot persistent-kv-store)
@@ -979,15 +1407,19 @@
                                            (or (kv/get-value persistent-kv-snapshot k)
                                                (kv/get-value transient-kv-snapshot k))))))
                       not-empty)
-            content-idx-kvs (->content-idx-kvs docs)
-            stats-kvs (when (seq docs)
-                        (stats-kvs transient-kv-snapshot persistent-kv-snapshot (vals docs)))]
+            {:keys [kvs bytes-indexed]} (if (parallel-index-docs? index-docs-pool docs)
+                                          (parallel-index-docs-kvs index-docs-pool transient-kv-snapshot (:crux.tx/tx-id tx) stats-hll-precision docs)
+                                          (let [content-idx-kvs (->content-idx-kvs docs)
+                                                stats-kvs (when (seq docs)
+                                                            (stats-delta-kvs transient-kv-snapshot (:crux.tx/tx-id tx) stats-hll-precision (vals docs)))]
+                                            {:kvs (concat content-idx-kvs stats-kvs)
+                                             :bytes-indexed (kvs-bytes content-idx-kvs)}))]
 
         ;; we can write to the transient-kv-store here within an open read snapshot
         ;; on the assumption that the transient-kv-store is always in-memory
-        (some->> (seq (concat content-idx-kvs stats-kvs)) (kv/store transient-kv-store))
+        (some->> (seq kvs) (kv/store transient-kv-store))
 
-        {:bytes-indexed (->> content-idx-kvs (transduce (comp (mapcat seq) (map mem/capacity)) +))
+        {:bytes-indexed bytes-indexed
          :indexed-docs docs})))
 
   (unindex-eids [_ eids]
@@ -1001,12 +1433,16 @@
         (letfn [(merge-idxs [k]
                   (fork/merge-seqs (all-keys-in-prefix pi k)
                                    (all-keys-in-prefix ti k)))]
-          (let [bitemp-ks (->> (for [eid eids
-                                     :let [eid-buf (c/->id-buffer eid)]
-                                     k (concat (merge-idxs (encode-bitemp-key-to nil eid-buf))
-                                               (merge-idxs (encode-bitemp-z-key-to nil eid-buf)))]
-                                 k)
-                               (into #{}))
+          ;; the persistent bitemp and ECAV keys of the evicted eids are
+          ;; range-deleted on commit (see `evicted-eid-ranges`), so we
+          ;; only need tombstones for the transient ones here.
+          (let [eid-ks (->> (for [eid eids
+                                  :let [eid-buf (c/->id-buffer eid)]
+                                  k (concat (all-keys-in-prefix ti (encode-bitemp-key-to nil eid-buf))
+                                            (all-keys-in-prefix ti (encode-bitemp-z-key-to nil eid-buf))
+                                            (all-keys-in-prefix ti (encode-ecav-key-to nil (c/->value-buffer eid))))]
+                              k)
+                            (into #{}))
 
                 ecav-ks (->> (for [eid eids
                                    :let [eid-buf (c/->value-buffer eid)]
@@ -1021,15 +1457,14 @@
                                                 (MapEntry/create ch
                                                                  {:crux.db/id (c/new-id eid)
                                                                   :crux.db/evicted? true})))))
-                content-ks (->> (for [[_ eid-buf ecav-key ^Quad quad] ecav-ks
+                content-ks (->> (for [[_ eid-buf _ ^Quad quad] ecav-ks
                                       :let [attr-buf (c/->id-buffer (.attr quad))
                                             value-buf ^DirectBuffer (.value quad)
                                             sole-av? (empty? (->> (merge-idxs (encode-ave-key-to nil attr-buf value-buf))
                                                                   (remove (comp #(mem/buffers=? % eid-buf)
                                                                                 #(decode-ave-key->e-from % (.capacity value-buf))))))]
 
-                                      k (cond-> [ecav-key
-                                                 (encode-ae-key-to nil attr-buf eid-buf)
+                                      k (cond-> [(encode-ae-key-to nil attr-buf eid-buf)
                                                  (encode-ave-key-to nil attr-buf value-buf eid-buf)]
                                           sole-av? (conj (encode-av-key-to nil attr-buf value-buf))
 
@@ -1039,9 +1474,17 @@
                                 (into #{}))]
 
             (run! #(cache/evict cav-cache %) (keys tombstones))
+            ;; evicted from the node's decoded-value cache once they're deleted, on commit
+            (swap! !evicted-value-buffers into
+                   (concat (map c/->id-buffer eids)
+                           (for [[_ _ _ ^Quad quad] ecav-ks
+                                 :let [value-buf ^DirectBuffer (.value quad)]
+                                 :when (or (c/nippy-value-buffer? value-buf)
+                                           (not (c/can-decode-value-buffer? value-buf)))]
+                             (mem/copy-to-unpooled-buffer value-buf))))
 
             (kv/store transient-kv-store
-                      (for [k (concat bitemp-ks content-ks)]
+                      (for [k (concat eid-ks content-ks)]
                         (MapEntry/create k nil)))
 
             {:tombstones tombstones})))))
@@ -1052,15 +1495,28 @@
                    (sort-by key mem/buffer-comparator))))
 
   (commit-index-tx [_]
-    (with-open [snapshot (kv/new-snapshot transient-kv-store)]
-      (kv/store persistent-kv-store (seq snapshot))))
+    ;; the transient KV store's memory is released on close - the
+    ;; persistent KV store copies what it needs before `store` returns.
+    (with-open [^Closeable transient-kv-store transient-kv-store
+                snapshot (kv/new-snapshot transient-kv-store)]
+      ;; evictions range-delete, so they're written before this returns.
+      (let [written (store-tx-kvs persistent-kv-store
+                                  (evicted-eid-ranges @!evicted-eids)
+                                  (if (merge-stats-deltas? !stats-delta-txs stats-merge-txs)
+                                    (with-open [persistent-kv-snapshot (kv/new-snapshot persistent-kv-store)]
+                                      ;; realised, as the snapshot's closed before the KVs are stored.
+                                      (vec (merge-stats-delta-kvs persistent-kv-snapshot (seq snapshot))))
+                                    (seq snapshot)))]
+        (run! #(cache/evict node-decoded-value-cache %) @!evicted-value-buffers)
+        written)))
 
   (abort-index-tx [_]
-    (with-open [snapshot (kv/new-snapshot transient-kv-store)]
+    (with-open [^Closeable transient-kv-store transient-kv-store
+                snapshot (kv/new-snapshot transient-kv-store)]
       (let [{:crux.tx/keys [tx-id tx-time]} tx]
         ;; we still put the ECAV KVs in so that we can keep track of what we need to evict later
         ;; the bitemp indices will ensure these are never returned in queries
-        (kv/store persistent-kv-store
+        (store-tx-kvs persistent-kv-store
                   (conj (->> (seq snapshot)
                              (filter (fn [[^DirectBuffer k-buf v-buf]]
                                        (= c/ecav-index-id (.getByte k-buf 0)))))
@@ -1071,26 +1527,29 @@
   db/IndexSnapshotFactory
   (open-index-snapshot [_]
     (fork/->MergedIndexSnapshot (-> (new-kv-index-snapshot (kv/new-snapshot persistent-kv-store) true thread-mgr
-                                                           cav-cache canonical-buffer-cache temp-hash-cache)
+                                                           cav-cache canonical-buffer-cache decoded-value-cache temp-hash-cache (ConcurrentHashMap.))
                                     (fork/->CappedIndexSnapshot (:crux.db/valid-time fork-at)
                                                                 (get fork-at :crux.tx/tx-id (:crux.tx/tx-id tx))))
                                 (new-kv-index-snapshot (kv/new-snapshot transient-kv-store) true thread-mgr
-                                                       cav-cache canonical-buffer-cache temp-hash-cache)
+                                                       cav-cache canonical-buffer-cache decoded-value-cache temp-hash-cache (ConcurrentHashMap.))
                                 @!evicted-eids)))
 
-(defrecord KvIndexStore [kv-store thread-mgr cav-cache canonical-buffer-cache]
+(defrecord KvIndexStore [kv-store thread-mgr cav-cache canonical-buffer-cache decoded-value-cache ^ForkJoinPool index-docs-pool group-commit-kv-store
+                         !stats-delta-txs stats-merge-txs stats-hll-precision]
   db/IndexStore
   (begin-index-tx [_ tx fork-at]
     (let [{:crux.tx/keys [tx-id tx-time]} tx
           transient-kv-store (mut-kv/->mutable-kv-store)]
       (kv/store transient-kv-store
                 [(MapEntry/create (encode-tx-time-mapping-key-to nil tx-time tx-id) mem/empty-buffer)])
-      (->KvIndexStoreTx kv-store transient-kv-store tx fork-at
+      (->KvIndexStoreTx (or group-commit-kv-store kv-store) transient-kv-store tx fork-at
                         (atom #{}) thread-mgr
-                        (nop-cache/->nop-cache {}) (nop-cache/->nop-cache {}) (HashMap.))))
+                        (nop-cache/->nop-cache {}) (nop-cache/->nop-cache {}) (nop-cache/->nop-cache {}) (ConcurrentHashMap.)
+                        index-docs-pool !stats-delta-txs stats-merge-txs stats-hll-precision
+                        decoded-value-cache (atom #{}))))
 
   (store-index-meta [_ k v]
-    (store-meta kv-store k v))
+    (store-meta (or group-commit-kv-store kv-store) k v))
 
   (tx-failed? [_ tx-id]
     (with-open [snapshot (kv/new-snapshot kv-store)]
@@ -1106,7 +1565,10 @@
 
   db/IndexSnapshotFactory
   (open-index-snapshot [_]
-    (new-kv-index-snapshot (kv/new-snapshot kv-store) true thread-mgr cav-cache canonical-buffer-cache (HashMap.)))
+    ;; the temp hash and stats caches are shared with nested snapshots,
+    ;; which parallel queries use from other threads.
+    (new-kv-index-snapshot (kv/new-snapshot kv-store) true thread-mgr cav-cache canonical-buffer-cache decoded-value-cache
+                           (ConcurrentHashMap.) (ConcurrentHashMap.)))
 
   status/Status
   (status-map [this]
@@ -1116,13 +1578,41 @@
 
   Closeable
   (close [_]
-    (cio/try-close thread-mgr)))
+    (cio/try-close group-commit-kv-store)
+    (cio/try-close thread-mgr)
+    (some-> index-docs-pool (.shutdownNow))))
 
 (defn ->kv-index-store {::sys/deps {:kv-store 'crux.mem-kv/->kv-store
                                     :cav-cache 'crux.cache/->cache
-                                    :canonical-buffer-cache 'crux.cache/->cache}
+                                    :canonical-buffer-cache 'crux.cache/->cache
+                                    :decoded-value-cache {:crux/module 'crux.cache/->cache
+                                                          :cache-size (* 32 1024)}}
                         ::sys/args {:skip-index-version-bump {:spec (s/tuple int? int?)
-                                                              :doc "Skip an index version bump. For example, to skip from v10 to v11, specify [10 11]"}}}
-  [{:keys [kv-store cav-cache canonical-buffer-cache] :as opts}]
+                                                              :doc "Skip an index version bump. For example, to skip from v10 to v11, specify [10 11]"}
+                                    :index-docs-parallelism {:doc "Number of threads used to build the index entries of large transactions. 1 indexes documents on the tx-ingester thread."
+                                                             :default 1
+                                                             :spec ::sys/pos-int}
+                                    :group-commit-max-txs {:doc "Maximum number of consecutive transactions written to the KV store as a single batch. 1 writes each transaction as it commits."
+                                                           :default 1
+                                                           :spec ::sys/pos-int}
+                                    :group-commit-max-latency {:doc "Maximum time a committed transaction waits for the rest of its batch before being written."
+                                                               :default (Duration/ofMillis 10)
+                                                               :spec ::sys/duration}
+                                    :stats-merge-txs {:doc "Number of transactions whose attribute stats are written as deltas before the deltas are merged into the stats index. 1 merges each transaction's stats as it commits."
+                                                      :default 16
+                                                      :spec ::sys/pos-int}
+                                    :stats-hll-precision {:doc "Precision of the HyperLogLog sketches used for attribute cardinalities - they have 2^precision registers once they're no longer sparse."
+                                                          :default hll/default-precision
+                                                          :spec (s/int-in hll/min-precision (inc hll/max-precision))}}}
+  [{:keys [kv-store cav-cache canonical-buffer-cache decoded-value-cache index-docs-parallelism group-commit-max-txs group-commit-max-latency stats-merge-txs stats-hll-precision] :as opts}]
   (check-and-store-index-version opts)
-  (->KvIndexStore kv-store (ThreadManager. (HashMap.) nil) cav-cache canonical-buffer-cache))
+  (->KvIndexStore kv-store (ThreadManager. (HashMap.) nil) cav-cache canonical-buffer-cache
+                  (or decoded-value-cache (nop-cache/->nop-cache {}))
+                  (when (and index-docs-parallelism (> ^long index-docs-parallelism 1))
+                    (ForkJoinPool. index-docs-parallelism))
+                  (when (and group-commit-max-txs (> ^long group-commit-max-txs 1))
+                    (gc/->group-commit-kv-store kv-store {:max-txs group-commit-max-txs
+                                                          :max-latency (or group-commit-max-latency (Duration/ofMillis 10))}))
+                  (atom 0)
+                  (or stats-merge-txs 16)
+                  (or stats-hll-precision hll/default-precision)))
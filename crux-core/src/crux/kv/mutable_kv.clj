@@ -1,62 +1,334 @@
 (ns crux.kv.mutable-kv
+  "Transient KV store, used for in-flight transactions.
+
+  Keys and values are copied into an off-heap arena, indexed by a skip
+  list whose nodes live in the same arena - so the store allocates a
+  handful of chunks rather than objects per entry, and closing it
+  releases them all in one go.
+
+  Storing a nil value keeps the key as a tombstone: it's hidden from
+  iterators and `get-value`, but included in the snapshot's `seq`, so
+  that it can be written to a persistent store as a delete.
+
+  Iterators return their keys and values in a view buffer of their own,
+  re-pointed on every move - callers copy what they keep. Snapshots
+  aren't isolated from later writes, and throw once the store's closed,
+  rather than reading freed memory."
   (:require [crux.kv :as kv]
             [crux.memory :as mem])
-  (:import clojure.lang.ISeq
+  (:import clojure.lang.MapEntry
            java.io.Closeable
-           [java.util NavigableMap TreeMap]))
+           java.nio.ByteBuffer
+           java.util.ArrayList
+           java.util.concurrent.ThreadLocalRandom
+           [org.agrona BufferUtil DirectBuffer UnsafeAccess]
+           org.agrona.concurrent.UnsafeBuffer
+           sun.misc.Unsafe))
+
+(set! *unchecked-math* :warn-on-boxed)
+
+(def ^:private ^Unsafe unsafe UnsafeAccess/UNSAFE)
+
+;; Node layout, 8-byte aligned:
+;; [value-address long][value-length int][key-length int]
+;; [level int][node-chunk int][value-chunk int][padding int]
+;; [next long * level][key bytes]
+;; A value-length of -1 marks a tombstone.
+
+(def ^:private ^:const value-address-offset 0)
+(def ^:private ^:const value-length-offset 8)
+(def ^:private ^:const key-length-offset 12)
+(def ^:private ^:const level-offset 16)
+(def ^:private ^:const node-chunk-offset 20)
+(def ^:private ^:const value-chunk-offset 24)
+(def ^:private ^:const next-offset 32)
+
+(def ^:private ^:const max-level 16)
+(def ^:private ^:const initial-chunk-size (* 64 1024))
+(def ^:private ^:const max-chunk-size (* 4 1024 1024))
+
+(defn- align ^long [^long size]
+  (bit-and (+ size 7) -8))
+
+(defn- node-level ^long [^long node]
+  (.getInt unsafe (+ node level-offset)))
+
+(defn- node-next ^long [^long node ^long level]
+  (.getLong unsafe (+ node next-offset (* Long/BYTES level))))
+
+(defn- set-node-next! [^long node ^long level ^long next-node]
+  (.putLong unsafe (+ node next-offset (* Long/BYTES level)) next-node))
+
+(defn- node-key-address ^long [^long node]
+  (+ node next-offset (* Long/BYTES (node-level node))))
+
+(defn- node-key-length ^long [^long node]
+  (.getInt unsafe (+ node key-length-offset)))
+
+(defn- tombstone? [^long node]
+  (neg? (.getInt unsafe (+ node value-length-offset))))
+
+(definterface SkipList
+  (^long head [])
+  (^long findLessThan [^org.agrona.DirectBuffer k, ^org.agrona.concurrent.UnsafeBuffer view, ^longs preds])
+  (^org.agrona.concurrent.UnsafeBuffer wrap [^org.agrona.concurrent.UnsafeBuffer view, ^long chunk-idx, ^long address, ^long len]))
+
+(definterface MutableSkipList
+  (^long allocate [^long size])
+  (^long insert [^org.agrona.DirectBuffer k])
+  (putValue [^long node, ^org.agrona.DirectBuffer v]))
+
+(defn- wrap-key ^org.agrona.concurrent.UnsafeBuffer [^SkipList skip-list view ^long node]
+  (.wrap skip-list view (.getInt unsafe (+ node node-chunk-offset)) (node-key-address node) (node-key-length node)))
+
+(defn- wrap-value ^org.agrona.DirectBuffer [^SkipList skip-list view ^long node]
+  (let [len (.getInt unsafe (+ node value-length-offset))]
+    (cond
+      (neg? len) nil
+      (zero? len) mem/empty-buffer
+      :else (.wrap skip-list view
+                    (.getInt unsafe (+ node value-chunk-offset))
+                    (.getLong unsafe (+ node value-address-offset))
+                    len))))
+
+(defn- ensure-open [^SkipList skip-list]
+  (when (zero? (.head skip-list))
+    (throw (IllegalStateException. "Mutable KV store is closed"))))
 
-(deftype MutableKvIterator [^NavigableMap db, !tail-seq]
+(defn- find-greater-or-equal ^long [^SkipList skip-list ^UnsafeBuffer view ^DirectBuffer k]
+  (node-next (.findLessThan skip-list k view nil) 0))
+
+(defn- skip-tombstones ^long [^long node]
+  (loop [node node]
+    (if (and (not (zero? node)) (tombstone? node))
+      (recur (node-next node 0))
+      node)))
+
+(defn- prev-live-node
+  "No back pointers, so we search for the predecessor from the head.
+  Returns 0 if there isn't one."
+  ^long [^SkipList skip-list ^UnsafeBuffer k-view ^UnsafeBuffer search-view ^long node]
+  (let [head (.head skip-list)]
+    (loop [node node]
+      (let [prev (.findLessThan skip-list (wrap-key skip-list k-view node) search-view nil)]
+        (cond
+          (= prev head) 0
+          (tombstone? prev) (recur prev)
+          :else prev)))))
+
+(deftype MutableKvIterator [^SkipList skip-list
+                            ^UnsafeBuffer k-view
+                            ^UnsafeBuffer v-view
+                            ^UnsafeBuffer search-view
+                            ^:unsynchronized-mutable ^long node]
   kv/KvIterator
   (seek [this k]
-    (some-> (reset! !tail-seq (->> (.tailMap db (mem/as-buffer k) true)
-                                   (filter val)))
-            first
-            key))
+    (ensure-open skip-list)
+    (set! node (skip-tombstones (find-greater-or-equal skip-list search-view (mem/as-buffer k))))
+    (when-not (zero? node)
+      (wrap-key skip-list k-view node)))
 
   (next [this]
-    (some-> (swap! !tail-seq rest) first key))
+    (ensure-open skip-list)
+    (when-not (zero? node)
+      (set! node (skip-tombstones (node-next node 0)))
+      (when-not (zero? node)
+        (wrap-key skip-list k-view node))))
 
   (prev [this]
-    (loop []
-      (when-let [[[k _] :as tail-seq] (seq @!tail-seq)]
-        (when-let [[k v :as lower-entry] (.lowerEntry db k)]
-          (reset! !tail-seq (cons lower-entry tail-seq))
-          (if v
-            k
-            (recur))))))
+    (ensure-open skip-list)
+    (when-not (zero? node)
+      (set! node (prev-live-node skip-list k-view search-view node))
+      (when-not (zero? node)
+        (wrap-key skip-list k-view node))))
 
   (value [this]
-    (some-> (first @!tail-seq) val))
+    (ensure-open skip-list)
+    (when-not (zero? node)
+      (wrap-value skip-list v-view node)))
 
   Closeable
   (close [_]))
 
-(deftype MutableKvSnapshot [^NavigableMap db]
+(deftype MutableKvSnapshot [^SkipList skip-list]
   kv/KvSnapshot
-  (new-iterator [this] (->MutableKvIterator db (atom nil)))
-  (get-value [this k] (get db (mem/as-buffer k)))
+  (new-iterator [this]
+    (->MutableKvIterator skip-list (UnsafeBuffer. 0 0) (UnsafeBuffer. 0 0) (UnsafeBuffer. 0 0) 0))
+
+  (new-iterator [this opts]
+    (kv/->bounded-iterator (kv/new-iterator this) opts))
+
+  (get-value [this k]
+    (ensure-open skip-list)
+    (let [k (mem/as-buffer k)
+          view (UnsafeBuffer. 0 0)
+          node (find-greater-or-equal skip-list view k)]
+      (when (and (not (zero? node))
+                 (mem/buffers=? (wrap-key skip-list view node) k))
+        (wrap-value skip-list (UnsafeBuffer. 0 0) node))))
 
-  ISeq
-  (seq [_] (seq db))
+  clojure.lang.Seqable
+  (seq [_]
+    ((fn step [^long node]
+       (lazy-seq
+        (ensure-open skip-list)
+        (when-not (zero? node)
+          (cons (MapEntry/create (wrap-key skip-list (UnsafeBuffer. 0 0) node)
+                                 (wrap-value skip-list (UnsafeBuffer. 0 0) node))
+                (step (node-next node 0))))))
+     (do (ensure-open skip-list)
+         (node-next (.head skip-list) 0))))
 
   Closeable
   (close [_]))
 
-(deftype MutableKvStore [^NavigableMap db]
+(deftype MutableKvStore [^ArrayList chunks
+                         ^longs preds
+                         ^UnsafeBuffer view
+                         ^:unsynchronized-mutable ^long head
+                         ^:unsynchronized-mutable ^long level
+                         ^:unsynchronized-mutable ^long chunk-address
+                         ^:unsynchronized-mutable ^long chunk-position
+                         ^:unsynchronized-mutable ^long chunk-limit
+                         ^:unsynchronized-mutable ^long next-chunk-size
+                         ^:unsynchronized-mutable ^long entry-count
+                         ^:unsynchronized-mutable ^long random-state]
+  SkipList
+  (head [_] head)
+
+  (findLessThan [_ k view preds]
+    (loop [lvl (dec level)
+           node head]
+      (if (neg? lvl)
+        node
+        (let [next-node (node-next node lvl)]
+          (if (and (not (zero? next-node))
+                   (neg? (mem/compare-buffers (wrap-key _ view next-node) k)))
+            (recur lvl next-node)
+            (do (when preds
+                  (aset preds lvl node))
+                (recur (dec lvl) node)))))))
+
+  (wrap [_ view chunk-idx address len]
+    (let [^ByteBuffer chunk (.get chunks chunk-idx)]
+      (doto view
+        (.wrap chunk (int (- address (BufferUtil/address chunk))) (int len)))))
+
+  MutableSkipList
+  (allocate [_ size]
+    (let [size (align size)]
+      (when (> (+ chunk-position size) chunk-limit)
+        (let [chunk-size (max next-chunk-size size)
+              chunk (ByteBuffer/allocateDirect chunk-size)]
+          (.add chunks chunk)
+          (set! chunk-address (BufferUtil/address chunk))
+          (set! chunk-position 0)
+          (set! chunk-limit chunk-size)
+          (set! next-chunk-size (min max-chunk-size (* 2 next-chunk-size)))))
+      (let [address (+ chunk-address chunk-position)]
+        (set! chunk-position (+ chunk-position size))
+        address)))
+
+  (insert [this k]
+    (let [prev (.findLessThan this k view preds)
+          existing (node-next prev 0)]
+      (if (and (not (zero? existing))
+               (mem/buffers=? (wrap-key this view existing) k))
+        existing
+        (let [node-level (do (set! random-state (let [x random-state
+                                                      x (bit-xor x (bit-shift-left x 13))
+                                                      x (bit-xor x (unsigned-bit-shift-right x 7))]
+                                                  (bit-xor x (bit-shift-left x 17))))
+                             ;; p = 1/4
+                             (min max-level (inc (quot (Long/numberOfTrailingZeros random-state) 2))))
+              key-length (.capacity k)
+              node (.allocate this (+ next-offset (* Long/BYTES node-level) key-length))
+              chunk-idx (dec (.size chunks))]
+          (when (> node-level level)
+            (loop [lvl level]
+              (when (< lvl node-level)
+                (aset preds lvl head)
+                (recur (inc lvl))))
+            (set! level node-level))
+
+          (doto unsafe
+            (.putInt (+ node key-length-offset) key-length)
+            (.putInt (+ node level-offset) node-level)
+            (.putInt (+ node node-chunk-offset) chunk-idx))
+          (.putBytes (.wrap this view chunk-idx (node-key-address node) key-length) 0 k 0 key-length)
+
+          (dotimes [lvl node-level]
+            (let [pred (aget preds lvl)]
+              (set-node-next! node lvl (node-next pred lvl))
+              (set-node-next! pred lvl node)))
+
+          (set! entry-count (inc entry-count))
+          node))))
+
+  (putValue [this node v]
+    (cond
+      (nil? v) (.putInt unsafe (+ node value-length-offset) -1)
+
+      (zero? (.capacity v)) (.putInt unsafe (+ node value-length-offset) 0)
+
+      :else (let [value-length (.capacity v)
+                  value-address (.allocate this value-length)
+                  chunk-idx (dec (.size chunks))]
+              (.putBytes (.wrap this view chunk-idx value-address value-length) 0 v 0 value-length)
+              (doto unsafe
+                (.putLong (+ node value-address-offset) value-address)
+                (.putInt (+ node value-length-offset) value-length)
+                (.putInt (+ node value-chunk-offset) chunk-idx)))))
+
   kv/KvStore
   (new-snapshot ^java.io.Closeable [this]
-    (->MutableKvSnapshot db))
+    (ensure-open this)
+    (->MutableKvSnapshot this))
 
   (store [this kvs]
+    (ensure-open this)
     (doseq [[k v] kvs]
-      (.put db (mem/as-buffer k) (some-> v mem/as-buffer))))
+      (.putValue this (.insert this (mem/as-buffer k)) (some-> v mem/as-buffer))))
+
+  (delete-ranges [this ranges kvs]
+    (ensure-open this)
+    (doseq [[start-k end-k] ranges
+            :let [end-k (mem/as-buffer end-k)]]
+      (loop [node (find-greater-or-equal this view (mem/as-buffer start-k))]
+        (when (and (not (zero? node))
+                   (neg? (mem/compare-buffers (wrap-key this view node) end-k)))
+          (.putValue this node nil)
+          (recur (node-next node 0)))))
+    (kv/store this kvs))
 
   (fsync [this])
   (compact [this])
-  (count-keys [this] (count db))
+  (count-keys [this] entry-count)
   (db-dir [this])
-  (kv-name [this] (str (class this))))
+  (kv-name [this] (str (class this)))
+
+  Closeable
+  (close [_]
+    (set! head 0)
+    (doseq [^ByteBuffer chunk chunks]
+      (BufferUtil/free chunk))
+    (.clear chunks)))
 
 (defn ->mutable-kv-store
   ([] (->mutable-kv-store nil))
-  ([_] (->MutableKvStore (TreeMap. mem/buffer-comparator))))
+  ([_]
+   (let [chunk (ByteBuffer/allocateDirect initial-chunk-size)
+         head (BufferUtil/address chunk)
+         head-size (align (+ next-offset (* Long/BYTES max-level)))]
+     (.putInt unsafe (+ head level-offset) max-level)
+     (MutableKvStore. (doto (ArrayList.) (.add chunk))
+                      (long-array max-level)
+                      (UnsafeBuffer. 0 0)
+                      head
+                      1
+                      head
+                      head-size
+                      initial-chunk-size
+                      (min max-chunk-size (* 2 initial-chunk-size))
+                      0
+                      (bit-or (.nextLong (ThreadLocalRandom/current)) 1)))))
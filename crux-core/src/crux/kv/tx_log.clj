@@ -24,6 +24,10 @@
                 (c/date->reverse-time-ms (or tx-time (Date.)))
                 ByteOrder/BIG_ENDIAN))))
 
+(def ^:private tx-events-prefix
+  (doto ^MutableDirectBuffer (mem/allocate-unpooled-buffer c/index-id-size)
+    (.putByte 0 c/tx-events-index-id)))
+
 (defn tx-event-key? [^DirectBuffer k]
   (= c/tx-events-index-id (.getByte k 0)))
 
@@ -58,7 +62,7 @@
 
 (defn- txs-after [{:keys [kv-store]} after-tx-id {:keys [limit], :or {limit 100}}]
   (with-open [snapshot (kv/new-snapshot kv-store)
-              iterator (kv/new-iterator snapshot)]
+              iterator (kv/new-iterator snapshot {:prefix tx-events-prefix})]
     (letfn [(tx-log [k]
               (lazy-seq
                (when (some-> k (tx-event-key?))
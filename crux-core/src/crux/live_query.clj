@@ -0,0 +1,184 @@
+(ns ^:no-doc crux.live-query
+  "Live queries - query results kept up to date as transactions are
+  indexed, with the changes pushed to a callback.
+
+  A transaction only changes the triples of the entities it writes to,
+  listed in the `:eids` of its indexed-tx event, so the results that
+  can change are those with a derivation through one of them. Where
+  the query's clauses allow it, we find these by re-running the query
+  with each of its entity variables in turn bound to the changed eids,
+  before and after the transaction, rather than re-running it in full.
+  Results that lose their derivations through the changed entities are
+  then checked against the new db, in case they're still derived some
+  other way.
+
+  Queries that aggregate, pull, negate, call rules or or-clauses, pass
+  the db to a predicate, or limit their results are re-run in full, as
+  are transactions that evict.
+
+  Results are as of the valid time each transaction is indexed at.
+  Results that enter or leave as valid time passes a version of an
+  entity are only picked up once a later transaction is indexed: we
+  keep the valid times at which versions written while the live query
+  is open start, and re-run the query in full once one has passed.
+  Versions written before the live query opened, to start later, aren't
+  tracked - for those, results are only correct for data with a current
+  valid time."
+  (:require [clojure.set :as set]
+            [clojure.tools.logging :as log]
+            [crux.api :as api]
+            [crux.bus :as bus]
+            [crux.codec :as c]
+            [crux.error :as err]
+            [crux.query :as q]
+            [crux.tx :as tx])
+  (:import java.util.Date))
+
+(set! *unchecked-math* :warn-on-boxed)
+
+(defn- blank-var? [v]
+  (and (symbol? v) (re-find #"^_\d*$" (name v))))
+
+(defn- triple-clause? [clause]
+  (and (vector? clause)
+       (<= 2 (count clause) 3)
+       (not (seq? (first clause)))
+       (keyword? (second clause))))
+
+(defn- pred-clause? [clause]
+  (and (vector? clause)
+       (seq? (first clause))
+       (not (contains? '#{get-attr q} (ffirst clause)))))
+
+(defn- incremental-plan
+  "Returns the entity variables and literal eids of the normalized
+  query `q`'s triple clauses, or nil if `q` has to be re-run in full."
+  [{:keys [find where] :as q}]
+  (let [es (map first (filter triple-clause? where))]
+    (when (and (every? #{:find :where :order-by :timeout} (keys q))
+               (every? q/logic-var? find)
+               (every? (some-fn triple-clause? pred-clause?) where)
+               (not-any? '#{$} (tree-seq coll? seq where))
+               (not-any? blank-var? es))
+      {:e-vars (into #{} (filter q/logic-var?) es)
+       :literal-eids (into #{} (comp (remove q/logic-var?) (map c/new-id)) es)})))
+
+(defn- full-results [db q]
+  (set (api/q db q)))
+
+(defn- anchored-results
+  "Returns the results of `q` with a derivation through any of `eids`."
+  [db {:keys [find where] :as q} {:keys [e-vars literal-eids]} changed-eids eids]
+  (cond
+    (some literal-eids changed-eids) (full-results db q)
+    (empty? eids) #{}
+    :else (into #{}
+                (mapcat (fn [e-var]
+                          (api/q db {:find find, :where where, :in [[e-var '...]]} eids)))
+                e-vars)))
+
+(defn- derived-results
+  "Returns those of `candidates` that are results of `q`, as of `db`."
+  [db {:keys [find where]} candidates]
+  (if (empty? candidates)
+    #{}
+    (let [find-vars (vec (distinct find))
+          idxs (mapv #(.indexOf ^java.util.List find %) find-vars)]
+      (set (api/q db {:find find, :where where, :in [[find-vars]]}
+                  (mapv (fn [result]
+                          (mapv #(nth result %) idxs))
+                        candidates))))))
+
+(defn- ->db [node valid-time tx]
+  (api/db node {:crux.db/valid-time valid-time
+                ::tx/tx (select-keys tx [::tx/tx-id ::tx/tx-time])}))
+
+(defn- version-starts-after
+  "Returns the valid times after `valid-time` at which versions of `eids`
+  start, as of `tx`."
+  [node tx eids ^Date valid-time]
+  ;; entity history is bounded by the db's valid time
+  (let [db (->db node (Date. (dec Long/MAX_VALUE)) tx)]
+    (into #{}
+          (comp (mapcat #(api/entity-history db % :asc {:start-valid-time valid-time}))
+                (map :crux.db/valid-time)
+                (filter #(.after ^Date % valid-time)))
+          eids)))
+
+(defn- tx-delta
+  "Returns the results added and removed by the transaction in the
+  indexed-tx event, as of `valid-time`, given the `results` as of
+  `prev-tx` - re-running the query in full if `valid-time` has passed
+  one of the `valid-time-boundaries` since."
+  [node q plan {:keys [results prev-tx full? valid-time-boundaries]} {:keys [submitted-tx eids evicted-eids]} ^Date valid-time]
+  (let [new-db (->db node valid-time submitted-tx)]
+    (if (or full? (nil? plan) (nil? eids) (seq evicted-eids)
+            (when-let [^Date boundary (first valid-time-boundaries)]
+              (not (.after boundary valid-time))))
+      (let [new-results (full-results new-db q)]
+        {:added (set/difference new-results results)
+         :removed (set/difference results new-results)})
+
+      (let [old-db (when prev-tx
+                     (->db node valid-time prev-tx))
+            raw-eids (->> (for [db [old-db new-db]
+                                :when db
+                                eid eids]
+                            (:crux.db/id (api/entity db eid)))
+                          (into #{} (remove nil?)))
+            old-anchored (if old-db
+                           (anchored-results old-db q plan eids raw-eids)
+                           #{})
+            new-anchored (anchored-results new-db q plan eids raw-eids)
+            candidates (set/intersection results (set/difference old-anchored new-anchored))]
+        {:added (set/difference new-anchored results)
+         :removed (set/difference candidates (derived-results new-db q candidates))}))))
+
+(defn open-live-query
+  "Calls `f` with the results of `query` as of the latest completed
+  transaction, then with the results each later transaction adds and
+  removes. Returns a Closeable that stops the updates."
+  ^java.io.Closeable [node bus query f]
+  (let [q (q/normalize-query query)
+        _ (when (or (seq (:in q)) (seq (:args q)))
+            (throw (err/illegal-arg :live-query-args
+                                    {::err/message "Live queries can't take arguments"
+                                     :query query})))
+        plan (incremental-plan q)
+        !ready (promise)
+        !state (atom nil)
+        listener (bus/listen bus {:crux/event-types #{::tx/indexed-tx}}
+                             (fn [{:keys [submitted-tx committed?] :as ev}]
+                               (when @!ready
+                                 (let [{:keys [prev-tx results valid-time-boundaries] :as state} @!state
+                                       tx-id (long (::tx/tx-id submitted-tx))
+                                       valid-time (Date.)]
+                                   (when (and committed?
+                                              (> tx-id (long (::tx/tx-id prev-tx -1))))
+                                     (try
+                                       (let [{:keys [added removed]} (tx-delta node q plan state ev valid-time)]
+                                         (reset! !state {:results (-> (set/difference results removed)
+                                                                      (set/union added))
+                                                         :prev-tx submitted-tx
+                                                         :valid-time-boundaries (into (apply sorted-set (subseq valid-time-boundaries > valid-time))
+                                                                                      (version-starts-after node submitted-tx (:eids ev) valid-time))})
+                                         (when (or (seq added) (seq removed))
+                                           (f (merge {:added added, :removed removed}
+                                                     (select-keys submitted-tx [::tx/tx-id ::tx/tx-time])))))
+                                       (catch Exception e
+                                         (log/error e "Error updating live query:" (pr-str query))
+                                         (swap! !state assoc :full? true))))))))]
+    (try
+      (let [latest-tx (api/latest-completed-tx node)
+            results (if latest-tx
+                      (full-results (->db node (Date.) latest-tx) q)
+                      #{})]
+        (reset! !state {:results results, :prev-tx latest-tx, :valid-time-boundaries (sorted-set)})
+        (f (merge {:added results, :removed #{}}
+                  (select-keys latest-tx [::tx/tx-id ::tx/tx-time])))
+        (deliver !ready true)
+        listener)
+      (catch Throwable t
+        (deliver !ready false)
+        (.close listener)
+        (throw t)))))
@@ -62,6 +62,9 @@
   (new-iterator [_]
     (MemKvIterator. (Box. db) (atom {:rest (seq db)})))
 
+  (new-iterator [this opts]
+    (kv/->bounded-iterator (kv/new-iterator this) opts))
+
   (get-value [_ k]
     (get db (mem/as-buffer k)))
 
@@ -73,15 +76,25 @@
   (new-snapshot [_]
     (MemKvSnapshot. @!db))
 
-  (store [_ kvs]
+  (store [this kvs]
+    (kv/delete-ranges this nil kvs))
+
+  (delete-ranges [_ ranges kvs]
     (swap! !db (fn [db]
-                 (reduce (fn [db [k v]]
-                           (let [k-buf (mem/as-buffer k)]
-                             (if v
-                               (assoc db (mem/copy-to-unpooled-buffer k-buf) (mem/copy-to-unpooled-buffer (mem/as-buffer v)))
-                               (dissoc db k-buf))))
-                         db
-                         kvs)))
+                 (as-> db db
+                   (reduce (fn [db [start-k end-k]]
+                             (->> (subseq db >= (mem/as-buffer start-k) < (mem/as-buffer end-k))
+                                  (map key)
+                                  (reduce dissoc db)))
+                           db
+                           ranges)
+                   (reduce (fn [db [k v]]
+                             (let [k-buf (mem/as-buffer k)]
+                               (if v
+                                 (assoc db (mem/copy-to-unpooled-buffer k-buf) (mem/copy-to-unpooled-buffer (mem/as-buffer v)))
+                                 (dissoc db k-buf))))
+                           db
+                           kvs))))
     nil)
 
   (compact [_])
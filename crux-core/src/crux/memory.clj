@@ -241,6 +241,15 @@
            (doto buffer
              (.putByte idx (unchecked-byte (inc b))))))))))
 
+(defn successor-buffer
+  "Returns the smallest buffer that sorts after `buffer`."
+  ^org.agrona.MutableDirectBuffer [^DirectBuffer buffer]
+  (let [capacity (.capacity buffer)
+        ^MutableDirectBuffer b (allocate-unpooled-buffer (inc capacity))]
+    (doto b
+      (.putBytes 0 buffer 0 capacity)
+      (.putByte capacity (byte 0)))))
+
 (defn <-nippy-buffer [buf]
   (nippy/thaw-from-in! (-> (DirectBufferInputStream. buf)
                            (DataInputStream.))))
@@ -8,6 +8,7 @@
             [crux.db :as db]
             [crux.error :as err]
             [crux.io :as cio]
+            [crux.live-query :as lq]
             [crux.query :as q]
             [crux.query-state :as qs]
             [crux.status :as status]
@@ -171,6 +172,11 @@
                               (when (:with-tx-ops? event-opts)
                                 {:crux/tx-ops (txc/tx-events->tx-ops document-store tx-events)})))))))
 
+  (open-live-query [this query f]
+    (cio/with-read-lock lock
+      (ensure-node-open this))
+    (lq/open-live-query this bus query f))
+
   (latest-completed-tx [this]
     (cio/with-read-lock lock
       (ensure-node-open this)
@@ -263,7 +269,7 @@
   (bus/listen bus {:crux/event-types #{:crux.query/submitted-query
                                        :crux.query/completed-query
                                        :crux.query/failed-query}}
-              (fn [{::q/keys [query-id query error] :keys [crux/event-type]}]
+              (fn [{::q/keys [query-id query error profile] :keys [crux/event-type]}]
                 (case event-type
                   :crux.query/submitted-query
                   (swap! !running-queries assoc-in [:in-progress query-id] {:query-id query-id
@@ -276,14 +282,16 @@
                                         {:query-id query-id
                                          :finished-at (Date.)
                                          :status :failed
-                                         :error error}
+                                         :error error
+                                         :profile profile}
                                         node-opts)
 
                   :crux.query/completed-query
                   (swap-finished-query! !running-queries
                                         {:query-id query-id
                                          :finished-at (Date.)
-                                         :status :completed}
+                                         :status :completed
+                                         :profile profile}
                                         node-opts)))))
 
 (defn- ->node {::sys/deps {:index-store :crux/index-store
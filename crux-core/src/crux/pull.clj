@@ -3,7 +3,9 @@
             [crux.db :as db]
             [juxt.clojars-mirrors.eql.v2021v02v28.edn-query-language.core :as eql]
             [clojure.string :as string])
-  (:import clojure.lang.MapEntry))
+  (:import clojure.lang.MapEntry
+           [java.util.concurrent CompletableFuture ExecutionException ExecutorService]
+           [java.util.function Function Supplier]))
 
 (defn- recognise-union [child]
   (when (and (= :join (:type child))
@@ -15,9 +17,31 @@
     (v docs)
     v))
 
-(defn- lookup-docs [v {:keys [document-store]}]
+(def ^:private ^:const fetch-chunk-size 100)
+
+(defn- lookup-docs
+  "Fetches the docs for the lookup `v` on the `pull-pool`, if any, in
+  concurrent chunks of up to `fetch-chunk-size` hashes. Returns a
+  CompletableFuture of the docs, or nil if `v` isn't a lookup."
+  ^java.util.concurrent.CompletableFuture [v {:keys [document-store ^ExecutorService pull-pool]}]
   (when-let [hashes (not-empty (::hashes (meta v)))]
-    (db/fetch-docs document-store hashes)))
+    (if pull-pool
+      (let [futs (vec (for [chunk (partition-all fetch-chunk-size hashes)]
+                        (CompletableFuture/supplyAsync (reify Supplier
+                                                         (get [_]
+                                                           (db/fetch-docs document-store chunk)))
+                                                       pull-pool)))]
+        (-> (CompletableFuture/allOf (into-array CompletableFuture futs))
+            (.thenApply (reify Function
+                          (apply [_ _]
+                            (into {} (map #(.join ^CompletableFuture %)) futs))))))
+      (CompletableFuture/completedFuture (db/fetch-docs document-store hashes)))))
+
+(defn- await-docs [^CompletableFuture docs-fut]
+  (try
+    @docs-fut
+    (catch ExecutionException e
+      (throw (or (.getCause e) e)))))
 
 (defmacro let-docs {:style/indent 1} [[binding hashes] & body]
   `(-> (fn ~'let-docs [~binding]
@@ -181,21 +205,45 @@
     (fn [value db]
       (pull-child value db nil))))
 
-(defn ->pull-result [db compiled-find q-conformed res]
-  (->> res
-       (map (fn [row]
-              (mapv (fn [value ->result]
-                      (->result value db))
-                    row
-                    (mapv :->result compiled-find))))
-       (partition-all (or (:batch-size q-conformed)
-                          (:batch-size db)
-                          100))
-       (map (fn [results]
-              (->> results
-                   (mapv raise-doc-lookup-out-of-coll)
-                   raise-doc-lookup-out-of-coll)))
-       (mapcat (fn [lookup]
-                 (if (::hashes (meta lookup))
-                   (recur (replace-docs lookup (lookup-docs lookup db)))
-                   lookup)))))
+(defn ->pull-result
+  "Pulls the results a page of rows at a time, fetching the docs of each
+  nesting level across the whole page at once. The first level of the
+  next page is fetched while the current page is pulled."
+  [db compiled-find q-conformed res]
+  (let [->results (mapv :->result compiled-find)]
+    (letfn [(fetch [lookup]
+              (when (::hashes (meta lookup))
+                (lookup-docs lookup db)))
+
+            (page-lookup [rows]
+              (->> rows
+                   (mapv (fn [row]
+                           (->> (mapv (fn [value ->result]
+                                        (->result value db))
+                                      row
+                                      ->results)
+                                (raise-doc-lookup-out-of-coll))))
+                   (raise-doc-lookup-out-of-coll)))
+
+            (pull-page [lookup docs-fut]
+              (if docs-fut
+                (let [lookup (replace-docs lookup (await-docs docs-fut))]
+                  (recur lookup (fetch lookup)))
+                lookup))
+
+            (step [lookup docs-fut pages]
+              (lazy-seq
+               (let [next-lookup (some-> (first pages) (page-lookup))
+                     next-docs-fut (some-> next-lookup (fetch))]
+                 (concat (pull-page lookup docs-fut)
+                         (when next-lookup
+                           (step next-lookup next-docs-fut (rest pages)))))))]
+
+      (let [pages (partition-all (or (:batch-size q-conformed)
+                                     (:batch-size db)
+                                     100)
+                                 res)]
+        (lazy-seq
+         (when-let [rows (first pages)]
+           (let [lookup (page-lookup rows)]
+             (step lookup (fetch lookup) (rest pages)))))))))
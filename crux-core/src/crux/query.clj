@@ -8,10 +8,13 @@
             [crux.api :as api]
             [crux.bus :as bus]
             [crux.cache :as cache]
+            [crux.cache.entity-resolution :as erc]
+            [crux.cache.query-result :as qrc]
             [crux.cache.lru :as lru]
             [crux.codec :as c]
             [crux.db :as db]
             [crux.error :as err]
+            [crux.hyper-log-log :as hll]
             [crux.index :as idx]
             [crux.io :as cio]
             [crux.memory :as mem]
@@ -23,10 +26,14 @@
             [juxt.clojars-mirrors.eql.v2021v02v28.edn-query-language.core :as eql]
             [juxt.clojars-mirrors.nippy.v3v1v1.taoensso.nippy :as nippy])
   (:import [clojure.lang Box ExceptionInfo]
+           crux.api.IPreparedQuery
            crux.codec.EntityTx
-           [java.io Closeable Writer]
-           [java.util Collection Comparator Date List UUID]
-           [java.util.concurrent Executors Future ScheduledExecutorService TimeoutException TimeUnit]))
+           [java.io Closeable DataInputStream DataOutputStream File Writer]
+           [java.util ArrayList Collection Comparator Date HashMap HashSet List Map Set UUID]
+           [java.util.concurrent ConcurrentHashMap ExecutionException Executors ExecutorService ForkJoinPool ForkJoinTask Future ScheduledExecutorService TimeoutException TimeUnit]
+           [java.util.concurrent.atomic AtomicBoolean LongAdder]
+           java.util.function.Function
+           org.agrona.DirectBuffer))
 
 (defn logic-var? [x]
   (and (symbol? x)
@@ -152,6 +159,8 @@
 
 (s/def ::timeout nat-int?)
 (s/def ::batch-size pos-int?)
+(s/def ::parallel? boolean?)
+(s/def ::profile? boolean?)
 
 (s/def ::in (s/and vector? (s/cat :source-var (s/? '#{$})
                                   :bindings (s/* ::binding))))
@@ -222,7 +231,7 @@
                               :opt-un [::keys ::syms ::strs
                                        ::in ::where ::args ::rules
                                        ::offset ::limit ::order-by
-                                       ::timeout ::batch-size])
+                                       ::timeout ::batch-size ::parallel? ::profile?])
 
                       (fn [{:keys [find] :as q}]
                         (->> (keep q [:keys :syms :strs])
@@ -260,7 +269,7 @@
             (assoc-in [:q-conformed :args] args)))
       conformed-query)))
 
-(declare open-index-snapshot build-sub-query)
+(declare open-index-snapshot build-sub-query compile-sub-query-cached open-sub-query)
 
 ;; NOTE: :min-count generates boxed math warnings, so this goes below
 ;; the spec.
@@ -281,32 +290,123 @@
     (double n)
     n))
 
+(definterface Accumulator
+  (^void add [x])
+  (result []))
+
+;; Mutable accumulators for the common aggregates - like the transients
+;; the other aggregates use, they're updated in place.
+
+(defn- accumulator-aggregate [->accumulator]
+  (fn
+    ([] (->accumulator))
+    ([^Accumulator acc] (.result acc))
+    ([^Accumulator acc x] (doto acc (.add x)))))
+
+(deftype CountAccumulator [^:unsynchronized-mutable ^long n]
+  Accumulator
+  (add [_ _] (set! n (inc n)))
+  (result [_] n))
+
+(defn- long-value? [x]
+  (or (instance? Long x) (instance? Integer x) (instance? Short x) (instance? Byte x)))
+
+(defn- double-value? [x]
+  (or (instance? Double x) (instance? Float x)))
+
+;; Sums longs and doubles without boxing, falling back to boxed
+;; arithmetic for other numbers - with the same contagion as `+`.
+(deftype SumAccumulator [^:unsynchronized-mutable ^long long-sum
+                         ^:unsynchronized-mutable ^double double-sum
+                         ^:unsynchronized-mutable boxed-sum
+                         ^:unsynchronized-mutable sum-type]
+  Accumulator
+  (add [_ x]
+    (case sum-type
+      :long (cond
+              (long-value? x) (set! long-sum (+ long-sum (long x)))
+              (double-value? x) (do (set! double-sum (+ (double long-sum) (double x)))
+                                    (set! sum-type :double))
+              :else (do (set! boxed-sum (+ long-sum x))
+                        (set! sum-type :boxed)))
+      :double (if (or (double-value? x) (long-value? x))
+                (set! double-sum (+ double-sum (double x)))
+                (do (set! boxed-sum (+ double-sum x))
+                    (set! sum-type :boxed)))
+      :boxed (set! boxed-sum (+ boxed-sum x))))
+
+  (result [_]
+    (case sum-type
+      :long long-sum
+      :double double-sum
+      :boxed boxed-sum)))
+
+(defn- ->sum-accumulator ^crux.query.SumAccumulator []
+  (SumAccumulator. 0 0.0 nil :long))
+
+(deftype AvgAccumulator [^:unsynchronized-mutable ^long n ^SumAccumulator sum]
+  Accumulator
+  (add [_ x]
+    (set! n (inc n))
+    (.add sum x))
+
+  (result [_]
+    (maybe-ratio (/ (.result sum) n))))
+
+;; Compares longs without boxing, falling back to `compare`.
+(deftype MinMaxAccumulator [^boolean max?
+                            ^:unsynchronized-mutable ^long long-acc
+                            ^:unsynchronized-mutable acc
+                            ^:unsynchronized-mutable acc-type]
+  Accumulator
+  (add [this x]
+    (case acc-type
+      :empty (if (instance? Long x)
+               (do (set! long-acc (long x))
+                   (set! acc-type :long))
+               (do (set! acc x)
+                   (set! acc-type :boxed)))
+      :long (if (instance? Long x)
+              (let [x (long x)]
+                (when (if max? (< long-acc x) (> long-acc x))
+                  (set! long-acc x)))
+              (do (set! acc long-acc)
+                  (set! acc-type :boxed)
+                  (.add this x)))
+      :boxed (let [diff (compare acc x)]
+               (when (if max? (neg? diff) (pos? diff))
+                 (set! acc x)))))
+
+  (result [_]
+    (case acc-type
+      :empty nil
+      :long long-acc
+      :boxed acc)))
+
+(deftype CountDistinctAccumulator [^Set xs]
+  Accumulator
+  (add [_ x] (.add xs x))
+  (result [_] (.size xs)))
+
+(deftype ApproxCountDistinctAccumulator [^:unsynchronized-mutable hll]
+  Accumulator
+  (add [_ x] (set! hll (hll/add hll x)))
+  (result [_] (Math/round (hll/estimate hll))))
+
 (defmethod aggregate 'count [_]
-  (fn aggregate-count
-    (^long [] 0)
-    (^long [^long acc] acc)
-    (^long [^long acc _] (inc acc))))
+  (accumulator-aggregate #(CountAccumulator. 0)))
 
 (defmethod aggregate 'count-distinct [_]
-  (fn aggregate-count-distinct
-    ([] (transient #{}))
-    ([acc] (count (persistent! acc)))
-    ([acc x] (conj! acc x))))
+  (accumulator-aggregate #(CountDistinctAccumulator. (HashSet.))))
+
+(defmethod aggregate 'approx-count-distinct [_]
+  (accumulator-aggregate #(ApproxCountDistinctAccumulator. (hll/->hll hll/default-precision))))
 
 (defmethod aggregate 'sum [_]
-  (fn aggregate-sum
-    ([] 0)
-    ([acc] acc)
-    ([acc x] (+ acc x))))
+  (accumulator-aggregate ->sum-accumulator))
 
 (defmethod aggregate 'avg [_]
-  (let [count (aggregate 'count)
-        sum (aggregate 'sum)]
-    (fn aggregate-average
-      ([] [(count) (sum)])
-      ([[c s]] (maybe-ratio (/ s c)))
-      ([[c s] x]
-       [(count c x) (sum s x)]))))
+  (accumulator-aggregate #(AvgAccumulator. 0 (->sum-accumulator))))
 
 (defmethod aggregate 'median [_]
   (fn aggregate-median
@@ -322,17 +422,18 @@
     ([acc x] (conj! acc x))))
 
 (defmethod aggregate 'variance [_]
-  (let [mean (aggregate 'avg)]
+  (letfn [(mean [c s] (maybe-ratio (/ s c)))]
     (fn aggregate-variance
-      ([] [0 (mean)])
-      ([[m2 [c _]]] (maybe-ratio (/ m2 c)))
-      ([[m2 [c _ :as m]] x]
+      ([] [0 0 0])
+      ([[m2 c _]] (maybe-ratio (/ m2 c)))
+      ([[m2 c s] x]
        (let [delta (if (zero? c)
                      x
-                     (- x (mean m)))
-             m (mean m x)
-             delta2 (- x (mean m))]
-         [(+ m2 (* delta delta2)) m])))))
+                     (- x (mean c s)))
+             c (inc c)
+             s (+ s x)
+             delta2 (- x (mean c s))]
+         [(+ m2 (* delta delta2)) c s])))))
 
 (defmethod aggregate 'stddev [_]
   (let [variance (aggregate 'variance)]
@@ -367,15 +468,7 @@
 
 (defmethod aggregate 'min
   ([_]
-   (fn aggregate-min
-     ([])
-     ([acc] acc)
-     ([acc x]
-      (if acc
-        (if (pos? (compare acc x))
-          x
-          acc)
-        x))))
+   (accumulator-aggregate #(MinMaxAccumulator. false 0 nil :empty)))
   ([_ n]
    (fn aggregate-min-n
      ([] (sorted-set))
@@ -388,15 +481,7 @@
 
 (defmethod aggregate 'max
   ([_]
-   (fn aggregate-max
-     ([])
-     ([acc] acc)
-     ([acc x]
-      (if acc
-        (if (neg? (compare acc x))
-          x
-          acc)
-        x))))
+   (accumulator-aggregate #(MinMaxAccumulator. true 0 nil :empty)))
   ([_ n]
    (fn aggregate-max-n
      ([] (sorted-set))
@@ -549,15 +634,16 @@
                                   arg))
                            or-join-vars)}))
 
-(defn- new-binary-index [{:keys [e a v] :as clause} {:keys [entity-resolver-fn]} index-snapshot {:keys [vars-in-join-order]}]
+(defn- new-binary-index [{:keys [e a v] :as clause} {:keys [entity-resolver-fn]} index-snapshot {:keys [vars-in-join-order var->range-upper-bound]}]
   (let [order (filter #(contains? #{e v} %) vars-in-join-order)
         nested-index-snapshot (db/open-nested-index-snapshot index-snapshot)
-        attr-buffer (mem/copy-to-unpooled-buffer (c/->id-buffer a))]
+        attr-buffer (mem/copy-to-unpooled-buffer (c/->id-buffer a))
+        max-v (get var->range-upper-bound v)]
     (if (= v (first order))
       (let [v-idx (idx/new-deref-index
                    (idx/new-seek-fn-index
                     (fn [k]
-                      (db/av nested-index-snapshot attr-buffer k))))
+                      (db/av nested-index-snapshot attr-buffer k max-v))))
             e-idx (idx/new-seek-fn-index
                    (fn [k]
                      (db/ave nested-index-snapshot attr-buffer (.deref v-idx) k entity-resolver-fn)))]
@@ -569,7 +655,7 @@
                       (db/ae nested-index-snapshot attr-buffer k))))
             v-idx (idx/new-seek-fn-index
                    (fn [k]
-                     (db/aev nested-index-snapshot attr-buffer (.deref e-idx) k entity-resolver-fn)))]
+                     (db/aev nested-index-snapshot attr-buffer (.deref e-idx) k max-v entity-resolver-fn)))]
         (log/debug :join-order :aev e (cio/pr-edn-str v) (cio/pr-edn-str clause))
         (idx/new-n-ary-join-layered-virtual-index [e-idx v-idx])))))
 
@@ -583,6 +669,56 @@
       (idx/new-relation-virtual-index (mapv vector v) 1 encode-value-fn)
       (idx/new-singleton-virtual-index v encode-value-fn))))
 
+(defn- histogram-fractions
+  "Estimates the fractions of the values below and equal to `v`, as
+  `[below at]`, from an equi-depth histogram - see
+  `db/value-histogram`. Values equal to two or more bucket bounds are
+  known to be common, those in a single bucket count for half of it."
+  [histogram v]
+  (let [^DirectBuffer v (c/->value-buffer v)
+        buckets (double (dec (count histogram)))
+        upper-bounds (rest histogram)
+        lt (count (filter #(neg? (mem/compare-buffers ^DirectBuffer % v)) upper-bounds))
+        le (count (remove #(pos? (mem/compare-buffers ^DirectBuffer % v)) upper-bounds))]
+    (cond
+      (neg? (mem/compare-buffers v ^DirectBuffer (first histogram))) [0.0 0.0]
+      (> le lt) [(/ lt buckets) (/ (- le lt) buckets)]
+      :else [(min 1.0 (/ (+ lt 0.5) buckets)) 0.0])))
+
+(defn- histogram-range-selectivity
+  "Estimates the fraction of the values satisfying all of a var's
+  `range-clauses`. Lower and upper bounds are combined as an interval,
+  rather than as independent constraints."
+  ^double [histogram range-clauses]
+  (let [op->selectivity (fn [op v]
+                          (let [[below at] (histogram-fractions histogram v)
+                                below (double below)
+                                at (double at)]
+                            (case op
+                              < below
+                              <= (+ below at)
+                              > (- 1.0 below at)
+                              >= (- 1.0 below)
+                              = at)))
+        {:keys [lower upper eq]} (->> (for [{:keys [op val]} range-clauses]
+                                        {(case op (< <=) :upper (> >=) :lower = :eq) (op->selectivity op val)})
+                                      (apply merge-with min))
+        selectivity (cond-> (min (double (or lower 1.0)) (double (or upper 1.0)) (double (or eq 1.0)))
+                      (and lower upper) (min (- (+ (double lower) (double upper)) 1.0)))]
+    (max selectivity (/ 0.5 (dec (count histogram))))))
+
+(defn- histogram-literal-skew
+  "How many times more common than the average value `v` is, rounded
+  to a power of two so that sampling noise doesn't tell apart values
+  that are about as common - at least 1.0, as values not known to be
+  common are assumed to be average."
+  ^double [histogram v ^double value-cardinality]
+  (let [[_ at] (histogram-fractions histogram v)
+        at (double at)]
+    (if (>= (* at (dec (count histogram))) 2.0)
+      (max 1.0 (Math/pow 2.0 (Math/rint (/ (Math/log (* at value-cardinality)) (Math/log 2.0)))))
+      1.0)))
+
 (defn- triple-joins [triple-clauses
                      var->joins
                      {range-clauses :range
@@ -602,7 +738,20 @@
                                      sym [sym sym-a sym-b]
                                      :when (logic-var? sym)]
                                  sym))
-        cardinality-for-var (fn [var cardinality]
+        var->literal-range-clauses (->> (for [{:keys [sym val] :as clause} range-clauses
+                                              :when (and (logic-var? sym) (literal? val))]
+                                          clause)
+                                        (group-by :sym))
+        range-selectivity (fn [a var]
+                            (when-let [clauses (get var->literal-range-clauses var)]
+                              (when-let [histogram (db/value-histogram stats a)]
+                                (histogram-range-selectivity histogram clauses))))
+        literal-skew (fn [a v]
+                       (or (when-not (c/multiple-values? v)
+                             (when-let [histogram (db/value-histogram stats a)]
+                               (histogram-literal-skew histogram v (db/value-cardinality stats a))))
+                           1.0))
+        cardinality-for-var (fn [var cardinality selectivity]
                               (cond-> (double (cond
                                                 (literal? var)
                                                 0.0
@@ -620,20 +769,27 @@
                                 (contains? pred-var-frequencies var)
                                 (Math/pow (/ 0.25 (double (get pred-var-frequencies var))))
 
-                                (contains? range-var-frequencies var)
+                                selectivity
+                                (* (double selectivity))
+
+                                (and (nil? selectivity) (contains? range-var-frequencies var))
                                 (Math/pow (/ 0.5 (double (get range-var-frequencies var))))))
         update-cardinality (fn [acc {:keys [e a v] :as clause}]
                              (let [{:keys [self-join? ignore-v?]} (meta clause)
-                                   es (double (cardinality-for-var e (cond->> (double (db/eid-cardinality stats a))
-                                                                       (literal? v) (/ 1.0))))
+                                   es (double (cardinality-for-var e
+                                                                   (cond->> (double (db/eid-cardinality stats a))
+                                                                     (literal? v) (/ (double (literal-skew a v))))
+                                                                   nil))
                                    vs (cond
                                         ignore-v?
                                         Double/MAX_VALUE
                                         self-join?
                                         (Math/nextUp es)
                                         :else
-                                        (cardinality-for-var v (cond->> (double (db/value-cardinality stats a))
-                                                                 (literal? e) (/ 1.0))))]
+                                        (cardinality-for-var v
+                                                             (cond->> (double (db/value-cardinality stats a))
+                                                               (literal? e) (/ 1.0))
+                                                             (range-selectivity a v)))]
                                (-> acc
                                    (update v (fnil min Double/MAX_VALUE) vs)
                                    (update e (fnil min Double/MAX_VALUE) es))))
@@ -897,6 +1053,33 @@
                    (apply comp))])
        (into {})))
 
+(defn- range-upper-bound
+  "The exclusive upper bound of the values satisfying `op val`, which
+  are also of the same type as `val` - nil if there isn't one."
+  ^org.agrona.DirectBuffer [op ^DirectBuffer val]
+  (case op
+    < val
+    (<= =) (mem/successor-buffer val)
+    (> >=) (-> (mem/copy-to-unpooled-buffer (mem/limit-buffer val c/value-type-id-size))
+               (mem/inc-unsigned-buffer!))))
+
+(defn- min-buffer [^DirectBuffer a ^DirectBuffer b]
+  (if (and a (neg? (mem/compare-buffers a b)))
+    a
+    b))
+
+;; upper bounds of the vars with literal range constraints, which the
+;; binary indexes pass down to the index snapshot.
+(defn- build-var-range-upper-bounds [encode-value-fn range-clauses]
+  (->> (for [{:keys [op val sym]} range-clauses
+             :when (logic-var? sym)
+             :let [upper-bound (range-upper-bound op (encode-value-fn val))]
+             :when upper-bound]
+         [sym upper-bound])
+       (reduce (fn [acc [sym upper-bound]]
+                 (update acc sym min-buffer upper-bound))
+               {})))
+
 (defn- build-logic-var-range-constraint-fns [encode-value-fn range-clauses var->bindings]
   (->> (for [{:keys [op sym-a sym-b] :as clause} range-clauses
              :when (and (logic-var? sym-a)
@@ -923,6 +1106,13 @@
   (->> (.get join-keys (.result-index var-binding))
        (db/decode-value index-snapshot)))
 
+(defn- find-result-for-var
+  "As `bound-result-for-var` - nil for the find args whose values aren't
+  decoded, which have a nil `var-binding`."
+  [index-snapshot var-binding join-keys]
+  (when var-binding
+    (bound-result-for-var index-snapshot var-binding join-keys)))
+
 (defn- validate-existing-vars [var->bindings clause vars]
   (doseq [var vars
           :when (not (or (pred-constraint? var)
@@ -959,7 +1149,7 @@
         e-result-index (.result-index ^VarBinding e-var)]
     (fn pred-get-attr-constraint [index-snapshot {:keys [entity-resolver-fn] :as db} idx-id->idx ^List join-keys]
       (let [e (.get join-keys e-result-index)
-            vs (db/aev index-snapshot attr e nil entity-resolver-fn)
+            vs (db/aev index-snapshot attr e nil nil entity-resolver-fn)
             is-empty? (or (nil? vs) (.isEmpty ^Collection vs))]
         (if (and (= :collection return-type)
                  (not is-empty?))
@@ -1055,6 +1245,7 @@
         (s/assert ::pred-args (cond-> [pred-fn (vec args)]
                                 return (conj (second return))))
         {:join-depth pred-join-depth
+         :constraint-type :pred
          :constraint-fn (pred-constraint clause pred-ctx)})))
 
 ;; TODO: For or (but not or-join) it might be possible to embed the
@@ -1072,47 +1263,301 @@
 ;; queries. Recursive rules always have to be sub queries.
 (defn- or-single-e-var-triple-fast-path [index-snapshot {:keys [entity-resolver-fn] :as db} {:keys [e a v] :as clause} eid]
   (let [v (db/encode-value index-snapshot v)
-        found-v (first (db/aev index-snapshot a eid v entity-resolver-fn))]
+        found-v (first (db/aev index-snapshot a eid v nil entity-resolver-fn))]
     (when (and found-v (mem/buffers=? v found-v))
       [])))
 
-(def ^:private ^:dynamic *recursion-table* {})
+;; Tabled evaluation of recursive rules.
+;;
+;; A goal is a recursive rule invoked with each of its args either
+;; bound to a value or ::free, and its answers are the tuples of args
+;; satisfying the rule. The answers of a goal, and of every goal it
+;; reaches, are computed together as a fixpoint, semi-naively: each
+;; goal first evaluates all its rule's branches, and is then only
+;; re-evaluated when a goal it looked up has gained answers since -
+;; and then only its recursive branches, against just the answers it
+;; hasn't yet consumed. Branches which look up more than one goal are
+;; re-evaluated against all the answers instead. Calls to recursive
+;; rules within the branches look up the answers found so far, rather
+;; than recursing.
+;;
+;; Negation is stratified: a goal called under `not` is solved to
+;; completion on its own before the negation reads its answers, so
+;; rules can't depend on themselves through negation.
+
+(defn- rule-call? [form]
+  (and (vector? form)
+       (= :rule (first form))
+       (map? (second form))))
+
+;; map keys are skipped, so that the `[k v]` entries of the clause
+;; maps aren't taken for conformed clauses.
+(defn- clause-children [form]
+  (if (map? form)
+    (vals form)
+    (seq form)))
+
+(defn- rule-calls [forms]
+  (set (for [form (tree-seq coll? clause-children forms)
+             :when (rule-call? form)]
+         (:name (second form)))))
+
+(defn- negated-forms [forms]
+  (for [form (tree-seq coll? clause-children forms)
+        :when (and (vector? form) (contains? #{:not :not-join} (first form)))]
+    (second form)))
+
+(defn- rule-name->reachable-rule-names
+  "Maps each rule to the rules it calls, directly or indirectly."
+  [rule-name->rules]
+  (let [rule-name->callees (->> (for [[rule-name rules] rule-name->rules]
+                                  [rule-name (rule-calls (map :body rules))])
+                                (into {}))]
+    (->> (for [rule-name (keys rule-name->rules)]
+           [rule-name (loop [[callee & more :as callees] (seq (get rule-name->callees rule-name))
+                             seen #{}]
+                        (cond
+                          (empty? callees) seen
+                          (contains? seen callee) (recur more seen)
+                          :else (recur (concat more (get rule-name->callees callee))
+                                       (conj seen callee))))])
+         (into {}))))
+
+(defn- recursive-rule-names [rule-name->rules]
+  (set (for [[rule-name reachable] (rule-name->reachable-rule-names rule-name->rules)
+             :when (contains? reachable rule-name)]
+         rule-name)))
+
+(defn- check-stratified-negation
+  "Throws if a rule depends on itself through negation - the answers of
+  a negated goal have to be complete before the negation reads them."
+  [rule-name->rules]
+  (let [rule-name->reachable (rule-name->reachable-rule-names rule-name->rules)]
+    (doseq [[rule-name rules] rule-name->rules
+            negated-rule-name (rule-calls (negated-forms (map :body rules)))
+            :when (or (= rule-name negated-rule-name)
+                      (contains? (get rule-name->reachable negated-rule-name) rule-name))]
+      (throw (err/illegal-arg :unstratified-negation
+                              {::err/message (str "Rule depends on itself through negation: " rule-name)
+                               :rule-name rule-name})))))
+
+(defn- recursive-call-count
+  "The number of calls to recursive rules in `form`, including those in
+  the non-recursive rules it calls. Calls under negation don't count -
+  they read goals that have already been solved."
+  ^long [rule-name->rules recursive-rule-names form]
+  (letfn [(call-count [form]
+            (cond
+              (rule-call? form)
+              (let [rule-name (:name (second form))]
+                (if (contains? recursive-rule-names rule-name)
+                  1
+                  (->> (get rule-name->rules rule-name)
+                       (map #(call-count (:body %)))
+                       (reduce max 0))))
+
+              (and (vector? form) (contains? #{:not :not-join} (first form)))
+              0
+
+              (coll? form)
+              (reduce (fn [^long acc form]
+                        (+ acc (long (call-count form))))
+                      0
+                      (clause-children form))
+
+              :else 0))]
+    (call-count form)))
+
+(def ^:private ^:dynamic *rule-tables* nil)
+
+(defn- rule-branch-answers
+  "`compiled-branches` holds the branch's sub-query compiled for each
+  shape of bound args, for the duration of the fixpoint."
+  [db rule-name->rules ^Map compiled-branches {:keys [head body] :as rule} pattern]
+  (let [{:keys [bound-args free-args]} (:args head)
+        head-vars (vec (concat bound-args free-args))
+        bound-vars (vec (for [[var v] (map vector head-vars pattern)
+                              :when (not= ::free v)]
+                          var))
+        free-vars (vec (for [[var v] (map vector head-vars pattern)
+                             :when (= ::free v)]
+                         var))
+        in-args (when (seq bound-vars)
+                  [(vec (remove #{::free} pattern))])]
+    (with-open [index-snapshot ^Closeable (open-index-snapshot db)]
+      (let [db (assoc db :index-snapshot index-snapshot)
+            compiled-branch (.computeIfAbsent compiled-branches [rule bound-vars]
+                                              (reify Function
+                                                (apply [_ _]
+                                                  (compile-sub-query-cached index-snapshot db body {:bindings [[:tuple bound-vars]]} rule-name->rules))))
+            {:keys [n-ary-join var->bindings]} (open-sub-query index-snapshot db compiled-branch in-args)]
+        (validate-existing-vars var->bindings rule free-vars)
+        (let [free-var-bindings (mapv var->bindings free-vars)]
+          (->> (idx/layered-idx->seq n-ary-join)
+               (into #{} (map (fn [join-keys]
+                                (loop [[v & more-pattern] pattern
+                                       free-values (map #(bound-result-for-var index-snapshot % join-keys) free-var-bindings)
+                                       answer []]
+                                  (cond
+                                    (nil? more-pattern) (conj answer (if (= ::free v) (first free-values) v))
+                                    (= ::free v) (recur more-pattern (rest free-values) (conj answer (first free-values)))
+                                    :else (recur more-pattern free-values (conj answer v)))))))))))))
+
+(defn- lookup-rule-goal
+  "Looks up the answers of `goal` for the goal being evaluated,
+  registering it as a new goal if it hasn't been seen before. In delta
+  mode, only the answers the caller hasn't already consumed."
+  [{:keys [!state caller delta?]} goal]
+  (let [{:keys [answers seen callers]} @!state]
+    (when-not (contains? (get callers goal) caller)
+      (swap! !state update-in [:callers goal] (fnil conj #{}) caller))
+    (swap! !state update :looked-up conj goal)
+    (if-let [goal-answers (get answers goal)]
+      (if delta?
+        (subvec goal-answers (get seen [caller goal] 0))
+        goal-answers)
+      (do (swap! !state (fn [state]
+                          (-> state
+                              (assoc-in [:answers goal] [])
+                              (update :new-goals conj goal))))
+          []))))
+
+(defn- solve-rule-goal
+  "Returns the answers of `goal`, and of every other goal it reached.
+
+  Goals are evaluated depth-first off a stack: the goals one discovers
+  are evaluated before it's re-evaluated against their answers, and a
+  goal gaining answers pushes its callers - so each goal down a chain
+  is evaluated when it's found, and once more, against all the answers
+  of the goal below it."
+  [db rule-name->rules goal]
+  (let [recursive-rule-names (recursive-rule-names rule-name->rules)
+        rule->call-count (->> (for [[_ rules] rule-name->rules
+                                    rule rules]
+                                [rule (recursive-call-count rule-name->rules recursive-rule-names (:body rule))])
+                              (into {}))
+        compiled-branches (HashMap.)
+        ;; answers are kept in the order they were found, so that each
+        ;; caller's unconsumed answers are the tail past its `seen` count.
+        !state (atom {:answers {goal []}
+                      :answer-sets {goal #{}}
+                      :seen {}
+                      :callers {}
+                      :evaluated #{}
+                      :looked-up #{}
+                      :new-goals []})]
+    (loop [stack [goal]
+           pending #{goal}]
+      (if-let [[rule-name pattern :as goal] (peek stack)]
+        (let [stack (pop stack)
+              pending (disj pending goal)
+              first? (not (contains? (:evaluated @!state) goal))
+              goal-answers (->> (for [rule (get rule-name->rules rule-name)
+                                      :let [call-count (long (get rule->call-count rule))]
+                                      :when (or first? (pos? call-count))]
+                                  (binding [*rule-tables* {:rule-name->rules rule-name->rules
+                                                           :!state !state
+                                                           :caller goal
+                                                           :delta? (and (not first?) (= 1 call-count))}]
+                                    (rule-branch-answers db rule-name->rules compiled-branches rule pattern)))
+                                (reduce into #{}))
+              {:keys [answers answer-sets callers looked-up new-goals]} @!state
+              new-answers (remove (get answer-sets goal #{}) goal-answers)]
+          (swap! !state (fn [state]
+                          (-> state
+                              (update-in [:answers goal] (fnil into []) new-answers)
+                              (update-in [:answer-sets goal] (fnil into #{}) new-answers)
+                              (update :seen into (for [looked-up-goal looked-up]
+                                                   [[goal looked-up-goal] (count (get answers looked-up-goal))]))
+                              (update :evaluated conj goal)
+                              (assoc :looked-up #{} :new-goals []))))
+          (let [to-push (concat (when (seq new-answers)
+                                  (get callers goal))
+                                new-goals)
+                to-push (remove pending (distinct to-push))]
+            (recur (into stack to-push) (into pending to-push))))
+
+        (:answer-sets @!state)))))
+
+(defn- rule-goal-answers [db rule-name->rules goal]
+  (let [rule-tables *rule-tables*]
+    (if (and rule-tables (= rule-name->rules (:rule-name->rules rule-tables)))
+      (lookup-rule-goal rule-tables goal)
+      (let [^Map solved-goals (::solved-rule-goals db)]
+        (or (some-> solved-goals (.get [rule-name->rules goal]))
+            (let [goal->answers (solve-rule-goal db rule-name->rules goal)]
+              (when solved-goals
+                (doseq [[solved-goal answers] goal->answers]
+                  (.put solved-goals [rule-name->rules solved-goal] answers)))
+              (get goal->answers goal)))))))
+
+(defn- build-tabled-rule-constraints
+  [rule-name->rules or-clause+idx-id+or-branches var->bindings vars-in-join-order]
+  (for [[clause idx-id [{:keys [free-vars bound-vars]}]] or-clause+idx-id+or-branches
+        :let [{:keys [tabled-rule]} (meta clause)]
+        :when tabled-rule
+        :let [{:keys [args]} tabled-rule
+              or-join-depth (calculate-constraint-join-depth var->bindings bound-vars)
+              free-vars-in-join-order (filter (set free-vars) vars-in-join-order)
+              bound-vars (vec bound-vars)
+              bound-var-bindings (mapv var->bindings bound-vars)
+              bound-var->idx (zipmap bound-vars (range))
+              free-var->arg-idxs (->> (for [[idx arg] (map-indexed vector args)
+                                            :when (and (logic-var? arg)
+                                                       (not (blank-var? arg))
+                                                       (not (contains? bound-var->idx arg)))]
+                                        {arg [idx]})
+                                      (apply merge-with into {}))
+              consistent? (fn [answer]
+                            (every? (fn [arg-idxs]
+                                      (apply = (map #(nth answer %) arg-idxs)))
+                                    (vals free-var->arg-idxs)))]]
+    (do (validate-existing-vars var->bindings clause bound-vars)
+        {:join-depth or-join-depth
+         :constraint-type :or
+         :constraint-fn
+         (fn tabled-rule-constraint [index-snapshot db idx-id->idx join-keys]
+           (let [pattern (vec (for [arg args]
+                                (cond
+                                  (contains? bound-var->idx arg)
+                                  (bound-result-for-var index-snapshot (nth bound-var-bindings (get bound-var->idx arg)) join-keys)
+
+                                  (logic-var? arg) ::free
+
+                                  :else arg)))
+                 answers (filter consistent? (rule-goal-answers db rule-name->rules [(:name tabled-rule) pattern]))]
+             (when (seq answers)
+               (when (seq free-vars-in-join-order)
+                 (->> (for [answer answers]
+                        (vec (for [var free-vars-in-join-order]
+                               (nth answer (first (get free-var->arg-idxs var))))))
+                      (distinct)
+                      (vec)
+                      (idx/update-relation-virtual-index! (get idx-id->idx idx-id))))
+               true)))})))
 
-;; TODO: This tabling mechanism attempts at avoiding infinite
-;; recursion, but does not actually cache anything. Short-circuits
-;; identical sub trees. Passes tests, unsure if this really works in
-;; the general case. Depends on the eager expansion of rules for some
-;; cases to pass. One alternative is maybe to try to cache the
-;; sequence and reuse it, somehow detecting if it loops.
 (defn- build-or-constraints
   [rule-name->rules or-clause+idx-id+or-branches var->bindings vars-in-join-order]
   (for [[clause idx-id [{:keys [free-vars bound-vars]} :as or-branches]] or-clause+idx-id+or-branches
+        :when (not (:tabled-rule (meta clause)))
         :let [or-join-depth (calculate-constraint-join-depth var->bindings bound-vars)
               free-vars-in-join-order (filter (set free-vars) vars-in-join-order)
               has-free-vars? (boolean (seq free-vars))
               bound-vars (vec bound-vars)
               bound-var-bindings (mapv var->bindings bound-vars)
-              or-in-bindings {:bindings [[:tuple bound-vars]]}
-              {:keys [rule-name]} (meta clause)]]
+              or-in-bindings {:bindings [[:tuple bound-vars]]}]]
     (do (validate-existing-vars var->bindings clause bound-vars)
         {:join-depth or-join-depth
+         :constraint-type :or
          :constraint-fn
          (fn or-constraint [index-snapshot db idx-id->idx join-keys]
            (let [in-args (when (seq bound-vars)
                            [(vec (for [var-binding bound-var-bindings]
                                    (bound-result-for-var index-snapshot var-binding join-keys)))])
-                 branch-results (for [[branch-index {:keys [where
-                                                            single-e-var-triple?] :as or-branch}] (map-indexed vector or-branches)
-                                      :let [cache-key (when rule-name
-                                                        [rule-name branch-index (count free-vars) in-args])
-                                            cached-result (when cache-key
-                                                            (get *recursion-table* cache-key))]]
+                 branch-results (for [{:keys [where single-e-var-triple?]} or-branches]
                                   (with-open [index-snapshot ^Closeable (open-index-snapshot db)]
                                     (let [db (assoc db :index-snapshot index-snapshot)]
                                       (cond
-                                        cached-result
-                                        cached-result
-
                                         single-e-var-triple?
                                         (let [[[_ clause]] where]
                                           (or-single-e-var-triple-fast-path
@@ -1122,18 +1567,15 @@
                                            (ffirst in-args)))
 
                                         :else
-                                        (binding [*recursion-table* (if cache-key
-                                                                      (assoc *recursion-table* cache-key [])
-                                                                      *recursion-table*)]
-                                          (let [{:keys [n-ary-join
-                                                        var->bindings]} (build-sub-query index-snapshot db where or-in-bindings in-args rule-name->rules)
-                                                free-vars-in-join-order-bindings (map var->bindings free-vars-in-join-order)]
-                                            (when-let [idx-seq (seq (idx/layered-idx->seq n-ary-join))]
-                                              (if has-free-vars?
-                                                (vec (for [join-keys idx-seq]
-                                                       (vec (for [var-binding free-vars-in-join-order-bindings]
-                                                              (bound-result-for-var index-snapshot var-binding join-keys)))))
-                                                []))))))))]
+                                        (let [{:keys [n-ary-join
+                                                      var->bindings]} (build-sub-query index-snapshot db where or-in-bindings in-args rule-name->rules)
+                                              free-vars-in-join-order-bindings (map var->bindings free-vars-in-join-order)]
+                                          (when-let [idx-seq (seq (idx/layered-idx->seq n-ary-join))]
+                                            (if has-free-vars?
+                                              (vec (for [join-keys idx-seq]
+                                                     (vec (for [var-binding free-vars-in-join-order-bindings]
+                                                            (bound-result-for-var index-snapshot var-binding join-keys)))))
+                                              [])))))))]
              (when (seq (remove nil? branch-results))
                (when has-free-vars?
                  (let [free-results (->> branch-results
@@ -1156,15 +1598,19 @@
               not-join-depth (calculate-constraint-join-depth var->bindings not-vars)]]
     (do (validate-existing-vars var->bindings not-clause not-vars)
         {:join-depth not-join-depth
+         :constraint-type :not
          :constraint-fn
          (fn not-constraint [index-snapshot db idx-id->idx join-keys]
-           (with-open [index-snapshot ^Closeable (open-index-snapshot db)]
-             (let [db (assoc db :index-snapshot index-snapshot)
-                   in-args (when (seq not-vars)
-                             [(vec (for [var-binding not-var-bindings]
-                                     (bound-result-for-var index-snapshot var-binding join-keys)))])
-                   {:keys [n-ary-join]} (build-sub-query index-snapshot db not-clause not-in-bindings in-args rule-name->rules)]
-               (empty? (idx/layered-idx->seq n-ary-join)))))})))
+           ;; goals called under negation are solved on their own,
+           ;; rather than read from the tables still being evaluated.
+           (binding [*rule-tables* nil]
+             (with-open [index-snapshot ^Closeable (open-index-snapshot db)]
+               (let [db (assoc db :index-snapshot index-snapshot)
+                     in-args (when (seq not-vars)
+                               [(vec (for [var-binding not-var-bindings]
+                                       (bound-result-for-var index-snapshot var-binding join-keys)))])
+                     {:keys [n-ary-join]} (build-sub-query index-snapshot db not-clause not-in-bindings in-args rule-name->rules)]
+                 (empty? (idx/layered-idx->seq n-ary-join))))))})))
 
 (defn- calculate-join-order [pred-clauses or-clause+idx-id+or-branches var->joins triple-join-deps project-only-leaf-vars]
   (let [g (->> (keys var->joins)
@@ -1206,7 +1652,7 @@
 (defn- rule-name->rules [rules]
   (group-by (comp :name :head) rules))
 
-(defn- expand-rules [where rule-name->rules recursion-cache]
+(defn- expand-rules [where rule-name->rules recursive-rule-names]
   (->> (for [[type clause :as sub-clause] where]
          (if (= :rule type)
            (let [rule-name (:name clause)
@@ -1235,37 +1681,34 @@
                (when-not (= arity (count (:args clause)))
                  (throw (err/illegal-arg :rule-invocation-wrong-arity
                                          {::err/message (str "Rule invocation has wrong arity, expected: " arity " " (cio/pr-edn-str sub-clause))})))
-               ;; TODO: the caches and expansion here needs
-               ;; revisiting.
-               (let [expanded-rules (for [[branch-index [args _ body]] (map-indexed vector rule-args+num-bound-args+body)
-                                          :let [rule-arg->query-arg (zipmap args (:args clause))
-                                                body-vars (->> (collect-vars (normalize-clauses body))
-                                                               (vals)
-                                                               (reduce into #{}))
-                                                body-var->hidden-var (zipmap body-vars
-                                                                             (map gensym body-vars))]]
-                                      (w/postwalk-replace (merge body-var->hidden-var rule-arg->query-arg) body))
-                     cache-key [:seen-rules rule-name]
-                     ;; TODO: Understand this, does this really work
-                     ;; in the general case?
-                     expanded-rules (if (zero? (long (get-in recursion-cache cache-key 0)))
-                                      (for [expanded-rule expanded-rules
-                                            :let [expanded-rule (expand-rules expanded-rule rule-name->rules
-                                                                              (update-in recursion-cache cache-key (fnil inc 0)))]
+               (if (contains? recursive-rule-names rule-name)
+                 (let [[bound-args free-args] (split-at num-bound-args (:args clause))]
+                   [[:or-join
+                     (with-meta
+                       {:args {:bound-args (vec (distinct (remove blank-var? (filter logic-var? bound-args))))
+                               :free-args (vec (distinct (remove blank-var? (filter logic-var? free-args))))}
+                        :body [[:and [sub-clause]]]}
+                       {:tabled-rule clause})]])
+                 (let [expanded-rules (for [[args _ body] rule-args+num-bound-args+body
+                                            :let [rule-arg->query-arg (zipmap args (:args clause))
+                                                  body-vars (->> (collect-vars (normalize-clauses body))
+                                                                 (vals)
+                                                                 (reduce into #{}))
+                                                  body-var->hidden-var (zipmap body-vars
+                                                                               (map gensym body-vars))
+                                                  expanded-rule (-> (w/postwalk-replace (merge body-var->hidden-var rule-arg->query-arg) body)
+                                                                    (expand-rules rule-name->rules recursive-rule-names))]
                                             :when (seq expanded-rule)]
-                                        expanded-rule)
-                                      expanded-rules)]
-                 (if (= 1 (count expanded-rules))
-                   (first expanded-rules)
-                   (when (seq expanded-rules)
-                     (let [[bound-args free-args] (split-at num-bound-args (:args clause))]
-                       [[:or-join
-                         (with-meta
+                                        expanded-rule)]
+                   (if (= 1 (count expanded-rules))
+                     (first expanded-rules)
+                     (when (seq expanded-rules)
+                       (let [[bound-args free-args] (split-at num-bound-args (:args clause))]
+                         [[:or-join
                            {:args {:bound-args (vec (filter logic-var? bound-args))
                                    :free-args (vec (filter logic-var? free-args))}
                             :body (vec (for [expanded-rule expanded-rules]
-                                         [:and expanded-rule]))}
-                           {:rule-name rule-name})]]))))))
+                                         [:and expanded-rule]))}]])))))))
            [sub-clause]))
        (reduce into [])))
 
@@ -1345,12 +1788,15 @@
      (set/difference (set (map :v leaf-triple-clauses))
                      (reduce set/union (vals (dissoc collected-vars :v-vars))))]))
 
-(defn- update-depth->constraints [depth->join-depth constraints]
-  (reduce
-   (fn [acc {:keys [join-depth constraint-fn]}]
-     (update acc join-depth (fnil conj []) constraint-fn))
-   depth->join-depth
-   constraints))
+(defn- update-depth->constraints
+  ([depth->join-depth constraints]
+   (update-depth->constraints depth->join-depth constraints :constraint-fn))
+  ([depth->join-depth constraints k]
+   (reduce
+    (fn [acc {:keys [join-depth] :as constraint}]
+      (update acc join-depth (fnil conj []) (get constraint k)))
+    depth->join-depth
+    constraints)))
 
 (defn- break-cycle [where {:keys [node dependency] :as cycle}]
   (->> (for [[type clause] where]
@@ -1365,16 +1811,26 @@
 
 (def ^:private ^:dynamic *broken-cycles* #{})
 
+(defn- ->idx-id->idx-fn [var->joins]
+  (reduce
+   (fn [acc {:keys [id idx-fn]}]
+     (cond-> acc
+       (and id (not (contains? acc id))) (assoc id idx-fn)))
+   {}
+   (mapcat val var->joins)))
+
 (defn ->stats [index-snapshot]
   (reify db/AttributeStats
     (all-attrs [_] (db/all-attrs index-snapshot))
     (doc-count [_ a] (db/doc-count index-snapshot a))
     (eid-cardinality [_ a] (db/eid-cardinality index-snapshot a))
-    (value-cardinality [_ a] (db/value-cardinality index-snapshot a))))
+    (value-cardinality [_ a] (db/value-cardinality index-snapshot a))
+    (value-histogram [_ a] (db/value-histogram index-snapshot a))))
 
 (defn- compile-sub-query [encode-value-fn stats {:keys [fn-allow-list pred-ctx] :as db} where in rule-name->rules]
   (try
-    (let [where (-> (expand-rules where rule-name->rules {})
+    (let [_ (check-stratified-negation rule-name->rules)
+          where (-> (expand-rules where rule-name->rules (recursive-rule-names rule-name->rules))
                     (build-pred-fns fn-allow-list))
           in-vars (set (find-binding-vars (:bindings in)))
           [type->clauses project-only-leaf-vars] (expand-leaf-preds (normalize-clauses where) in-vars db)
@@ -1431,6 +1887,7 @@
                                                    join-depth
                                                    (keys var->attr)))
           var->range-constraints (build-var-range-constraints encode-value-fn range-clauses var->bindings)
+          var->range-upper-bound (build-var-range-upper-bounds encode-value-fn range-clauses)
           var->logic-var-range-constraint-fns (build-logic-var-range-constraint-fns encode-value-fn range-clauses var->bindings)
           not-constraints (build-not-constraints rule-name->rules :not not-clauses var->bindings)
           not-join-constraints (build-not-constraints rule-name->rules :not-join not-join-clauses var->bindings)
@@ -1442,21 +1899,28 @@
                                                           :vars-in-join-order vars-in-join-order))
           or-constraints (build-or-constraints rule-name->rules or-clause+idx-id+or-branches
                                                var->bindings vars-in-join-order)
-          depth->constraints (->> (concat pred-constraints
-                                          not-constraints
-                                          not-join-constraints
-                                          or-constraints)
-                                  (update-depth->constraints (vec (repeat (inc join-depth) nil))))
+          tabled-rule-constraints (build-tabled-rule-constraints rule-name->rules or-clause+idx-id+or-branches
+                                                                 var->bindings vars-in-join-order)
+          constraints (concat pred-constraints
+                              not-constraints
+                              not-join-constraints
+                              or-constraints
+                              tabled-rule-constraints)
+          depth->constraints (update-depth->constraints (vec (repeat (inc join-depth) nil)) constraints)
+          depth->constraint-types (update-depth->constraints (vec (repeat (inc join-depth) nil)) constraints :constraint-type)
           in-bindings (vec (for [[idx-id [bind-type binding]] (map vector in-idx-ids (:bindings in))
                                  :let [bind-vars (find-binding-vars binding)]]
                              {:idx-id idx-id
                               :bind-type bind-type
                               :tuple-idxs-in-join-order (build-tuple-idxs-in-join-order bind-vars vars-in-join-order)}))]
       {:depth->constraints depth->constraints
+       :depth->constraint-types depth->constraint-types
        :var->range-constraints var->range-constraints
+       :var->range-upper-bound var->range-upper-bound
        :var->logic-var-range-constraint-fns var->logic-var-range-constraint-fns
        :vars-in-join-order vars-in-join-order
        :var->joins var->joins
+       :idx-id->idx-fn (->idx-id->idx-fn var->joins)
        :var->bindings var->bindings
        :var->cardinality var->cardinality
        :in-bindings in-bindings})
@@ -1468,17 +1932,12 @@
             (compile-sub-query encode-value-fn stats db (break-cycle where cycle) in rule-name->rules))
           (throw e))))))
 
-(defn- build-idx-id->idx [db index-snapshot {:keys [var->joins] :as compiled-query}]
-  (->> (for [[_ joins] var->joins
-             {:keys [id idx-fn] :as join} joins
-             :when id]
-         [id idx-fn])
-       (reduce
-        (fn [acc [id idx-fn]]
-          (if (contains? acc id)
-            acc
-            (assoc acc id (idx-fn db index-snapshot compiled-query))))
-        {})))
+(defn- build-idx-id->idx [db index-snapshot {:keys [idx-id->idx-fn] :as compiled-query}]
+  (reduce-kv
+   (fn [acc id idx-fn]
+     (assoc acc id (idx-fn db index-snapshot compiled-query)))
+   {}
+   idx-id->idx-fn))
 
 (defn- add-logic-var-constraints [{:keys [var->logic-var-range-constraint-fns]
                                    :as compiled-query}]
@@ -1497,23 +1956,154 @@
                                                     logic-var+range-constraint)))))
     compiled-query))
 
-(defn- build-sub-query [index-snapshot {:keys [query-cache] :as db} where in in-args rule-name->rules]
+(defn- compile-sub-query-cached [index-snapshot {:keys [query-cache] :as db} where in rule-name->rules]
   ;; NOTE: this implies argument sets with different vars get compiled
   ;; differently.
-  (let [encode-value-fn (partial db/encode-value index-snapshot)
-        {:keys [depth->constraints
+  (cache/compute-if-absent
+   query-cache
+   [where in rule-name->rules]
+   identity
+   (fn [_]
+     (compile-sub-query (partial db/encode-value index-snapshot) (->stats index-snapshot) db where in rule-name->rules))))
+
+;; Profiling, enabled per query via `:profile? true`. The profile is a
+;; map of counter path -> LongAdder, attached to the db as `::profile`
+;; - when it's absent, none of the wrappers below are installed.
+
+(def ^:private ^Function new-counter-fn
+  (reify Function
+    (apply [_ _]
+      (LongAdder.))))
+
+(defn- new-profile ^java.util.concurrent.ConcurrentHashMap []
+  (ConcurrentHashMap.))
+
+(defn- profile-add! [^ConcurrentHashMap profile k ^long n]
+  (.add ^LongAdder (.computeIfAbsent profile k new-counter-fn) n))
+
+(defn- render-profile [^ConcurrentHashMap profile]
+  (let [vars-in-join-order (.get profile ::vars-in-join-order)
+        counters (reduce (fn [acc [k v]]
+                           (cond-> acc
+                             (instance? LongAdder v) (assoc-in k (.sum ^LongAdder v))))
+                         {}
+                         profile)]
+    (cond-> counters
+      vars-in-join-order (assoc :join (vec (for [[depth v] (map-indexed vector vars-in-join-order)]
+                                             (merge {:var v :seeks 0 :nexts 0 :rows 0}
+                                                    (get-in counters [:join depth]))))))))
+
+(defrecord ProfilingIndexSnapshot [index-snapshot profile]
+  db/IndexSnapshot
+  (av [_ a min-v max-v]
+    (profile-add! profile [:index-seeks :av] 1)
+    (db/av index-snapshot a min-v max-v))
+
+  (ave [_ a v min-e entity-resolver-fn]
+    (profile-add! profile [:index-seeks :ave] 1)
+    (db/ave index-snapshot a v min-e entity-resolver-fn))
+
+  (ae [_ a min-e]
+    (profile-add! profile [:index-seeks :ae] 1)
+    (db/ae index-snapshot a min-e))
+
+  (aev [_ a e min-v max-v entity-resolver-fn]
+    (profile-add! profile [:index-seeks :aev] 1)
+    (db/aev index-snapshot a e min-v max-v entity-resolver-fn))
+
+  (entity [_ e c] (db/entity index-snapshot e c))
+
+  (entity-as-of-resolver [_ eid valid-time tx-id]
+    (profile-add! profile [:index-seeks :entity-as-of] 1)
+    (db/entity-as-of-resolver index-snapshot eid valid-time tx-id))
+
+  (entity-as-of [_ eid valid-time tx-id]
+    (profile-add! profile [:index-seeks :entity-as-of] 1)
+    (db/entity-as-of index-snapshot eid valid-time tx-id))
+
+  (entity-history [_ eid sort-order opts] (db/entity-history index-snapshot eid sort-order opts))
+  (decode-value [_ value-buffer] (db/decode-value index-snapshot value-buffer))
+  (encode-value [_ value] (db/encode-value index-snapshot value))
+  (resolve-tx [_ tx] (db/resolve-tx index-snapshot tx))
+
+  (open-nested-index-snapshot ^java.io.Closeable [_]
+    (->ProfilingIndexSnapshot (db/open-nested-index-snapshot index-snapshot) profile))
+
+  db/AttributeStats
+  (all-attrs [_] (db/all-attrs index-snapshot))
+  (doc-count [_ attr] (db/doc-count index-snapshot attr))
+  (value-cardinality [_ attr] (db/value-cardinality index-snapshot attr))
+  (eid-cardinality [_ attr] (db/eid-cardinality index-snapshot attr))
+  (value-histogram [_ attr] (db/value-histogram index-snapshot attr))
+
+  db/IndexMeta
+  (-read-index-meta [_ k not-found]
+    (db/-read-index-meta index-snapshot k not-found))
+
+  Closeable
+  (close [_] (cio/try-close index-snapshot)))
+
+(deftype ProfilingLayeredIndex [idx profile ^:unsynchronized-mutable ^long depth]
+  db/Index
+  (seek-values [_ k]
+    (profile-add! profile [:join depth :seeks] 1)
+    (let [v (db/seek-values idx k)]
+      (when v
+        (profile-add! profile [:join depth :rows] 1))
+      v))
+
+  (next-values [_]
+    (profile-add! profile [:join depth :nexts] 1)
+    (let [v (db/next-values idx)]
+      (when v
+        (profile-add! profile [:join depth :rows] 1))
+      v))
+
+  db/LayeredIndex
+  (open-level [_]
+    (db/open-level idx)
+    (set! depth (inc depth))
+    nil)
+
+  (close-level [_]
+    (db/close-level idx)
+    (set! depth (dec depth))
+    nil)
+
+  (max-depth [_]
+    (db/max-depth idx)))
+
+(defn- profile-constraints
+  "Wraps each constraint fn to count its calls and the time spent in
+  it. The time includes any nested sub-queries - these are profiled
+  themselves as well. Logic var range constraints are added after
+  compilation, so they have no type of their own."
+  [profile depth->constraint-types depth->constraints]
+  (vec (for [[constraint-fns constraint-types] (map vector depth->constraints depth->constraint-types)]
+         (when constraint-fns
+           (vec (for [[constraint-fn constraint-type] (map vector constraint-fns (concat constraint-types (repeat :range)))
+                      :let [calls-k [:constraints constraint-type :calls]
+                            time-k [:constraints constraint-type :time-ns]]]
+                  (fn profiled-constraint [index-snapshot db idx-id->idx join-keys]
+                    (let [start (System/nanoTime)]
+                      (try
+                        (constraint-fn index-snapshot db idx-id->idx join-keys)
+                        (finally
+                          (profile-add! profile calls-k 1)
+                          (profile-add! profile time-k (- (System/nanoTime) start))))))))))))
+
+(defn- open-sub-query [index-snapshot db compiled-query in-args]
+  (let [{:keys [depth->constraints
+                depth->constraint-types
                 vars-in-join-order
                 var->range-constraints
                 var->joins
                 var->bindings
                 in-bindings]
-         :as compiled-query} (-> (cache/compute-if-absent
-                                  query-cache
-                                  [where in rule-name->rules]
-                                  identity
-                                  (fn [_]
-                                    (compile-sub-query encode-value-fn (->stats index-snapshot) db where in rule-name->rules)))
-                                 (add-logic-var-constraints))
+         :as compiled-query} (add-logic-var-constraints compiled-query)
+        depth->constraints (if-let [profile (::profile db)]
+                             (profile-constraints profile depth->constraint-types depth->constraints)
+                             depth->constraints)
         idx-id->idx (build-idx-id->idx db index-snapshot compiled-query)
         unary-join-indexes (for [v vars-in-join-order]
                              (-> (idx/new-unary-join-virtual-index
@@ -1531,13 +2121,16 @@
                       tuple-idxs-in-join-order
                       (get idx-id->idx idx-id)
                       in-arg)))
-    (log/debug :where (cio/pr-edn-str where))
     (log/debug :vars-in-join-order vars-in-join-order)
     (log/debug :var->bindings (cio/pr-edn-str var->bindings))
     {:n-ary-join (when (constrain-result-fn [] 0)
                    (idx/new-n-ary-join-layered-virtual-index unary-join-indexes constrain-result-fn))
      :var->bindings var->bindings}))
 
+(defn- build-sub-query [index-snapshot db where in in-args rule-name->rules]
+  (log/debug :where (cio/pr-edn-str where))
+  (open-sub-query index-snapshot db (compile-sub-query-cached index-snapshot db where in rule-name->rules) in-args))
+
 (defn- open-index-snapshot ^java.io.Closeable [{:keys [index-store index-snapshot] :as db}]
   (if index-snapshot
     (db/open-nested-index-snapshot index-snapshot)
@@ -1548,8 +2141,11 @@
     (fn [k]
       (cache/compute-if-absent entity-cache k mem/copy-to-unpooled-buffer entity-resolver-fn))))
 
-(defn- new-entity-resolver-fn [{:keys [valid-time tx-id index-snapshot] :as db}]
-  (with-entity-resolver-cache #(when tx-id (db/entity-as-of-resolver index-snapshot % valid-time tx-id)) db))
+(defn- new-entity-resolver-fn [{:keys [valid-time tx-id index-snapshot entity-resolution-cache] :as db}]
+  (-> #(when tx-id (db/entity-as-of-resolver index-snapshot % valid-time tx-id))
+      (cond-> (and tx-id entity-resolution-cache (::explicit-valid-time? db))
+        (erc/with-entity-resolution-cache entity-resolution-cache db))
+      (with-entity-resolver-cache db)))
 
 (defn- validate-in [in]
   (doseq [binding (:bindings in)
@@ -1587,6 +2183,20 @@
                              (= :desc direction) -))
                      order-by))))))))
 
+(def ^:private ^:const max-top-n (* 1024 1024))
+
+(defn- sort-result
+  "Sorts the result by `order-by`. If the query has a limit, and there
+  are at most `max-top-n` rows up to `offset` + `limit`, only those are
+  kept while sorting, rather than sorting the whole result."
+  [find order-by offset limit result]
+  (let [comp (order-by-comparator find order-by)
+        top-n (when limit
+                (+ (long limit) (long (or offset 0))))]
+    (if (and top-n (<= (long top-n) max-top-n))
+      (cio/top-n comp top-n result)
+      (cio/external-sort comp result))))
+
 (defn- compile-find [conformed-find {:keys [var->bindings]} {:keys [pull-cache]}]
   (for [[var-type arg] conformed-find]
     (case var-type
@@ -1606,41 +2216,114 @@
                       :var-type :aggregate
                       :var-binding (var->bindings (:logic-var arg))
                       :aggregate-fn (apply aggregate (:aggregate-fn arg) (:args arg))
+                      ;; `count` doesn't look at its values, so they aren't decoded
+                      :decode? (not= 'count (:aggregate-fn arg))
                       :->result (fn [value _]
                                   value)}))))
 
-(defn- aggregate-result [compiled-find result]
+(def ^:private ^:const aggregate-spill-partitions 16)
+(def ^:private ^:const max-aggregate-spill-depth 4)
+
+(defn- spill-partition [^long depth group]
+  (Math/floorMod (long (hash [depth group])) aggregate-spill-partitions))
+
+(defn- ->spill-file
+  "Creates a spill file, deleted when the query's `!closeables` are
+  closed if it hasn't been read by then."
+  ^java.io.File [!closeables]
+  (let [file (File/createTempFile "crux-aggregate-spill" ".nippy")]
+    (some-> !closeables (swap! conj (reify Closeable
+                                      (close [_]
+                                        (.delete file)))))
+    file))
+
+(defn- with-spill-file-tuples
+  "Calls `f` with the `n` tuples in `file`, which `f` reads in full
+  before it returns - the stream's closed and the file deleted
+  afterwards, even if `f` throws."
+  [^File file ^long n f]
+  (try
+    (with-open [in (DataInputStream. (io/input-stream file))]
+      (f (repeatedly n #(cio/with-nippy-thaw-all (nippy/thaw-from-in! in)))))
+    (finally
+      (.delete file))))
+
+(defn- aggregate-result
+  "Groups the tuples and aggregates each group. At most `max-groups`
+  groups are held in memory - once there are that many, tuples of the
+  existing groups are still aggregated, but tuples of any other groups
+  are spilled to disk, partitioned by their group's hash. Each spilled
+  partition is then aggregated in turn, spilling further if need be."
+  [compiled-find max-groups !closeables result]
   (let [indexed-compiled-find (map-indexed vector compiled-find)
         grouping-var-idxs (vec (for [[n {:keys [var-type]}] indexed-compiled-find
                                      :when (not= :aggregate var-type)]
                                  n))
-        idx->aggregate (->> (for [[n {:keys [aggregate-fn]}] indexed-compiled-find
+        aggregate-idxs (vec (for [[n {:keys [aggregate-fn]}] indexed-compiled-find
                                   :when aggregate-fn]
-                              [n aggregate-fn])
-                            (into {}))
-        groups (persistent!
-                (reduce
-                 (fn [acc tuple]
-                   (let [group (mapv tuple grouping-var-idxs)
-                         group-acc (or (get acc group)
-                                       (reduce-kv
-                                        (fn [acc n aggregate-fn]
-                                          (assoc acc n (aggregate-fn)))
-                                        tuple
-                                        idx->aggregate))]
-                     (assoc! acc group (reduce-kv
-                                        (fn [acc n aggregate-fn]
-                                          (update acc n #(aggregate-fn % (get tuple n))))
-                                        group-acc
-                                        idx->aggregate))))
-                 (transient {})
-                 result))]
-    (for [[_ group-acc] groups]
-      (reduce-kv
-       (fn [acc n aggregate-fn]
-         (update acc n aggregate-fn))
-       group-acc
-       idx->aggregate))))
+                              n))
+        ^objects aggregate-fns (->> (for [[_ {:keys [aggregate-fn]}] indexed-compiled-find
+                                          :when aggregate-fn]
+                                      aggregate-fn)
+                                    (object-array))
+        n-aggregates (alength aggregate-fns)
+        max-groups (long (or max-groups Long/MAX_VALUE))]
+    (letfn [(new-accs ^objects []
+              (let [accs (object-array n-aggregates)]
+                (dotimes [n n-aggregates]
+                  (aset accs n ((aget aggregate-fns n))))
+                accs))
+
+            (aggregate-tuple! [^objects accs tuple]
+              (dotimes [n n-aggregates]
+                (aset accs n ((aget aggregate-fns n) (aget accs n) (get tuple (nth aggregate-idxs n))))))
+
+            (group-result [[tuple ^objects accs]]
+              (reduce (fn [tuple ^long n]
+                        (assoc tuple (nth aggregate-idxs n) ((aget aggregate-fns n) (aget accs n))))
+                      tuple
+                      (range n-aggregates)))
+
+            (aggregate-partition [tuples ^long depth]
+              (let [groups (HashMap.)
+                    spill? (< depth max-aggregate-spill-depth)
+                    ^objects spill-files (object-array aggregate-spill-partitions)
+                    ^objects spill-outs (object-array aggregate-spill-partitions)
+                    spill-counts (long-array aggregate-spill-partitions)]
+                (try
+                  (doseq [tuple tuples]
+                    (let [group (mapv tuple grouping-var-idxs)]
+                      (if-let [group-acc (.get groups group)]
+                        (aggregate-tuple! (second group-acc) tuple)
+
+                        (if (and spill? (>= (.size groups) max-groups))
+                          (let [partition (spill-partition depth group)]
+                            (when-not (aget spill-outs partition)
+                              (let [file (->spill-file !closeables)]
+                                (aset spill-files partition file)
+                                (aset spill-outs partition (DataOutputStream. (io/output-stream file)))))
+                            (nippy/freeze-to-out! (aget spill-outs partition) tuple)
+                            (aset spill-counts partition (inc (aget spill-counts partition))))
+
+                          (let [accs (new-accs)]
+                            (aggregate-tuple! accs tuple)
+                            (.put groups group [tuple accs]))))))
+                  (finally
+                    (run! cio/try-close spill-outs)))
+
+                (when (some some? spill-files)
+                  (log/debug :aggregate-spill depth (count (filter some? spill-files))))
+
+                (concat (map group-result (.values groups))
+                        (->> (range aggregate-spill-partitions)
+                             (filter #(aget spill-files %))
+                             (mapcat (fn [partition]
+                                       (lazy-seq
+                                        (with-spill-file-tuples (aget spill-files partition)
+                                          (aget spill-counts partition)
+                                          #(aggregate-partition % (inc depth))))))))))]
+
+      (aggregate-partition result 0))))
 
 (defn- arg-for-var [arg var]
   (second
@@ -1669,6 +2352,121 @@
           [in _in-args] (add-legacy-args conformed-q [])]
       (compile-sub-query (partial db/encode-value index-snapshot) (->stats index-snapshot) db where in (rule-name->rules rules)))))
 
+;; Parallel joins
+
+(def ^:private ^:const partitions-per-thread 4)
+(def ^:private ^:const min-keys-per-partition 16)
+
+(defn- thin-samples! [^List samples]
+  (let [kept (vec (take-nth 2 samples))]
+    (doto samples
+      (.clear)
+      (.addAll kept))))
+
+(defn- sample-partition-bounds
+  "Scans the first level of the join, returning the keys that split it
+  into `n-partitions` ranges of roughly the same size, or nil if it's
+  too small to be worth splitting. Keeps every stride-th key, doubling
+  the stride whenever too many have been kept, so the samples stay
+  bounded however many keys there are."
+  [n-ary-join ^long n-partitions]
+  (let [max-samples (* 4 n-partitions)
+        samples (ArrayList.)
+        n-keys (loop [k (db/seek-values n-ary-join nil)
+                      n 0
+                      stride 1]
+                 (if k
+                   (do (when (zero? (rem n stride))
+                         (.add samples (mem/copy-to-unpooled-buffer k)))
+                       (if (> (.size samples) max-samples)
+                         (do (thin-samples! samples)
+                             (recur (db/next-values n-ary-join) (inc n) (* 2 stride)))
+                         (recur (db/next-values n-ary-join) (inc n) stride)))
+                   n))]
+    (when (>= (long n-keys) (* min-keys-per-partition n-partitions))
+      (vec (for [^long n (range 1 n-partitions)]
+             (.get samples (quot (* n (.size samples)) n-partitions)))))))
+
+(defn- partition-range-constraint [lower-bound upper-bound]
+  (fn [idx]
+    (cond-> idx
+      lower-bound (idx/new-greater-than-equal-virtual-index (Box. lower-bound))
+      upper-bound (idx/new-less-than-virtual-index (Box. upper-bound)))))
+
+(defn- partition-results
+  "Runs the join over the [lower-bound, upper-bound) range of its first
+  var, on a nested index snapshot, returning the realised results."
+  [{:keys [index-snapshot] :as db} {:keys [vars-in-join-order] :as compiled-query} in-args var-bindings [lower-bound upper-bound]]
+  (with-open [index-snapshot (db/open-nested-index-snapshot index-snapshot)]
+    (let [db (as-> (assoc db :index-snapshot index-snapshot) db
+               (assoc db :entity-resolver-fn (new-entity-resolver-fn db)))
+          range-constraint (partition-range-constraint lower-bound upper-bound)
+          compiled-query (-> compiled-query
+                             (update-in [:var->range-constraints (first vars-in-join-order)]
+                                        (fn [f]
+                                          (cond-> range-constraint
+                                            f (comp f))))
+                             (cond-> upper-bound
+                               (update-in [:var->range-upper-bound (first vars-in-join-order)] min-buffer upper-bound)))
+          {:keys [n-ary-join]} (open-sub-query index-snapshot db compiled-query in-args)]
+      (->> (idx/layered-idx->seq n-ary-join)
+           (mapv (fn [join-keys]
+                   (mapv (fn [var-binding]
+                           (find-result-for-var index-snapshot var-binding join-keys))
+                         var-bindings)))))))
+
+(defrecord ParallelJoin [tasks ^AtomicBoolean cancelled? ^Set running-threads]
+  Closeable
+  (close [_]
+    ;; the partitions have to finish before the parent snapshot can be
+    ;; closed - so we stop them, rather than cancelling the tasks.
+    (.set cancelled? true)
+    (locking running-threads
+      (doseq [^Thread thread running-threads]
+        (.interrupt thread)))
+    (doseq [^ForkJoinTask task tasks]
+      (.quietlyJoin task))))
+
+(defn- submit-partition ^java.util.concurrent.ForkJoinTask [^ForkJoinPool pool ^AtomicBoolean cancelled? ^Set running-threads f]
+  (.submit pool ^Callable (fn []
+                            (when-not (.get cancelled?)
+                              (let [thread (Thread/currentThread)]
+                                (locking running-threads
+                                  (.add running-threads thread))
+                                (try
+                                  (when (.get cancelled?)
+                                    (throw (InterruptedException.)))
+                                  (f)
+                                  (finally
+                                    (locking running-threads
+                                      (.remove running-threads thread))
+                                    ;; don't leave the pool's thread interrupted
+                                    (Thread/interrupted))))))))
+
+(defn- parallel-join-results
+  "Splits the key range of the first var in the join order into
+  partitions, and runs the join for each of them on the query pool.
+  The results are returned in partition order, so in the same order as
+  the serial join. Returns nil if the join isn't worth splitting."
+  [{:keys [^ForkJoinPool query-pool] :as db} compiled-query n-ary-join in-args var-bindings]
+  (let [n-partitions (* partitions-per-thread (.getParallelism query-pool))]
+    (when-let [bounds (sample-partition-bounds n-ary-join n-partitions)]
+      (let [cancelled? (AtomicBoolean.)
+            running-threads (HashSet.)
+            tasks (vec (for [partition-bounds (map vector (cons nil bounds) (conj bounds nil))]
+                         (submit-partition query-pool cancelled? running-threads
+                                           #(partition-results db compiled-query in-args var-bindings partition-bounds))))
+            parallel-join (->ParallelJoin tasks cancelled? running-threads)]
+        ;; closed with the query's cursor, so that an early close or a
+        ;; timeout stops the remaining partitions.
+        (some-> (::closeables db) (swap! conj parallel-join))
+        (->> tasks
+             (mapcat (fn [^ForkJoinTask task]
+                       (try
+                         (.get task)
+                         (catch ExecutionException e
+                           (throw (.getCause e)))))))))))
+
 (defn- ->return-maps [{:keys [keys syms strs]}]
   (let [ks (or (some->> keys (mapv keyword))
                (some->> syms (mapv symbol))
@@ -1676,33 +2474,28 @@
     (fn [row]
       (zipmap ks row))))
 
-(defn query [{:keys [index-snapshot] :as db} ^ConformedQuery conformed-q in-args]
+(defrecord PreparedQuery [^ConformedQuery conformed-q compiled-query compiled-find]
+  IPreparedQuery)
+
+(defn- prepare-query
+  "Conforms and compiles the query against the given db, so that it can
+  be run many times, with different in-args and against different dbs
+  from the same node."
+  ^crux.query.PreparedQuery [{:keys [index-snapshot] :as db} ^ConformedQuery conformed-q]
   (let [q (.q-normalized conformed-q)
         q-conformed (.q-conformed conformed-q)
-        {:keys [find where rules offset limit order-by]} q-conformed
-        [in in-args] (add-legacy-args q-conformed in-args)]
+        {:keys [find where rules order-by]} q-conformed
+        [in _in-args] (add-legacy-args q-conformed [])]
 
     (when (:full-results? q-conformed)
       (throw (err/illegal-arg :full-results-removed
                               {::err/message (str "`full-results?` was removed - use 'pull' instead: "
                                                   "https://opencrux.com/reference/queries.html#pull")})))
 
-    (log/debug :query (cio/pr-edn-str (-> q
-                                          (assoc :in (or in []))
-                                          (dissoc :args))))
     (validate-in in)
     (let [rule-name->rules (with-meta (rule-name->rules rules) {:rules (:rules q)})
-          db (assoc db :index-snapshot index-snapshot)
-          entity-resolver-fn (or (:entity-resolver-fn db)
-                                 (new-entity-resolver-fn db))
-          db (assoc db :entity-resolver-fn entity-resolver-fn)
-          {:keys [n-ary-join] :as built-query} (build-sub-query index-snapshot db where in in-args rule-name->rules)
-          compiled-find (compile-find find built-query db)
-          var-types (set (map :var-type compiled-find))
-          aggregate? (contains? var-types :aggregate)
-          pull? (contains? var-types :pull)
-          return-maps? (some q [:keys :syms :strs])
-          var-bindings (mapv :var-binding compiled-find)]
+          compiled-query (compile-sub-query-cached index-snapshot db where in rule-name->rules)
+          compiled-find (vec (compile-find find compiled-query db))]
       (doseq [{:keys [logic-var var-binding]} compiled-find
               :when (nil? var-binding)]
         (throw (err/illegal-arg :find-unknown-var
@@ -1711,15 +2504,50 @@
               :when (not (some #{find-arg} find))]
         (throw (err/illegal-arg :order-by-requires-find-element
                                 {::err/message  (str "Order by requires an element from :find. unreturned element: " find-arg)})))
+      (->PreparedQuery conformed-q compiled-query compiled-find))))
+
+(defn query [{:keys [index-snapshot] :as db} conformed-or-prepared-q in-args]
+  (let [^PreparedQuery prepared-q (if (instance? PreparedQuery conformed-or-prepared-q)
+                                    conformed-or-prepared-q
+                                    (prepare-query db conformed-or-prepared-q))
+        ^ConformedQuery conformed-q (.conformed-q prepared-q)
+        q (.q-normalized conformed-q)
+        q-conformed (.q-conformed conformed-q)
+        {:keys [find offset limit order-by]} q-conformed
+        [in in-args] (add-legacy-args q-conformed in-args)
+        compiled-find (.compiled-find prepared-q)]
 
+    (log/debug :query (cio/pr-edn-str (-> q
+                                          (assoc :in (or in []))
+                                          (dissoc :args))))
+    (let [db (assoc db :index-snapshot index-snapshot)
+          entity-resolver-fn (or (:entity-resolver-fn db)
+                                 (new-entity-resolver-fn db))
+          db (assoc db :entity-resolver-fn entity-resolver-fn)
+          {:keys [n-ary-join]} (open-sub-query index-snapshot db (.compiled-query prepared-q) in-args)
+          profile (::profile db)
+          n-ary-join (if (and profile n-ary-join)
+                       (do (.put ^ConcurrentHashMap profile ::vars-in-join-order (:vars-in-join-order (.compiled-query prepared-q)))
+                           (->ProfilingLayeredIndex n-ary-join profile 0))
+                       n-ary-join)
+          var-types (set (map :var-type compiled-find))
+          aggregate? (contains? var-types :aggregate)
+          pull? (contains? var-types :pull)
+          return-maps? (some q [:keys :syms :strs])
+          var-bindings (mapv (fn [{:keys [var-binding decode?] :or {decode? true}}]
+                               (when decode?
+                                 var-binding))
+                             compiled-find)]
       (lazy-seq
-       (cond->> (for [join-keys (idx/layered-idx->seq n-ary-join)]
-                  (mapv (fn [var-binding]
-                          (bound-result-for-var index-snapshot var-binding join-keys))
-                        var-bindings))
-
-         aggregate? (aggregate-result compiled-find)
-         order-by (cio/external-sort (order-by-comparator find order-by))
+       (cond->> (or (when (and (:parallel? q-conformed) (:query-pool db) (nil? profile))
+                      (parallel-join-results db (.compiled-query prepared-q) n-ary-join in-args var-bindings))
+                    (for [join-keys (idx/layered-idx->seq n-ary-join)]
+                      (mapv (fn [var-binding]
+                              (find-result-for-var index-snapshot var-binding join-keys))
+                            var-bindings)))
+
+         aggregate? (aggregate-result compiled-find (:aggregate-max-groups db) (::closeables db))
+         order-by (sort-result find order-by offset limit)
          offset (drop offset)
          limit (take limit)
          pull? (pull/->pull-result db compiled-find q-conformed)
@@ -1757,6 +2585,33 @@
                               (with-upper-bound :asc (inc tx-id))))
         (dissoc :start-tx :end-tx))))
 
+(defn- q-result [{:keys [^ScheduledExecutorService interrupt-executor] :as db} query args]
+  (with-open [res (api/open-q* db query args)]
+    (let [query (if (instance? PreparedQuery query)
+                  (.q-normalized ^ConformedQuery (.conformed-q ^PreparedQuery query))
+                  query)
+          result-coll-fn (if (some (normalize-query query) [:order-by :limit :offset]) vec set)
+          !timed-out? (atom false)
+          ^Future
+          interrupt-job (when-let [timeout-ms (get query :timeout (:query-timeout db))]
+                          (let [caller-thread (Thread/currentThread)]
+                            (.schedule interrupt-executor
+                                       ^Runnable
+                                       (fn []
+                                         (reset! !timed-out? true)
+                                         (.interrupt caller-thread))
+                                       ^long timeout-ms
+                                       TimeUnit/MILLISECONDS)))]
+      (try
+        (result-coll-fn (iterator-seq res))
+        (catch InterruptedException e
+          (throw (if @!timed-out?
+                   (TimeoutException. "Query timed out.")
+                   e)))
+        (finally
+          (when interrupt-job
+            (.cancel interrupt-job false)))))))
+
 (defrecord QueryDatasource [document-store index-store bus tx-indexer
                             ^Date valid-time ^Date tx-time ^Long tx-id
                             ^ScheduledExecutorService interrupt-executor
@@ -1779,35 +2634,31 @@
       (entity-tx this index-snapshot eid)))
 
   (q* [this query args]
-    (with-open [res (api/open-q* this query args)]
-      (let [result-coll-fn (if (some (normalize-query query) [:order-by :limit :offset]) vec set)
-            !timed-out? (atom false)
-            ^Future
-            interrupt-job (when-let [timeout-ms (get query :timeout (:query-timeout this))]
-                            (let [caller-thread (Thread/currentThread)]
-                              (.schedule interrupt-executor
-                                         ^Runnable
-                                         (fn []
-                                           (reset! !timed-out? true)
-                                           (.interrupt caller-thread))
-                                         ^long timeout-ms
-                                         TimeUnit/MILLISECONDS)))]
-        (try
-          (result-coll-fn (iterator-seq res))
-          (catch InterruptedException e
-            (throw (if @!timed-out?
-                     (TimeoutException. "Query timed out.")
-                     e)))
-          (finally
-            (when interrupt-job
-              (.cancel interrupt-job false)))))))
+    (let [query-result-cache (:query-result-cache this)
+          q (normalize-query (if (instance? PreparedQuery query)
+                               (.q-normalized ^ConformedQuery (.conformed-q ^PreparedQuery query))
+                               query))]
+      (if (and query-result-cache tx-id (not (:profile? q)))
+        (let [k [q (vec args) (qrc/valid-time-key query-result-cache valid-time (::explicit-valid-time? this))]
+              [result generation] (qrc/lookup query-result-cache k tx-id)]
+          (if (= ::qrc/miss result)
+            (doto (q-result this query args)
+              (->> (qrc/store! query-result-cache k tx-id (qrc/query-attrs q) generation)))
+            result))
+        (q-result this query args))))
 
 
   (open-q* [this query args]
-    (let [conformed-query (normalize-and-conform-query conform-cache query)
+    (let [^ConformedQuery conformed-query (if (instance? PreparedQuery query)
+                                            (.conformed-q ^PreparedQuery query)
+                                            (normalize-and-conform-query conform-cache query))
           query-id (str (UUID/randomUUID))
           safe-query (-> conformed-query .q-normalized (dissoc :args))
-          index-snapshot (open-index-snapshot this)]
+          profile (when (:profile? (.q-conformed conformed-query))
+                    (new-profile))
+          index-snapshot (cond-> (open-index-snapshot this)
+                           profile (->ProfilingIndexSnapshot profile))
+          !closeables (atom [])]
       (when bus
         (bus/send bus {:crux/event-type ::submitted-query
                        ::query safe-query
@@ -1815,25 +2666,37 @@
       (try
         (let [db (as-> this db
                    (assoc db :index-snapshot index-snapshot)
-                   (assoc db :entity-resolver-fn (or entity-resolver-fn (new-entity-resolver-fn db))))]
+                   (assoc db :entity-resolver-fn (or entity-resolver-fn (new-entity-resolver-fn db)))
+                   (assoc db ::closeables !closeables)
+                   (assoc db ::solved-rule-goals (ConcurrentHashMap.))
+                   (cond-> db profile (assoc ::profile profile)))]
 
-          (->> (crux.query/query db conformed-query args)
+          (->> (crux.query/query db (if (instance? PreparedQuery query) query conformed-query) args)
                (cio/->cursor (fn []
+                               (run! cio/try-close @!closeables)
                                (cio/try-close index-snapshot)
                                (when bus
-                                 (bus/send bus {:crux/event-type ::completed-query
-                                                ::query safe-query
-                                                ::query-id query-id}))))))
+                                 (bus/send bus (cond-> {:crux/event-type ::completed-query
+                                                        ::query safe-query
+                                                        ::query-id query-id}
+                                                 profile (assoc ::profile (render-profile profile)))))))))
         (catch Exception e
+          (run! cio/try-close @!closeables)
           (cio/try-close index-snapshot)
           (when bus
-            (bus/send bus {:crux/event-type ::failed-query
-                           ::query safe-query
-                           ::query-id query-id
-                           ::error {:type (cio/pr-edn-str (type e))
-                                    :message (.getMessage e)}}))
+            (bus/send bus (cond-> {:crux/event-type ::failed-query
+                                   ::query safe-query
+                                   ::query-id query-id
+                                   ::error {:type (cio/pr-edn-str (type e))
+                                            :message (.getMessage e)}}
+                            profile (assoc ::profile (render-profile profile)))))
           (throw e)))))
 
+  (prepare-q [this query]
+    (with-open [index-snapshot (open-index-snapshot this)]
+      (prepare-query (assoc this :index-snapshot index-snapshot)
+                     (normalize-and-conform-query conform-cache query))))
+
   (pull [db projection eid]
     (let [?eid (gensym '?eid)
           projection (cond-> projection (string? projection) c/read-edn-string-with-readers)]
@@ -1930,12 +2793,15 @@
 
 (defrecord QueryEngine [^ScheduledExecutorService interrupt-executor document-store
                         index-store bus !pred-ctx
-                        query-cache conform-cache pull-cache]
+                        query-cache conform-cache pull-cache
+                        entity-resolution-cache query-result-cache
+                        ^ForkJoinPool query-pool ^ExecutorService pull-pool]
   api/DBProvider
   (db [this] (api/db this nil))
   (db [this valid-time tx-time] (api/db this {:crux.db/valid-time valid-time, :crux.tx/tx-time tx-time}))
   (db [this valid-time-or-basis]
     (let [{:keys [crux.db/valid-time] :as basis} (->basis valid-time-or-basis)
+          explicit-valid-time? (some? valid-time)
           valid-time (or valid-time (Date.))
           resolved-tx (with-open [index-snapshot (db/open-index-snapshot index-store)]
                         (db/resolve-tx index-snapshot (:crux.tx/tx basis)))]
@@ -1948,6 +2814,7 @@
                                                                  :query-engine this})
                                    :pred-ctx @!pred-ctx
                                    :valid-time valid-time
+                                   ::explicit-valid-time? explicit-valid-time?
                                    :tx-time (:crux.tx/tx-time resolved-tx)
                                    :tx-id (:crux.tx/tx-id resolved-tx)))))
 
@@ -1970,7 +2837,9 @@
     (when interrupt-executor
       (doto interrupt-executor
         (.shutdownNow)
-        (.awaitTermination 5000 TimeUnit/MILLISECONDS)))))
+        (.awaitTermination 5000 TimeUnit/MILLISECONDS)))
+    (some-> query-pool (.shutdownNow))
+    (some-> pull-pool (.shutdownNow))))
 
 (def default-allow-list
   (->> (slurp (io/resource "query-allowlist.edn"))
@@ -1998,7 +2867,8 @@
                                   :conform-cache {:crux/module 'crux.cache/->cache
                                                   :cache-size 10240}
                                   :pull-cache {:crux/module 'crux.cache/->cache
-                                               :cache-size 10240}}
+                                               :cache-size 10240}
+                                  :entity-resolution-cache 'crux.cache.entity-resolution/->entity-resolution-cache}
                       ::sys/args {:entity-cache-size {:doc "Query Entity Cache Size"
                                                       :default (* 32 1024)
                                                       :spec ::sys/nat-int}
@@ -2011,8 +2881,31 @@
                                                :spec ::sys/pos-int}
                                   :fn-allow-list {:doc "Predicate Allowlist"
                                                   :default nil
-                                                  :spec ::fn-allow-list}}}
-  [opts]
+                                                  :spec ::fn-allow-list}
+                                  :query-parallelism {:doc "Number of threads used to run queries with `:parallel? true`. 1 runs every query on the calling thread."
+                                                      :default 1
+                                                      :spec ::sys/pos-int}
+                                  :aggregate-max-groups {:doc "Number of groups an aggregate query holds in memory before it spills the tuples of further groups to disk."
+                                                         :default (* 256 1024)
+                                                         :spec ::sys/pos-int}
+                                  :pull-parallelism {:doc "Number of threads fetching documents for pull, concurrently with the query thread. 1 fetches them on the query thread."
+                                                     :default 4
+                                                     :spec ::sys/pos-int}
+                                  :query-result-cache-max-bytes {:doc "Estimated size in bytes of the query results the node caches. 0 disables the query result cache."
+                                                                 :default 0
+                                                                 :spec ::sys/nat-int}
+                                  :query-result-cache-valid-time-bucket-ms {:doc "Dbs without an explicit valid time share cached results within buckets of this many ms of their valid time - so may see results up to this old."
+                                                                            :default 1000
+                                                                            :spec ::sys/pos-int}}}
+  [{:keys [index-store query-parallelism pull-parallelism ^long query-result-cache-max-bytes query-result-cache-valid-time-bucket-ms] :as opts}]
   (map->QueryEngine (assoc opts
+                           :query-result-cache (when (pos? query-result-cache-max-bytes)
+                                                 (qrc/->query-result-cache {:max-bytes query-result-cache-max-bytes
+                                                                            :valid-time-bucket-ms query-result-cache-valid-time-bucket-ms
+                                                                            :floor-tx-id (::tx/tx-id (db/latest-completed-tx index-store))}))
                            :interrupt-executor (Executors/newSingleThreadScheduledExecutor (cio/thread-factory "crux-query-interrupter"))
-                           :!pred-ctx (atom {}))))
+                           :!pred-ctx (atom {})
+                           :pull-pool (when (and pull-parallelism (> ^long pull-parallelism 1))
+                                        (Executors/newFixedThreadPool pull-parallelism (cio/thread-factory "crux-pull")))
+                           :query-pool (when (and query-parallelism (> ^long query-parallelism 1))
+                                         (ForkJoinPool. query-parallelism)))))
@@ -13,14 +13,15 @@
   (getErrorClass [this] type)
   (getErrorMessage [this] message))
 
-(defrecord QueryState [query-id started-at finished-at status query error]
+(defrecord QueryState [query-id started-at finished-at status query error profile]
   IQueryState
   (getQueryId [this] query-id)
   (getStartedAt [this] started-at)
   (getFinishedAt [this] finished-at)
   (getStatus [this] (->query-status status))
   (getQuery [this] query)
-  (getError [this] error))
+  (getError [this] error)
+  (getProfile [this] profile))
 
 (defmethod print-method QueryState [qs ^Writer w]
   (.write w "#crux/query-state ")
@@ -34,11 +35,12 @@
   (let [{:keys [type message]} error]
     (QueryError. type message)))
 
-(defn ->QueryState [{:keys [query-id started-at finished-at status error query] :as query-state}]
+(defn ->QueryState [{:keys [query-id started-at finished-at status error query profile] :as query-state}]
   (QueryState. query-id
                started-at
                finished-at
                status
                query
                (when error
-                 (->QueryError error))))
\ No newline at end of file
+                 (->QueryError error))
+               profile))
\ No newline at end of file
@@ -4,6 +4,8 @@
             [clojure.tools.logging :as log]
             [crux.api :as api]
             [crux.bus :as bus]
+            [crux.cache.entity-resolution :as erc]
+            [crux.cache.query-result :as qrc]
             [crux.codec :as c]
             [crux.db :as db]
             [crux.error :as err]
@@ -12,14 +14,15 @@
             [crux.system :as sys]
             [crux.tx.conform :as txc]
             [crux.tx.event :as txe])
-  (:import clojure.lang.MapEntry
+  (:import [clojure.lang MapEntry Named]
            crux.api.ICursor
            crux.codec.EntityTx
            java.io.Closeable
            java.time.Duration
-           [java.util.concurrent CompletableFuture Future]
+           [java.util.concurrent ArrayBlockingQueue CompletableFuture CompletionException ExecutionException Executors Future TimeUnit]
+           java.util.concurrent.atomic.AtomicLong
            java.util.Date
-           java.util.function.BiConsumer))
+           [java.util.function BiConsumer Supplier]))
 
 (set! *unchecked-math* :warn-on-boxed)
 
@@ -35,6 +38,7 @@
 (s/def ::doc-ids (s/coll-of #(instance? crux.codec.Id %) :kind set?))
 (s/def ::eids (s/coll-of c/valid-id? :kind set?))
 (s/def ::evicting-eids ::eids)
+(s/def ::evicted-eids ::eids)
 
 (defmethod bus/event-spec ::indexing-tx [_]
   (s/keys :req-un [::submitted-tx]))
@@ -42,7 +46,7 @@
 (defmethod bus/event-spec ::indexed-tx [_]
   (s/keys :req [::txe/tx-events],
           :req-un [::submitted-tx ::committed?]
-          :opt-un [::doc-ids ::av-count ::bytes-indexed]))
+          :opt-un [::doc-ids ::eids ::evicted-eids ::av-count ::bytes-indexed]))
 
 (s/def ::ingester-error #(instance? Exception %))
 (defmethod bus/event-spec ::ingester-error [_] (s/keys :req-un [::ingester-error]))
@@ -249,7 +253,7 @@
                                      {:crux.db/id (:crux.db/id arg-doc)
                                       :crux.db.fn/failed? true}))))))
 
-(defn- index-docs [{:keys [index-store-tx !tx]} docs]
+(defn- index-docs [{:keys [index-store-tx !tx query-result-cache]} docs]
   (when (seq docs)
     (when-let [missing-ids (seq (remove :crux.db/id (vals docs)))]
       (throw (err/illegal-arg :missing-eid {::err/message "Missing required attribute :crux.db/id"
@@ -261,11 +265,34 @@
                (-> tx
                    (update :av-count + av-count)
                    (update :bytes-indexed + bytes-indexed)
-                   (update :doc-ids into (map c/new-id) (keys indexed-docs))))))))
+                   (update :doc-ids into (map c/new-id) (keys indexed-docs))
+                   (cond-> query-result-cache (update :touched-attrs into (mapcat keys) (vals docs)))))))))
+
+(defn- replaced-doc-attrs
+  "Returns the attributes of the docs `etxs` replace - those of the docs
+  they write are recorded as the docs are indexed."
+  [index-snapshot tx-id etxs]
+  (into #{}
+        (comp (keep (fn [^EntityTx etx]
+                      (when-let [content-hash (db/entity-as-of-resolver index-snapshot (.eid etx) (.vt etx) tx-id)]
+                        [(.eid etx) (c/new-id content-hash)])))
+              (distinct)
+              (mapcat (fn [[eid content-hash]]
+                        (keys (db/entity index-snapshot eid content-hash)))))
+        etxs))
+
+(defn- when-written
+  "The index store may defer writing a transaction, to group commit it
+  with subsequent ones - in which case it returns a CompletableFuture,
+  and so do we: it completes exceptionally if the write fails."
+  [index-tx-result f]
+  (if (instance? CompletableFuture index-tx-result)
+    (.thenRun ^CompletableFuture index-tx-result ^Runnable f)
+    (f)))
 
 (defrecord InFlightTx [tx fork-at !tx-state !tx
                        index-store-tx document-store-tx
-                       db-provider bus]
+                       db-provider bus entity-resolution-cache query-result-cache]
   db/DocumentStore
   (submit-docs [_ docs]
     (db/submit-docs document-store-tx docs))
@@ -312,8 +339,14 @@
 
                              (do
                                (index-docs this (-> docs without-tx-fn-docs))
+                               (when (seq etxs)
+                                 (swap! !tx update :eids into (map #(.eid ^EntityTx %)) etxs))
+                               (when (and query-result-cache (seq etxs))
+                                 (swap! !tx update :touched-attrs into (replaced-doc-attrs index-snapshot (::tx-id tx) etxs)))
                                (db/index-entity-txs index-store-tx etxs)
                                (let [{:keys [tombstones]} (when (seq evict-eids)
+                                                            (some-> entity-resolution-cache (erc/begin-eviction! evict-eids))
+                                                            (swap! !tx update :evicted-eids into evict-eids)
                                                             (db/unindex-eids index-store-tx evict-eids))]
                                  (when-let [docs (seq (concat docs tombstones))]
                                    (db/submit-docs document-store-tx docs)))
@@ -338,16 +371,21 @@
       (throw (IllegalStateException. "Can't commit from fork.")))
 
     (fork/commit-doc-store-tx document-store-tx)
-    (db/commit-index-tx index-store-tx)
 
-    (log/debug "Transaction committed:" (pr-str tx))
-
-    (let [{:keys [tx-events]} @!tx]
-      (bus/send bus (into {:crux/event-type ::indexed-tx,
-                           :submitted-tx tx,
-                           :committed? true
-                           ::txe/tx-events tx-events}
-                          (select-keys @!tx [:doc-ids :av-count :bytes-indexed])))))
+    (let [{:keys [tx-events evicted-eids touched-attrs] :as in-flight-tx} @!tx]
+      (when-written (db/commit-index-tx index-store-tx)
+                    (fn []
+                      (log/debug "Transaction committed:" (pr-str tx))
+                      (when (and entity-resolution-cache (seq evicted-eids))
+                        (erc/end-eviction! entity-resolution-cache evicted-eids))
+                      (when query-result-cache
+                        (qrc/record-tx! query-result-cache (::tx-id tx) (if (seq evicted-eids) :all touched-attrs)))
+                      (bus/send bus (into {:crux/event-type ::indexed-tx,
+                                           :submitted-tx tx,
+                                           :committed? true
+                                           ::txe/tx-events tx-events}
+                                          (-> (select-keys in-flight-tx [:doc-ids :eids :av-count :bytes-indexed])
+                                              (assoc :evicted-eids (into #{} (map c/new-id) evicted-eids)))))))))
 
   (abort [_]
     (swap! !tx-state (fn [tx-state]
@@ -359,14 +397,19 @@
       (throw (IllegalStateException. "Can't abort from fork.")))
 
     (fork/abort-doc-store-tx document-store-tx)
-    (db/abort-index-tx index-store-tx)
-
-    (log/debug "Transaction aborted:" (pr-str tx))
 
-    (bus/send bus {:crux/event-type ::indexed-tx,
-                   :submitted-tx tx,
-                   :committed? false
-                   ::txe/tx-events (:tx-events @!tx)})))
+    (let [{:keys [tx-events evicted-eids]} @!tx]
+      (when-written (db/abort-index-tx index-store-tx)
+                    (fn []
+                      (log/debug "Transaction aborted:" (pr-str tx))
+                      (when (and entity-resolution-cache (seq evicted-eids))
+                        (erc/end-eviction! entity-resolution-cache evicted-eids))
+                      (when query-result-cache
+                        (qrc/record-tx! query-result-cache (::tx-id tx) #{}))
+                      (bus/send bus {:crux/event-type ::indexed-tx,
+                                     :submitted-tx tx,
+                                     :committed? false
+                                     ::txe/tx-events tx-events}))))))
 
 (defrecord TxIndexer [index-store document-store bus query-engine]
   db/TxIndexer
@@ -380,15 +423,25 @@
       (->InFlightTx tx fork-at
                     (atom :open)
                     (atom {:doc-ids #{}
+                           :eids #{}
                            :av-count 0
                            :bytes-indexed 0
-                           :tx-events []})
+                           :tx-events []
+                           :evicted-eids #{}
+                           :touched-attrs #{}})
                     index-store-tx
                     document-store-tx
+                    ;; in-flight dbs see uncommitted writes, so mustn't share the node's caches.
                     (assoc query-engine
                            :index-store index-store-tx
-                           :document-store document-store-tx)
-                    bus))))
+                           :document-store document-store-tx
+                           :entity-resolution-cache nil
+                           :query-result-cache nil)
+                    bus
+                    (when-not fork-at
+                      (:entity-resolution-cache query-engine))
+                    (when-not fork-at
+                      (:query-result-cache query-engine))))))
 
 (defn ->tx-indexer {::sys/deps {:index-store :crux/index-store
                                 :document-store :crux/document-store
@@ -421,12 +474,128 @@
     (.cancel job true)
     (log/info "Shut down tx-ingester")))
 
+;;;; Pipelined ingestion
+
+(defrecord PrefetchedDocumentStore [document-store prefetched-docs]
+  db/DocumentStore
+  (submit-docs [_ id-and-docs]
+    (db/submit-docs document-store id-and-docs))
+
+  (fetch-docs [_ ids]
+    (let [ids (set ids)
+          docs (select-keys prefetched-docs ids)]
+      (cond-> docs
+        (< (count docs) (count ids))
+        (into (db/fetch-docs document-store (set/difference ids (set (keys docs)))))))))
+
+;; a rough guide to how much memory prefetched docs hold - we don't
+;; want to serialize every doc twice just to measure it.
+(defn- estimate-bytes ^long [v]
+  (cond
+    (string? v) (+ 16 (.length ^String v))
+    (instance? Named v) (+ 16 (.length ^String (name v)))
+    (bytes? v) (+ 16 (alength ^bytes v))
+    (map? v) (reduce-kv (fn [^long acc k v]
+                          (+ acc (estimate-bytes k) (estimate-bytes v)))
+                        16
+                        v)
+    (coll? v) (reduce (fn [^long acc v]
+                        (+ acc (estimate-bytes v)))
+                      16
+                      v)
+    :else 16))
+
+(defn- docs-bytes ^long [docs]
+  (->> (vals docs)
+       (transduce (map estimate-bytes) + 0)))
+
+(defn- invalidates-prefetched-docs?
+  "Evictions replace documents in the document store with tombstones,
+  so documents prefetched before such a transaction is indexed may be
+  stale. We can't tell up-front whether a transaction function evicts."
+  [tx]
+  (some (comp #{:crux.tx/evict :crux.tx/fn} first) (::txe/tx-events tx)))
+
+(defn- ->tx-pipeline
+  "Returns a subscription handler that reads ahead of the indexer,
+  fetching the documents of up to `prefetch-depth` transactions
+  concurrently. Transactions are still indexed one at a time, in order,
+  on a dedicated indexer thread, by `index-tx!`. The reader stops
+  prefetching while the documents awaiting indexing exceed
+  `prefetch-max-bytes`."
+  [{:keys [document-store ^long prefetch-depth ^long prefetch-max-bytes]} index-tx! on-error]
+  (let [prefetch-pool (Executors/newFixedThreadPool prefetch-depth (cio/thread-factory "crux-tx-prefetch"))
+        indexer-pool (Executors/newSingleThreadExecutor (cio/thread-factory "crux-tx-indexer"))
+        queue (ArrayBlockingQueue. prefetch-depth)
+        in-flight-bytes (AtomicLong.)
+        !eviction-epoch (atom 0)
+        lock (Object.)
+        indexer-job (.submit indexer-pool
+                             ^Runnable
+                             (fn []
+                               (loop []
+                                 (when-let [[{:keys [tx eviction-epoch]} {:keys [docs bytes]}]
+                                            (try
+                                              (let [{:keys [^CompletableFuture !prefetched] :as prefetch} (.take queue)]
+                                                [prefetch (try
+                                                            @!prefetched
+                                                            (catch ExecutionException e
+                                                              (log/debug (.getCause e) "Error prefetching docs, fetching on indexer thread")))])
+                                              (catch InterruptedException _))]
+                                   (try
+                                     (index-tx! (if (= eviction-epoch @!eviction-epoch) docs {}) tx)
+                                     (when (invalidates-prefetched-docs? tx)
+                                       (swap! !eviction-epoch inc))
+                                     (catch Throwable t
+                                       (on-error t)
+                                       (throw t))
+                                     (finally
+                                       (.addAndGet in-flight-bytes (- (long (or bytes 0))))
+                                       (locking lock
+                                         (.notifyAll lock))))
+                                   (recur)))))]
+    (letfn [(ensure-indexer-running []
+              (when (.isDone indexer-job)
+                (throw (IllegalStateException. "tx indexer stopped")))
+              (when (Thread/interrupted)
+                (throw (InterruptedException.))))]
+      {:close-fn (fn []
+                   (.shutdownNow indexer-pool)
+                   (.shutdownNow prefetch-pool))
+
+       :handle-tx (fn [tx]
+                    (locking lock
+                      (while (>= (.get in-flight-bytes) prefetch-max-bytes)
+                        (ensure-indexer-running)
+                        (.wait lock 100)))
+
+                    (let [doc-hashes (set (txc/tx-events->doc-hashes (::txe/tx-events tx)))
+                          prefetch {:tx tx
+                                    :eviction-epoch @!eviction-epoch
+                                    :!prefetched (CompletableFuture/supplyAsync
+                                                  (reify Supplier
+                                                    (get [_]
+                                                      (let [docs (db/fetch-docs document-store doc-hashes)
+                                                            bytes (docs-bytes docs)]
+                                                        (.addAndGet in-flight-bytes bytes)
+                                                        {:docs docs, :bytes bytes})))
+                                                  prefetch-pool)}]
+                      (while (not (.offer queue prefetch 100 TimeUnit/MILLISECONDS))
+                        (ensure-indexer-running))))})))
+
 (defn ->tx-ingester {::sys/deps {:tx-indexer :crux/tx-indexer
                                  :index-store :crux/index-store
+                                 :document-store :crux/document-store
                                  :tx-log :crux/tx-log
                                  :bus :crux/bus
-                                 :secondary-indices :crux/secondary-indices}}
-  [{:keys [tx-log tx-indexer bus index-store secondary-indices]}]
+                                 :secondary-indices :crux/secondary-indices}
+                     ::sys/args {:prefetch-depth {:doc "Number of transactions to read ahead of the indexer, fetching their documents concurrently. 0 fetches documents as each transaction is indexed."
+                                                  :default 0
+                                                  :spec ::sys/nat-int}
+                                 :prefetch-max-bytes {:doc "Soft limit on the total (estimated) size of prefetched documents awaiting indexing."
+                                                      :default (* 64 1024 1024)
+                                                      :spec ::sys/pos-int}}}
+  [{:keys [tx-log tx-indexer bus index-store secondary-indices ^long prefetch-depth] :as opts}]
   (log/info "Started tx-ingester")
 
   (let [!error (atom nil)
@@ -439,7 +608,27 @@
 
             (set-ingester-error! [t]
               (reset! !error t)
-              (bus/send bus {:crux/event-type ::ingester-error, :ingester-error t}))]
+              (bus/send bus {:crux/event-type ::ingester-error, :ingester-error t}))
+
+            (index-tx! [prefetched-docs tx]
+              (let [tx-indexer (cond-> tx-indexer
+                                 (seq prefetched-docs) (update :document-store ->PrefetchedDocumentStore prefetched-docs))
+                    in-flight-tx (db/begin-tx tx-indexer
+                                              (select-keys tx [::tx-time ::tx-id])
+                                              nil)
+                    committing? (db/index-tx-events in-flight-tx (::txe/tx-events tx))]
+                (process-tx-f (assoc tx :committing? committing?))
+
+                (let [written (if committing?
+                                (db/commit in-flight-tx)
+                                (db/abort in-flight-tx))]
+                  ;; a group commit can fail after we've moved on to later txs.
+                  (when (instance? CompletableFuture written)
+                    (.whenComplete ^CompletableFuture written
+                                   (reify BiConsumer
+                                     (accept [_ _ t]
+                                       (when t
+                                         (set-ingester-error! (if (instance? CompletionException t) (.getCause ^Throwable t) t))))))))))]
 
       ;; catching all the secondary indices up to where Crux is
       (when (and latest-crux-tx-id (seq secondary-indices))
@@ -458,22 +647,25 @@
               (throw t)))))
 
       ;; moving on...
-      (let [job (db/subscribe tx-log
-                              latest-crux-tx-id
-                              (fn [_fut tx]
-                                (try
-                                  (let [in-flight-tx (db/begin-tx tx-indexer
-                                                                  (select-keys tx [::tx-time ::tx-id])
-                                                                  nil)
-                                        committing? (db/index-tx-events in-flight-tx (::txe/tx-events tx))]
-                                    (process-tx-f (assoc tx :committing? committing?))
-
-                                    (if committing?
-                                      (db/commit in-flight-tx)
-                                      (db/abort in-flight-tx)))
-
-                                  (catch Throwable t
-                                    (set-ingester-error! t)
-                                    (throw t)))))]
-
-        (->TxIngester index-store !error job)))))
+      (if (pos? prefetch-depth)
+        (let [{:keys [handle-tx close-fn]} (->tx-pipeline opts index-tx! set-ingester-error!)
+              ^CompletableFuture job (db/subscribe tx-log
+                                                   latest-crux-tx-id
+                                                   (fn [_fut tx]
+                                                     (handle-tx tx)))]
+          (->TxIngester index-store !error
+                        (doto job
+                          (.whenComplete (reify BiConsumer
+                                           (accept [_ _ _]
+                                             (close-fn)))))))
+
+        (let [job (db/subscribe tx-log
+                                latest-crux-tx-id
+                                (fn [_fut tx]
+                                  (try
+                                    (index-tx! nil tx)
+                                    (catch Throwable t
+                                      (set-ingester-error! t)
+                                      (throw t)))))]
+
+          (->TxIngester index-store !error job))))))
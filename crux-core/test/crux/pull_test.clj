@@ -78,6 +78,19 @@
                                 :where [[?f :film/name "Die Another Day"]]})))
           (t/is (= [1 6] @!lookup-counts) "batching lookups"))))
 
+    (t/testing "forward joins, across pages"
+      (let [q '{:find [(pull ?f [:film/name {:film/bond [:person/name]}])]
+                :where [[?f :film/year ?y]
+                        [(< ?y "1970")]]}
+            !lookup-counts (atom [])]
+        (with-redefs [pull/lookup-docs (->lookup-docs !lookup-counts)]
+          (let [expected (crux/q db q)]
+            (t/is (= [6 2] @!lookup-counts))
+            (reset! !lookup-counts [])
+            (t/is (= expected (crux/q db (assoc q :batch-size 2)))))
+          (t/is (= [2 2 1 2 1 2] @!lookup-counts)
+                "prefetches the next page's first level"))))
+
     (t/testing "reverse joins"
       (let [!lookup-counts (atom [])]
         (with-redefs [pull/lookup-docs (->lookup-docs !lookup-counts)]
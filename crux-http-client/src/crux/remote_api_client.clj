@@ -10,7 +10,7 @@
             [crux.api :as api]
             [juxt.clojars-mirrors.clj-http.v3v12v2.clj-http.client :as http])
   (:import com.nimbusds.jwt.SignedJWT
-           [crux.api RemoteClientOptions]
+           [crux.api IPreparedQuery RemoteClientOptions]
            [java.io Closeable InputStreamReader IOException PushbackReader]
            java.time.Instant
            (java.util Date)
@@ -119,6 +119,11 @@
    :tx-time (some-> tx-time (cio/format-rfc3339-date))
    :tx-id tx-id})
 
+;; queries are conformed and compiled by the node, so we just hold on
+;; to the query.
+(defrecord RemotePreparedQuery [query]
+  IPreparedQuery)
+
 (defrecord RemoteDatasource [url valid-time tx-time tx-id ->jwt-token]
   Closeable
   (close [_])
@@ -139,12 +144,14 @@
 
   (q* [this query in-args]
     (with-open [res (api/open-q* this query in-args)]
-      (if (:order-by query)
-        (vec (iterator-seq res))
-        (set (iterator-seq res)))))
+      (let [query (cond-> query (instance? RemotePreparedQuery query) :query)]
+        (if (:order-by query)
+          (vec (iterator-seq res))
+          (set (iterator-seq res))))))
 
   (open-q* [this query in-args]
-    (let [in (api-request-sync (str url "/_crux/query")
+    (let [query (cond-> query (instance? RemotePreparedQuery query) :query)
+          in (api-request-sync (str url "/_crux/query")
                                {:->jwt-token ->jwt-token
                                 :http-opts {:as :stream
                                             :method :post
@@ -153,6 +160,9 @@
                                        :in-args (vec in-args)}})]
       (cio/->cursor #(.close ^Closeable in) (edn-list->lazy-seq in))))
 
+  (prepare-q [_ query]
+    (->RemotePreparedQuery query))
+
   (pull [this projection eid]
     (let [?eid (gensym '?eid)
           projection (cond-> projection (string? projection) c/read-edn-string-with-readers)]
@@ -300,6 +310,9 @@
   (listen [this event-opts f]
     (throw (UnsupportedOperationException. "crux/listen not supported on remote clients")))
 
+  (open-live-query [this query f]
+    (throw (UnsupportedOperationException. "crux/open-live-query not supported on remote clients")))
+
   (latest-completed-tx [this]
     (api-request-sync (str url "/_crux/latest-completed-tx")
                       {:http-opts {:method :get}
@@ -16,7 +16,7 @@
            java.util.concurrent.locks.StampedLock
            java.util.concurrent.TimeUnit
            org.agrona.concurrent.UnsafeBuffer
-           org.agrona.ExpandableDirectByteBuffer
+           [org.agrona DirectBuffer ExpandableDirectByteBuffer]
            [org.lwjgl.system MemoryStack MemoryUtil]
            [org.lwjgl.util.lmdb LMDB MDBEnvInfo MDBStat MDBVal]))
 
@@ -131,7 +131,21 @@
       (success? rc)
       (UnsafeBuffer. (.mv_data kv) 0 (.mv_size kv)))))
 
-(defn- cursor-put [mapsize-lock env dbi kvs]
+(defn- cursor-delete-range [cursor ^MDBVal kv ^MDBVal dv ^DirectBuffer start-k ^DirectBuffer end-k]
+  ;; re-seeking after each delete, rather than relying on where
+  ;; `mdb_cursor_del` leaves the cursor.
+  (loop []
+    (when-let [k (cursor->key cursor
+                              (-> kv
+                                  (.mv_data (MemoryUtil/memByteBuffer (.addressOffset start-k) (.capacity start-k)))
+                                  (.mv_size (.capacity start-k)))
+                              dv
+                              LMDB/MDB_SET_RANGE)]
+      (when (neg? (mem/compare-buffers k end-k))
+        (success? (LMDB/mdb_cursor_del ^long cursor 0))
+        (recur)))))
+
+(defn- cursor-put [mapsize-lock env dbi ranges kvs]
   (with-open [stack (MemoryStack/stackPush)
               tx (new-transaction mapsize-lock env 0)
               cursor (new-cursor dbi (:txn tx))]
@@ -140,6 +154,8 @@
           dv (MDBVal/mallocStack stack)
           kb (ExpandableDirectByteBuffer.)
           vb (ExpandableDirectByteBuffer.)]
+      (doseq [[start-k end-k] ranges]
+        (cursor-delete-range cursor kv dv (mem/ensure-off-heap start-k kb) (mem/ensure-off-heap end-k vb)))
       (doseq [[k v] kvs]
         (let [k (mem/ensure-off-heap k kb)
               v (some-> v (mem/ensure-off-heap vb))
@@ -173,20 +189,36 @@
                                        LMDB/MDB_NOSYNC
                                        LMDB/MDB_NOMETASYNC))
 
-(defrecord LMDBKvIterator [^LMDBCursor cursor ^LMDBTransaction tx ^MDBVal kv ^MDBVal dv ^ExpandableDirectByteBuffer eb]
+(deftype LMDBKvIterator [^LMDBCursor cursor ^LMDBTransaction tx ^MDBVal kv ^MDBVal dv ^ExpandableDirectByteBuffer eb
+                         ^DirectBuffer lower-bound
+                         ^:unsynchronized-mutable ^DirectBuffer upper-bound]
+  ;; cursors have no notion of bounds, so we check them here rather than
+  ;; wrapping the iterator - there's no cost to a B+tree cursor stepping
+  ;; one key past the boundary.
+  kv/KvIteratorBounds
+  (set-upper-bound! [_ new-upper-bound]
+    (set! upper-bound (some-> new-upper-bound mem/as-buffer)))
+
   kv/KvIterator
   (seek [_ k]
-    (let [k (mem/ensure-off-heap k eb)
+    (let [k (mem/as-buffer k)
+          k (mem/ensure-off-heap (if (and lower-bound (neg? (mem/compare-buffers k lower-bound)))
+                                   lower-bound
+                                   k)
+                                 eb)
           kv (-> kv
                  (.mv_data (MemoryUtil/memByteBuffer (.addressOffset k) (.capacity k)))
                  (.mv_size (.capacity k)))]
-      (cursor->key (.cursor cursor) kv dv LMDB/MDB_SET_RANGE)))
+      (kv/within-bounds lower-bound upper-bound
+                        (cursor->key (.cursor cursor) kv dv LMDB/MDB_SET_RANGE))))
 
   (next [this]
-    (cursor->key (.cursor cursor) kv dv LMDB/MDB_NEXT))
+    (kv/within-bounds lower-bound upper-bound
+                      (cursor->key (.cursor cursor) kv dv LMDB/MDB_NEXT)))
 
   (prev [this]
-    (cursor->key (.cursor cursor) kv dv LMDB/MDB_PREV))
+    (kv/within-bounds lower-bound upper-bound
+                      (cursor->key (.cursor cursor) kv dv LMDB/MDB_PREV)))
 
   (value [this]
     (UnsafeBuffer. (.mv_data dv) 0 (.mv_size dv)))
@@ -197,12 +229,18 @@
 
 (defrecord LMDBKvSnapshot [env dbi ^LMDBTransaction tx]
   kv/KvSnapshot
-  (new-iterator [_]
-    (->LMDBKvIterator (new-cursor dbi (.txn tx))
-                      tx
-                      (MDBVal/create)
-                      (MDBVal/create)
-                      (ExpandableDirectByteBuffer.)))
+  (new-iterator [this]
+    (kv/new-iterator this {}))
+
+  (new-iterator [_ opts]
+    (let [{:keys [lower-bound upper-bound]} (kv/iterator-bounds opts)]
+      (->LMDBKvIterator (new-cursor dbi (.txn tx))
+                        tx
+                        (MDBVal/create)
+                        (MDBVal/create)
+                        (ExpandableDirectByteBuffer.)
+                        lower-bound
+                        upper-bound)))
 
   (get-value [_ k]
     (tx-get dbi tx k))
@@ -221,15 +259,18 @@
       (->LMDBKvSnapshot env dbi tx)))
 
   (store [this kvs]
+    (kv/delete-ranges this nil kvs))
+
+  (delete-ranges [this ranges kvs]
     (try
-      (cursor-put mapsize-lock env dbi kvs)
+      (cursor-put mapsize-lock env dbi ranges kvs)
       (catch ExceptionInfo e
         (if (= LMDB/MDB_MAP_FULL (:error (ex-data e)))
           (binding [*mapsize-increase-factor* (* 2 *mapsize-increase-factor*)]
             (when (> *mapsize-increase-factor* max-mapsize-increase-factor)
               (throw (IllegalStateException. "Too large size of key values to store at once.")))
             (increase-mapsize mapsize-lock env *mapsize-increase-factor*)
-            (kv/store this kvs))
+            (kv/delete-ranges this ranges kvs))
           (throw e)))))
 
   (compact [_])
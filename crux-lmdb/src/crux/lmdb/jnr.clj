@@ -39,6 +39,9 @@
   (new-iterator [_]
     (->LMDBJNRIterator tx (.openCursor dbi tx) (ExpandableDirectByteBuffer.)))
 
+  (new-iterator [this opts]
+    (kv/->bounded-iterator (kv/new-iterator this) opts))
+
   (get-value [_ k]
     (.get dbi tx (mem/->off-heap k)))
 
@@ -76,11 +79,24 @@
           (throw t)))))
 
   (store [this kvs]
+    (kv/delete-ranges this nil kvs))
+
+  (delete-ranges [this ranges kvs]
     (try
       (cio/with-read-lock mapsize-lock
         (with-open [tx (.txnWrite env)]
           (let [kb (ExpandableDirectByteBuffer.)
                 vb (ExpandableDirectByteBuffer.)]
+            (when (seq ranges)
+              (with-open [cursor (.openCursor dbi tx)]
+                (doseq [[start-k end-k] ranges
+                        :let [start-k (mem/ensure-off-heap start-k kb)
+                              end-k (mem/ensure-off-heap end-k vb)]]
+                  ;; re-seeking after each delete, rather than relying on
+                  ;; where the delete leaves the cursor.
+                  (while (and (.get cursor start-k GetOp/MDB_SET_RANGE)
+                              (neg? (mem/compare-buffers (.key cursor) end-k)))
+                    (.delete cursor (make-array PutFlags 0))))))
             (doseq [[k v] kvs]
               (if v
                 (.put dbi tx (mem/ensure-off-heap k kb) (mem/ensure-off-heap v vb) (make-array PutFlags 0))
@@ -91,7 +107,7 @@
           (when (> *mapsize-increase-factor* max-mapsize-increase-factor)
             (throw (IllegalStateException. "Too large size of keys to store at once.")))
           (increase-mapsize mapsize-lock env *mapsize-increase-factor*)
-          (kv/store this kvs)))))
+          (kv/delete-ranges this ranges kvs)))))
 
   (fsync [this]
     (when-not sync?
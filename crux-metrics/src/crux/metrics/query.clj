@@ -1,10 +1,22 @@
 (ns ^:no-doc crux.metrics.query
   (:require [crux.bus :as bus]
+            [crux.cache.query-result :as qrc]
             [crux.query :as q]
             [crux.metrics.dropwizard :as dropwizard]))
 
+(defn assign-result-cache-gauges [registry query-result-cache]
+  {:result-cache-hits (dropwizard/gauge registry
+                                        ["query" "result-cache" "hits"]
+                                        #(:hits (qrc/stats query-result-cache)))
+   :result-cache-misses (dropwizard/gauge registry
+                                          ["query" "result-cache" "misses"]
+                                          #(:misses (qrc/stats query-result-cache)))
+   :result-cache-bytes (dropwizard/gauge registry
+                                         ["query" "result-cache" "bytes"]
+                                         #(:bytes (qrc/stats query-result-cache)))})
+
 (defn assign-listeners
-  [registry {:crux/keys [bus]}]
+  [registry {:crux/keys [bus query-engine]}]
   (let [!timer-store (atom {})
         query-timer (dropwizard/timer registry ["query" "timer"])]
     (bus/listen bus {:crux/event-types #{::q/submitted-query
@@ -19,7 +31,9 @@
                     (do
                       (dropwizard/stop (get @!timer-store query-id))
                       (swap! !timer-store dissoc query-id)))))
-    {:query-timer query-timer
-     :current-query-count (dropwizard/gauge registry
-                                            ["query" "currently-running"]
-                                            (fn [] (count @!timer-store)))}))
+    (merge {:query-timer query-timer
+            :current-query-count (dropwizard/gauge registry
+                                                   ["query" "currently-running"]
+                                                   (fn [] (count @!timer-store)))}
+           (some->> (:query-result-cache query-engine)
+                    (assign-result-cache-gauges registry)))))
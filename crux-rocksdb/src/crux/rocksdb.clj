@@ -10,13 +10,16 @@
             [crux.checkpoint :as cp]
             [crux.kv.index-store :as kvi]
             [crux.codec :as c])
-  (:import (java.io Closeable File)
+  (:import clojure.lang.MapEntry
+           (java.io Closeable File)
            java.nio.ByteBuffer
            (java.nio.file Files Path)
            java.nio.file.attribute.FileAttribute
-           (org.rocksdb BlockBasedTableConfig Checkpoint CompressionType FlushOptions LRUCache
-                        Options ReadOptions RocksDB RocksIterator
-                        WriteBatch WriteOptions Statistics StatsLevel)))
+           [org.agrona DirectBuffer ExpandableDirectByteBuffer MutableDirectBuffer]
+           (org.rocksdb BlockBasedTableConfig BloomFilter Checkpoint ColumnFamilyDescriptor ColumnFamilyHandle
+                        ColumnFamilyOptions CompressionType DBOptions EnvOptions FlushOptions
+                        IngestExternalFileOptions LRUCache Options ReadOptions RocksDB RocksIterator
+                        Slice SstFileWriter WriteBatch WriteOptions Statistics StatsLevel)))
 
 (set! *unchecked-math* :warn-on-boxed)
 
@@ -24,7 +27,34 @@
   (when (.isValid i)
     (mem/as-buffer (.key i))))
 
-(defrecord RocksKvIterator [^RocksIterator i]
+(deftype ReboundKvIterator [i ^:unsynchronized-mutable upper-bound]
+  ;; RocksDB iterators read their upper bound from the read options
+  ;; they're created with, which can't be re-pointed afterwards - so, as
+  ;; with LMDB, we check the keys of re-boundable iterators here instead.
+  kv/KvIteratorBounds
+  (set-upper-bound! [_ new-upper-bound]
+    (let [new-upper-bound (some-> new-upper-bound mem/as-buffer)]
+      (set! upper-bound new-upper-bound)
+      (kv/set-upper-bound! i new-upper-bound)))
+
+  kv/KvIterator
+  (seek [_ k]
+    (kv/within-bounds nil upper-bound (kv/seek i k)))
+
+  (next [_]
+    (kv/within-bounds nil upper-bound (kv/next i)))
+
+  (prev [_]
+    (kv/within-bounds nil upper-bound (kv/prev i)))
+
+  (value [_]
+    (kv/value i))
+
+  Closeable
+  (close [_]
+    (.close ^Closeable i)))
+
+(defrecord RocksKvIterator [^RocksIterator i closeables]
   kv/KvIterator
   (seek [this k]
     (.seek i (mem/direct-byte-buffer k))
@@ -43,15 +73,221 @@
 
   Closeable
   (close [this]
-    (.close i)))
+    (.close i)
+    (run! cio/try-close closeables)))
+
+(definterface FamilySeek
+  (^org.rocksdb.RocksIterator familyIterator [^long b ^boolean prefix-seek?])
+  (seekForward [^long from-b, ^java.nio.ByteBuffer k])
+  (seekBackward [^long to-b]))
+
+(defn- leading-byte ^long [k]
+  (bit-and 0xFF (.getByte (mem/as-buffer k) 0)))
+
+(defn- cf-handle ^org.rocksdb.ColumnFamilyHandle [{:keys [handles ^ints families]} k]
+  (nth handles (aget families (leading-byte k))))
+
+(defn- upper-bound->prefix!
+  "Writes the prefix (as per the prefix extractor of its family) that
+  every key below `upper-bound` and at or above a key with this prefix
+  shares into `prefix`, returning its length - or -1 if there's no such
+  prefix."
+  ^long [{:keys [^ints prefix-lengths]} ^DirectBuffer upper-bound ^MutableDirectBuffer prefix]
+  (if (and upper-bound (pos? (.capacity upper-bound)))
+    (let [prefix-length (aget prefix-lengths (leading-byte upper-bound))]
+      (cond
+        (not (pos? prefix-length)) -1
+
+        (> (.capacity upper-bound) prefix-length)
+        ;; keys below the bound can only share its prefix if it's
+        ;; followed by anything other than zeros.
+        (if (loop [idx prefix-length]
+              (when (< idx (.capacity upper-bound))
+                (or (not (zero? (.getByte upper-bound idx)))
+                    (recur (inc idx)))))
+          (do (.putBytes prefix 0 upper-bound 0 prefix-length)
+              prefix-length)
+          -1)
+
+        ;; the bound's the start of a prefix - so keys below it share
+        ;; the prefix before it.
+        :else
+        (do (.setMemory prefix 0 prefix-length (byte 0))
+            (.putBytes prefix 0 upper-bound 0 (.capacity upper-bound))
+            (if (and (loop [idx (dec prefix-length)]
+                       (when-not (neg? idx)
+                         (let [b (long (.getByte prefix idx))]
+                           (.putByte prefix idx (unchecked-byte (dec b)))
+                           (if (zero? b)
+                             (recur (dec idx))
+                             true))))
+                     (= prefix-length (aget prefix-lengths (leading-byte prefix))))
+              prefix-length
+              -1))))
+    -1))
+
+(deftype ColumnFamiliesKvIterator [^RocksDB db ^ReadOptions read-options ^ReadOptions prefix-read-options
+                                   column-families ^objects iterators closeables rebound?
+                                   ^MutableDirectBuffer upper-bound-prefix
+                                   ^:unsynchronized-mutable ^RocksIterator i
+                                   ^:unsynchronized-mutable ^long b
+                                   ^:unsynchronized-mutable upper-bound
+                                   ^:unsynchronized-mutable ^long upper-bound-prefix-length]
+  ;; Presents the column families as a single keyspace, ordered by
+  ;; leading byte. Each family covers one or more runs of leading bytes,
+  ;; so when a family's iterator leaves the current run we carry on from
+  ;; the next run, in whichever family that is. All the iterators share
+  ;; the snapshot's read options, so they see the same snapshot - and
+  ;; the same upper bound, past whose leading byte we don't carry on.
+  ;; Re-boundable iterators have no upper bound in their read options -
+  ;; they're re-bounded here, and their keys checked by the wrapping
+  ;; ReboundKvIterator.
+  ;;
+  ;; The snapshot's read options seek in total order, across prefixes,
+  ;; which means the prefix extractors and their blooms go unused - so
+  ;; where a seek's bounded within its prefix, we use a second iterator
+  ;; over the family, in prefix mode, instead.
+  kv/KvIteratorBounds
+  (set-upper-bound! [this new-upper-bound]
+    ;; callers may re-use the same buffer for different bounds, so the
+    ;; prefix is re-derived every time.
+    (when rebound?
+      (set! upper-bound new-upper-bound)
+      (set! upper-bound-prefix-length (upper-bound->prefix! column-families new-upper-bound upper-bound-prefix)))
+    nil)
+
+  kv/KvIterator
+  (seek [this k]
+    (let [k (mem/as-buffer k)]
+      (if (zero? (.capacity k))
+        (.seekForward this 0 nil)
+        (.seekForward this (leading-byte k) (mem/direct-byte-buffer k)))))
+
+  (next [this]
+    (when i
+      (.next i)
+      (let [^ints next-family-bytes (:next-family-bytes column-families)
+            k (iterator->key i)]
+        (if (and k (< (leading-byte k) (aget next-family-bytes b)))
+          (do (set! b (leading-byte k))
+              k)
+          (.seekForward this (aget next-family-bytes b) nil)))))
+
+  (prev [this]
+    (when i
+      (.prev i)
+      (let [^ints prev-family-bytes (:prev-family-bytes column-families)
+            k (iterator->key i)]
+        (if (and k (> (leading-byte k) (aget prev-family-bytes b)))
+          (do (set! b (leading-byte k))
+              k)
+          (.seekBackward this (aget prev-family-bytes b))))))
+
+  (value [this]
+    (mem/as-buffer (.value i)))
 
-(defrecord RocksKvSnapshot [^RocksDB db ^ReadOptions read-options snapshot]
+  FamilySeek
+  (familyIterator [_ b prefix-seek?]
+    (let [{:keys [handles ^ints families]} column-families
+          idx (aget families b)
+          slot (cond-> idx prefix-seek? (+ (count handles)))]
+      (or (aget iterators slot)
+          (aset iterators slot (.newIterator db ^ColumnFamilyHandle (nth handles idx)
+                                             (if prefix-seek? prefix-read-options read-options))))))
+
+  (seekForward [this from-b k]
+    (let [^ints next-family-bytes (:next-family-bytes column-families)
+          ^DirectBuffer upper-bound upper-bound
+          max-b (if (and upper-bound (pos? (.capacity upper-bound)))
+                  (leading-byte upper-bound)
+                  0xFF)]
+      (loop [from-b from-b
+             ^ByteBuffer k k]
+        (if (> from-b max-b)
+          (do (set! i nil) nil)
+          (let [prefix-length upper-bound-prefix-length
+                fi (.familyIterator this from-b (boolean (and k
+                                                              (not (neg? prefix-length))
+                                                              (>= (.remaining k) prefix-length)
+                                                              (mem/buffers=? (mem/as-buffer k) upper-bound-prefix prefix-length))))
+                to-b (aget next-family-bytes from-b)]
+            (.seek fi (or k (doto (ByteBuffer/allocateDirect 1)
+                              (.put 0 (unchecked-byte from-b)))))
+            (let [found-k (iterator->key fi)]
+              (if (and found-k (< (leading-byte found-k) to-b))
+                (do (set! i fi)
+                    (set! b (leading-byte found-k))
+                    found-k)
+                (recur to-b nil))))))))
+
+  (seekBackward [this to-b]
+    (let [^ints prev-family-bytes (:prev-family-bytes column-families)]
+      (loop [to-b to-b]
+        (if (neg? to-b)
+          (do (set! i nil) nil)
+          (let [fi (.familyIterator this to-b false)
+                from-b (aget prev-family-bytes to-b)]
+            (if (= to-b 0xFF)
+              (.seekToLast fi)
+              (do (.seekForPrev fi (byte-array [(unchecked-byte (inc to-b))]))
+                  (when (and (.isValid fi)
+                             (> (leading-byte (.key fi)) to-b))
+                    (.prev fi))))
+            (let [found-k (iterator->key fi)]
+              (if (and found-k (> (leading-byte found-k) from-b))
+                (do (set! i fi)
+                    (set! b (leading-byte found-k))
+                    found-k)
+                (recur from-b))))))))
+
+  Closeable
+  (close [_]
+    (doseq [^RocksIterator i iterators
+            :when i]
+      (.close i))
+    (run! cio/try-close closeables)))
+
+(defn- new-iterator* [{:keys [^RocksDB db column-families]} ^ReadOptions read-options closeables
+                      {:keys [upper-bound rebound?]}]
+  (if column-families
+    (let [prefix-read-options (when (or upper-bound rebound?)
+                                (doto (ReadOptions. read-options)
+                                  (.setTotalOrderSeek false)))
+          upper-bound-prefix (ExpandableDirectByteBuffer. 64)]
+      (->ColumnFamiliesKvIterator db read-options prefix-read-options
+                                  column-families (object-array (* 2 (count (:handles column-families))))
+                                  (cond->> closeables prefix-read-options (cons prefix-read-options))
+                                  (boolean rebound?)
+                                  upper-bound-prefix
+                                  nil 0 upper-bound (upper-bound->prefix! column-families upper-bound upper-bound-prefix)))
+    (->RocksKvIterator (.newIterator db read-options) closeables)))
+
+(defrecord RocksKvSnapshot [^RocksDB db ^ReadOptions read-options snapshot column-families]
   kv/KvSnapshot
   (new-iterator [this]
-    (->RocksKvIterator (.newIterator db read-options)))
+    (new-iterator* this read-options nil nil))
+
+  (new-iterator [this {:keys [rebound?] :as opts}]
+    ;; prefix_same_as_start isn't used for `:prefix`, as prefix mode
+    ;; doesn't support `prev` - the bounds stop the scan all the same,
+    ;; and seeks within a bounded prefix use the prefix blooms anyway.
+    (let [{:keys [lower-bound upper-bound]} (kv/iterator-bounds opts)
+          lower-bound-slice (some-> lower-bound mem/->on-heap (Slice.))
+          upper-bound-slice (when-not rebound?
+                              (some-> upper-bound mem/->on-heap (Slice.)))
+          read-options (doto (ReadOptions. read-options)
+                         (cond-> lower-bound-slice (.setIterateLowerBound lower-bound-slice))
+                         (cond-> upper-bound-slice (.setIterateUpperBound upper-bound-slice)))]
+      (cond-> (new-iterator* this read-options
+                             [read-options lower-bound-slice upper-bound-slice]
+                             {:upper-bound upper-bound
+                              :rebound? rebound?})
+        rebound? (->ReboundKvIterator upper-bound))))
 
   (get-value [this k]
-    (some-> (.get db read-options (mem/->on-heap k))
+    (some-> (if column-families
+              (.get db (cf-handle column-families k) read-options ^bytes (mem/->on-heap k))
+              (.get db read-options (mem/->on-heap k)))
             (mem/as-buffer)))
 
   Closeable
@@ -62,36 +298,107 @@
 (def ^:private default-block-cache-size (* 128 1024 1024))
 (def ^:private default-block-size (* 16 1024))
 
-(defrecord RocksKv [^RocksDB db, ^WriteOptions write-options, ^Options options, ^Closeable metrics, ^Closeable cp-job, db-dir]
+(defn- write-batch [^RocksDB db ^WriteOptions write-options column-families ranges kvs]
+  (with-open [wb (WriteBatch.)]
+    ;; ranges are within a single index, so within a single column family.
+    (doseq [[start-k end-k] ranges]
+      (if column-families
+        (.deleteRange wb (cf-handle column-families start-k) (mem/->on-heap start-k) (mem/->on-heap end-k))
+        (.deleteRange wb (mem/->on-heap start-k) (mem/->on-heap end-k))))
+    (doseq [[k v] kvs]
+      (if column-families
+        (let [cf-handle (cf-handle column-families k)]
+          (if v
+            (.put wb cf-handle (mem/direct-byte-buffer k) (mem/direct-byte-buffer v))
+            (.remove wb cf-handle (mem/direct-byte-buffer k))))
+        (if v
+          (.put wb (mem/direct-byte-buffer k) (mem/direct-byte-buffer v))
+          (.remove wb (mem/direct-byte-buffer k)))))
+    (.write db write-options wb)))
+
+(defn- ingest-sst-file
+  "Writes the KVs into an SST file, which is then moved into the DB -
+  bypassing the memtable, WAL and the L0 compactions of a write batch.
+  SST files have to be written in key order, with distinct keys."
+  [^RocksDB db ^Options options ^Path db-dir ^ColumnFamilyHandle cf-handle kvs]
+  (let [sst-file (Files/createTempFile db-dir "bulk-load-" ".sst" (make-array FileAttribute 0))]
+    (try
+      (with-open [env-options (EnvOptions.)
+                  writer (SstFileWriter. env-options options)]
+        (.open writer (str sst-file))
+        (doseq [[k v] kvs]
+          (if v
+            (.put writer (mem/direct-byte-buffer k) (mem/direct-byte-buffer v))
+            (.delete writer ^bytes (mem/->on-heap k))))
+        (.finish writer))
+
+      (with-open [ingest-options (doto (IngestExternalFileOptions.)
+                                   (.setMoveFiles true))]
+        (if cf-handle
+          (.ingestExternalFile db cf-handle [(str sst-file)] ingest-options)
+          (.ingestExternalFile db [(str sst-file)] ingest-options)))
+
+      (finally
+        (Files/deleteIfExists sst-file)))))
+
+(defn- bulk-load [^RocksDB db ^Options options db-dir column-families kvs]
+  (let [kvs (->> kvs
+                 (into (sorted-map-by mem/buffer-comparator)
+                       (map (fn [[k v]]
+                              (MapEntry/create (mem/as-buffer k) v)))))]
+    (if column-families
+      ;; one file per column family - the default family, which holds the
+      ;; tx-time mapping the latest completed tx is read from, goes last.
+      (doseq [[cf-handle kvs] (->> (group-by #(cf-handle column-families (key %)) kvs)
+                                   (sort-by (comp #(= % (.getDefaultColumnFamily db)) key)))]
+        (ingest-sst-file db options db-dir cf-handle kvs))
+      (ingest-sst-file db options db-dir nil kvs))))
+
+(defrecord RocksKv [^RocksDB db, ^WriteOptions write-options, ^Options options, ^Closeable metrics, ^Closeable cp-job, db-dir, bulk-load-min-kvs
+                    column-families cf-options]
   kv/KvStore
   (new-snapshot [_]
     (let [snapshot (.getSnapshot db)]
       (->RocksKvSnapshot db
                          (doto (ReadOptions.)
-                           (.setSnapshot snapshot))
-                         snapshot)))
+                           (.setSnapshot snapshot)
+                           ;; the prefix extractors of the column families
+                           ;; would otherwise restrict iterators to the
+                           ;; prefix they were seeked to - iterators seek
+                           ;; in prefix mode where their bounds allow.
+                           (cond-> column-families (.setTotalOrderSeek true)))
+                         snapshot
+                         column-families)))
 
   (store [_ kvs]
-    (with-open [wb (WriteBatch.)]
-      (doseq [[k v] kvs]
-        (if v
-          (.put wb (mem/direct-byte-buffer k) (mem/direct-byte-buffer v))
-          (.remove wb (mem/direct-byte-buffer k))))
-      (.write db write-options wb)))
+    (if (and bulk-load-min-kvs
+             (= ^long bulk-load-min-kvs (bounded-count bulk-load-min-kvs kvs)))
+      (bulk-load db options db-dir column-families kvs)
+      (write-batch db write-options column-families nil kvs)))
+
+  (delete-ranges [_ ranges kvs]
+    (write-batch db write-options column-families ranges kvs))
 
   (compact [_]
-    (.compactRange db))
+    (if column-families
+      (doseq [^ColumnFamilyHandle cf-handle (:handles column-families)]
+        (.compactRange db cf-handle))
+      (.compactRange db)))
 
   (fsync [_]
     (when (and (not (.sync write-options))
                (.disableWAL write-options))
       (with-open [flush-options (doto (FlushOptions.)
                                   (.setWaitForFlush true))]
-        (.flush db flush-options))))
+        (if column-families
+          (.flush db flush-options ^java.util.List (:handles column-families))
+          (.flush db flush-options)))))
 
   (count-keys [_]
-    (-> (.getProperty db "rocksdb.estimate-num-keys")
-        (Long/parseLong)))
+    (->> (or (:handles column-families) [(.getDefaultColumnFamily db)])
+         (transduce (map (fn [^ColumnFamilyHandle cf-handle]
+                           (Long/parseLong (.getProperty db cf-handle "rocksdb.estimate-num-keys"))))
+                    +)))
 
   (db-dir [_]
     (str db-dir))
@@ -109,12 +416,93 @@
 
   Closeable
   (close [_]
+    ;; column family handles have to be closed before the DB.
+    (run! cio/try-close (:handles column-families))
     (cio/try-close db)
+    (run! cio/try-close cf-options)
     (cio/try-close options)
     (cio/try-close write-options)
     (cio/try-close metrics)
     (cio/try-close cp-job)))
 
+(def ^:private column-family-configs
+  "Indices with a column family of their own, by index id, tuned for how
+  they're read. Keys of other indices go to the default column family.
+
+  `:prefix-length` sets a fixed-length prefix extractor (with a prefix
+  bloom filter) - the index id plus the attribute or entity id the index
+  is scanned by."
+  (let [id-prefix-length (+ c/index-id-size c/id-size)]
+    {c/content-hash->doc-index-id {:name "content-hash->doc", :block-size (* 32 1024), :bloom-filter? true
+                                   :compression-type CompressionType/ZSTD_COMPRESSION}
+     c/ecav-index-id {:name "ecav", :bloom-filter? true}
+     c/hash-cache-index-id {:name "hash-cache"}
+     c/stats-index-id {:name "stats", :block-size (* 4 1024), :bloom-filter? true}
+
+     ;; bitemporal lookups seek to a single entity
+     c/entity+vt+tt+tx-id->content-hash-index-id {:name "entity+vt+tt+tx-id", :block-size (* 4 1024), :bloom-filter? true
+                                                  :prefix-length id-prefix-length}
+     c/entity+z+tx-id->content-hash-index-id {:name "entity+z+tx-id", :block-size (* 4 1024), :bloom-filter? true
+                                              :prefix-length id-prefix-length}
+
+     ;; attribute prefix scans
+     c/ave-index-id {:name "ave", :block-size (* 32 1024), :prefix-length id-prefix-length}
+     c/av-index-id {:name "av", :block-size (* 32 1024), :prefix-length id-prefix-length}
+     c/ae-index-id {:name "ae", :block-size (* 32 1024), :prefix-length id-prefix-length}}))
+
+(defn- ->column-family-options ^org.rocksdb.ColumnFamilyOptions [^Options opts block-cache {:keys [^long block-size bloom-filter? prefix-length compression-type]
+                                                                                            :or {block-size default-block-size}}]
+  (doto (ColumnFamilyOptions. opts)
+    (.setTableFormatConfig (doto (BlockBasedTableConfig.)
+                             (.setBlockSize block-size)
+                             (cond-> block-cache (.setBlockCache block-cache))
+                             (cond-> bloom-filter? (.setFilterPolicy (BloomFilter. 10 false)))))
+    (cond-> compression-type (.setCompressionType ^CompressionType compression-type))
+    (cond-> prefix-length (doto (.useFixedLengthPrefixExtractor (int prefix-length))
+                            (.setMemtablePrefixBloomSizeRatio 0.1)))))
+
+(defn- open-column-families
+  "Returns [db column-families cf-options]"
+  [^Options opts block-cache ^String db-path]
+  (let [configs (sort-by key column-family-configs)
+        cf-options (cons (ColumnFamilyOptions. opts)
+                         (for [[_ config] configs]
+                           (->column-family-options opts block-cache config)))
+        handles (java.util.ArrayList.)
+        db (with-open [db-options (doto (DBOptions. opts)
+                                    (.setCreateMissingColumnFamilies true))]
+             (RocksDB/open db-options db-path
+                           (mapv (fn [^bytes cf-name ^ColumnFamilyOptions cf-opts]
+                                   (ColumnFamilyDescriptor. cf-name cf-opts))
+                                 (cons RocksDB/DEFAULT_COLUMN_FAMILY
+                                       (for [[_ {cf-name :name}] configs]
+                                         (.getBytes ^String cf-name)))
+                                 cf-options)
+                           handles))
+        families (let [families (int-array 0x100)]
+                   (doseq [[idx [index-id _]] (map-indexed vector configs)]
+                     (aset families (int index-id) (int (inc ^long idx))))
+                   families)]
+    [db
+     {:handles (vec handles)
+      :families families
+      :prefix-lengths (let [prefix-lengths (int-array 0x100)]
+                        (doseq [[index-id {:keys [prefix-length]}] configs
+                                :when prefix-length]
+                          (aset prefix-lengths (int index-id) (int prefix-length)))
+                        prefix-lengths)
+      :next-family-bytes (let [bs (int-array 0x100)]
+                           (doseq [b (range 0x100)]
+                             (aset bs (int b) (int (or (first (filter #(not= (aget families b) (aget families %)) (range (inc ^long b) 0x100)))
+                                                       0x100))))
+                           bs)
+      :prev-family-bytes (let [bs (int-array 0x100)]
+                           (doseq [b (range 0x100)]
+                             (aset bs (int b) (int (or (first (filter #(not= (aget families b) (aget families %)) (range (dec ^long b) -1 -1)))
+                                                       -1))))
+                           bs)}
+     cf-options]))
+
 (def ^:private cp-format {:index-version c/index-version, ::version "6"})
 
 (defn ->lru-block-cache {::sys/args {:cache-size {:doc "Cache size"
@@ -136,38 +524,51 @@
                                            :spec #(instance? Options %)}
                               :disable-wal? {:doc "Disable Write Ahead Log"
                                              :default false
-                                             :spec ::sys/boolean}}}
-  [{:keys [^Path db-dir sync? disable-wal? metrics checkpointer ^Options db-options block-cache] :as options}]
+                                             :spec ::sys/boolean}
+                              :column-families? {:doc "Store each index in its own column family, tuned for how it's read. Changes the on-disk layout - can't be toggled for an existing DB."
+                                                 :default false
+                                                 :spec ::sys/boolean}
+                              :bulk-load-min-kvs {:doc "Writes of at least this many KVs are written to an SST file and ingested, rather than applied as a write batch. Intended for replaying a large tx-log, together with the index store's `:group-commit-max-txs` - once the node has caught up, group commit batches shrink back below this size. Disabled by default."
+                                                  :spec ::sys/pos-int}}}
+  [{:keys [^Path db-dir sync? disable-wal? metrics checkpointer ^Options db-options block-cache bulk-load-min-kvs column-families?] :as options}]
 
   (RocksDB/loadLibrary)
 
-  (when checkpointer
-    (cp/try-restore checkpointer (.toFile db-dir) cp-format))
-
-  (let [stats (when metrics (doto (Statistics.) (.setStatsLevel (StatsLevel/EXCEPT_DETAILED_TIMERS))))
-        opts (doto (or ^Options db-options (Options.))
-               (cond-> metrics (.setStatistics stats))
-               (.setCompressionType CompressionType/LZ4_COMPRESSION)
-               (.setBottommostCompressionType CompressionType/ZSTD_COMPRESSION)
-               (.setCreateIfMissing true))
-        opts (cond-> opts
-               (and block-cache (nil? (.tableFormatConfig opts))) (.setTableFormatConfig (doto (BlockBasedTableConfig.)
-                                                                                           (.setBlockCache block-cache))))
-
-        db (try
-             (RocksDB/open opts (-> (Files/createDirectories db-dir (make-array FileAttribute 0))
-                                    (.toAbsolutePath)
-                                    (str)))
-             (catch Throwable t
-               (.close opts)
-               (throw t)))
-        metrics (when metrics (metrics db stats))
-        kv-store (map->RocksKv {:db-dir db-dir
-                                :options opts
-                                :db db
-                                :metrics metrics
-                                :write-options (doto (WriteOptions.)
-                                                 (.setSync (boolean sync?))
-                                                 (.setDisableWAL (boolean disable-wal?)))})]
-    (cond-> kv-store
-      checkpointer (assoc :cp-job (cp/start checkpointer kv-store {::cp/cp-format cp-format})))))
+  (let [cp-format (cond-> cp-format
+                    column-families? (assoc ::column-families? true))]
+    (when checkpointer
+      (cp/try-restore checkpointer (.toFile db-dir) cp-format))
+
+    (let [stats (when metrics (doto (Statistics.) (.setStatsLevel (StatsLevel/EXCEPT_DETAILED_TIMERS))))
+          opts (doto (or ^Options db-options (Options.))
+                 (cond-> metrics (.setStatistics stats))
+                 (.setCompressionType CompressionType/LZ4_COMPRESSION)
+                 (.setBottommostCompressionType CompressionType/ZSTD_COMPRESSION)
+                 (.setCreateIfMissing true))
+          opts (cond-> opts
+                 (and block-cache (nil? (.tableFormatConfig opts))) (.setTableFormatConfig (doto (BlockBasedTableConfig.)
+                                                                                             (.setBlockCache block-cache))))
+
+          db-path (-> (Files/createDirectories db-dir (make-array FileAttribute 0))
+                      (.toAbsolutePath)
+                      (str))
+          [db column-families cf-options] (try
+                                            (if column-families?
+                                              (open-column-families opts block-cache db-path)
+                                              [(RocksDB/open opts db-path)])
+                                            (catch Throwable t
+                                              (.close opts)
+                                              (throw t)))
+          metrics (when metrics (metrics db stats))
+          kv-store (map->RocksKv {:db-dir db-dir
+                                  :bulk-load-min-kvs bulk-load-min-kvs
+                                  :column-families column-families
+                                  :cf-options cf-options
+                                  :options opts
+                                  :db db
+                                  :metrics metrics
+                                  :write-options (doto (WriteOptions.)
+                                                   (.setSync (boolean sync?))
+                                                   (.setDisableWAL (boolean disable-wal?)))})]
+      (cond-> kv-store
+        checkpointer (assoc :cp-job (cp/start checkpointer kv-store {::cp/cp-format cp-format}))))))
@@ -104,6 +104,11 @@
   (^void rocksdb_writebatch_delete [^{jnr.ffi.annotations.In true :tag jnr.ffi.Pointer} b
                                     ^{jnr.ffi.annotations.In true :tag jnr.ffi.Pointer} key
                                     ^{jnr.ffi.types.size_t true :tag long} klen])
+  (^void rocksdb_writebatch_delete_range [^{jnr.ffi.annotations.In true :tag jnr.ffi.Pointer} b
+                                          ^{jnr.ffi.annotations.In true :tag jnr.ffi.Pointer} start-key
+                                          ^{jnr.ffi.types.size_t true :tag long} start-klen
+                                          ^{jnr.ffi.annotations.In true :tag jnr.ffi.Pointer} end-key
+                                          ^{jnr.ffi.types.size_t true :tag long} end-klen])
   (^void rocksdb_writebatch_destroy [^jnr.ffi.Pointer opt])
 
   (^jnr.ffi.Pointer rocksdb_readoptions_create [])
@@ -197,6 +202,9 @@
                           (ExpandableDirectByteBuffer.)
                           (Memory/allocateTemporary rt NativeType/ULONG)))
 
+  (new-iterator [this opts]
+    (kv/->bounded-iterator (kv/new-iterator this) opts))
+
   (get-value [this k]
     (let [k (mem/->off-heap k)
           errptr-out (make-array String 1)
@@ -224,12 +232,21 @@
                             snapshot
                             (Memory/allocateTemporary rt NativeType/ULONG))))
 
-  (store [_ kvs]
+  (store [this kvs]
+    (kv/delete-ranges this nil kvs))
+
+  (delete-ranges [_ ranges kvs]
     (let [wb (.rocksdb_writebatch_create rocksdb)
           errptr-out (make-array String 1)
           kb (ExpandableDirectByteBuffer.)
           vb (ExpandableDirectByteBuffer.)]
       (try
+        (doseq [[start-k end-k] ranges
+                :let [start-k (mem/ensure-off-heap start-k kb)
+                      end-k (mem/ensure-off-heap end-k vb)]]
+          (.rocksdb_writebatch_delete_range rocksdb wb
+                                            (buffer->pointer start-k) (.capacity start-k)
+                                            (buffer->pointer end-k) (.capacity end-k)))
         (doseq [[k v] kvs
                 :let [k (mem/ensure-off-heap k kb)
                       v (some-> v (mem/ensure-off-heap vb))]]
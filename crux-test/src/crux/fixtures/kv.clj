@@ -26,6 +26,9 @@
   (doseq [kv-opts [memkv-dep
                    mutablekv-dep
                    rocks-dep
+                   (assoc rocks-dep
+                          :db-dir-suffix "rocksdb-cf"
+                          :column-families? true)
                    {:crux/module `crux.rocksdb.jnr/->kv-store
                     :db-dir-suffix "rocksdb-jnr"}
                    lmdb-dep
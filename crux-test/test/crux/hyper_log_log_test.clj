@@ -0,0 +1,87 @@
+(ns crux.hyper-log-log-test
+  (:require [clojure.test :as t]
+            [crux.hyper-log-log :as hll]
+            [crux.memory :as mem])
+  (:import org.agrona.DirectBuffer))
+
+(defn- sparse? [^DirectBuffer hll]
+  (zero? (.getByte hll 0)))
+
+(defn- ->hll [precision vs]
+  (reduce hll/add (hll/->hll precision) vs))
+
+(defn- relative-error ^double [^long n hll]
+  (/ (Math/abs (- (hll/estimate hll) n)) n))
+
+(t/deftest test-hash64
+  (t/testing "values whose 32-bit hashes collide still hash apart"
+    (t/is (= (hash "Aa") (hash "BB")))
+    (t/is (not= (hll/hash64 "Aa") (hll/hash64 "BB"))))
+
+  (t/testing "hashes are stable"
+    (t/is (= (hll/hash64 :foo) (hll/hash64 :foo))))
+
+  (t/testing "MurmurHash64A"
+    (t/is (zero? (hll/buffer-hash64 (mem/as-buffer (byte-array 0)))))
+    (let [b (mem/as-buffer (.getBytes "hello world!" "UTF-8"))]
+      (t/is (= 7267412988528765265 (hll/buffer-hash64 b)))
+      (t/is (= -2990255029898805523 (hll/buffer-hash64 b 42))))))
+
+(t/deftest test-sparse-to-dense
+  (let [p 10
+        vs (range 2000)
+        sketches (reductions hll/add (hll/->hll p) vs)]
+    (t/testing "sketches start sparse, and stay exact-ish while they are"
+      (t/is (sparse? (nth sketches 100)))
+      (t/is (< (relative-error 100 (nth sketches 100)) 0.01)))
+
+    (t/testing "once they'd be bigger than the registers, they're dense"
+      (let [n (count (take-while sparse? sketches))]
+        (t/is (< 100 n 2000))
+        (t/is (not (sparse? (nth sketches n))))
+
+        (t/testing "and the estimate carries on across the conversion"
+          (t/is (< (relative-error (dec n) (nth sketches (dec n))) 0.05))
+          (t/is (< (relative-error n (nth sketches n)) 0.05)))))
+
+    (t/testing "converting gives the same registers as adding to a dense sketch"
+      (let [dense (hll/merge! (->hll p (range 2000 4000)) (last sketches))]
+        (t/is (not (sparse? dense)))
+        (t/is (mem/buffers=? (->hll p (range 4000)) dense))))))
+
+(t/deftest test-merge
+  (letfn [(same-sketch? [expected actual]
+            (and (= (sparse? expected) (sparse? actual))
+                 (mem/buffers=? expected actual)))]
+    (doseq [[a-vs b-vs] [[(range 0 50) (range 25 75)]
+                         [(range 0 50) (range 25 5000)]
+                         [(range 0 5000) (range 25 75)]
+                         [(range 0 5000) (range 2500 7500)]]]
+      (t/testing (format "merges %d and %d values" (count a-vs) (count b-vs))
+        (let [expected (->hll 12 (distinct (concat a-vs b-vs)))]
+          (t/is (same-sketch? expected (hll/merge! (->hll 12 a-vs) (->hll 12 b-vs))))
+          (t/is (same-sketch? expected (hll/merge! (->hll 12 b-vs) (->hll 12 a-vs)))))))
+
+    (t/testing "combine leaves its arguments alone"
+      (let [a (->hll 12 (range 0 5000))
+            a-copy (mem/copy-buffer a)]
+        (hll/combine a (->hll 12 (range 5000 10000)))
+        (t/is (mem/buffers=? a-copy a))))
+
+    (t/testing "sketches of different precisions merge at the lower one"
+      (t/is (same-sketch? (->hll 8 (range 10000))
+                          (hll/merge! (->hll 12 (range 0 6000)) (->hll 8 (range 4000 10000)))))
+      (t/is (same-sketch? (->hll 8 (range 10000))
+                          (hll/merge! (->hll 8 (range 0 6000)) (->hll 12 (range 4000 10000))))))))
+
+(t/deftest test-error-bound
+  ;; the standard error is 1.04/sqrt(m) - we allow three of them.
+  (doseq [p [hll/min-precision hll/default-precision 14]
+          n [100 1000 10000 100000]
+          :let [m (bit-shift-left 1 p)
+                bound (* 3 (/ 1.04 (Math/sqrt m)))]]
+    (t/testing (format "%d values at precision %d" n p)
+      (t/is (< (relative-error n (->hll p (map #(str "v" %) (range n)))) bound))))
+
+  (t/testing "sparse sketches don't saturate"
+    (t/is (< (relative-error 5000 (->hll hll/max-precision (range 5000))) 0.01))))
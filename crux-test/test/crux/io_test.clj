@@ -0,0 +1,26 @@
+(ns crux.io-test
+  (:require [clojure.test :as t]
+            [crux.io :as cio]))
+
+(t/deftest test-external-sort
+  (let [xs (shuffle (for [n (range 10000)]
+                      [(quot n 10) (str "v" n)]))]
+    (t/testing "sorts in memory within the budget"
+      (t/is (= (sort xs) (cio/external-sort xs))))
+
+    (t/testing "spills sorted runs and merges them"
+      (t/is (= (sort xs) (cio/external-sort compare xs 4096))))
+
+    (t/testing "the merge is stable"
+      (let [by-first #(compare (first %1) (first %2))]
+        (t/is (= (sort by-first xs) (cio/external-sort by-first xs 4096)))))
+
+    (t/is (empty? (cio/external-sort [])))
+    (t/is (empty? (cio/external-sort compare [] 4096)))))
+
+(t/deftest test-top-n
+  (let [xs (shuffle (range 1000))]
+    (t/is (= (range 10) (cio/top-n 10 xs)))
+    (t/is (= (range 999 989 -1) (cio/top-n #(compare %2 %1) 10 xs)))
+    (t/is (= (sort xs) (cio/top-n 2000 xs)))
+    (t/is (= [] (cio/top-n 0 xs)))))
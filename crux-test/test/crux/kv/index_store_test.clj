@@ -3,18 +3,25 @@
             [clojure.test.check.clojure-test :as tcct]
             [clojure.test.check.generators :as gen]
             [clojure.test.check.properties :as prop]
+            [crux.cache :as cache]
             [crux.cache.nop :as nop-cache]
             [crux.codec :as c]
             [crux.db :as db]
             [crux.fixtures :as f]
             [crux.fixtures.kv :as fkv]
+            [crux.kv :as kv]
+            [crux.kv.group-commit :as gc]
             [crux.kv.index-store :as kvi]
+            [crux.memory :as mem]
             [crux.tx :as tx]
             [crux.kv.document-store :as kvds])
   (:import clojure.lang.MapEntry
+           crux.cache.ICache
            crux.codec.EntityTx
            crux.api.NodeOutOfSyncException
-           [java.util Date UUID]))
+           java.time.Duration
+           [java.util Date UUID]
+           java.util.concurrent.TimeUnit))
 
 (def ^:dynamic *index-store*)
 
@@ -272,10 +279,259 @@
             (db/index-docs (mk-docs 50))
             (db/commit-index-tx))))
 
-      (t/is (= {:crux.db/id {:doc-count 3675, :values 3554, :eids 3554}
-                :sub-idx {:doc-count 3675, :values 50, :eids 3554}}
+      ;; 3675 distinct eids and 49 distinct sub-idxs - the eid estimate
+      ;; is within two standard errors (3.25% at the default precision).
+      (t/is (= {:crux.db/id {:doc-count 3675, :values 3882, :eids 3882}
+                :sub-idx {:doc-count 3675, :values 49, :eids 3882}}
                (->stats *index-store*))))))
 
+(t/deftest test-statistics-merged-from-deltas
+  (letfn [(->stats [index-store]
+            (with-open [index-snapshot (db/open-index-snapshot index-store)]
+              (->> (db/all-attrs index-snapshot)
+                   (into {} (map (juxt identity
+                                       (fn [attr]
+                                         {:doc-count (db/doc-count index-snapshot attr)
+                                          :values (Math/round (db/value-cardinality index-snapshot attr))
+                                          :eids (Math/round (db/eid-cardinality index-snapshot attr))})))))))
+          (count-keys-with-index-id [kv-store index-id]
+            (with-open [snapshot (kv/new-snapshot kv-store)
+                        i (kv/new-iterator snapshot)]
+              (loop [n 0
+                     k (kv/seek i (mem/->off-heap (byte-array [index-id])))]
+                (if (and k (= index-id (.getByte ^org.agrona.DirectBuffer k 0)))
+                  (recur (inc n) (kv/next i))
+                  n))))]
+    (fkv/with-kv-store [kv-store]
+      (with-open [index-store (kvi/->kv-index-store {:kv-store kv-store
+                                                     :cav-cache (nop-cache/->nop-cache {})
+                                                     :canonical-buffer-cache (nop-cache/->nop-cache {})
+                                                     :stats-merge-txs 3})]
+        (doseq [tx-id (range 5)]
+          (doto (db/begin-index-tx index-store #::tx{:tx-time (Date. (long tx-id)), :tx-id tx-id} nil)
+            (db/index-docs (->> (for [n (range 4)
+                                      :let [doc {:crux.db/id (keyword (str "id-" n)), :tx-id tx-id}]]
+                                  (MapEntry/create (c/new-id doc) doc))
+                                (into {})))
+            (db/commit-index-tx)))
+
+        (t/testing "the first three transactions' stats are merged, the last two are pending deltas"
+          (t/is (= 2 (count-keys-with-index-id kv-store c/stats-index-id)))
+          (t/is (= 4 (count-keys-with-index-id kv-store c/stats-delta-index-id))))
+
+        (t/is (= {:crux.db/id {:doc-count 20, :values 4, :eids 4}
+                  :tx-id {:doc-count 20, :values 5, :eids 4}}
+                 (->stats index-store)))
+
+        (t/testing "snapshots merge each attribute's deltas once"
+          (with-open [index-snapshot (db/open-index-snapshot index-store)]
+            (t/is (= 20 (db/doc-count index-snapshot :tx-id)))
+            (t/is (= 5 (Math/round (db/value-cardinality index-snapshot :tx-id))))
+            (t/is (= #{:tx-id} (set (keys (:stats-cache index-snapshot)))))
+
+            (t/testing "and keep them for the life of the snapshot"
+              (doto (db/begin-index-tx index-store #::tx{:tx-time (Date. 5), :tx-id 5} nil)
+                (db/index-docs (let [doc {:crux.db/id :id-4, :tx-id 5}]
+                                 {(c/new-id doc) doc}))
+                (db/commit-index-tx))
+              (t/is (= 20 (db/doc-count index-snapshot :tx-id))))))
+
+        (t/is (= 21 (:doc-count (:tx-id (->stats index-store)))))))))
+
+(t/deftest test-value-histograms
+  (with-fresh-index-store
+    (doseq [tx-id (range 4)]
+      (doto (db/begin-index-tx *index-store* #::tx{:tx-time (Date. (long tx-id)), :tx-id tx-id} nil)
+        (db/index-docs (->> (for [n (range (* tx-id 25) (* (inc tx-id) 25))
+                                  :let [doc {:crux.db/id (keyword (str "id-" n))
+                                             :n n
+                                             :colour (if (< n 90) :red :blue)}]]
+                              (MapEntry/create (c/new-id doc) doc))
+                            (into {})))
+        (db/commit-index-tx)))
+
+    (with-open [index-snapshot (db/open-index-snapshot *index-store*)]
+      (t/testing "the samples are only decoded for histograms, once per snapshot"
+        (t/is (= 100 (db/doc-count index-snapshot :n)))
+        (let [histogram-delay (get-in index-snapshot [:stats-cache :n :value-histogram])]
+          (t/is (not (realized? histogram-delay)))
+          (t/is (identical? (db/value-histogram index-snapshot :n)
+                            (db/value-histogram index-snapshot :n)))
+          (t/is (realized? histogram-delay))))
+
+      (t/testing "the sample holds every value, so the bounds are exact"
+        (let [histogram (db/value-histogram index-snapshot :n)]
+          (t/is (= 65 (count histogram)))
+          (t/is (= 0 (db/decode-value index-snapshot (first histogram))))
+          (t/is (= 99 (db/decode-value index-snapshot (last histogram))))
+          (t/is (= (sort (map #(db/decode-value index-snapshot %) histogram))
+                   (map #(db/decode-value index-snapshot %) histogram)))))
+
+      (t/testing "common values span buckets"
+        (t/is (= {:blue 7, :red 58}
+                 (frequencies (map #(db/decode-value index-snapshot %)
+                                   (db/value-histogram index-snapshot :colour))))))
+
+      (t/is (nil? (db/value-histogram index-snapshot :unknown))))))
+
+(t/deftest test-parallel-index-docs-matches-serial
+  (letfn [(mk-docs [start n]
+            (->> (for [idx (range start (+ start n))]
+                   (let [doc {:crux.db/id (keyword (str "id-" idx))
+                              :idx idx
+                              :mod (mod idx 7)
+                              :long-str (apply str "long-" (repeat (mod idx 300) "x"))
+                              :set-val #{idx (inc idx)}
+                              :vec-val [(mod idx 3) idx (mod idx 3)]}]
+                     (MapEntry/create (c/new-id doc) doc)))
+                 (into {})))
+          (index-and-dump [index-store]
+            (let [index-store-tx (db/begin-index-tx index-store #::tx{:tx-time #inst "2021", :tx-id 0} nil)
+                  results [(db/index-docs index-store-tx (mk-docs 0 1500))
+                           (db/index-docs index-store-tx (mk-docs 1000 1500))]]
+              (db/commit-index-tx index-store-tx)
+              {:bytes-indexed (mapv :bytes-indexed results)
+               :kvs (with-open [snapshot (kv/new-snapshot (:kv-store index-store))
+                                i (kv/new-iterator snapshot)]
+                      (loop [acc []
+                             k (kv/seek i (mem/->off-heap (byte-array 1)))]
+                        (if k
+                          (recur (conj acc [(mem/buffer->hex k) (mem/buffer->hex (kv/value i))])
+                                 (kv/next i))
+                          acc)))}))]
+    (fkv/with-kv-store [serial-kv-store]
+      (fkv/with-kv-store [parallel-kv-store]
+        (with-open [serial-index-store (kvi/->kv-index-store {:kv-store serial-kv-store
+                                                              :cav-cache (nop-cache/->nop-cache {})
+                                                              :canonical-buffer-cache (nop-cache/->nop-cache {})})
+                    parallel-index-store (kvi/->kv-index-store {:kv-store parallel-kv-store
+                                                                :cav-cache (nop-cache/->nop-cache {})
+                                                                :canonical-buffer-cache (nop-cache/->nop-cache {})
+                                                                :index-docs-parallelism 4})]
+          (t/is (= (index-and-dump serial-index-store)
+                   (index-and-dump parallel-index-store))))))))
+
+(defn- gen-kv-key []
+  (->> (gen/vector (gen/choose 0 3) 1 3)
+       (gen/fmap #(byte-array (map unchecked-byte %)))))
+
+(tcct/defspec test-generative-overlay-kv-iterator 20
+  (prop/for-all [persistent-ks (gen/vector (gen-kv-key) 0 20)
+                 overlay-kvs (gen/vector (gen/tuple (gen-kv-key) gen/boolean) 0 20)
+                 seek-k (gen-kv-key)
+                 steps (gen/vector (gen/elements [:next :prev]) 0 30)]
+                (fkv/with-kv-store [kv-store]
+                  (kv/store kv-store (for [k persistent-ks]
+                                       (MapEntry/create (mem/->off-heap k) (mem/->off-heap (byte-array [1])))))
+                  (let [overlay (->> (for [[k live?] overlay-kvs]
+                                       (MapEntry/create (mem/->off-heap k) (when live? (mem/->off-heap (byte-array [2])))))
+                                     (into (sorted-map-by mem/buffer-comparator)))
+                        expected (->> (merge (zipmap (map mem/buffer->hex (map mem/as-buffer persistent-ks)) (repeat "01"))
+                                             (->> overlay (into {} (map (fn [[k v]] [(mem/buffer->hex k) (mem/buffer->hex v)])))))
+                                      (remove (comp nil? val))
+                                      (sort-by key)
+                                      vec)
+                        expected-walk (loop [idx (->> expected
+                                                      (take-while #(neg? (compare (key %) (mem/buffer->hex (mem/as-buffer seek-k)))))
+                                                      count)
+                                             [step & more-steps] steps
+                                             acc []]
+                                        (let [entry (get expected idx)
+                                              acc (conj acc entry)]
+                                          (if (and entry step)
+                                            (recur (if (= :next step) (inc idx) (dec idx)) more-steps acc)
+                                            acc)))]
+                    (with-open [snapshot (gc/->OverlayKvSnapshot overlay (kv/new-snapshot kv-store))
+                                i (kv/new-iterator snapshot)]
+                      (= expected-walk
+                         (loop [k (kv/seek i (mem/->off-heap seek-k))
+                                [step & more-steps] steps
+                                acc []]
+                           (let [acc (conj acc (when k
+                                                 [(mem/buffer->hex k) (mem/buffer->hex (kv/value i))]))]
+                             (if (and k step)
+                               (recur (if (= :next step) (kv/next i) (kv/prev i)) more-steps acc)
+                               acc)))))))))
+
+(tcct/defspec test-generative-group-committed-bitemporal-lookup-test 20
+  (let [eid (c/->id-buffer :foo)]
+    (prop/for-all [txs (gen/vector-distinct-by second (gen-vt+tid+deleted? {:start-vt #inst "2019", :start-tid 0, :end-vt #inst "2020", :end-tid 100}) 50)
+                   queries (gen/vector (gen-query-vt+tid {:start-vt #inst "2018", :start-tid 0, :end-vt #inst "2021", :end-tid 100}) 100)]
+                  (fkv/with-kv-store [kv-store]
+                    (with-open [index-store (kvi/->kv-index-store {:kv-store kv-store
+                                                                   :cav-cache (nop-cache/->nop-cache {})
+                                                                   :canonical-buffer-cache (nop-cache/->nop-cache {})
+                                                                   :group-commit-max-txs 1000
+                                                                   :group-commit-max-latency (Duration/ofMinutes 1)})]
+                      (binding [*index-store* index-store]
+                        (let [vt+tid->etx (vt+tid+deleted?->vt+tid->etx eid txs)]
+                          (write-etxs (vals vt+tid->etx))
+                          (with-open [index-snapshot (-> (db/begin-index-tx index-store #::tx{:tx-time (Date. 101), :tx-id 101} nil)
+                                                         (db/open-index-snapshot))]
+                            (->> (for [{:keys [valid-time tx-id]} (concat txs queries)]
+                                   (= (entity-as-of vt+tid->etx valid-time tx-id)
+                                      (db/entity-as-of index-snapshot eid valid-time tx-id)))
+                                 (every? true?))))))))))
+
+(defn- index-entity-tx [index-store {::tx/keys [tx-id] :as tx} doc]
+  (let [doc-id (c/new-id doc)]
+    (doto (db/begin-index-tx index-store tx nil)
+      (db/index-docs {doc-id doc})
+      (db/index-entity-txs [(c/->EntityTx (c/new-id (:crux.db/id doc)) (::tx/tx-time tx) (::tx/tx-time tx) tx-id doc-id)]))))
+
+(t/deftest test-group-commit
+  (fkv/with-kv-store [kv-store]
+    (with-open [index-store (kvi/->kv-index-store {:kv-store kv-store
+                                                   :cav-cache (nop-cache/->nop-cache {})
+                                                   :canonical-buffer-cache (nop-cache/->nop-cache {})
+                                                   :group-commit-max-txs 3
+                                                   :group-commit-max-latency (Duration/ofMinutes 1)})]
+      (let [!written (atom [])
+            tx0 #::tx{:tx-time #inst "2021", :tx-id 0}
+            tx1 #::tx{:tx-time #inst "2022", :tx-id 1}
+            tx2 #::tx{:tx-time #inst "2023", :tx-id 2}
+            foo0 {:crux.db/id :foo, :v 0}
+            foo1 {:crux.db/id :foo, :v 1}
+            commit! (fn [index-store-tx {::tx/keys [tx-id]}]
+                      (-> (db/commit-index-tx index-store-tx)
+                          (.thenRun #(swap! !written conj tx-id))))]
+
+        (commit! (index-entity-tx index-store tx0 foo0) tx0)
+
+        (t/testing "later transactions see pending writes"
+          (let [index-store-tx (index-entity-tx index-store tx1 foo1)]
+            (with-open [index-snapshot (db/open-index-snapshot index-store-tx)]
+              (t/is (= foo0 (db/entity index-snapshot :foo (c/new-id foo0))))
+              (t/is (= (c/new-id foo1) (.content-hash ^EntityTx (db/entity-as-of index-snapshot :foo #inst "2022" 1)))))
+            (commit! index-store-tx tx1)))
+
+        (t/testing "pending writes aren't visible outside of the index store"
+          (t/is (empty? @!written))
+          (t/is (nil? (db/latest-completed-tx index-store))))
+
+        (t/testing "evictions shadow pending writes"
+          (let [index-store-tx (doto (db/begin-index-tx index-store tx2 nil)
+                                 (db/unindex-eids #{:foo}))]
+            (commit! index-store-tx tx2)))
+
+        (t/testing "batch is written once full"
+          (t/is (= [0 1 2] @!written))
+          (t/is (= tx2 (db/latest-completed-tx index-store)))
+          (with-open [index-snapshot (db/open-index-snapshot index-store)]
+            (t/is (nil? (db/entity index-snapshot :foo (c/new-id foo0))))))))))
+
+(t/deftest test-group-commit-max-latency
+  (fkv/with-kv-store [kv-store]
+    (with-open [index-store (kvi/->kv-index-store {:kv-store kv-store
+                                                   :cav-cache (nop-cache/->nop-cache {})
+                                                   :canonical-buffer-cache (nop-cache/->nop-cache {})
+                                                   :group-commit-max-txs 100
+                                                   :group-commit-max-latency (Duration/ofMillis 10)})]
+      (let [tx0 #::tx{:tx-time #inst "2021", :tx-id 0}]
+        (-> (db/commit-index-tx (index-entity-tx index-store tx0 {:crux.db/id :foo}))
+            (.get 5 TimeUnit/SECONDS))
+        (t/is (= tx0 (db/latest-completed-tx index-store)))))))
+
 (t/deftest test-entity
   (with-fresh-index-store
     (let [doc {:crux.db/id :foo
@@ -290,6 +546,70 @@
       (with-open [index-snapshot (db/open-index-snapshot *index-store*)]
         (t/is (= doc (db/entity index-snapshot :foo doc-id)))))))
 
+(t/deftest test-av-and-aev-upper-bounds
+  (with-fresh-index-store
+    (let [doc {:crux.db/id :foo, :n #{1 2 3 4 5}, :s "five"}
+          doc-id (c/new-id doc)
+          entity-resolver-fn (constantly (c/->id-buffer doc-id))]
+      (doto (db/begin-index-tx *index-store* #::tx{:tx-time #inst "2021", :tx-id 0} nil)
+        (db/index-docs {doc-id doc})
+        (db/commit-index-tx))
+
+      (with-open [index-snapshot (db/open-index-snapshot *index-store*)]
+        (letfn [(decode [vs]
+                  (map #(db/decode-value index-snapshot %) vs))]
+          (t/is (= [1 2 3 4 5] (decode (db/av index-snapshot :n nil nil))))
+          (t/is (= [2 3] (decode (db/av index-snapshot :n (c/->value-buffer 2) (c/->value-buffer 4)))))
+          (t/is (empty? (db/av index-snapshot :n (c/->value-buffer 4) (c/->value-buffer 2))))
+          (t/is (= [1 2 3 4 5] (decode (db/av index-snapshot :n nil (mem/successor-buffer (c/->value-buffer 5))))))
+
+          (t/is (= [2 3] (decode (db/aev index-snapshot :n :foo (c/->value-buffer 2) (c/->value-buffer 4) entity-resolver-fn))))
+          (t/is (empty? (db/aev index-snapshot :n :foo (c/->value-buffer 4) (c/->value-buffer 2) entity-resolver-fn)))
+          (t/is (= [3 4 5] (decode (db/aev index-snapshot :n :foo (c/->value-buffer 3) nil entity-resolver-fn)))))))))
+
+(t/deftest test-decoded-value-cache
+  (fkv/with-kv-store [kv-store]
+    (let [^ICache decoded-value-cache (cache/->cache {:cache-size 16})
+          long-string (apply str (repeat 2000 "x"))
+          doc {:crux.db/id :foo, :kw :bar, :long-string long-string, :bytes (byte-array [1 2 3]), :dated {:at #inst "2021"}}
+          doc-id (c/new-id doc)]
+      (with-open [index-store (kvi/->kv-index-store {:kv-store kv-store
+                                                     :cav-cache (nop-cache/->nop-cache {})
+                                                     :canonical-buffer-cache (nop-cache/->nop-cache {})
+                                                     :decoded-value-cache decoded-value-cache})]
+        (doto (db/begin-index-tx index-store #::tx{:tx-time #inst "2021", :tx-id 0} nil)
+          (db/index-docs {doc-id doc})
+          (db/commit-index-tx))
+
+        (dotimes [_ 2]
+          (with-open [index-snapshot (db/open-index-snapshot index-store)]
+            (t/is (= [:bar] (map #(db/decode-value index-snapshot %) (db/av index-snapshot :kw nil nil))))
+            (t/is (= :foo (db/decode-value index-snapshot (c/->id-buffer :foo))))
+            (t/is (= 2 (.count decoded-value-cache)))))
+
+        (t/testing "larger values aren't cached"
+          (with-open [index-snapshot (db/open-index-snapshot index-store)]
+            (t/is (= [long-string] (map #(db/decode-value index-snapshot %) (db/av index-snapshot :long-string nil nil))))
+            (t/is (= 2 (.count decoded-value-cache)))))
+
+        (t/testing "mutable values aren't cached - each query gets its own"
+          (let [decode-bytes (fn []
+                               (with-open [index-snapshot (db/open-index-snapshot index-store)]
+                                 (db/decode-value index-snapshot (first (db/av index-snapshot :bytes nil nil)))))
+                ^bytes bs (decode-bytes)]
+            (aset bs 0 (byte 42))
+            (t/is (= [1 2 3] (vec (decode-bytes)))))
+
+          (with-open [index-snapshot (db/open-index-snapshot index-store)]
+            (t/is (= [{:at #inst "2021"}] (map #(db/decode-value index-snapshot %) (db/av index-snapshot :dated nil nil)))))
+          (t/is (= 2 (.count decoded-value-cache))))
+
+        (t/testing "evicted values are evicted from the cache"
+          (doto (db/begin-index-tx index-store #::tx{:tx-time #inst "2021-01-02", :tx-id 1} nil)
+            (db/unindex-eids #{:foo})
+            (db/commit-index-tx))
+          (t/is (zero? (.count decoded-value-cache))))))))
+
 #_
 (t/deftest test-entity-slowdown
   (with-fresh-index-store
@@ -0,0 +1,115 @@
+(ns crux.kv.mutable-kv-test
+  (:require [clojure.test :as t]
+            [crux.kv :as kv]
+            [crux.kv.mutable-kv :as mut-kv]
+            [crux.memory :as mem])
+  (:import crux.kv.mutable_kv.MutableKvStore
+           java.util.List))
+
+(defn- ->buffer [^String s]
+  (mem/as-buffer (.getBytes s "UTF-8")))
+
+(defn- ->str [b]
+  (some-> b mem/->on-heap (String. "UTF-8")))
+
+(defn- scan [kv-store]
+  (with-open [snapshot (kv/new-snapshot kv-store)
+              i (kv/new-iterator snapshot)]
+    (loop [k (kv/seek i (->buffer "a"))
+           acc []]
+      (if k
+        (let [acc (conj acc [(->str k) (->str (kv/value i))])]
+          (recur (kv/next i) acc))
+        acc))))
+
+(t/deftest test-tombstones-shadow-older-values
+  (with-open [kv-store (mut-kv/->mutable-kv-store)]
+    (kv/store kv-store [[(->buffer "a") (->buffer "1")]
+                        [(->buffer "b") (->buffer "2")]])
+    (kv/store kv-store [[(->buffer "a") nil]])
+
+    (with-open [snapshot (kv/new-snapshot kv-store)]
+      (t/is (nil? (kv/get-value snapshot (->buffer "a"))))
+      (t/is (= [["b" "2"]] (scan kv-store)))
+
+      (t/testing "tombstones stay in the snapshot's seq, as deletes"
+        (t/is (= [["a" nil] ["b" "2"]]
+                 (for [[k v] snapshot]
+                   [(->str k) (->str v)])))))
+
+    (t/testing "later values shadow the tombstone"
+      (kv/store kv-store [[(->buffer "a") (->buffer "3")]])
+      (t/is (= [["a" "3"] ["b" "2"]] (scan kv-store))))
+
+    (t/is (= 2 (kv/count-keys kv-store)))))
+
+(t/deftest test-iteration-after-delete
+  (with-open [kv-store (mut-kv/->mutable-kv-store)]
+    (kv/store kv-store (for [k ["a" "b" "c" "d" "e"]]
+                         [(->buffer k) (->buffer k)]))
+    (kv/store kv-store [[(->buffer "b") nil]])
+    (kv/delete-ranges kv-store [[(->buffer "c") (->buffer "d")]] [[(->buffer "e") nil]])
+
+    (t/is (= [["a" "a"] ["d" "d"]] (scan kv-store)))
+
+    (with-open [snapshot (kv/new-snapshot kv-store)
+                i (kv/new-iterator snapshot)]
+      (t/testing "seeks skip deleted keys"
+        (t/is (= "d" (->str (kv/seek i (->buffer "b")))))
+        (t/is (nil? (kv/seek i (->buffer "e")))))
+
+      (t/testing "as do next and prev"
+        (t/is (= "a" (->str (kv/seek i (->buffer "a")))))
+        (t/is (= "d" (->str (kv/next i))))
+        (t/is (nil? (kv/next i)))
+        (t/is (= "d" (->str (kv/seek i (->buffer "d")))))
+        (t/is (= "a" (->str (kv/prev i))))
+        (t/is (nil? (kv/prev i)))))))
+
+(t/deftest test-values-across-chunks
+  (with-open [kv-store (mut-kv/->mutable-kv-store)]
+    (let [big-value (apply str (repeat (* 100 1024) "x"))
+          ks (map #(format "k%03d" %) (range 100))]
+      (kv/store kv-store (for [k ks]
+                           [(->buffer k) (->buffer (str k big-value))]))
+      (t/is (< 1 (.size ^List (.chunks ^MutableKvStore kv-store))))
+      (t/is (= (for [k ks]
+                 [k (str k big-value)])
+               (scan kv-store))))))
+
+(t/deftest test-close-frees-chunks
+  (let [kv-store (mut-kv/->mutable-kv-store)
+        _ (kv/store kv-store [[(->buffer "a") (->buffer "1")]])
+        snapshot (kv/new-snapshot kv-store)
+        i (kv/new-iterator snapshot)]
+    (t/is (= "a" (->str (kv/seek i (->buffer "a")))))
+
+    (.close ^java.io.Closeable kv-store)
+    (t/is (zero? (.size ^List (.chunks ^MutableKvStore kv-store))))
+
+    (t/testing "use after close throws, rather than reading freed memory"
+      (t/is (thrown? IllegalStateException (kv/new-snapshot kv-store)))
+      (t/is (thrown? IllegalStateException (kv/store kv-store [[(->buffer "b") (->buffer "2")]])))
+      (t/is (thrown? IllegalStateException (kv/get-value snapshot (->buffer "a"))))
+      (t/is (thrown? IllegalStateException (seq snapshot)))
+      (t/is (thrown? IllegalStateException (kv/value i)))
+      (t/is (thrown? IllegalStateException (kv/next i)))
+      (t/is (thrown? IllegalStateException (kv/seek i (->buffer "a")))))))
+
+(t/deftest test-iterators-reuse-their-key-buffer
+  (with-open [kv-store (mut-kv/->mutable-kv-store)]
+    (kv/store kv-store [[(->buffer "a") (->buffer "1")]
+                        [(->buffer "b") (->buffer "2")]])
+    (with-open [snapshot (kv/new-snapshot kv-store)
+                i (kv/new-iterator snapshot)]
+      (let [k (kv/seek i (->buffer "a"))
+            v (kv/value i)
+            k-copy (mem/copy-buffer k)]
+        (t/is (= "a" (->str k)))
+
+        (t/testing "the buffers are re-pointed when the iterator moves - callers copy what they keep"
+          (t/is (identical? k (kv/next i)))
+          (t/is (identical? v (kv/value i)))
+          (t/is (= "b" (->str k)))
+          (t/is (= "2" (->str v)))
+          (t/is (= "a" (->str k-copy))))))))
@@ -1,5 +1,6 @@
 (ns crux.kv-test
-  (:require [clojure.test :as t]
+  (:require [clojure.java.io :as io]
+            [clojure.test :as t]
             [clojure.test.check.clojure-test :as tcct]
             [clojure.test.check.generators :as gen]
             [clojure.test.check.properties :as prop]
@@ -9,9 +10,11 @@
             [crux.fixtures.kv :as fkv]
             [crux.io :as cio]
             [crux.kv :as kv]
-            [crux.memory :as mem])
+            [crux.memory :as mem]
+            [crux.rocksdb.loader])
   (:import java.nio.ByteOrder
-           org.agrona.concurrent.UnsafeBuffer))
+           org.agrona.concurrent.UnsafeBuffer
+           [org.rocksdb Options Statistics TickerType]))
 
 (t/use-fixtures :once fix/with-silent-test-check)
 (t/use-fixtures :each fkv/with-each-kv-store*)
@@ -157,6 +160,26 @@
       (t/is (= "Crux" (String. ^bytes (value kv-store (long->bytes 1)))))
       (t/is (nil? (value kv-store (long->bytes 2)))))))
 
+(t/deftest test-delete-ranges []
+  (fkv/with-kv-store [kv-store]
+    (kv/store kv-store (for [n (range 10)]
+                         [(long->bytes n) (.getBytes "Crux")]))
+
+    (t/testing "ranges are end-exclusive, and deleted before the KVs are stored"
+      (kv/delete-ranges kv-store
+                        [[(long->bytes 2) (long->bytes 5)]
+                         [(long->bytes 7) (long->bytes 100)]]
+                        [[(long->bytes 3) (.getBytes "Crux")]
+                         [(long->bytes 0) nil]])
+
+      (t/is (= [1 3 5 6]
+               (->> (seek-and-iterate kv-store (constantly true) (long->bytes 0))
+                    (map (comp bytes->long first))))))
+
+    (t/testing "empty ranges are a noop"
+      (kv/delete-ranges kv-store [[(long->bytes 20) (long->bytes 30)]] [])
+      (t/is (= 4 (count (seek-and-iterate kv-store (constantly true) (long->bytes 0))))))))
+
 (t/deftest test-checkpoint-and-restore-db
   (fkv/with-kv-store [kv-store]
     (when (satisfies? cp/CheckpointSource kv-store)
@@ -174,6 +197,29 @@
               (t/is (= "Original" (String. ^bytes (value kv-store (long->bytes 1)))))
               (t/is (= "Backup" (String. ^bytes (value restored-kv (long->bytes 1))))))))))))
 
+(t/deftest test-rocksdb-bulk-load
+  (when (= (:crux/module fkv/rocks-dep) (:crux/module fkv/*kv-opts*))
+    (binding [fkv/*kv-opts* (merge fkv/*kv-opts* {:bulk-load-min-kvs 3})]
+      (fkv/with-kv-store [kv-store]
+        (kv/store kv-store [[(long->bytes 1) (.getBytes "Crux")]
+                            [(long->bytes 4) (.getBytes "awesome")]])
+
+        (t/testing "unsorted, duplicated keys and deletes are ingested, last write wins"
+          (kv/store kv-store [[(long->bytes 3) (.getBytes "is")]
+                              [(long->bytes 2) (.getBytes "Crux")]
+                              [(long->bytes 2) nil]
+                              [(long->bytes 1) nil]
+                              [(long->bytes 2) (.getBytes "really")]])
+
+          (t/is (nil? (value kv-store (long->bytes 1))))
+          (t/is (= ["really" "is" "awesome"]
+                   (for [[_ v] (seek-and-iterate kv-store (constantly true) (long->bytes 0))]
+                     (String. ^bytes v)))))
+
+        (t/testing "SST files are moved into the DB"
+          (t/is (empty? (->> (.listFiles (io/file (kv/db-dir kv-store)))
+                             (filter #(.startsWith (.getName ^java.io.File %) "bulk-load-"))))))))))
+
 (t/deftest test-compact []
   (fkv/with-kv-store [kv-store]
     (t/testing "store, retrieve and delete value"
@@ -232,6 +278,176 @@
         (t/is (= "a" (String. (mem/->on-heap (kv/prev i)))))
         (t/is (nil? (kv/prev i)))))))
 
+(t/deftest test-bounded-iterators []
+  (fkv/with-kv-store [kv-store]
+    (kv/store kv-store (for [^String k ["a" "b1" "b2" "b3" "c"]]
+                         [(.getBytes k) (.getBytes k)]))
+
+    (letfn [(->str [k] (some-> k mem/->on-heap (String.)))
+            (->buf [^String s] (mem/as-buffer (.getBytes s)))]
+      (with-open [snapshot (kv/new-snapshot kv-store)]
+        (t/testing "prefix"
+          (with-open [i (kv/new-iterator snapshot {:prefix (->buf "b")})]
+            (t/is (= "b1" (->str (kv/seek i (->buf "a")))))
+            (t/is (= "b1" (->str (kv/value i))))
+            (t/is (= ["b2" "b3" nil] [(->str (kv/next i)) (->str (kv/next i)) (->str (kv/next i))])))
+
+          (with-open [i (kv/new-iterator snapshot {:prefix (->buf "b")})]
+            (t/is (= "b3" (->str (kv/seek i (->buf "b3")))))
+            (t/is (= ["b2" "b1" nil] [(->str (kv/prev i)) (->str (kv/prev i)) (->str (kv/prev i))])))
+
+          (with-open [i (kv/new-iterator snapshot {:prefix (->buf "d")})]
+            (t/is (nil? (kv/seek i (->buf "a"))))))
+
+        (t/testing "upper bound"
+          (with-open [i (kv/new-iterator snapshot {:upper-bound (->buf "b2")})]
+            (t/is (= ["a" "b1" nil] [(->str (kv/seek i (->buf "a"))) (->str (kv/next i)) (->str (kv/next i))]))))
+
+        (t/testing "rebound"
+          (with-open [i (kv/new-iterator snapshot {:rebound? true})]
+            (letfn [(scan [seek-k upper-bound]
+                      (kv/set-upper-bound! i (some-> upper-bound ->buf))
+                      ;; stores may return keys past the bound
+                      (->> (iterate (fn [_] (->str (kv/next i))) (->str (kv/seek i (->buf seek-k))))
+                           (take-while some?)
+                           (take-while #(or (nil? upper-bound) (neg? (compare % upper-bound))))))]
+              (t/is (= ["b1" "b2" "b3"] (scan "b" "c")))
+              (t/is (= ["a" "b1"] (scan "a" "b2")))
+              (t/is (= ["b2" "b3" "c"] (scan "b2" nil))))))))))
+
+(t/deftest test-rocksdb-iterators-stop-at-upper-bound
+  (when (= (:crux/module fkv/rocks-dep) (:crux/module fkv/*kv-opts*))
+    (let [stats (Statistics.)]
+      (binding [fkv/*kv-opts* (merge fkv/*kv-opts* {:db-options (doto (Options.)
+                                                                  (.setStatistics stats))})]
+        (fkv/with-kv-store [kv-store]
+          (let [deleted-ks (for [n (range 1000)]
+                             (.getBytes (format "c%04d" n)))]
+            (kv/store kv-store (for [^String k ["b1" "b2" "b3" "d"]]
+                                 [(.getBytes k) (.getBytes k)]))
+            (kv/store kv-store (for [k deleted-ks] [k (.getBytes "deleted")]))
+            (kv/store kv-store (for [k deleted-ks] [k nil])))
+
+          (letfn [(->buf [^String s] (mem/as-buffer (.getBytes s)))
+                  (scan-b [upper-bound]
+                    ;; iterators count the keys they skip when they're closed
+                    (let [skipped (.getTickerCount stats TickerType/NUMBER_ITER_SKIP)
+                          ks (with-open [snapshot (kv/new-snapshot kv-store)
+                                         i (kv/new-iterator snapshot (if upper-bound
+                                                                       {:upper-bound (->buf upper-bound)}
+                                                                       {}))]
+                               (->> (iterate (fn [_] (kv/next i)) (kv/seek i (->buf "b")))
+                                    (take-while #(and % (mem/buffers=? % (->buf "b") 1)))
+                                    count))]
+                      {:n ks
+                       :skipped (- (.getTickerCount stats TickerType/NUMBER_ITER_SKIP) skipped)}))]
+            (t/testing "unbounded, the scan reads on through the tombstones"
+              (let [{:keys [n skipped]} (scan-b nil)]
+                (t/is (= 3 n))
+                (t/is (<= 1000 ^long skipped))))
+
+            (t/testing "RocksDB stops at the bound"
+              (let [{:keys [n skipped]} (scan-b "c")]
+                (t/is (= 3 n))
+                (t/is (zero? ^long skipped)))))
+
+          (t/testing "iterators can be re-bounded"
+            (with-open [snapshot (kv/new-snapshot kv-store)
+                        i (kv/new-iterator snapshot {:rebound? true})]
+              (kv/set-upper-bound! i (mem/as-buffer (.getBytes "c")))
+              (t/is (nil? (kv/seek i (mem/as-buffer (.getBytes "c")))))
+              (kv/set-upper-bound! i nil)
+              (t/is (= "d" (some-> (kv/seek i (mem/as-buffer (.getBytes "c"))) mem/->on-heap (String.)))))))))))
+
+(t/deftest test-rocksdb-bounded-seeks-use-prefix-blooms
+  (when (and (= (:crux/module fkv/rocks-dep) (:crux/module fkv/*kv-opts*))
+             (:column-families? fkv/*kv-opts*))
+    (let [stats (Statistics.)]
+      (binding [fkv/*kv-opts* (merge fkv/*kv-opts* {:db-options (doto (Options.)
+                                                                  (.setStatistics stats))})]
+        (fkv/with-kv-store [kv-store]
+          (letfn [(->prefix [p]
+                    (mem/as-buffer (byte-array (cons c/entity+vt+tt+tx-id->content-hash-index-id (repeat c/id-size p)))))
+                  (->k [p]
+                    (mem/as-buffer (byte-array (concat (mem/->on-heap (->prefix p)) [1]))))
+                  (prefix-checks [f]
+                    (let [checked (.getTickerCount stats TickerType/BLOOM_FILTER_PREFIX_CHECKED)]
+                      (f)
+                      (- (.getTickerCount stats TickerType/BLOOM_FILTER_PREFIX_CHECKED) checked)))]
+            ;; either side of the prefix we look for, so the seek reaches the SST file
+            (kv/store kv-store [[(->k 1) (->k 1)] [(->k 3) (->k 3)]])
+            (kv/compact kv-store)
+
+            (with-open [snapshot (kv/new-snapshot kv-store)]
+              (t/testing "seeks within a bounded prefix check the prefix bloom"
+                (with-open [i (kv/new-iterator snapshot {:prefix (->prefix 2)})]
+                  (t/is (pos? ^long (prefix-checks #(t/is (nil? (kv/seek i (->prefix 2)))))))))
+
+              (t/testing "unbounded seeks can't"
+                (with-open [i (kv/new-iterator snapshot)]
+                  (t/is (zero? ^long (prefix-checks #(kv/seek i (->prefix 2))))))))))))))
+
+(t/deftest test-iterate-and-snapshot-across-index-families
+  ;; with `:column-families?`, these indices each have a column family -
+  ;; some with prefix extractors, over the index id and the next id.
+  ;; LMDB can't grow its map while there's a snapshot open.
+  (binding [fkv/*kv-opts* (cond-> fkv/*kv-opts*
+                            (:env-mapsize fkv/*kv-opts*) (assoc :env-mapsize (* 1024 1024)))]
+    (fkv/with-kv-store [kv-store]
+      (letfn [(->k [index-id p suffix]
+                (mem/as-buffer (byte-array (concat [index-id] (repeat c/id-size p) [suffix]))))
+              (->prefix [index-id p]
+                (mem/as-buffer (byte-array (cons index-id (repeat c/id-size p)))))
+              (->str [k] (some-> k mem/buffer->hex))
+              (scan [i seek-k step]
+                (->> (iterate (fn [_] (->str (step i))) (->str (kv/seek i seek-k)))
+                     (take-while some?)))]
+        (let [index-ids [c/content-hash->doc-index-id c/ave-index-id c/ecav-index-id c/meta-key->value-index-id
+                         c/entity+vt+tt+tx-id->content-hash-index-id c/av-index-id c/ae-index-id c/stats-delta-index-id]
+              prefixes (for [index-id index-ids, p [1 2]] [index-id p])
+              ks (for [[index-id p] prefixes, suffix [1 2 3]] (->k index-id p suffix))
+              ->strs (fn [ks] (map ->str (sort mem/buffer-comparator ks)))
+              ;; the mutable KV store's snapshots see later writes
+              isolated-snapshots? (not= (:crux/module fkv/mutablekv-dep) (:crux/module fkv/*kv-opts*))
+              write! #(kv/store kv-store (concat (for [[index-id p] prefixes] [(->k index-id p 0) (->k index-id p 0)])
+                                                 (for [[index-id p] prefixes] [(->k index-id p 2) nil])))]
+          (kv/store kv-store (for [k ks] [k k]))
+
+          (with-open [snapshot (kv/new-snapshot kv-store)]
+            (when isolated-snapshots?
+              (write!))
+
+            (t/testing "iterating across all the indices, in either direction"
+              (with-open [i (kv/new-iterator snapshot)]
+                (t/is (= (->strs ks) (scan i (mem/as-buffer (byte-array 1)) kv/next)))
+                (t/is (= (reverse (->strs ks)) (scan i (last (sort mem/buffer-comparator ks)) kv/prev)))))
+
+            (t/testing "prefix scans"
+              (doseq [[index-id p] prefixes
+                      :let [prefix (->prefix index-id p)
+                            expected (->strs (for [suffix [1 2 3]] (->k index-id p suffix)))]]
+                (with-open [i (kv/new-iterator snapshot {:prefix prefix})]
+                  (t/is (= expected (scan i prefix kv/next)))
+                  (t/is (= (reverse expected) (scan i (->k index-id p 3) kv/prev))))))
+
+            (t/testing "rebound scans"
+              (with-open [i (kv/new-iterator snapshot {:rebound? true})]
+                (doseq [[index-id p] prefixes
+                        :let [prefix (->prefix index-id p)]]
+                  (kv/set-upper-bound! i (-> (mem/copy-to-unpooled-buffer prefix) (mem/inc-unsigned-buffer!)))
+                  (t/is (= (->strs (for [suffix [1 2 3]] (->k index-id p suffix)))
+                           (->> (scan i prefix kv/next)
+                                (take-while #(.startsWith ^String % (->str prefix))))))))))
+
+          (when-not isolated-snapshots?
+            (write!))
+
+          (t/testing "later snapshots see the writes"
+            (with-open [snapshot (kv/new-snapshot kv-store)
+                        i (kv/new-iterator snapshot)]
+              (t/is (= (->strs (for [[index-id p] prefixes, suffix [0 1 3]] (->k index-id p suffix)))
+                       (scan i (mem/as-buffer (byte-array 1)) kv/next))))))))))
+
 (tcct/defspec test-basic-generative-store-and-get-value 20
   (prop/for-all [kvs (gen/not-empty (gen/map
                                      gen/simple-type-printable
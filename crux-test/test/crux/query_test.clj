@@ -1,13 +1,19 @@
 (ns crux.query-test
-  (:require [clojure.spec.alpha :as s]
+  (:require [clojure.set :as set]
+            [clojure.spec.alpha :as s]
             [clojure.test :as t]
             [clojure.walk :as w]
             [crux.api :as api]
+            [crux.cache.query-result :as qrc]
+            [crux.codec :as c]
+            [crux.db :as db]
             [crux.fixtures :as fix :refer [*api*]]
+            [crux.fixtures.kv :as fkv]
             [crux.index :as idx]
             [crux.query :as q])
-  (:import [java.util Arrays Date UUID]
-           java.util.concurrent.TimeoutException))
+  (:import clojure.lang.Box
+           [java.util Arrays Date List UUID]
+           [java.util.concurrent LinkedBlockingQueue TimeoutException TimeUnit]))
 
 (t/use-fixtures :each fix/with-node)
 
@@ -298,6 +304,37 @@
              (api/q (api/db *api*) '{:find [x]
                                      :in [$ [x x]]} [1 1]))))))
 
+(t/deftest test-prepared-query
+  (let [[ivan petr] (fix/transact! *api* (fix/people [{:name "Ivan" :last-name "Ivanov"}
+                                                      {:name "Petr" :last-name "Petrov"}]))
+        db (api/db *api*)
+        pq (api/prepare-q db '{:find [e]
+                               :in [name]
+                               :where [[e :name name]]})]
+    (t/is (= #{[(:crux.db/id ivan)]} (api/q db pq "Ivan")))
+    (t/is (= #{[(:crux.db/id petr)]} (api/q db pq "Petr")))
+    (with-open [res (api/open-q db pq "Ivan")]
+      (t/is (= [[(:crux.db/id ivan)]] (iterator-seq res))))
+
+    (t/testing "can be run against other dbs"
+      (let [[ivana] (fix/transact! *api* (fix/people [{:name "Ivan" :last-name "Ivanova"}]))]
+        (t/is (= #{[(:crux.db/id ivan)]} (api/q db pq "Ivan")))
+        (t/is (= #{[(:crux.db/id ivan)] [(:crux.db/id ivana)]} (api/q (api/db *api*) pq "Ivan")))))
+
+    (t/testing "honours order-by and limit"
+      (let [pq (api/prepare-q db '{:find [n]
+                                   :in [[n ...]]
+                                   :order-by [[n :desc]]
+                                   :limit 2})]
+        (t/is (= [[3] [2]] (api/q db pq [1 2 3])))))
+
+    (t/testing "query errors are thrown when preparing"
+      (t/is (thrown-with-msg?
+             IllegalArgumentException
+             #"Find refers to unknown variable: f"
+             (api/prepare-q db '{:find [f]
+                                 :where [[e :name "Ivan"]]}))))))
+
 (t/deftest test-multiple-results
   (fix/transact! *api* (fix/people [{:name "Ivan" :last-name "1"}
                                     {:name "Ivan" :last-name "2"}]))
@@ -2429,6 +2466,214 @@
                [3 5]
                [4 5]}))))
 
+;; goals bound first down a chain each find a goal one link further
+;; on - their answers have to come back up the chain together, rather
+;; than a link per round of the fixpoint.
+(t/deftest test-bound-first-recursive-rule-performance
+  (let [depth 150
+        node (fn [^long n] (keyword (str "p" n)))
+        rules '[[(anc ?x ?y)
+                 [?x :parent ?y]]
+                [(anc ?x ?y)
+                 [?x :parent ?z]
+                 (anc ?z ?y)]]]
+    (fix/transact! *api* (vec (for [n (range depth)]
+                                {:crux.db/id (node n)
+                                 :parent (node (inc n))})))
+
+    (let [acceptable-slowdown-factor 1
+          db (api/db *api*)
+          bound-second-ns-start (System/nanoTime)]
+      (t/is (= depth (count (api/q db {:find '[?x]
+                                       :where [(list 'anc '?x (node depth))]
+                                       :rules rules}))))
+      (let [bound-second-ns (- (System/nanoTime) bound-second-ns-start)
+            bound-first-ns-start (System/nanoTime)]
+        (t/is (= depth (count (api/q db {:find '[?y]
+                                         :where [(list 'anc (node 0) '?y)]
+                                         :rules rules}))))
+        (let [bound-first-ns (- (System/nanoTime) bound-first-ns-start)]
+          (t/is (< (double (/ bound-first-ns bound-second-ns)) acceptable-slowdown-factor)
+                (pr-str bound-first-ns " " bound-second-ns)))))))
+
+(t/deftest test-tabled-recursive-rules
+  (let [levels 16
+        node (fn [side ^long level] (keyword (str side level)))]
+    ;; each level has two nodes, both linked to both nodes of the next
+    ;; - so there are 2^levels paths, but only 4 * levels links.
+    (fix/transact! *api* (vec (for [level (range levels)
+                                    side ["a" "b"]]
+                                {:crux.db/id (node side level)
+                                 :next (if (< level (dec levels))
+                                         #{(node "a" (inc level)) (node "b" (inc level))}
+                                         #{})})))
+
+    (let [db (api/db *api*)
+          linear-rules '[[(below ?x ?y)
+                          [?x :next ?y]]
+                         [(below ?x ?y)
+                          [?x :next ?z]
+                          (below ?z ?y)]]
+          non-linear-rules '[[(below ?x ?y)
+                              [?x :next ?y]]
+                             [(below ?x ?y)
+                              (below ?x ?z)
+                              (below ?z ?y)]]
+          below-a0 (set (for [level (range 1 levels)
+                              side ["a" "b"]]
+                          [(node side level)]))]
+      (t/is (= below-a0
+               (api/q db {:find '[?y]
+                          :where '[(below :a0 ?y)]
+                          :rules linear-rules})))
+
+      (t/is (= below-a0
+               (api/q db {:find '[?y]
+                          :where '[(below ?x ?y)]
+                          :in '[?x]
+                          :rules linear-rules}
+                      :a0)))
+
+      (t/is (= below-a0
+               (api/q db {:find '[?y]
+                          :where '[(below :a0 ?y)]
+                          :rules non-linear-rules})))
+
+      (t/is (= (* 2 levels (dec levels))
+               (count (api/q db {:find '[?x ?y]
+                                 :where '[(below ?x ?y)]
+                                 :rules linear-rules}))))
+
+      (t/is (= #{[:a14] [:b14]}
+               (api/q db {:find '[?x]
+                          :where '[(below ?x :a15)
+                                   (below ?x :b15)
+                                   [?x :next :a15]]
+                          :rules non-linear-rules})))))
+
+  (t/testing "repeated vars"
+    (fix/transact! *api* [{:crux.db/id :c0 :follows :c1}
+                          {:crux.db/id :c1 :follows :c2}
+                          {:crux.db/id :c2 :follows :c0}
+                          {:crux.db/id :d0 :follows :c0}])
+    (t/is (= #{[:c0] [:c1] [:c2]}
+             (api/q (api/db *api*)
+                    '{:find [?x]
+                      :where [(follows ?x ?x)]
+                      :rules [[(follows ?x ?y)
+                               [?x :follows ?y]]
+                              [(follows ?x ?y)
+                               [?x :follows ?z]
+                               (follows ?z ?y)]]}))))
+
+  (t/testing "negated goals are solved before they're read"
+    (fix/transact! *api* [{:crux.db/id :n-a :next :n-b}
+                          {:crux.db/id :n-b :next :n-c}
+                          {:crux.db/id :n-c :next :bad}])
+    (let [rules '[[(reach ?x ?y)
+                   [?x :next ?y]]
+                  [(reach ?x ?y)
+                   [?x :next ?z]
+                   (reach ?z ?y)]
+                  [(safe-chain ?x ?y)
+                   [?x :next ?y]
+                   (not (reach ?y :bad))]
+                  [(safe-chain ?x ?y)
+                   [?x :next ?z]
+                   (not (reach ?z :bad))
+                   (safe-chain ?z ?y)]]]
+      (t/is (= #{}
+               (api/q (api/db *api*)
+                      {:find '[?y]
+                       :where '[(safe-chain :n-a ?y)]
+                       :rules rules})))
+
+      (t/is (= #{[:n-a] [:n-b] [:n-c]}
+               (api/q (api/db *api*)
+                      {:find '[?x]
+                       :where '[(reach ?x :bad)]
+                       :rules rules})))))
+
+  (t/testing "rules can't depend on themselves through negation"
+    (t/is (thrown-with-msg? IllegalArgumentException #"through negation"
+                            (api/q (api/db *api*)
+                                   '{:find [?x]
+                                     :where [(odd-hops ?x)]
+                                     :rules [[(odd-hops ?x)
+                                              [?x :next ?y]
+                                              (not (odd-hops ?y))]]})))))
+
+(t/deftest test-live-queries
+  (let [updates (LinkedBlockingQueue.)
+        !results (atom #{})
+        live-q '{:find [?name ?city]
+                 :where [[?p :name ?name]
+                         [?p :lives-in ?c]
+                         [?c :city ?city]]}
+        next-update (fn []
+                      (let [{:keys [added removed] :as update} (.poll updates 5 TimeUnit/SECONDS)]
+                        (swap! !results #(-> % (set/difference removed) (set/union added)))
+                        (t/is (= (api/q (api/db *api*) live-q) @!results))
+                        (select-keys update [:added :removed :crux.tx/tx-id])))]
+    (fix/submit+await-tx [[:crux.tx/put {:crux.db/id :london, :city "London"}]
+                          [:crux.tx/put {:crux.db/id :ivan, :name "Ivan", :lives-in :london}]
+                          [:crux.tx/put {:crux.db/id :put-fn
+                                         :crux.db/fn '(fn [ctx doc] [[:crux.tx/put doc]])}]])
+
+    (with-open [_ (api/open-live-query *api* live-q #(.put updates %))]
+      (t/is (= {:added #{["Ivan" "London"]}, :removed #{}}
+               (dissoc (next-update) :crux.tx/tx-id)))
+
+      (t/testing "joined entity changes"
+        (let [{:crux.tx/keys [tx-id]} (fix/submit+await-tx [[:crux.tx/put {:crux.db/id :london, :city "Londres"}]])]
+          (t/is (= {:added #{["Ivan" "Londres"]}, :removed #{["Ivan" "London"]}, :crux.tx/tx-id tx-id}
+                   (next-update)))))
+
+      (t/testing "unrelated transactions don't notify"
+        (fix/submit+await-tx [[:crux.tx/put {:crux.db/id :paris, :city "Paris"}]])
+        (let [{:crux.tx/keys [tx-id]} (fix/submit+await-tx [[:crux.tx/put {:crux.db/id :petr, :name "Petr", :lives-in :london}]])]
+          (t/is (= {:added #{["Petr" "Londres"]}, :removed #{}, :crux.tx/tx-id tx-id}
+                   (next-update)))))
+
+      (t/testing "results still derived another way aren't removed"
+        (fix/submit+await-tx [[:crux.tx/put {:crux.db/id :ivan2, :name "Ivan", :lives-in :london}]])
+        (let [{:crux.tx/keys [tx-id]} (fix/submit+await-tx [[:crux.tx/delete :ivan]
+                                                            [:crux.tx/put {:crux.db/id :olga, :name "Olga", :lives-in :paris}]])]
+          (t/is (= {:added #{["Olga" "Paris"]}, :removed #{}, :crux.tx/tx-id tx-id}
+                   (next-update)))))
+
+      (t/testing "writes from transaction functions"
+        (let [{:crux.tx/keys [tx-id]} (fix/submit+await-tx [[:crux.tx/fn :put-fn {:crux.db/id :petr, :name "Petr", :lives-in :paris}]])]
+          (t/is (= {:added #{["Petr" "Paris"]}, :removed #{["Petr" "Londres"]}, :crux.tx/tx-id tx-id}
+                   (next-update)))))
+
+      (t/testing "versions starting as valid time passes, from the next transaction"
+        (fix/submit+await-tx [[:crux.tx/put {:crux.db/id :sasha, :name "Sasha", :lives-in :paris}
+                               (Date. (+ (System/currentTimeMillis) 500))]])
+        (Thread/sleep 1000)
+        (let [{:crux.tx/keys [tx-id]} (fix/submit+await-tx [[:crux.tx/put {:crux.db/id :unrelated}]])]
+          (t/is (= {:added #{["Sasha" "Paris"]}, :removed #{}, :crux.tx/tx-id tx-id}
+                   (next-update)))))
+
+      (t/testing "evictions"
+        (let [{:crux.tx/keys [tx-id]} (fix/submit+await-tx [[:crux.tx/evict :ivan2]])]
+          (t/is (= {:added #{}, :removed #{["Ivan" "Londres"]}, :crux.tx/tx-id tx-id}
+                   (next-update))))))
+
+    (t/testing "aggregates are re-run in full"
+      (let [agg-updates (LinkedBlockingQueue.)]
+        (with-open [_ (api/open-live-query *api* '{:find [?city (count ?p)]
+                                                   :where [[?p :lives-in ?c]
+                                                           [?c :city ?city]]}
+                                           #(.put agg-updates %))]
+          (t/is (= #{["Paris" 3]} (:added (.poll agg-updates 5 TimeUnit/SECONDS))))
+          (fix/submit+await-tx [[:crux.tx/put {:crux.db/id :sergei, :name "Sergei", :lives-in :paris}]])
+          (t/is (= {:added #{["Paris" 4]}, :removed #{["Paris" 3]}}
+                   (select-keys (.poll agg-updates 5 TimeUnit/SECONDS) [:added :removed]))))))
+
+    (t/is (thrown-with-msg? IllegalArgumentException #"arguments"
+                            (api/open-live-query *api* '{:find [?p] :where [[?p :name ?name]] :in [?name]} identity)))))
+
 ;; https://github.com/tonsky/datascript/issues/218
 (t/deftest datascript-test-rules-false-arguments
   (fix/transact! *api* [{:crux.db/id 1 :attr true}
@@ -2841,6 +3086,219 @@
                                                    [:blue 7] [:blue 8]]) [[?color ?x]]]]))
                #{[:red [5 4 3 2 1]] [:blue [8 7]]})))))
 
+(t/deftest test-aggregate-accumulators
+  (let [db (api/db *api*)]
+    (letfn [(aggregate [agg xs]
+              (ffirst (api/q db {:find [(list agg '?x)]
+                                 :in '[[?x ...]]}
+                             xs)))]
+      (t/testing "sums keep the contagion of `+`"
+        (t/is (= 6 (aggregate 'sum [1 2 3])))
+        (t/is (= 3.5 (aggregate 'sum [1 2.5])))
+        (t/is (= 7/2 (aggregate 'sum [1 3 -1/2])))
+        (t/is (= 6N (aggregate 'sum [1 2N 3]))))
+
+      (t/is (= 2.5 (aggregate 'avg [1 4])))
+
+      (t/testing "min and max over mixed types"
+        (t/is (= 1 (aggregate 'min [3 1 2])))
+        (t/is (= 2.5 (aggregate 'max [1 2.5 2])))
+        (t/is (= "b" (aggregate 'max ["a" "b"]))))
+
+      (t/is (= 4 (aggregate 'count-distinct [1 2 3 4])))
+      (t/is (< 950 (aggregate 'approx-count-distinct (range 1000)) 1050)))))
+
+(t/deftest test-aggregate-spills-groups
+  (fix/with-opts {:crux/query-engine {:aggregate-max-groups 4}}
+    (fn []
+      (fix/with-node
+        (fn []
+          (fix/transact! *api* (vec (for [n (range 1000)]
+                                      {:crux.db/id (keyword (str "e" n)), :n n, :group (mod n 50)})))
+          (letfn [(spill-files []
+                    (set (.listFiles (java.io.File. (System/getProperty "java.io.tmpdir"))
+                                     (reify java.io.FilenameFilter
+                                       (accept [_ _ file-name]
+                                         (.startsWith ^String file-name "crux-aggregate-spill"))))))]
+            (let [q '{:find [group (count e) (sum n)]
+                      :where [[e :group group]
+                              [e :n n]]}
+                  existing-spill-files (spill-files)]
+              (t/is (= (set (for [group (range 50)]
+                              [group 20 (reduce + (range group 1000 50))]))
+                       (set (api/q (api/db *api*) q))))
+              (t/is (= existing-spill-files (spill-files)))
+
+              (t/testing "closing the cursor early deletes the unread spill files"
+                (with-open [res (api/open-q (api/db *api*) q)]
+                  (t/is (first (iterator-seq res)))
+                  (t/is (not= existing-spill-files (spill-files))))
+                (t/is (= existing-spill-files (spill-files)))))))))))
+
+(t/deftest test-count-doesnt-decode-values
+  (fix/transact! *api* (vec (for [n (range 10)]
+                              {:crux.db/id (keyword (str "e" n)), :group (mod n 2)})))
+  (let [!decoded (atom 0)
+        bound-result-for-var q/bound-result-for-var]
+    (with-redefs [q/bound-result-for-var (fn [index-snapshot var-binding join-keys]
+                                           (swap! !decoded inc)
+                                           (bound-result-for-var index-snapshot var-binding join-keys))]
+      (t/is (= #{[0 5] [1 5]}
+               (api/q (api/db *api*) '{:find [group (count e)]
+                                       :where [[e :group group]]})))
+      (t/is (= 10 @!decoded)))))
+
+(t/deftest test-profiled-query
+  (fix/with-opts {:crux/bus {:sync? true}}
+    (fn []
+      (fix/with-node
+        (fn []
+          (fix/transact! *api* (vec (for [n (range 10)]
+                                      {:crux.db/id (keyword (str "e" n)), :n n})))
+          (let [db (api/db *api*)
+                q '{:find [e]
+                    :where [[e :n n]
+                            [(odd? n)]
+                            (not [e :crux.db/id :e1])]}]
+            (t/is (= #{[:e3] [:e5] [:e7] [:e9]} (api/q db q)))
+            (t/is (nil? (:profile (first (api/recent-queries *api*)))))
+
+            (t/is (= #{[:e3] [:e5] [:e7] [:e9]} (api/q db (assoc q :profile? true))))
+            (let [{:keys [join index-seeks constraints]} (:profile (first (api/recent-queries *api*)))]
+              (t/is (= '#{e n} (set (map :var join))))
+              (t/is (= 4 (:rows (last join))))
+              (t/is (pos? (long (reduce + (vals index-seeks)))))
+              (t/is (= 10 (get-in constraints [:pred :calls])))
+              (t/is (= 5 (get-in constraints [:not :calls])))
+              (t/is (nat-int? (get-in constraints [:not :time-ns]))))))))))
+
+(t/deftest test-entity-resolution-cache-is-shared-and-invalidated-by-evictions
+  (fix/transact! *api* [{:crux.db/id :ivan :name "Ivan"}])
+  (let [{:keys [cache]} (get-in @(:!system *api*) [:crux/query-engine :entity-resolution-cache])
+        ivan (c/->value-buffer :ivan)
+        db (api/db *api* (Date.))
+        q '{:find [e]
+            :where [[e :name "Ivan"]]}]
+    (t/testing "dbs at the current time don't use the cache"
+      (t/is (= #{[:ivan]} (api/q (api/db *api*) q)))
+      (t/is (nil? (get cache ivan))))
+
+    (t/is (= #{[:ivan]} (api/q db q)))
+    (t/is (= 1 (count @(get cache ivan))))
+
+    (t/testing "queries at the same basis share the resolution"
+      (t/is (= #{[:ivan]} (api/q (api/db *api* (api/db-basis db)) q)))
+      (t/is (= 1 (count @(get cache ivan)))))
+
+    (fix/submit+await-tx [[:crux.tx/evict :ivan]])
+    (t/is (nil? (get cache ivan)))
+    (t/is (empty? (api/q db q)))))
+
+(t/deftest test-entity-resolution-cache-outlives-snapshots
+  (doseq [kv-dep [fkv/lmdb-dep
+                  {:crux/module 'crux.rocksdb.jnr/->kv-store, :db-dir-suffix "rocksdb-jnr"}
+                  fkv/rocks-dep]]
+    (fkv/with-kv-store-opts kv-dep
+      (fix/with-node
+        (fn []
+          (fix/transact! *api* [{:crux.db/id :ivan :name "Ivan"}])
+          (let [db (api/db *api* (Date.))
+                q '{:find [e]
+                    :where [[e :name "Ivan"]]}]
+            (t/is (= #{[:ivan]} (api/q db q)))
+
+            ;; enough writes that the stores reuse the closed snapshot's memory
+            (dotimes [tx 20]
+              (fix/submit+await-tx (vec (for [n (range 500)]
+                                          [:crux.tx/put {:crux.db/id (keyword (str "e-" tx "-" n)), :n n}]))))
+
+            (t/is (= #{[:ivan]} (api/q (api/db *api* (api/db-basis db)) q)))))))))
+
+(t/deftest test-query-result-cache
+  (fix/with-opts {:crux/query-engine {:query-result-cache-max-bytes (* 1024 1024)}}
+    (fn []
+      (fix/with-node
+        (fn []
+          (let [cache (get-in @(:!system *api*) [:crux/query-engine :query-result-cache])
+                vt #inst "2100"
+                q '{:find [n]
+                    :where [[e :name n]]}
+                stats #(select-keys (qrc/stats cache) [:hits :misses])]
+            (fix/transact! *api* [{:crux.db/id :ivan :name "Ivan"}])
+            (let [db (api/db *api* vt)]
+              (t/is (= #{["Ivan"]} (api/q db q)))
+              (t/is (= #{["Ivan"]} (api/q db q)))
+              (t/is (= {:hits 1 :misses 1} (stats)))
+
+              (t/testing "results stay valid across transactions on other attributes"
+                (fix/transact! *api* [{:crux.db/id :petr :age 30}])
+                (t/is (= #{["Ivan"]} (api/q (api/db *api* vt) q)))
+                (t/is (= {:hits 2 :misses 1} (stats))))
+
+              (t/testing "transactions on the query's attributes invalidate results"
+                (fix/transact! *api* [{:crux.db/id :petr :name "Petr"}])
+                (t/is (= #{["Ivan"] ["Petr"]} (api/q (api/db *api* vt) q)))
+                (t/is (= {:hits 2 :misses 2} (stats)))
+
+                (t/testing "as do writes to entities which had the attributes"
+                  (fix/transact! *api* [{:crux.db/id :ivan :age 40}])
+                  (t/is (= #{["Petr"]} (api/q (api/db *api* vt) q)))
+                  (t/is (= {:hits 2 :misses 3} (stats)))
+
+                  (t/testing "but not writes to entities which only had them in earlier versions"
+                    (fix/transact! *api* [{:crux.db/id :ivan :age 41}])
+                    (t/is (= #{["Petr"]} (api/q (api/db *api* vt) q)))
+                    (t/is (= {:hits 3 :misses 3} (stats)))))
+
+                (t/is (= #{["Ivan"]} (api/q db q))))
+
+              (t/testing "evictions clear the cache"
+                (fix/submit+await-tx [[:crux.tx/evict :petr]])
+                (t/is (zero? (:entries (qrc/stats cache))))
+                (t/is (= #{} (api/q (api/db *api* vt) q)))))))))))
+
+(t/deftest test-query-result-cache-default-valid-time
+  (fix/with-opts {:crux/query-engine {:query-result-cache-max-bytes (* 1024 1024)
+                                      :query-result-cache-valid-time-bucket-ms (* 24 60 60 1000)}}
+    (fn []
+      (fix/with-node
+        (fn []
+          (let [cache (get-in @(:!system *api*) [:crux/query-engine :query-result-cache])
+                q '{:find [n]
+                    :where [[e :name n]]}
+                stats #(select-keys (qrc/stats cache) [:hits :misses])]
+            (fix/transact! *api* [{:crux.db/id :ivan :name "Ivan"}])
+
+            (t/testing "dbs without a valid time share results within their valid-time bucket"
+              (t/is (= #{["Ivan"]} (api/q (api/db *api*) q)))
+              (Thread/sleep 5)
+              (t/is (= #{["Ivan"]} (api/q (api/db *api*) q)))
+              (t/is (= {:hits 1 :misses 1} (stats))))
+
+            (t/testing "explicit valid times are part of the key"
+              (t/is (= #{["Ivan"]} (api/q (api/db *api* (Date.)) q)))
+              (t/is (= {:hits 1 :misses 2} (stats))))
+
+            (t/testing "later transactions on the query's attributes invalidate them"
+              (fix/transact! *api* [{:crux.db/id :petr :name "Petr"}])
+              (t/is (= #{["Ivan"] ["Petr"]} (api/q (api/db *api*) q)))
+              (t/is (= {:hits 1 :misses 3} (stats))))))))))
+
+(t/deftest test-query-result-cache-sees-valid-time-pass
+  (fix/with-opts {:crux/query-engine {:query-result-cache-max-bytes (* 1024 1024)
+                                      :query-result-cache-valid-time-bucket-ms 100}}
+    (fn []
+      (fix/with-node
+        (fn []
+          (let [q '{:find [n]
+                    :where [[e :name n]]}]
+            (fix/transact! *api* [{:crux.db/id :ivan :name "Ivan"}]
+                           (Date. (+ (System/currentTimeMillis) 300)))
+
+            (t/is (= #{} (api/q (api/db *api*) q)))
+            (Thread/sleep 500)
+            (t/is (= #{["Ivan"]} (api/q (api/db *api*) q)))))))))
+
 (t/deftest test-can-bind-function-returns-to-falsy
   ;; Datomic does allow binding falsy values, DataScript doesn't
   ;; see "Returning nil from function filters out tuple from result"
@@ -3381,6 +3839,37 @@
                                                           [x :val v]]
                                                   :order-by [[v :desc]]}))))
 
+(t/deftest test-order-by-with-limit-keeps-top-n
+  (fix/transact! *api* (vec (for [n (range 100)]
+                              {:crux.db/id (keyword (str "e" n)), :n n, :bucket (quot n 10)})))
+
+  (let [db (api/db *api*)]
+    (t/is (= [[99] [98] [97]]
+             (api/q db '{:find [n]
+                         :where [[e :n n]]
+                         :order-by [[n :desc]]
+                         :limit 3})))
+
+    (t/is (= [[96] [95]]
+             (api/q db '{:find [n]
+                         :where [[e :n n]]
+                         :order-by [[n :desc]]
+                         :offset 3
+                         :limit 2})))
+
+    (t/testing "ties are ordered as a full sort orders them"
+      (let [q '{:find [bucket n]
+                :where [[e :bucket bucket]
+                        [e :n n]]
+                :order-by [[bucket :desc]]}]
+        (t/is (= (take 15 (api/q db q))
+                 (api/q db (assoc q :limit 15))))))
+
+    (t/is (= [] (api/q db '{:find [n]
+                            :where [[e :n n]]
+                            :order-by [[n :desc]]
+                            :limit 0})))))
+
 (t/deftest test-query-with-timeout-419
   (fix/transact! *api* [{:crux.db/id :ivan :name "Ivan" :last-name "Ivanov"}
                         {:crux.db/id :petr :name "Petr" :last-name "Petrov"}])
@@ -3446,6 +3935,33 @@
                             [(= e :foo)]]
                     :limit 1})))))
 
+(t/deftest test-range-constraints-bound-index-scans
+  (fix/transact! *api* (vec (concat (for [n (range 10)]
+                                      {:crux.db/id (keyword (str "n" n)), :v n, :w (* 2 n)})
+                                    [{:crux.db/id :s, :v "5"}])))
+
+  (letfn [(q [db range-clause]
+            (api/q db {:find '[v]
+                       :where ['[e :v v] range-clause]}))]
+    (doseq [db [(api/db *api*)
+                (api/with-tx (api/db *api*) [[:crux.tx/put {:crux.db/id :m7, :v 7}]])]]
+      (t/is (= #{[0] [1] [2] [3] [4]} (q db '[(< v 5)])))
+      (t/is (= #{[0] [1] [2] [3] [4] [5]} (q db '[(<= v 5)])))
+      (t/is (= #{[5]} (q db '[(= v 5)])))
+      (t/is (= #{[5] [6] [7] [8] [9]} (q db '[(>= v 5)])))
+      (t/is (= #{[6] [7] [8] [9]} (q db '[(> v 5)])))
+      (t/is (= #{["5"]} (q db '[(>= v "5")])))
+      (t/is (= #{[9]} (q db '[(> v 8)]))
+            "an upper bound from a lower bound's type")))
+
+  (t/testing "bounds on a var which is the value of more than one clause"
+    (t/is (= #{[3 6] [4 8]}
+             (api/q (api/db *api*) '{:find [v w]
+                                     :where [[e :v v]
+                                             [e :w w]
+                                             [(<= 3 v)]
+                                             [(< v 5)]]})))))
+
 (t/deftest test-query-result-cardinality-972
   (fix/transact! *api* [{:crux.db/id :ii :name "Ivan" :last-name "Ivanov", :age 20}
                         {:crux.db/id :pp :name "Petr" :last-name "Petrov", :age 20}
@@ -3763,6 +4279,33 @@
              (-> (q/query-plan-for (api/db *api*) query)
                  :vars-in-join-order)))))
 
+(t/deftest test-range-selectivity-join-order
+  (fix/submit+await-tx (concat (for [n (range 1000)]
+                                 [:crux.tx/put {:crux.db/id (keyword (str "item-" n))
+                                                :price n
+                                                :category (keyword (str "category-" (mod n 100)))}])
+                               (for [n (range 100)]
+                                 [:crux.tx/put {:crux.db/id (keyword (str "category-" n))
+                                                :category-name (str "Category " n)}])))
+
+  (letfn [(join-order [range-clause]
+            (-> (q/query-plan-for (api/db *api*)
+                                  {:find '[e n]
+                                   :where ['[e :price p]
+                                           '[e :category c]
+                                           '[c :category-name n]
+                                           range-clause]})
+                :vars-in-join-order))
+          (index-of [join-order var]
+            (.indexOf ^List join-order var))]
+    (t/testing "a selective range joins its var first"
+      (let [join-order (join-order '[(< p 2)])]
+        (t/is (< (index-of join-order 'p) (index-of join-order 'c)))))
+
+    (t/testing "an unselective range doesn't"
+      (let [join-order (join-order '[(> p 2)])]
+        (t/is (< (index-of join-order 'c) (index-of join-order 'p)))))))
+
 (defn- date->inverted-long [^Date d]
   (* -1 (.getTime d)))
 
@@ -3873,6 +4416,52 @@
                                  [(identity ?foo-val) ?foo]
                                  [?foo :bar ?bar]]})))))
 
+(t/deftest test-unary-join-blocks
+  (let [->idx (fn [step]
+                (idx/new-relation-virtual-index (mapv vector (range 0 1000 step)) 1 c/->value-buffer))
+        ->values (fn [xs]
+                   (map c/->value-buffer xs))]
+    (t/testing "joins block-at-a-time"
+      (t/is (= (->values (range 0 1000 30))
+               (idx/idx->seq (idx/new-unary-join-virtual-index [(->idx 2) (->idx 3) (->idx 5)])))))
+
+    (t/testing "can seek"
+      (let [join (idx/new-unary-join-virtual-index [(->idx 2) (->idx 3)])]
+        (t/is (= (c/->value-buffer 600) (db/seek-values join (c/->value-buffer 599))))
+        (t/is (= (c/->value-buffer 606) (db/next-values join)))))
+
+    (t/testing "falls back to tuple-at-a-time for predicate indexes"
+      (t/is (= (->values (range 300 1000 30))
+               (idx/idx->seq (idx/new-unary-join-virtual-index [(->idx 2)
+                                                                (idx/new-greater-than-equal-virtual-index (->idx 3) (Box. (c/->value-buffer 300)))
+                                                                (->idx 5)])))))))
+
+(t/deftest test-parallel-query
+  (fix/with-opts {:crux/query-engine {:query-parallelism 4}}
+    (fn []
+      (fix/with-node
+        (fn []
+          (fix/transact! *api* (vec (for [n (range 1000)]
+                                      {:crux.db/id (keyword (str "e" n)), :n n, :even? (even? n)})))
+          (let [db (api/db *api*)
+                q '{:find [e n]
+                    :where [[e :n n]
+                            [e :even? true]]}]
+            (t/is (= 500 (count (api/q db (assoc q :parallel? true)))))
+            (t/is (= (api/q db q) (api/q db (assoc q :parallel? true))))
+
+            (t/testing "order-by and limit apply to the merged results"
+              (t/is (= [[999] [998]]
+                       (api/q db '{:find [n]
+                                   :where [[e :n n]]
+                                   :order-by [[n :desc]]
+                                   :limit 2
+                                   :parallel? true}))))
+
+            (t/testing "closing the cursor early stops the partitions"
+              (with-open [res (api/open-q db (assoc q :parallel? true))]
+                (t/is (= 2 (count (first (iterator-seq res)))))))))))))
+
 (t/deftest test-rules-binding-1569
   (fix/submit+await-tx [[:crux.tx/put {:crux.db/id :a-1, :next :a-2}]
                         [:crux.tx/put {:crux.db/id :a-2, :next :a-3}]
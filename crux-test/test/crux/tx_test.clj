@@ -9,6 +9,8 @@
             [crux.codec :as c]
             [crux.db :as db]
             [crux.fixtures :as fix :refer [*api*]]
+            [crux.kv :as kv]
+            [crux.mem-kv :as mem-kv]
             [crux.rdf :as rdf]
             [crux.system :as sys]
             [crux.tx :as tx]
@@ -1007,6 +1009,8 @@
                  :submitted-tx submitted-tx,
                  :committed? true
                  :doc-ids doc-ids
+                 :eids #{(c/new-id :foo) (c/new-id :bar)}
+                 :evicted-eids #{}
                  :av-count 4
                  ::txe/tx-events [[:crux.tx/put
                                    #crux/id "0beec7b5ea3f0fdbc95d0dd47f3c5bc275da8a33"
@@ -1242,7 +1246,7 @@
       (t/is (nil? (crux/entity db :test1/b)))
 
       (with-open [index-snapshot (db/open-index-snapshot (:index-store *api*))]
-        (t/is (empty? (db/av index-snapshot :test1/evicted? nil)))
+        (t/is (empty? (db/av index-snapshot :test1/evicted? nil nil)))
         (t/is (empty? (db/entity-history index-snapshot :test1/b :asc {}))))
 
       (t/is (= #{[:test1/a]} (crux/q db '{:find [?e], :where [[?e :test1? true]]})))
@@ -1257,7 +1261,7 @@
       (t/is (= {:crux.db/id :test2/b, :test2? true} (crux/entity db :test2/b)))
 
       (with-open [index-snapshot (db/open-index-snapshot (:index-store *api*))]
-        (t/is (empty? (db/av index-snapshot :test2/evicted? nil)))
+        (t/is (empty? (db/av index-snapshot :test2/evicted? nil nil)))
         (t/is (empty? (db/entity-history index-snapshot :test2/a :asc {}))))
 
       (t/is (= #{[:test2/b]} (crux/q db '{:find [?e], :where [[?e :test2? true]]})))
@@ -1291,7 +1295,7 @@
     (fix/submit+await-tx [[:crux.tx/evict :foo]])
 
     (with-open [index-snapshot (db/open-index-snapshot (:index-store *api*))]
-      (t/is (empty? (db/av index-snapshot :evict-me? nil)))))
+      (t/is (empty? (db/av index-snapshot :evict-me? nil nil)))))
 
   ;; TODO fails, see #1338
   #_
@@ -1301,28 +1305,92 @@
     (fix/submit+await-tx [[:crux.tx/evict :foo]
                           [:crux.tx/evict :bar]])
     (with-open [index-snapshot (db/open-index-snapshot (:index-store *api*))]
-      (t/is (empty? (db/av index-snapshot :evict-me? nil))))))
+      (t/is (empty? (db/av index-snapshot :evict-me? nil nil))))))
 
 (t/deftest node-shutdown-interrupts-tx-ingestion
-  (let [op-count 10
-        !calls (atom 0)
-        node (crux/start-node {})]
-    (with-redefs [tx/index-tx-event (let [f tx/index-tx-event]
-                                      (fn [& args]
-                                        (let [target-time (+ (System/currentTimeMillis) 200)]
-                                          (while (< (System/currentTimeMillis) target-time)))
-                                        (swap! !calls inc)
-                                        (apply f args)))]
-      @(try
-         (let [tx (crux/submit-tx node (repeat op-count [:crux.tx/put {:crux.db/id :foo}]))
-               await-fut (future
-                           (t/is (thrown? InterruptedException (crux/await-tx node tx))))]
-           (Thread/sleep 100) ; to ensure the await starts before the node closes
-           await-fut)
-         (finally
-           (.close node))))
-    (t/is (instance? InterruptedException (db/ingester-error (:tx-ingester node))))
-    (t/is (< @!calls op-count))))
+  (doseq [prefetch-depth [0 2]]
+    (t/testing (str "prefetch depth " prefetch-depth)
+      (let [op-count 10
+            !calls (atom 0)
+            !indexing (promise)
+            node (crux/start-node {:crux/tx-ingester {:prefetch-depth prefetch-depth}})]
+        (with-redefs [tx/index-tx-event (let [f tx/index-tx-event]
+                                          (fn [& args]
+                                            (deliver !indexing true)
+                                            (let [target-time (+ (System/currentTimeMillis) 200)]
+                                              (while (< (System/currentTimeMillis) target-time)))
+                                            (swap! !calls inc)
+                                            (apply f args)))]
+          @(try
+             (let [tx (crux/submit-tx node (repeat op-count [:crux.tx/put {:crux.db/id :foo}]))
+                   await-fut (future
+                               (t/is (thrown? InterruptedException (crux/await-tx node tx))))]
+               @!indexing
+               (Thread/sleep 100) ; to ensure the await starts before the node closes
+               await-fut)
+             (finally
+               (.close node))))
+        ;; closing the node doesn't wait for the interrupted ingester to record its error
+        (let [tx-ingester (:tx-ingester node)
+              deadline (+ (System/currentTimeMillis) 1000)]
+          (while (and (nil? (db/ingester-error tx-ingester))
+                      (< (System/currentTimeMillis) deadline))
+            (Thread/sleep 10)))
+        (t/is (instance? InterruptedException (db/ingester-error (:tx-ingester node))))
+        (t/is (< @!calls op-count))))))
+
+(defrecord FailingKvStore [kv-store !fail?]
+  kv/KvStore
+  (new-snapshot [_] (kv/new-snapshot kv-store))
+  (store [_ kvs]
+    (when @!fail?
+      (throw (IllegalStateException. "store failed")))
+    (kv/store kv-store kvs))
+  (delete-ranges [_ ranges kvs] (kv/delete-ranges kv-store ranges kvs))
+  (fsync [_] (kv/fsync kv-store))
+  (compact [_] (kv/compact kv-store))
+  (count-keys [_] (kv/count-keys kv-store))
+  (db-dir [_] (kv/db-dir kv-store))
+  (kv-name [_] (kv/kv-name kv-store))
+
+  java.io.Closeable
+  (close [_] (.close ^java.io.Closeable kv-store)))
+
+(t/deftest failed-group-commit-fails-tx-ingestion
+  (let [!fail? (atom false)]
+    (with-open [node (crux/start-node {:crux/index-store {:kv-store (fn [_]
+                                                                     (->FailingKvStore (mem-kv/->kv-store) !fail?))
+                                                          :group-commit-max-txs 100
+                                                          :group-commit-max-latency (Duration/ofMillis 50)}})]
+      (crux/await-tx node (crux/submit-tx node [[:crux.tx/put {:crux.db/id :foo}]]))
+      (reset! !fail? true)
+
+      (let [tx (crux/submit-tx node [[:crux.tx/put {:crux.db/id :bar}]])]
+        (t/is (thrown-with-msg? Exception #"Transaction ingester aborted"
+                                (crux/await-tx node tx (Duration/ofSeconds 5))))
+        (t/is (= "store failed" (ex-message (db/ingester-error (:tx-ingester node)))))))))
+
+(t/deftest test-prefetching-tx-ingester
+  (with-open [node (crux/start-node {:crux/tx-ingester {:prefetch-depth 4}})]
+    (let [!indexed-tx-ids (atom [])
+          listener (crux/listen node {:crux/event-type :crux/indexed-tx}
+                                (fn [{::tx/keys [tx-id]}]
+                                  (swap! !indexed-tx-ids conj tx-id)))
+          txs (vec (for [n (range 50)]
+                     (crux/submit-tx node (concat [[:crux.tx/put {:crux.db/id :foo, :n n}]
+                                                   [:crux.tx/put {:crux.db/id (keyword (str "bar-" n)), :n n}]]
+                                                  (when (= 20 n)
+                                                    [[:crux.tx/match :foo {:crux.db/id :foo, :n -1}]])))))]
+      (crux/await-tx node (last txs))
+      (while (< (count @!indexed-tx-ids) (count txs))
+        (Thread/sleep 10))
+      (.close ^java.lang.AutoCloseable listener)
+
+      (t/is (= (map ::tx/tx-id txs) @!indexed-tx-ids))
+      (t/is (= {:crux.db/id :foo, :n 49} (crux/entity (crux/db node) :foo)))
+      (t/is (nil? (crux/entity (crux/db node) :bar-20)))
+      (t/is (false? (crux/tx-committed? node (nth txs 20))))
+      (t/is (= 50 (count (crux/q (crux/db node) '{:find [e] :where [[e :n]]})))))))
 
 (t/deftest empty-tx-can-be-awaited-1519
   (let [tx (api/submit-tx *api* [])